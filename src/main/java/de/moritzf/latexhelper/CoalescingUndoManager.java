@@ -0,0 +1,299 @@
+package de.moritzf.latexhelper;
+
+import javax.swing.*;
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.undo.CompoundEdit;
+import javax.swing.undo.UndoManager;
+import javax.swing.undo.UndoableEdit;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Undo manager for the latex editor that keeps the history small and meaningful.
+ * <ul>
+ * <li>Keystrokes are coalesced into one undo step per word: consecutive single character insertions (or
+ * deletions) at adjacent positions are grouped. A step holds a word and the delimiters typed after it
+ * (e.g. <code>b} + </code>); it ends when a letter or digit follows a delimiter, the user pauses longer than the
+ * time window, the kind of edit changes or the caret jumps. Pasted text always forms a step of its own.</li>
+ * <li>The history is bounded by the estimated memory of its edits. If it exceeds the budget, the oldest steps
+ * are evicted, so repeatedly pasting large matrices can not grow it without limit.</li>
+ * <li>Optionally, rendered icons are kept for the most recent undo states, so undo and redo can show the
+ * preview without parsing the formula again (see {@link #getSnapshot(String)}).</li>
+ * </ul>
+ *
+ * @author Moritz Floeter
+ */
+public class CoalescingUndoManager extends UndoManager {
+
+    /**
+     * Default time in milliseconds after which a pause starts a new undo step.
+     */
+    public static final long DEFAULT_COALESCE_WINDOW_MILLIS = 1000;
+
+    /**
+     * Default memory budget of the history in bytes.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET_BYTES = 4L * 1024 * 1024;
+
+    /**
+     * Default number of undo states whose rendered icon is kept.
+     */
+    public static final int DEFAULT_SNAPSHOT_CAPACITY = 16;
+
+    /**
+     * Estimated fixed cost of an edit object in bytes, on top of the text it holds.
+     */
+    private static final int EDIT_OVERHEAD_BYTES = 96;
+
+    private final Document document;
+    private final long coalesceWindowMillis;
+    private final long memoryBudgetBytes;
+    private final int snapshotCapacity;
+    private final Map<String, Icon> snapshots;
+
+    private EditGroup current;
+    private long historyBytes;
+    private String pendingSnapshotText;
+    private Icon pendingSnapshot;
+
+    /**
+     * Instantiates a new undo manager with default settings.
+     *
+     * @param document the document the edits belong to
+     */
+    public CoalescingUndoManager(Document document) {
+        this(document, DEFAULT_COALESCE_WINDOW_MILLIS, DEFAULT_MEMORY_BUDGET_BYTES, DEFAULT_SNAPSHOT_CAPACITY);
+    }
+
+    /**
+     * Instantiates a new undo manager.
+     *
+     * @param document             the document the edits belong to
+     * @param coalesceWindowMillis the time in milliseconds after which a pause starts a new undo step
+     * @param memoryBudgetBytes    the memory budget of the history in bytes
+     * @param snapshotCapacity     the number of undo states whose rendered icon is kept, 0 to disable snapshots
+     */
+    public CoalescingUndoManager(Document document, long coalesceWindowMillis, long memoryBudgetBytes,
+                                 int snapshotCapacity) {
+        this.document = document;
+        this.coalesceWindowMillis = coalesceWindowMillis;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.snapshotCapacity = snapshotCapacity;
+        this.snapshots = new LinkedHashMap<String, Icon>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Icon> eldest) {
+                return size() > CoalescingUndoManager.this.snapshotCapacity;
+            }
+        };
+        // the memory budget bounds the history, the count limit only guards against pathological tiny edits
+        setLimit(10000);
+    }
+
+    @Override
+    public synchronized boolean addEdit(UndoableEdit anEdit) {
+        long now = System.currentTimeMillis();
+        EditInfo info = EditInfo.of(anEdit, document);
+        if (current != null && current.isInProgress() && current.accepts(info, now, coalesceWindowMillis)) {
+            current.add(anEdit, info, now);
+            historyBytes += info.bytes;
+        } else {
+            closeGroup();
+            EditGroup group = new EditGroup();
+            group.add(anEdit, info, now);
+            if (!super.addEdit(group)) {
+                return false;
+            }
+            current = group;
+            historyBytes += info.bytes;
+        }
+        evictOverBudget();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean canUndo() {
+        closeGroup();
+        return super.canUndo();
+    }
+
+    @Override
+    public synchronized boolean canRedo() {
+        closeGroup();
+        return super.canRedo();
+    }
+
+    @Override
+    public synchronized void undo() {
+        closeGroup();
+        super.undo();
+    }
+
+    @Override
+    public synchronized void redo() {
+        closeGroup();
+        super.redo();
+    }
+
+    @Override
+    public synchronized void discardAllEdits() {
+        super.discardAllEdits();
+        current = null;
+        historyBytes = 0;
+        snapshots.clear();
+    }
+
+    @Override
+    protected void trimEdits(int from, int to) {
+        for (int i = from; i <= to && i < edits.size(); i++) {
+            if (edits.get(i) instanceof EditGroup) {
+                historyBytes -= ((EditGroup) edits.get(i)).bytes;
+            }
+            if (edits.get(i) == current) {
+                current = null;
+            }
+        }
+        super.trimEdits(from, to);
+    }
+
+    /**
+     * Offers the rendered icon of the current text. It is kept once the current undo step is closed, i.e. when
+     * it becomes a state undo or redo can return to.
+     *
+     * @param text the text the icon was rendered from
+     * @param icon the icon
+     */
+    public synchronized void snapshot(String text, Icon icon) {
+        if (snapshotCapacity <= 0) {
+            return;
+        }
+        if (current == null || !current.isInProgress()) {
+            snapshots.put(text, icon);
+        } else {
+            pendingSnapshotText = text;
+            pendingSnapshot = icon;
+        }
+    }
+
+    /**
+     * Gets the rendered icon kept for an undo state.
+     *
+     * @param text the text of the state
+     * @return the icon or null if none was kept
+     */
+    public synchronized Icon getSnapshot(String text) {
+        return snapshots.get(text);
+    }
+
+    /**
+     * Gets the estimated memory of the history in bytes.
+     *
+     * @return the estimated memory
+     */
+    public synchronized long getHistoryBytes() {
+        return historyBytes;
+    }
+
+    /**
+     * Gets the number of undo steps in the history.
+     *
+     * @return the number of steps
+     */
+    public synchronized int getStepCount() {
+        return edits.size();
+    }
+
+    private void closeGroup() {
+        if (current != null && current.isInProgress()) {
+            current.end();
+        }
+        if (pendingSnapshot != null) {
+            snapshots.put(pendingSnapshotText, pendingSnapshot);
+            pendingSnapshot = null;
+            pendingSnapshotText = null;
+        }
+    }
+
+    private void evictOverBudget() {
+        // the step that was just added is never evicted, even if it exceeds the budget on its own
+        while (historyBytes > memoryBudgetBytes && edits.size() > 1 && edits.get(0) != current) {
+            trimEdits(0, 0);
+        }
+    }
+
+    /**
+     * What the manager needs to know about an edit to decide whether it can be coalesced.
+     */
+    private static class EditInfo {
+        private final DocumentEvent.EventType type;
+        private final int offset;
+        private final int length;
+        private final boolean delimiter;
+        private final long bytes;
+
+        private EditInfo(DocumentEvent.EventType type, int offset, int length, boolean delimiter) {
+            this.type = type;
+            this.offset = offset;
+            this.length = length;
+            this.delimiter = delimiter;
+            this.bytes = EDIT_OVERHEAD_BYTES + 2L * length;
+        }
+
+        private static EditInfo of(UndoableEdit edit, Document document) {
+            if (!(edit instanceof DocumentEvent)) {
+                return new EditInfo(null, -1, 0, false);
+            }
+            DocumentEvent event = (DocumentEvent) edit;
+            boolean delimiter = false;
+            if (event.getType() == DocumentEvent.EventType.INSERT && event.getLength() == 1) {
+                try {
+                    // the edit is reported after the text has been inserted
+                    delimiter = !Character.isLetterOrDigit(document.getText(event.getOffset(), 1).charAt(0));
+                } catch (BadLocationException e) {
+                    delimiter = true;
+                }
+            }
+            return new EditInfo(event.getType(), event.getOffset(), event.getLength(), delimiter);
+        }
+
+        private boolean isSingleCharacter() {
+            return length == 1 && (type == DocumentEvent.EventType.INSERT || type == DocumentEvent.EventType.REMOVE);
+        }
+    }
+
+    /**
+     * An undo step made of coalesced edits.
+     */
+    private static class EditGroup extends CompoundEdit {
+        private EditInfo first;
+        private EditInfo last;
+        private long lastTime;
+        private long bytes;
+        private boolean sawDelimiter;
+
+        private void add(UndoableEdit edit, EditInfo info, long time) {
+            addEdit(edit);
+            if (first == null) {
+                first = info;
+            }
+            last = info;
+            lastTime = time;
+            sawDelimiter |= info.delimiter;
+            bytes += info.bytes;
+        }
+
+        private boolean accepts(EditInfo info, long time, long windowMillis) {
+            if (!first.isSingleCharacter() || !info.isSingleCharacter() || info.type != last.type
+                    || time - lastTime > windowMillis) {
+                return false;
+            }
+            if (info.type == DocumentEvent.EventType.INSERT) {
+                // a letter or digit after a delimiter starts the next word
+                return info.offset == last.offset + last.length && (info.delimiter || !sawDelimiter);
+            }
+            // backspace moves to the left, delete keeps the position
+            return info.offset + info.length == last.offset || info.offset == last.offset;
+        }
+    }
+}
@@ -26,12 +26,12 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.LinkedList;
 import java.util.List;
 
 
-import javax.imageio.ImageIO;
 
 
 import com.itextpdf.text.*;
@@ -39,8 +39,13 @@ import com.itextpdf.text.*;
 import com.itextpdf.text.Font;
 import com.itextpdf.text.Rectangle;
 import com.itextpdf.text.pdf.*;
+import de.moritzf.latexhelper.render.GlyphCachingGraphics;
+import de.moritzf.latexhelper.render.RenderException;
+import de.moritzf.latexhelper.render.RenderService;
 import de.moritzf.latexhelper.util.OsUtil;
+import de.moritzf.latexhelper.util.PngTextUtil;
 import de.moritzf.latexhelper.util.SteganographyUtil;
+import de.moritzf.latexhelper.util.StreamingPngWriter;
 import gutenberg.itext.ITextContext;
 import gutenberg.itext.PygmentsAdapter;
 import gutenberg.itext.Styles;
@@ -51,7 +56,6 @@ import gutenberg.pygments.styles.DefaultStyle;
 import gutenberg.util.SimpleKeyValues;
 import io.github.soc.directories.UserDirectories;
 import org.scilab.forge.jlatexmath.TeXConstants;
-import org.scilab.forge.jlatexmath.TeXFormula;
 import org.scilab.forge.jlatexmath.TeXIcon;
 
 import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
@@ -64,14 +68,40 @@ import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
  */
 public class Export {
 
+    /**
+     * Font size images are exported at, for the scale factor 1.
+     */
+    public static final float IMAGE_SIZE = 100;
+
+    /**
+     * Font size of the images exported for the web at the scale factor 1, the size of the preview.
+     */
+    public static final float WEB_IMAGE_SIZE = 22;
+
+    /**
+     * Scale factors of the images exported for the web, for screens of normal, double and triple density.
+     */
+    public static final float[] WEB_IMAGE_SCALES = {1, 2, 3};
+
+    /**
+     * Resolution of an image at the scale factor 1, the reference pixel of css.
+     */
+    public static final float REFERENCE_DPI = 96;
+
+    /**
+     * Number of pixels painted and encoded at once when writing png files.
+     */
+    private static final int STRIP_PIXELS = 1 << 20;
+
     /**
      * Sets the clipboard. Renders the LaTeX-expression and stores an image in
      * the clipboard that can be pasted into any other software that will allow
      * it.
      *
      * @param expression the new clipboard
+     * @throws RenderException if the expression is invalid or too complex
      */
-    public static void setClipboardAsImage(String expression) {
+    public static void setClipboardAsImage(String expression) throws RenderException {
         BufferedImage image = renderImageFromExpression(expression);
         ImageTransferable imgSel = new ImageTransferable(image);
         Toolkit.getDefaultToolkit().getSystemClipboard().setContents(imgSel, null);
@@ -81,8 +111,9 @@ public class Export {
      * Set the clipboard to a pdf-file containing the LaTeX expression.
      *
      * @param expression the expression
+     * @throws RenderException if the expression is invalid or too complex
      */
-    public static void setClipboardAsPdf(String expression) {
+    public static void setClipboardAsPdf(String expression) throws RenderException {
         try {
             File file = File.createTempFile("clipboard", ".pdf");
             generatePdf(expression, file);
@@ -112,9 +143,10 @@ public class Export {
      *
      * @param latexSource the latex source
      * @return the path
-     * @throws IOException the io exception
+     * @throws IOException     the io exception
+     * @throws RenderException if the expression is invalid or too complex
      */
-    public static Path save(String latexSource) throws IOException {
+    public static Path save(String latexSource) throws IOException, RenderException {
 
         DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss");
         Calendar cal = Calendar.getInstance();
@@ -136,19 +168,19 @@ public class Export {
      *
      * @param expression the latex expression
      * @param file       the file
-     * @throws IOException the io exception
+     * @throws IOException     the io exception
+     * @throws RenderException if the expression is invalid or too complex
      */
-    private static void generatePdf(String expression, File file) throws IOException {
+    public static void generatePdf(String expression, File file) throws IOException, RenderException {
 
         Styles styles = new Styles().initDefaults();
         PygmentsAdapter pygmentsAdapter = new PygmentsAdapter(
                 new Pygments(),
                 new DefaultStyle(), styles);
         SimpleKeyValues kvs = new SimpleKeyValues();
-        TeXFormula teXFormula = new TeXFormula(expression);
 
         //Use the same font size as gutenberg uses
-        TeXIcon teXIcon = teXFormula.createTeXIcon(TeXConstants.STYLE_DISPLAY, 14f);
+        TeXIcon teXIcon = RenderService.getDefault().createIcon(expression, TeXConstants.STYLE_DISPLAY, 14f);
 
         try {
             ITextContext iTextContext = new ITextContext(kvs, styles).open(file);
@@ -191,34 +223,203 @@ public class Export {
     }
 
 
-    private static BufferedImage renderImageFromExpression(String expression) {
-        TeXFormula teXFormula = new TeXFormula(expression);
-        TeXIcon teXIcon = teXFormula.createTeXIcon(TeXConstants.STYLE_DISPLAY, 100);
+    private static BufferedImage renderImageFromExpression(String expression) throws RenderException {
+        return renderImagesFromExpression(expression, IMAGE_SIZE, 1).get(0);
+    }
+
+    /**
+     * Renders a LaTeX expression as images at several scale factors. The expression is parsed and laid out only
+     * once, the layout is painted at every scale factor, so each variant costs painting only. The fonts are scaled
+     * rather than the pixels, so every variant is as sharp as if it had been rendered at its size. Like the png
+     * files, every variant large enough to hold the expression carries it hidden in its pixels, so it can be
+     * imported again.
+     *
+     * @param expression the expression
+     * @param size       the font size at the scale factor 1
+     * @param scales     the scale factors, e.g. 1, 2 and 3 or {@link #scaleForDpi(float)} of the target resolutions
+     * @return the images in the order of the scale factors
+     * @throws RenderException if the expression is invalid or an image would be too large
+     */
+    public static List<BufferedImage> renderImagesFromExpression(String expression, float size, float... scales)
+            throws RenderException {
+        RenderService renderService = RenderService.getDefault();
+        TeXIcon teXIcon = renderService.createIcon(expression, TeXConstants.STYLE_DISPLAY, size);
+
+        List<BufferedImage> images = new ArrayList<>(scales.length);
+        for (float scale : scales) {
+            int width = Math.max(1, (int) Math.ceil(teXIcon.getIconWidth() * scale));
+            int height = Math.max(1, (int) Math.ceil(teXIcon.getIconHeight() * scale));
+            renderService.checkPixels(width, height);
+
+            BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+            // the glyphs of large renderings are too large for the glyph caching of java2d
+            Graphics2D g2 = new GlyphCachingGraphics(image.createGraphics());
+            g2.setBackground(Color.WHITE);
+            g2.fillRect(0, 0, width, height);
+            g2.scale(scale, scale);
+            teXIcon.paintIcon(null, g2, 0, 0);
+            g2.dispose();
+            images.add(SteganographyUtil.canEncode(image, expression) ? SteganographyUtil.encode(image, expression)
+                    : image);
+        }
+        return images;
+    }
 
-        BufferedImage image = new BufferedImage(teXIcon.getIconWidth(), teXIcon.getIconHeight(), BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g2 = (Graphics2D) image.getGraphics();
-        g2.setBackground(Color.WHITE);
-        g2.fillRect(0, 0, teXIcon.getIconWidth(), teXIcon.getIconHeight());
-        teXIcon.paintIcon(null, g2, 0, 0);
-        g2.dispose();
+    /**
+     * Gets the scale factor for a target resolution.
+     *
+     * @param dpi the resolution in dots per inch
+     * @return the scale factor relative to {@link #REFERENCE_DPI}
+     */
+    public static float scaleForDpi(float dpi) {
+        return dpi / REFERENCE_DPI;
+    }
 
-        image = SteganographyUtil.encode(image, expression);
+    /**
+     * Generates png images of a LaTeX expression at several scale factors from a single layout, see
+     * {@link #renderImagesFromExpression(String, float, float...)}. The files are named like <code>name.png</code>,
+     * <code>name@2x.png</code> and <code>name@1.5x.png</code> and written strip by strip, see
+     * {@link #writePng(TeXIcon, float, String, File)}.
+     *
+     * @param expression the formula
+     * @param directory  the directory
+     * @param name       the name of the files without scale suffix and extension
+     * @param size       the font size at the scale factor 1
+     * @param scales     the scale factors
+     * @return the files in the order of the scale factors
+     * @throws IOException     Signals that an I/O exception has occurred.
+     * @throws RenderException if the expression is invalid or an image would be too large
+     */
+    public static List<File> generatePngs(String expression, File directory, String name, float size,
+                                          float... scales) throws IOException, RenderException {
+        TeXIcon teXIcon = RenderService.getDefault().createIcon(expression, TeXConstants.STYLE_DISPLAY, size);
+        List<File> files = new ArrayList<>(scales.length);
+        for (float scale : scales) {
+            File file = new File(directory, name + scaleSuffix(scale) + ".png");
+            writePng(teXIcon, scale, expression, file);
+            files.add(file);
+        }
+        return files;
+    }
 
-        return image;
+    private static String scaleSuffix(float scale) {
+        if (scale == 1) {
+            return "";
+        }
+        return "@" + (scale == Math.rint(scale) ? String.valueOf((int) scale) : String.valueOf(scale)) + "x";
     }
 
     /**
      * Generates a png image containing the rendered LaTeX expression and writes
-     * it to the output file passed to this method. The png file will include an
-     * alpha channel for transparency.
+     * it to the output file passed to this method, see {@link #writePng(TeXIcon, float, String, File)}.
      *
      * @param expression the formula
      * @param output     the output
-     * @throws IOException Signals that an I/O exception has occurred.
+     * @throws IOException     Signals that an I/O exception has occurred.
+     * @throws RenderException if the expression is invalid or too complex
      */
-    private static void generatePng(String expression, File output) throws IOException {
-        BufferedImage image = renderImageFromExpression(expression);
-        ImageIO.write(image, "png", output);
+    static void generatePng(String expression, File output) throws IOException, RenderException {
+        TeXIcon teXIcon = RenderService.getDefault().createIcon(expression, TeXConstants.STYLE_DISPLAY, IMAGE_SIZE);
+        writePng(teXIcon, 1, expression, output);
+    }
+
+    /**
+     * Renders a LaTeX expression as png to a stream, e.g. to answer a render request without a file, see
+     * {@link #writePng(TeXIcon, float, String, OutputStream)}.
+     *
+     * @param expression the formula
+     * @param size       the font size at the scale factor 1
+     * @param scale      the scale factor
+     * @param out        the stream, closed by this method
+     * @return the size of the image in pixels
+     * @throws IOException     Signals that an I/O exception has occurred.
+     * @throws RenderException if the expression is invalid or the image would be too large
+     */
+    public static Dimension writePng(String expression, float size, float scale, OutputStream out)
+            throws IOException, RenderException {
+        TeXIcon teXIcon = RenderService.getDefault().createIcon(expression, TeXConstants.STYLE_DISPLAY, size);
+        return writePng(teXIcon, scale, expression, out);
+    }
+
+    /**
+     * Writes a laid out expression as png file without ever holding the whole image in memory. The icon is painted
+     * strip by strip, each strip of about {@link #STRIP_PIXELS} pixels is handed to the png encoder before the next
+     * one is painted into the same buffer. The file stores the expression in an iTXt chunk and, if the image is
+     * large enough, hidden by steganography in the first strip as well.
+     *
+     * @param teXIcon    the laid out expression
+     * @param scale      the scale factor
+     * @param expression the expression
+     * @param output     the output
+     * @throws IOException     Signals that an I/O exception has occurred.
+     * @throws RenderException if the image would be too large
+     */
+    private static void writePng(TeXIcon teXIcon, float scale, String expression, File output)
+            throws IOException, RenderException {
+        // fail before the file is created
+        getImageSize(teXIcon, scale);
+        writePng(teXIcon, scale, expression, new BufferedOutputStream(new FileOutputStream(output)));
+    }
+
+    /**
+     * Writes a laid out expression as png to a stream, see {@link #writePng(TeXIcon, float, String, File)}.
+     *
+     * @param teXIcon    the laid out expression
+     * @param scale      the scale factor
+     * @param expression the expression
+     * @param out        the stream, closed by this method
+     * @return the size of the image in pixels
+     * @throws IOException     Signals that an I/O exception has occurred.
+     * @throws RenderException if the image would be too large
+     */
+    private static Dimension writePng(TeXIcon teXIcon, float scale, String expression, OutputStream out)
+            throws IOException, RenderException {
+        Dimension size;
+        try (OutputStream stream = out) {
+            size = getImageSize(teXIcon, scale);
+            writeStrips(teXIcon, scale, expression, size.width, size.height, stream);
+        }
+        return size;
+    }
+
+    private static Dimension getImageSize(TeXIcon teXIcon, float scale) throws RenderException {
+        int width = Math.max(1, (int) Math.ceil(teXIcon.getIconWidth() * scale));
+        int height = Math.max(1, (int) Math.ceil(teXIcon.getIconHeight() * scale));
+        RenderService.getDefault().checkPixels(width, height);
+        return new Dimension(width, height);
+    }
+
+    private static void writeStrips(TeXIcon teXIcon, float scale, String expression, int width, int height,
+                                    OutputStream out) throws IOException {
+        int hiddenTextRows = SteganographyUtil.getRequiredRows(width, expression);
+        boolean hideText = hiddenTextRows <= height;
+        int stripHeight = Math.min(height, Math.max(1, STRIP_PIXELS / width));
+        if (hideText) {
+            // the hidden text has to fit into the first strip
+            stripHeight = Math.max(stripHeight, hiddenTextRows);
+        }
+        BufferedImage strip = new BufferedImage(width, stripHeight, BufferedImage.TYPE_3BYTE_BGR);
+
+        try (StreamingPngWriter png = new StreamingPngWriter(out, width, height)) {
+            png.addText(PngTextUtil.LATEX_KEYWORD, expression);
+            for (int y = 0; y < height; y += stripHeight) {
+                int rows = Math.min(stripHeight, height - y);
+                // the glyphs of large renderings are too large for the glyph caching of java2d
+                Graphics2D g2 = new GlyphCachingGraphics(strip.createGraphics());
+                g2.setColor(Color.WHITE);
+                g2.fillRect(0, 0, width, stripHeight);
+                g2.clipRect(0, 0, width, rows);
+                g2.translate(0, -y);
+                g2.scale(scale, scale);
+                teXIcon.paintIcon(null, g2, 0, 0);
+                g2.dispose();
+                if (y == 0 && hideText) {
+                    png.writeRows(SteganographyUtil.encode(strip, expression), rows);
+                } else {
+                    png.writeRows(strip, rows);
+                }
+            }
+        }
     }
 
 
@@ -1,18 +1,12 @@
 package de.moritzf.latexhelper;
 
 
-import com.itextpdf.text.pdf.PdfReader;
-import com.itextpdf.text.pdf.parser.PdfTextExtractor;
+import de.moritzf.latexhelper.recognition.ImportResult;
+import de.moritzf.latexhelper.recognition.LatexImporter;
+import de.moritzf.latexhelper.recognition.MathOcrWorkerPool;
+import de.moritzf.latexhelper.recognition.PageFormula;
 import de.moritzf.latexhelper.util.ImageFileUtil;
-import de.moritzf.latexhelper.util.SteganographyUtil;
-import mathpix.MathPix;
-import mathpix.MathPixSettings;
-import mathpix.api.response.DetectionResult;
-import net.sf.mathocr.BatchProcessor;
 
-import org.scilab.forge.jlatexmath.TeXFormula;
-
-import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.datatransfer.DataFlavor;
@@ -20,6 +14,7 @@ import java.awt.datatransfer.Transferable;
 import java.awt.datatransfer.UnsupportedFlavorException;
 import java.awt.dnd.DnDConstants;
 import java.awt.dnd.DropTarget;
+import java.awt.dnd.DropTargetDragEvent;
 import java.awt.dnd.DropTargetDropEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
@@ -28,11 +23,12 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * Text area that can work with images that have content hidden by steganography. If such content is detected, it
@@ -45,18 +41,42 @@ public class LatexImportingTextArea extends JTextArea implements KeyListener {
 
     private static final Logger LOGGER = Logger.getLogger(LatexImportingTextArea.class.getName());
 
+    /**
+     * The importer recovering latex expressions from files and images.
+     */
+    private final LatexImporter importer = new LatexImporter();
+
+    private boolean importPrepared = false;
+
     /**
      * Instantiates a new Steganography text area.
      */
     public LatexImportingTextArea() {
         this.addKeyListener(this);
         this.setDropTarget(new DropTarget() {
+            public synchronized void dragEnter(DropTargetDragEvent evt) {
+                super.dragEnter(evt);
+                prepareImport();
+            }
+
             public synchronized void drop(DropTargetDropEvent evt) {
                 handleDrop(evt);
             }
         });
     }
 
+    /**
+     * Starts a MathOCR worker in the background once the user is about to import something, e.g. drags a file
+     * over the text area, so the import does not wait for the worker process to start. Nothing is started
+     * before, most sessions never import anything.
+     */
+    void prepareImport() {
+        if (!importPrepared) {
+            importPrepared = true;
+            MathOcrWorkerPool.getDefault().warmUp();
+        }
+    }
+
     /**
      * Handle drop events when items are dropped to the gui.
      *
@@ -65,49 +85,22 @@ public class LatexImportingTextArea extends JTextArea implements KeyListener {
     private void handleDrop(DropTargetDropEvent evt) {
         if (evt.getTransferable().isDataFlavorSupported(DataFlavor.javaFileListFlavor)) {
             evt.acceptDrop(DnDConstants.ACTION_COPY);
-            List<File> droppedFiles = null;
             try {
-                try {
-                    droppedFiles = (List<File>)
-                            evt.getTransferable().getTransferData(DataFlavor.javaFileListFlavor);
-                } catch (UnsupportedFlavorException e) {
-                    // does not happen, was checked a couple of lines earlier
-                }
-
-                File droppedFile = droppedFiles.get(0);
-
-                if (ImageFileUtil.isImage(droppedFile)) {
-                    Image image = ImageIO.read(droppedFile);
-                    String latex = extractFromImage(ImageFileUtil.toBufferedImage(image));
-                    if (latex != null && !latex.isEmpty()) {
-                        this.setText(latex);
-                    }
-                } else if (ImageFileUtil.isPdf(droppedFile)) {
-                    String latex = extractFromPdf(droppedFile);
-                    if (latex != null && !latex.isEmpty()) {
-                        this.setText(latex);
-                    }
-                }
-
+                List<File> droppedFiles = (List<File>)
+                        evt.getTransferable().getTransferData(DataFlavor.javaFileListFlavor);
+                importFiles(droppedFiles);
+            } catch (UnsupportedFlavorException e) {
+                // does not happen, was checked a couple of lines earlier
             } catch (IOException e) {
                 LOGGER.log(Level.SEVERE, "Could not read file", e);
             }
         } else if (evt.getTransferable().isDataFlavorSupported(DataFlavor.imageFlavor)) {
-            BufferedImage image;
             try {
-                try {
-
-                    image = ImageFileUtil.toBufferedImage((Image) evt.getTransferable().getTransferData(DataFlavor.imageFlavor));
-
-                    String latex = extractFromImage(ImageFileUtil.toBufferedImage(image));
-                    if (latex != null && !latex.isEmpty()) {
-                        this.setText(latex);
-                    }
-                } catch (UnsupportedFlavorException e) {
-                    // does not happen, was checked a couple of lines earlier
-                }
-
-
+                BufferedImage image = ImageFileUtil.toBufferedImage(
+                        (Image) evt.getTransferable().getTransferData(DataFlavor.imageFlavor));
+                importImage("dropped image", image);
+            } catch (UnsupportedFlavorException e) {
+                // does not happen, was checked a couple of lines earlier
             } catch (IOException exc) {
                 LOGGER.log(Level.SEVERE, "Could not read image from clipboard");
             }
@@ -115,97 +108,113 @@ public class LatexImportingTextArea extends JTextArea implements KeyListener {
     }
 
     /**
-     * Extract a latex expression from a given pdf file.
+     * Imports the given files in the background. Multiple files are imported in parallel and inserted in their
+     * original order separated by blank lines once all are done.
      *
-     * @param pdfFile the dropped file
-     * @return the string
+     * @param files the files
+     * @return true, if an import was started
      */
-    private String extractFromPdf(File pdfFile) {
-        LOGGER.log(Level.INFO, "Extracting text from pdf");
-        PdfReader reader = null;
-        String latex = null;
-        try {
-            reader = new PdfReader(pdfFile.getAbsolutePath());
-            latex = reader.getInfo().get("latex");
-            if (latex == null || latex.isEmpty()) {
-                String text = PdfTextExtractor.getTextFromPage(reader, 1);
-                LOGGER.log(Level.INFO, text);
-                Pattern pattern = Pattern.compile("\\\\##latex##\\\\(?<latex>.*)\\\\##latex##\\\\");
-                Matcher matcher = pattern.matcher(text);
-                if (matcher.find()) {
-                    latex = matcher.group("latex");
-                }
-
-            }
-        } catch (Exception e) {
-            LOGGER.log(Level.SEVERE, "Could not read pdf. Perhaps the file used was not a valid pdf file.");
-        }
-
-        if (latex == null || latex.isEmpty()) {
-            Image image = ImageFileUtil.pdfToImage(pdfFile);
-            if (image != null) {
-                latex = extractFromImage(ImageFileUtil.toBufferedImage(image));
-            }
+    boolean importFiles(List<File> files) {
+        if (files == null || files.isEmpty()) {
+            return false;
+        } else if (files.size() == 1) {
+            importInBackground(files.get(0).getName(),
+                    () -> Collections.singletonList(importer.importFile(files.get(0))));
         } else {
-            LOGGER.log(Level.INFO, "Got result from latex attribute in pdf header");
+            LOGGER.log(Level.INFO, "Importing " + files.size() + " files");
+            importInBackground(files.size() + " files", () -> importer.importFiles(files));
         }
-
-        return latex;
+        return true;
     }
 
     /**
-     * Extract a latex expression from an image.
+     * Imports the given image in the background.
      *
-     * @param image the image
-     * @return the string
+     * @param source a description of the image source
+     * @param image  the image
      */
-    private String extractFromImage(BufferedImage image) {
-        LOGGER.log(Level.INFO, "Extracting text from image");
-        String latex = null;
-        if (image != null) {
+    private void importImage(String source, BufferedImage image) {
+        importInBackground(source, () -> Collections.singletonList(importer.importImage(source, image)));
+    }
 
-            LOGGER.log(Level.INFO, "Using steganography");
-            String text = SteganographyUtil.decode(image);
+    /**
+     * Runs an import on a worker thread, so recognition never blocks the event dispatch thread, and shows its
+     * results once it is done.
+     *
+     * @param source     a description of what is imported, used for logging
+     * @param importTask the import
+     */
+    private void importInBackground(String source, Supplier<List<ImportResult>> importTask) {
+        new SwingWorker<List<ImportResult>, Void>() {
+            @Override
+            protected List<ImportResult> doInBackground() {
+                return importTask.get();
+            }
 
-            // new TeXFormula throws exception if the text used is an  invalid LaTeX expression
-            if (text != null && !text.isEmpty()) {
+            @Override
+            protected void done() {
                 try {
-                    new TeXFormula(text);
-                    latex = text;
-                } catch (Exception e) {
-                    latex = null;
+                    showResults(get());
+                } catch (InterruptedException | ExecutionException e) {
+                    LOGGER.log(Level.SEVERE, "Could not import " + source, e);
                 }
             }
+        }.execute();
+    }
 
-            //If Steganography did not work, try with OCR
-            if (latex == null) {
-                LOGGER.log(Level.INFO, "Using OCR");
+    /**
+     * Extracts the formulas of all pages of a pdf file in the background and replaces the text with them
+     * separated by blank lines.
+     *
+     * @param pdfFile the pdf file
+     */
+    public void importAllPages(File pdfFile) {
+        new SwingWorker<List<PageFormula>, Void>() {
+            @Override
+            protected List<PageFormula> doInBackground() throws IOException {
+                return importer.importAllPages(pdfFile);
+            }
 
-                //Try to use mathpix if it is configured
-                if (MathPixSettings.isConfigured()) {
-                    DetectionResult result = MathPix.getLatex(image);
-                    if (result != null && result.getError().isEmpty() && !result.getLatex().isEmpty()) {
-                        LOGGER.log(Level.INFO, "Got OCR result using MathPix online API");
-                        latex = result.getLatex().replace(" ", "");
-                        // If no result was obtained from mathpix, try with MathOCR
+            @Override
+            protected void done() {
+                try {
+                    StringBuilder text = new StringBuilder();
+                    for (PageFormula formula : get()) {
+                        LOGGER.log(Level.INFO, "Page " + formula.getPage() + ": " + formula.getStrategy());
+                        if (text.length() > 0) {
+                            text.append("\n\n");
+                        }
+                        text.append(formula.getLatex());
                     }
-                }
-
-                //If mathpix was not configured or didn't provide any results, fall back to MathOCR
-                if (latex == null) {
-                    LOGGER.log(Level.INFO, "Got OCR result using MathOCR library");
-                    latex = BatchProcessor.recognizeFormula(image);
-                    // Cut away the $$ in beginning and end of latex string
-                    if (latex != null && latex.length() > 4 && latex.startsWith("$$") && latex.endsWith("$$")) {
-                        latex = latex.substring(2, latex.length() - 2);
-
+                    if (text.length() > 0) {
+                        LatexImportingTextArea.this.setText(text.toString());
                     }
+                } catch (InterruptedException | ExecutionException e) {
+                    LOGGER.log(Level.SEVERE, "Could not extract formulas from " + pdfFile, e);
                 }
+            }
+        }.execute();
+    }
 
+    /**
+     * Replaces the text with all recovered expressions in the order of the results, separated by blank lines.
+     *
+     * @param results the import results
+     */
+    private void showResults(List<ImportResult> results) {
+        StringBuilder text = new StringBuilder();
+        for (ImportResult result : results) {
+            LOGGER.log(Level.INFO, result.getSource() + ": " + result.getStrategy());
+            if (result.isSuccessful()) {
+                if (text.length() > 0) {
+                    text.append("\n\n");
+                }
+                text.append(result.getLatex());
             }
         }
-
-        return latex;
+        if (text.length() > 0) {
+            this.setText(text.toString());
+        }
     }
 
     @Override
@@ -216,41 +225,24 @@ public class LatexImportingTextArea extends JTextArea implements KeyListener {
     @Override
     public void keyPressed(KeyEvent evt) {
         if ((evt.getKeyCode() == KeyEvent.VK_V) && ((evt.getModifiers() & Toolkit.getDefaultToolkit().getMenuShortcutKeyMask()) != 0)) {
-            Image image = null;
             Transferable transferable = Toolkit.getDefaultToolkit().getSystemClipboard().getContents(null);
-            //Check if file is pasted and return an image
+            //Check if files are pasted and import them
             if (transferable != null && transferable.isDataFlavorSupported(DataFlavor.javaFileListFlavor)) {
                 try {
                     List<File> pastedFiles = (List<File>)
                             transferable.getTransferData(DataFlavor.javaFileListFlavor);
-                    File pastedFile = pastedFiles.get(0);
-                    //handle image file
-                    if (ImageFileUtil.isImage(pastedFile)) {
-                        image = ImageIO.read(pastedFile);
-                        String latex = extractFromImage(ImageFileUtil.toBufferedImage(image));
-                        if (latex != null && !latex.isEmpty()) {
-                            this.setText(latex);
-                            evt.consume();
-                        }
-                        // handle pdf file
-                    } else if (ImageFileUtil.isPdf(pastedFile)) {
-                        String latex = extractFromPdf(pastedFile);
-                        if (latex != null && !latex.isEmpty()) {
-                            this.setText(latex);
-                            evt.consume();
-                        }
+                    if (importFiles(pastedFiles)) {
+                        evt.consume();
                     }
                 } catch (UnsupportedFlavorException | IOException ex) {
                     LOGGER.log(Level.WARNING, "The file in the clipboard is not compatible with MathematicalLatexHelper");
                 }
             } else if (transferable != null && transferable.isDataFlavorSupported(DataFlavor.imageFlavor)) {
                 try {
-                    image = ImageFileUtil.toBufferedImage((Image) transferable.getTransferData(DataFlavor.imageFlavor));
-                    String latex = extractFromImage(ImageFileUtil.toBufferedImage(image));
-                    if (latex != null && !latex.isEmpty()) {
-                        this.setText(latex);
-                        evt.consume();
-                    }
+                    BufferedImage image = ImageFileUtil.toBufferedImage(
+                            (Image) transferable.getTransferData(DataFlavor.imageFlavor));
+                    importImage("pasted image", image);
+                    evt.consume();
                 } catch (UnsupportedFlavorException | IOException e) {
                     LOGGER.log(Level.WARNING, "The image in the clipboard is not compatible with MathematicalLatexHelper");
                 }
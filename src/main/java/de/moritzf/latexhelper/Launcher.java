@@ -0,0 +1,224 @@
+package de.moritzf.latexhelper;
+
+import de.moritzf.latexhelper.batch.BuildResult;
+import de.moritzf.latexhelper.batch.FormulaBuild;
+import de.moritzf.latexhelper.batch.RenderServer;
+import de.moritzf.latexhelper.instance.InstanceClient;
+import de.moritzf.latexhelper.instance.InstanceServer;
+import de.moritzf.latexhelper.instance.LaunchCommand;
+import de.moritzf.latexhelper.recognition.ImportResult;
+import de.moritzf.latexhelper.recognition.LatexImporter;
+import de.moritzf.latexhelper.render.RenderException;
+import mathpix.MathPixSettings;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Entry point of the application. A launch hands its command to the running instance if there is one and exits
+ * right away, so only the first launch pays for starting the JVM, loading Swing and warming up the renderer and the
+ * recognizers. Without a running instance, the launch opens the editor and becomes the running instance, unless the
+ * command does not need the editor.
+ *
+ * @author Moritz Floeter
+ */
+public class Launcher {
+
+    private static final Logger LOGGER = Logger.getLogger(Launcher.class.getName());
+
+    /**
+     * Time in milliseconds a launch waits for another launch that is about to become the running instance.
+     */
+    private static final long CLAIM_TIMEOUT_MILLIS = 10_000;
+
+    private static final long CLAIM_RETRY_MILLIS = 100;
+
+    private static LatexImporter importer;
+
+    /**
+     * Empty private constructor for Launcher
+     */
+    private Launcher() {
+        //Prevents instances of Launcher
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args the arguments, see {@link LaunchCommand#USAGE}
+     */
+    public static void main(String[] args) {
+        LaunchCommand command;
+        try {
+            command = LaunchCommand.parse(args, new File(System.getProperty("user.dir")));
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(LaunchCommand.USAGE);
+            System.exit(2);
+            return;
+        }
+        if (command.getKind() == LaunchCommand.Kind.HELP) {
+            System.out.println(LaunchCommand.USAGE);
+            return;
+        }
+
+        if (command.getKind() == LaunchCommand.Kind.SERVE) {
+            System.exit(serve());
+            return;
+        }
+
+        if (!command.needsEditor()) {
+            Integer status = InstanceClient.forward(command, System.out, System.err);
+            if (status == null) {
+                if (command.getKind() == LaunchCommand.Kind.IMPORT) {
+                    MathPixSettings.load();
+                }
+                PrintWriter out = new PrintWriter(System.out, true);
+                PrintWriter err = new PrintWriter(System.err, true);
+                status = executeWithoutEditor(command, out, err);
+                out.flush();
+                err.flush();
+            }
+            System.exit(status);
+            return;
+        }
+
+        InstanceServer server = claimOrForward(command);
+        // the user interface is only loaded here, forwarding a launch does not need it
+        MathematicalLatexHelperGui.open(command, server);
+    }
+
+    /**
+     * Answers render requests on the standard streams until the end of the input, see {@link RenderServer}.
+     *
+     * @return the exit status
+     */
+    private static int serve() {
+        // no window, no clipboard, and no connection to a display
+        System.setProperty("java.awt.headless", "true");
+        PrintStream answers = System.out;
+        // whatever a library prints must not end up between the answers
+        System.setOut(System.err);
+        try {
+            new RenderServer(Runtime.getRuntime().availableProcessors(), new File(System.getProperty("user.dir")))
+                    .serve(System.in, answers);
+            return 0;
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not serve render requests", e);
+            return 1;
+        }
+    }
+
+    /**
+     * Forwards the command to the running instance and exits or, if there is none, claims to be the running instance.
+     * While another launch holds the claim but does not listen yet, forwarding is retried for a while.
+     *
+     * @param command the command
+     * @return the claim or null if it could not be made, the editor then runs without taking commands of later
+     * launches
+     */
+    private static InstanceServer claimOrForward(LaunchCommand command) {
+        long deadline = System.currentTimeMillis() + CLAIM_TIMEOUT_MILLIS;
+        while (true) {
+            Integer status = InstanceClient.forward(command, System.out, System.err);
+            if (status != null) {
+                System.exit(status);
+            }
+            try {
+                InstanceServer server = InstanceServer.claim();
+                if (server != null) {
+                    return server;
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not claim to be the running instance", e);
+                return null;
+            }
+            if (System.currentTimeMillis() > deadline) {
+                LOGGER.log(Level.WARNING, "Another instance is starting but does not take commands");
+                return null;
+            }
+            try {
+                Thread.sleep(CLAIM_RETRY_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Executes a command that does not need the editor, in the launching process or in the running instance.
+     *
+     * @param command the command
+     * @param out     the standard output of the launching process
+     * @param err     the error output of the launching process
+     * @return the exit status of the launching process
+     */
+    static int executeWithoutEditor(LaunchCommand command, PrintWriter out, PrintWriter err) {
+        switch (command.getKind()) {
+            case IMPORT:
+                int status = 0;
+                boolean first = true;
+                for (ImportResult result : getImporter().importFiles(command.getFiles())) {
+                    if (result.isSuccessful()) {
+                        if (!first) {
+                            out.println();
+                        }
+                        out.println(result.getLatex());
+                        first = false;
+                    } else {
+                        err.println("No expression found in " + result.getSource());
+                        status = 1;
+                    }
+                }
+                return status;
+            case RENDER:
+                String expression = command.getArguments().get(0);
+                File output = new File(command.getArguments().get(1));
+                try {
+                    Export.generatePng(expression, output);
+                    out.println(output.getPath());
+                    return 0;
+                } catch (IOException | RenderException e) {
+                    LOGGER.log(Level.WARNING, "Could not render " + output, e);
+                    err.println("Could not render " + output + ": " + e.getMessage());
+                    return 1;
+                }
+            case BUILD:
+                List<File> files = command.getFiles();
+                try {
+                    BuildResult result = new FormulaBuild(files.get(0), Export.WEB_IMAGE_SIZE,
+                            Export.WEB_IMAGE_SCALES, Runtime.getRuntime().availableProcessors())
+                            .build(files.subList(1, files.size()));
+                    for (String failure : result.getFailures()) {
+                        err.println("Could not render " + failure);
+                    }
+                    out.println(result);
+                    return result.isSuccessful() ? 0 : 1;
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not build " + files.get(0), e);
+                    err.println("Could not build " + files.get(0) + ": " + e.getMessage());
+                    return 1;
+                }
+            default:
+                throw new IllegalArgumentException("Can not execute " + command.getKind());
+        }
+    }
+
+    /**
+     * Gets the importer of the launch commands, shared so the running instance keeps its recognizers warm.
+     *
+     * @return the importer
+     */
+    private static synchronized LatexImporter getImporter() {
+        if (importer == null) {
+            importer = new LatexImporter();
+        }
+        return importer;
+    }
+}
@@ -17,23 +17,38 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.nio.file.Path;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.swing.*;
 import javax.swing.event.DocumentEvent;
 import javax.swing.event.DocumentListener;
+import javax.swing.filechooser.FileNameExtensionFilter;
 import javax.swing.text.Document;
 import javax.swing.undo.CannotUndoException;
-import javax.swing.undo.UndoManager;
 
+import de.moritzf.latexhelper.instance.InstanceServer;
+import de.moritzf.latexhelper.instance.LaunchCommand;
+import de.moritzf.latexhelper.preview.TiledIconView;
+import de.moritzf.latexhelper.render.RenderException;
+import de.moritzf.latexhelper.render.RenderService;
 import de.moritzf.latexhelper.util.GuiUtil;
 import de.moritzf.latexhelper.util.OsUtil;
+import de.moritzf.latexhelper.workspace.FormulaBlock;
+import de.moritzf.latexhelper.workspace.FormulaWorkspace;
+import de.moritzf.latexhelper.workspace.WorkspacePreview;
 import io.github.soc.directories.UserDirectories;
 import mathpix.MathPixSettings;
 import org.scilab.forge.jlatexmath.TeXConstants;
-import org.scilab.forge.jlatexmath.TeXFormula;
-import org.scilab.forge.jlatexmath.TeXIcon;
 
 /**
  * This class defines the user interface.
@@ -41,15 +56,60 @@ import org.scilab.forge.jlatexmath.TeXIcon;
  * @author Moritz Floeter
  */
 public class MathematicalLatexHelperGui extends JFrame implements ActionListener, DocumentListener {
+
+    private static final Logger LOGGER = Logger.getLogger(MathematicalLatexHelperGui.class.getName());
+
     /**
      * The text area holding the latex source code that is to be rendered.
      */
-    private JTextArea latexSource;
+    private LatexImportingTextArea latexSource;
+
+    private CoalescingUndoManager undoManager;
+
+    /**
+     * True while a render of the current text has been scheduled but not run yet.
+     */
+    private boolean renderScheduled;
 
-    private UndoManager undoManager;
+    /**
+     * Time of the first document event handled by the scheduled render, to measure the preview latency.
+     */
+    private long renderRequestedNanos;
+
+    /**
+     * Number of the latest render, results of older renders that complete later are dropped.
+     */
+    private long renderSequence;
 
     private JMenuItem settingsItem = new JMenuItem("Image Import Settings");
 
+    private JMenuItem importPdfItem = new JMenuItem("Import All Formulas From PDF...");
+
+    private JMenuItem exportWebImagesItem = new JMenuItem("Export Images for the Web (1x, 2x, 3x)...");
+
+    private JMenuItem zoomInItem = new JMenuItem("Zoom In");
+
+    private JMenuItem zoomOutItem = new JMenuItem("Zoom Out");
+
+    private JMenuItem zoomResetItem = new JMenuItem("Actual Size");
+
+    private JCheckBoxMenuItem workspaceItem = new JCheckBoxMenuItem("Workspace (One Formula per Block)");
+
+    /**
+     * The formulas of the editor in workspace mode, separated by blank lines or %% lines.
+     */
+    private FormulaWorkspace workspace;
+
+    /**
+     * The preview of all formulas in workspace mode.
+     */
+    private WorkspacePreview workspacePreview;
+
+    /**
+     * The scroll pane showing either the drawing area or the workspace preview.
+     */
+    private JScrollPane previewScrollPane;
+
     /**
      * The save button.
      */
@@ -68,7 +128,7 @@ public class MathematicalLatexHelperGui extends JFrame implements ActionListener
     /**
      * The drawing area for the rendered result.
      */
-    private JLabel drawingArea = new JLabel("");
+    private TiledIconView drawingArea = new TiledIconView();
 
 
     private static final Font textAreaFont = new Font("Courier", Font.PLAIN, 16);
@@ -92,9 +152,30 @@ public class MathematicalLatexHelperGui extends JFrame implements ActionListener
         menuBar.add(fileMenu);
         this.setJMenuBar(menuBar);
 
+        fileMenu.add(importPdfItem);
+        importPdfItem.addActionListener(this);
+        fileMenu.add(exportWebImagesItem);
+        exportWebImagesItem.addActionListener(this);
         fileMenu.add(settingsItem);
         settingsItem.addActionListener(this);
 
+        JMenu viewMenu = new JMenu("View");
+        viewMenu.getAccessibleContext().setAccessibleDescription("View menu");
+        menuBar.add(viewMenu);
+        int shortcutMask = Toolkit.getDefaultToolkit().getMenuShortcutKeyMask();
+        zoomInItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_PLUS, shortcutMask));
+        zoomOutItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_MINUS, shortcutMask));
+        zoomResetItem.setAccelerator(KeyStroke.getKeyStroke(KeyEvent.VK_0, shortcutMask));
+        viewMenu.add(zoomInItem);
+        viewMenu.add(zoomOutItem);
+        viewMenu.add(zoomResetItem);
+        viewMenu.addSeparator();
+        viewMenu.add(workspaceItem);
+        zoomInItem.addActionListener(this);
+        zoomOutItem.addActionListener(this);
+        zoomResetItem.addActionListener(this);
+        workspaceItem.addActionListener(this);
+
         Container content = this.getContentPane();
         content.setLayout(new GridLayout(2, 1));
         this.latexSource = new LatexImportingTextArea();
@@ -115,7 +196,21 @@ public class MathematicalLatexHelperGui extends JFrame implements ActionListener
 
         content.add(editorArea);
         drawingArea.setBackground(Color.WHITE);
-        content.add(new JScrollPane(this.drawingArea));
+        this.previewScrollPane = new JScrollPane(this.drawingArea);
+        content.add(this.previewScrollPane);
+
+        this.workspace = new FormulaWorkspace(latexSource.getDocument());
+        this.workspacePreview = new WorkspacePreview(workspace);
+        this.workspacePreview.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                FormulaBlock block = workspacePreview.getBlockAt(e.getPoint());
+                if (block != null) {
+                    latexSource.select(block.getStart(), block.getEnd());
+                    latexSource.requestFocusInWindow();
+                }
+            }
+        });
 
         // adding Listeners
         latexSource.getDocument().addDocumentListener(this);
@@ -140,8 +235,8 @@ public class MathematicalLatexHelperGui extends JFrame implements ActionListener
      * Instantiates a the undo-redo functionality for the textarea.
      */
     private void initUndoRedoFunctionality() {
-        undoManager = new UndoManager();
         Document doc = latexSource.getDocument();
+        undoManager = new CoalescingUndoManager(doc);
         doc.addUndoableEditListener(e -> {
             undoManager.addEdit(e.getEdit());
         });
@@ -178,35 +273,133 @@ public class MathematicalLatexHelperGui extends JFrame implements ActionListener
         });
     }
 
+    /**
+     * Schedules a render of the text of the editor. All document events fired before the render runs, e.g. by
+     * undoing a step made of many keystrokes, are handled by that single render.
+     */
+    private void scheduleRender() {
+        if (!renderScheduled) {
+            renderScheduled = true;
+            renderRequestedNanos = System.nanoTime();
+            SwingUtilities.invokeLater(() -> {
+                renderScheduled = false;
+                if (workspaceItem.isSelected()) {
+                    updateWorkspace();
+                    return;
+                }
+                String text = latexSource.getText();
+                Icon snapshot = undoManager.getSnapshot(text);
+                if (snapshot != null) {
+                    renderSequence++;
+                    this.drawingArea.setIcon(snapshot);
+                    this.validate();
+                    this.repaint();
+                } else {
+                    render(text, renderRequestedNanos);
+                }
+            });
+        }
+    }
+
+    /**
+     * Brings the blocks of the workspace up to date with the editor. Only the blocks touched by edits since the
+     * last update are split again, and only the changed ones are rendered once they become visible.
+     */
+    private void updateWorkspace() {
+        if (workspace.isDirty()) {
+            workspace.update();
+            workspacePreview.blocksChanged();
+        }
+    }
+
+    /**
+     * Shows the preview of the current mode: the workspace preview or the rendered expression.
+     */
+    private void showPreview() {
+        if (workspaceItem.isSelected()) {
+            if (previewScrollPane.getViewport().getView() != workspacePreview) {
+                previewScrollPane.setViewportView(workspacePreview);
+            }
+            updateWorkspace();
+        } else {
+            previewScrollPane.setViewportView(drawingArea);
+            render(latexSource.getText());
+        }
+    }
+
+    /**
+     * Gets the expression the export buttons act on: the whole text or, in workspace mode, the block at the caret.
+     *
+     * @return the expression
+     */
+    private String getSelectedExpression() {
+        if (workspaceItem.isSelected()) {
+            updateWorkspace();
+            FormulaBlock block = workspace.getBlockAt(latexSource.getCaretPosition());
+            if (block != null) {
+                return block.getText();
+            }
+        }
+        return this.latexSource.getText();
+    }
+
     /**
      * Renders the entered expression in the drawing area.
      *
      * @param expression the expression
      */
     private void render(String expression) {
-        try {
-            if (expression.isEmpty()) {
-                expression = "Enter \\quad LaTeX-Expression \\quad to  \\quad begin.";
-            }
-            TeXFormula formula = new TeXFormula(expression);
-            TeXIcon ticon = formula.createTeXIcon(TeXConstants.STYLE_DISPLAY, 22, TeXConstants.UNIT_PIXEL, 80,
-                    TeXConstants.ALIGN_LEFT);
-            this.drawingArea.setIcon(ticon);
+        render(expression, -1);
+    }
 
-        } catch (Exception ex) {
-            try {
-                TeXFormula formula = new TeXFormula(
-                        "\\text{Rendering failed: check LaTeX expression}");
-                TeXIcon ticon = formula.createTeXIcon(TeXConstants.STYLE_DISPLAY, 22, TeXConstants.UNIT_PIXEL, 80,
-                        TeXConstants.ALIGN_LEFT);
-                this.drawingArea.setIcon(ticon);
-            } catch (Exception e) {
-                JOptionPane.showMessageDialog(this, "Rendering failed in an insane manner", "Gigantic Failure",
-                        JOptionPane.ERROR_MESSAGE);
-            }
+    /**
+     * Renders the entered expression in the drawing area.
+     *
+     * @param expression the expression
+     * @param inputNanos the time of the keystroke that changed the expression as returned by
+     *                   {@link System#nanoTime()}, or -1 if it was not changed by typing. A keystroke may be
+     *                   answered by a draft preview first.
+     */
+    private void render(String expression, long inputNanos) {
+        String source = expression;
+        if (expression.isEmpty()) {
+            expression = "Enter \\quad LaTeX-Expression \\quad to  \\quad begin.";
+        }
+        long sequence = ++renderSequence;
+        // parsing runs on a worker, so a pathological expression can not freeze the editor
+        RenderService.getDefault().createIconAsync(expression, TeXConstants.STYLE_DISPLAY, 22,
+                TeXConstants.UNIT_PIXEL, 80, TeXConstants.ALIGN_LEFT).whenComplete((ticon, failure) ->
+                SwingUtilities.invokeLater(() -> {
+                    if (sequence != renderSequence) {
+                        // the text changed again meanwhile
+                        return;
+                    }
+                    if (failure == null) {
+                        if (inputNanos >= 0) {
+                            this.drawingArea.setIconWhileTyping(ticon, inputNanos);
+                        } else {
+                            this.drawingArea.setIcon(ticon);
+                        }
+                        if (undoManager != null) {
+                            undoManager.snapshot(source, ticon);
+                        }
+                    } else {
+                        showRenderFailure(failure);
+                    }
+                    this.validate();
+                    this.repaint();
+                }));
+    }
+
+    private void showRenderFailure(Throwable failure) {
+        RenderException renderFailure = failure instanceof RenderException ? (RenderException) failure
+                : new RenderException(RenderException.Kind.INVALID, failure.getMessage(), failure);
+        try {
+            this.drawingArea.setIcon(RenderService.createErrorIcon(renderFailure, TeXConstants.STYLE_DISPLAY, 22));
+        } catch (Exception e) {
+            JOptionPane.showMessageDialog(this, "Rendering failed in an insane manner", "Gigantic Failure",
+                    JOptionPane.ERROR_MESSAGE);
         }
-        this.validate();
-        this.repaint();
     }
 
     /*
@@ -221,38 +414,58 @@ public class MathematicalLatexHelperGui extends JFrame implements ActionListener
             handleSave();
         } else if (e.getSource().equals(this.btnCopyImage)) {
             try {
-                Export.setClipboardAsImage(this.latexSource.getText());
+                Export.setClipboardAsImage(getSelectedExpression());
             } catch (Exception exception) {
-                JOptionPane.showMessageDialog(this, "Make sure you entered a valid LaTeX-expression", "Could not copy",
+                JOptionPane.showMessageDialog(this, getExportFailureMessage(exception), "Could not copy",
                         JOptionPane.ERROR_MESSAGE);
             }
         } else if (e.getSource().equals(this.btnCopyPdf)) {
             try {
-                Export.setClipboardAsPdf(this.latexSource.getText());
+                Export.setClipboardAsPdf(getSelectedExpression());
             } catch (Exception exception) {
-                JOptionPane.showMessageDialog(this, "Make sure you entered a valid LaTeX-expression", "Could not copy",
+                JOptionPane.showMessageDialog(this, getExportFailureMessage(exception), "Could not copy",
                         JOptionPane.ERROR_MESSAGE);
             }
 
         } else if (e.getSource().equals(this.settingsItem)) {
             handleSettings();
+        } else if (e.getSource().equals(this.importPdfItem)) {
+            handleImportPdf();
+        } else if (e.getSource().equals(this.exportWebImagesItem)) {
+            handleExportWebImages();
+        } else if (e.getSource().equals(this.zoomInItem)) {
+            drawingArea.setZoom(drawingArea.getZoom() * 1.25);
+        } else if (e.getSource().equals(this.zoomOutItem)) {
+            drawingArea.setZoom(drawingArea.getZoom() / 1.25);
+        } else if (e.getSource().equals(this.zoomResetItem)) {
+            drawingArea.setZoom(1.0);
+        } else if (e.getSource().equals(this.workspaceItem)) {
+            if (workspaceItem.isSelected()) {
+                // edits were not tracked while the workspace was off
+                workspace.reset();
+            }
+            showPreview();
         }
     }
 
     private void handleSave() {
         try {
-            Path path = Export.save(this.latexSource.getText());
+            Path path = Export.save(getSelectedExpression());
 
             Timer timer = new Timer(3000, new ActionListener() {
                 @Override
                 public void actionPerformed(ActionEvent arg0) {
-                    MathematicalLatexHelperGui.this.render(latexSource.getText());
+                    MathematicalLatexHelperGui.this.showPreview();
                 }
             });
+            previewScrollPane.setViewportView(drawingArea);
             MathematicalLatexHelperGui.this.render("\\text{Saved to folder: "
                     + path.toAbsolutePath().toString().replace("\\", "}\\backslash \\text{") + " }");
             timer.setRepeats(false); // Only execute once
             timer.start();
+        } catch (RenderException exception) {
+            JOptionPane.showMessageDialog(this, getExportFailureMessage(exception), "Could not save",
+                    JOptionPane.ERROR_MESSAGE);
         } catch (Exception exception) {
             JOptionPane.showMessageDialog(this,
                     "<html>Make sure you entered a valid LaTeX-expression.<br>"
@@ -262,6 +475,45 @@ public class MathematicalLatexHelperGui extends JFrame implements ActionListener
         }
     }
 
+    private static String getExportFailureMessage(Exception exception) {
+        if (exception instanceof RenderException
+                && ((RenderException) exception).getKind() == RenderException.Kind.TOO_COMPLEX) {
+            return "The LaTeX-expression is too complex to export: " + exception.getMessage();
+        }
+        return "Make sure you entered a valid LaTeX-expression";
+    }
+
+    private void handleExportWebImages() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        chooser.setDialogTitle("Export Images to Folder");
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) {
+            return;
+        }
+        String date = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss").format(new Date());
+        try {
+            List<File> files = Export.generatePngs(getSelectedExpression(), chooser.getSelectedFile(),
+                    "LaTeX-Rendering_" + date, Export.WEB_IMAGE_SIZE, Export.WEB_IMAGE_SCALES);
+            JOptionPane.showMessageDialog(this, "Saved " + files.size() + " images to folder: "
+                    + chooser.getSelectedFile().getAbsolutePath(), "Images exported", JOptionPane.INFORMATION_MESSAGE);
+        } catch (RenderException exception) {
+            JOptionPane.showMessageDialog(this, getExportFailureMessage(exception), "Could not export",
+                    JOptionPane.ERROR_MESSAGE);
+        } catch (IOException exception) {
+            JOptionPane.showMessageDialog(this, "Could not write to folder: "
+                    + chooser.getSelectedFile().getAbsolutePath(), "Could not export", JOptionPane.ERROR_MESSAGE);
+        }
+    }
+
+    private void handleImportPdf() {
+        JFileChooser chooser = new JFileChooser();
+        chooser.setFileFilter(new FileNameExtensionFilter("PDF documents", "pdf"));
+        this.latexSource.prepareImport();
+        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            this.latexSource.importAllPages(chooser.getSelectedFile());
+        }
+    }
+
     private void handleSettings() {
         JTextField appIdField = new JTextField();
         JTextField apiKeyField = new JTextField();
@@ -350,7 +602,10 @@ public class MathematicalLatexHelperGui extends JFrame implements ActionListener
      */
     @Override
     public void insertUpdate(DocumentEvent e) {
-        render(this.latexSource.getText());
+        if (workspaceItem.isSelected()) {
+            workspace.documentChanged(e);
+        }
+        scheduleRender();
 
     }
 
@@ -362,7 +617,10 @@ public class MathematicalLatexHelperGui extends JFrame implements ActionListener
      */
     @Override
     public void removeUpdate(DocumentEvent e) {
-        render(this.latexSource.getText());
+        if (workspaceItem.isSelected()) {
+            workspace.documentChanged(e);
+        }
+        scheduleRender();
 
     }
 
@@ -374,22 +632,78 @@ public class MathematicalLatexHelperGui extends JFrame implements ActionListener
      */
     @Override
     public void changedUpdate(DocumentEvent e) {
-        render(this.latexSource.getText());
+        scheduleRender();
 
     }
 
     /**
-     * The main method.
+     * Executes the command of a later launch, forwarded to this running instance. Commands about the editor bring
+     * it to the front, the others are executed without it.
      *
-     * @param args the arguments
+     * @param command the command
+     * @param out     the standard output of the launching process
+     * @param err     the error output of the launching process
+     * @return the exit status of the launching process
      */
-    public static void main(String[] args) {
+    public int execute(LaunchCommand command, PrintWriter out, PrintWriter err) {
+        if (!command.needsEditor()) {
+            return Launcher.executeWithoutEditor(command, out, err);
+        }
+        SwingUtilities.invokeLater(() -> {
+            if ((getExtendedState() & ICONIFIED) != 0) {
+                setExtendedState(getExtendedState() & ~ICONIFIED);
+            }
+            toFront();
+            latexSource.requestFocus();
+            apply(command);
+        });
+        return 0;
+    }
+
+    /**
+     * Shows the expression or imports the files of a command about the editor.
+     *
+     * @param command the command
+     */
+    private void apply(LaunchCommand command) {
+        if (command.getKind() == LaunchCommand.Kind.EDIT) {
+            latexSource.setText(command.getArguments().get(0));
+        } else {
+            latexSource.importFiles(command.getFiles());
+        }
+    }
+
+    /**
+     * Opens the editor for the command of the launch, see {@link Launcher}.
+     *
+     * @param command the command, one about the editor
+     * @param server  the claim to be the running instance, null if commands of later launches are not taken
+     */
+    static void open(LaunchCommand command, InstanceServer server) {
         GuiUtil.setSystemLookAndFeel();
         // Set system property for more speed as recommended for apache pdfbox
         System.setProperty("sun.java2d.cmm", "sun.java2d.cmm.kcms.KcmsServiceProvider");
         MathPixSettings.load();
-        new MathematicalLatexHelperGui();
+        MathematicalLatexHelperGui gui = new MathematicalLatexHelperGui();
+        SwingUtilities.invokeLater(() -> gui.apply(command));
+        if (server != null) {
+            try {
+                server.start(gui::execute);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Later launches will open their own editor", e);
+                server.close();
+            }
+        }
+    }
+
+    /**
+     * The main method, see {@link Launcher#main(String[])}.
+     *
+     * @param args the arguments
+     */
+    public static void main(String[] args) {
+        Launcher.main(args);
     }
 
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,97 @@
+package de.moritzf.latexhelper.batch;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a {@link FormulaBuild}.
+ *
+ * @author Moritz Floeter
+ */
+public class BuildResult {
+
+    private final int formulaCount;
+    private final int renderedCount;
+    private final int removedCount;
+    private final List<String> failures;
+    private final long durationMillis;
+
+    /**
+     * Instantiates a new build result.
+     *
+     * @param formulaCount   the number of distinct formulas of the sources
+     * @param renderedCount  the number of formulas rendered by the build
+     * @param removedCount   the number of formulas removed because no source has them anymore
+     * @param failures       descriptions of the formulas that could not be rendered
+     * @param durationMillis the duration of the build in milliseconds
+     */
+    public BuildResult(int formulaCount, int renderedCount, int removedCount, List<String> failures,
+                       long durationMillis) {
+        this.formulaCount = formulaCount;
+        this.renderedCount = renderedCount;
+        this.removedCount = removedCount;
+        this.failures = Collections.unmodifiableList(failures);
+        this.durationMillis = durationMillis;
+    }
+
+    /**
+     * Gets the number of distinct formulas of the sources.
+     *
+     * @return the number of formulas
+     */
+    public int getFormulaCount() {
+        return formulaCount;
+    }
+
+    /**
+     * Gets the number of formulas rendered by the build, the others were up to date or failed.
+     *
+     * @return the number of rendered formulas
+     */
+    public int getRenderedCount() {
+        return renderedCount;
+    }
+
+    /**
+     * Gets the number of formulas whose files were removed because no source has them anymore.
+     *
+     * @return the number of removed formulas
+     */
+    public int getRemovedCount() {
+        return removedCount;
+    }
+
+    /**
+     * Gets descriptions of the formulas that could not be rendered. They are rendered again by the next build.
+     *
+     * @return the failures
+     */
+    public List<String> getFailures() {
+        return failures;
+    }
+
+    /**
+     * Gets the duration of the build.
+     *
+     * @return the duration in milliseconds
+     */
+    public long getDurationMillis() {
+        return durationMillis;
+    }
+
+    /**
+     * Checks if all formulas are rendered.
+     *
+     * @return true, if no formula failed
+     */
+    public boolean isSuccessful() {
+        return failures.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return formulaCount + " formulas, " + renderedCount + " rendered, " + (formulaCount - renderedCount
+                - failures.size()) + " up to date, " + failures.size() + " failed, " + removedCount + " removed in "
+                + durationMillis + " ms";
+    }
+}
@@ -0,0 +1,335 @@
+package de.moritzf.latexhelper.batch;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import de.moritzf.latexhelper.Export;
+import de.moritzf.latexhelper.render.RenderException;
+import de.moritzf.latexhelper.util.DaemonThreadFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Renders the display formulas of a document, e.g. the Markdown sources of a web site, into a directory of png
+ * images. Every distinct formula is rendered once, at every scale factor, into files named by a hash of the
+ * expression and the rendering settings, like <code>3f2a....png</code> and <code>3f2a...@2x.png</code>.
+ * <p>
+ * The manifest <code>formulas.json</code> in the directory maps every source to the hashes of its formulas, in the
+ * order of the source, and every hash to its expression and files. A build only renders formulas that are not in
+ * the manifest of the previous build or whose files are missing, and removes the files of formulas that no source
+ * has anymore. Formulas are rendered in parallel.
+ *
+ * @author Moritz Floeter
+ */
+public class FormulaBuild {
+
+    private static final Logger LOGGER = Logger.getLogger(FormulaBuild.class.getName());
+
+    /**
+     * Name of the manifest in the output directory.
+     */
+    public static final String MANIFEST_FILE = "formulas.json";
+
+    /**
+     * Extensions of the files scanned in source directories. Files named explicitly are scanned regardless.
+     */
+    public static final List<String> SOURCE_EXTENSIONS = Arrays.asList("md", "markdown", "html", "htm", "tex");
+
+    /**
+     * Number of bytes of the hash used in file names.
+     */
+    private static final int HASH_BYTES = 16;
+
+    private static final Gson GSON = new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create();
+
+    private final Path outputDirectory;
+    private final float size;
+    private final float[] scales;
+    private final int parallelism;
+
+    /**
+     * Instantiates a new formula build.
+     *
+     * @param outputDirectory the directory of the images and the manifest
+     * @param size            the font size at the scale factor 1
+     * @param scales          the scale factors every formula is rendered at
+     * @param parallelism     the number of formulas rendered at the same time
+     */
+    public FormulaBuild(File outputDirectory, float size, float[] scales, int parallelism) {
+        this.outputDirectory = outputDirectory.toPath().toAbsolutePath().normalize();
+        this.size = size;
+        this.scales = scales.clone();
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Scans the sources and renders their new and changed formulas.
+     *
+     * @param sources the source files and directories, directories are scanned recursively for files with one of
+     *                the {@link #SOURCE_EXTENSIONS}
+     * @return the result
+     * @throws IOException if a source could not be read or the manifest could not be written
+     */
+    public BuildResult build(List<File> sources) throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(outputDirectory);
+        Manifest previous = readManifest();
+
+        Manifest manifest = new Manifest();
+        Map<String, String> expressions = new LinkedHashMap<>();
+        for (Path source : collectSources(sources)) {
+            List<String> hashes = new ArrayList<>();
+            for (String expression : FormulaScanner.scan(new String(Files.readAllBytes(source),
+                    StandardCharsets.UTF_8))) {
+                String hash = hashOf(expression);
+                hashes.add(hash);
+                expressions.putIfAbsent(hash, expression);
+            }
+            manifest.sources.put(relativeName(source), hashes);
+        }
+
+        List<String> outdated = new ArrayList<>();
+        for (Map.Entry<String, String> formula : expressions.entrySet()) {
+            Formula known = previous.formulas.get(formula.getKey());
+            if (known != null && filesExist(known)) {
+                manifest.formulas.put(formula.getKey(), known);
+            } else {
+                outdated.add(formula.getKey());
+            }
+        }
+
+        List<String> failures = render(outdated, expressions, manifest);
+
+        int removed = 0;
+        for (Map.Entry<String, Formula> formula : previous.formulas.entrySet()) {
+            if (!expressions.containsKey(formula.getKey())) {
+                deleteFiles(formula.getValue());
+                removed++;
+            }
+        }
+        writeManifest(manifest);
+
+        BuildResult result = new BuildResult(expressions.size(), outdated.size() - failures.size(), removed,
+                failures, (System.nanoTime() - start) / 1_000_000);
+        LOGGER.log(Level.INFO, "Built " + outputDirectory + ": " + result);
+        return result;
+    }
+
+    /**
+     * Renders the outdated formulas in parallel and adds them to the manifest.
+     *
+     * @return descriptions of the formulas that could not be rendered
+     */
+    private List<String> render(List<String> outdated, Map<String, String> expressions, Manifest manifest) {
+        List<String> failures = new ArrayList<>();
+        if (outdated.isEmpty()) {
+            return failures;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, outdated.size()),
+                new DaemonThreadFactory("formula-build"));
+        try {
+            List<Future<List<File>>> futures = new ArrayList<>(outdated.size());
+            for (String hash : outdated) {
+                String expression = expressions.get(hash);
+                futures.add(executor.submit(() -> Export.generatePngs(expression, outputDirectory.toFile(), hash,
+                        size, scales)));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                String hash = outdated.get(i);
+                String expression = expressions.get(hash);
+                try {
+                    Formula formula = new Formula();
+                    formula.expression = expression;
+                    for (File file : futures.get(i).get()) {
+                        formula.files.add(file.getName());
+                    }
+                    manifest.formulas.put(hash, formula);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (!(cause instanceof RenderException)) {
+                        LOGGER.log(Level.WARNING, "Could not render " + expression, cause);
+                    }
+                    failures.add(expression + ": " + cause.getMessage());
+                    // some scale factors may have been written before the failure
+                    deletePartialFiles(hash);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            failures.add("build was interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+        return failures;
+    }
+
+    private List<Path> collectSources(List<File> sources) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (File source : sources) {
+            Path path = source.toPath().toAbsolutePath().normalize();
+            if (!Files.isDirectory(path)) {
+                files.add(path);
+                continue;
+            }
+            try (Stream<Path> walk = Files.walk(path)) {
+                files.addAll(walk.filter(file -> !file.startsWith(outputDirectory))
+                        .filter(Files::isRegularFile)
+                        .filter(FormulaBuild::isSourceFile)
+                        .sorted()
+                        .collect(Collectors.toList()));
+            }
+        }
+        return files;
+    }
+
+    private static boolean isSourceFile(Path file) {
+        String name = file.getFileName().toString();
+        int dot = name.lastIndexOf('.');
+        return dot >= 0 && SOURCE_EXTENSIONS.contains(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Names a source relative to the output directory, so the manifest stays valid when both are moved together.
+     */
+    private String relativeName(Path source) {
+        try {
+            return outputDirectory.relativize(source).toString().replace(File.separatorChar, '/');
+        } catch (IllegalArgumentException e) {
+            // on another drive
+            return source.toString();
+        }
+    }
+
+    /**
+     * Computes the name of the files of a formula. It depends on the rendering settings as well, so changing them
+     * renders every formula again.
+     */
+    private String hashOf(String expression) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        digest.update((size + " " + Arrays.toString(scales) + "\n").getBytes(StandardCharsets.UTF_8));
+        byte[] hash = digest.digest(expression.getBytes(StandardCharsets.UTF_8));
+        StringBuilder hex = new StringBuilder(HASH_BYTES * 2);
+        for (int i = 0; i < HASH_BYTES; i++) {
+            hex.append(String.format("%02x", hash[i]));
+        }
+        return hex.toString();
+    }
+
+    private boolean filesExist(Formula formula) {
+        if (formula.files.isEmpty()) {
+            return false;
+        }
+        for (String file : formula.files) {
+            if (!Files.isRegularFile(outputDirectory.resolve(file))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void deleteFiles(Formula formula) {
+        for (String file : formula.files) {
+            Path path = outputDirectory.resolve(file).normalize();
+            // the manifest could have been edited, never delete anything outside of the output directory
+            if (!path.getParent().equals(outputDirectory)) {
+                continue;
+            }
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not delete " + path, e);
+            }
+        }
+    }
+
+    /**
+     * Deletes the files a failed rendering of a formula may have left, named like <code>hash.png</code> and
+     * <code>hash@2x.png</code>.
+     */
+    private void deletePartialFiles(String hash) {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(outputDirectory, hash + "{.png,@*x.png}")) {
+            for (Path file : files) {
+                Files.deleteIfExists(file);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not delete the files of " + hash, e);
+        }
+    }
+
+    private Manifest readManifest() {
+        Path file = outputDirectory.resolve(MANIFEST_FILE);
+        if (!Files.exists(file)) {
+            return new Manifest();
+        }
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            Manifest manifest = GSON.fromJson(reader, Manifest.class);
+            if (manifest != null && manifest.sources != null && manifest.formulas != null) {
+                manifest.formulas.values().removeIf(formula -> formula == null || formula.files == null);
+                return manifest;
+            }
+        } catch (IOException | JsonParseException e) {
+            LOGGER.log(Level.WARNING, "Could not read " + file + ", rendering every formula", e);
+        }
+        return new Manifest();
+    }
+
+    private void writeManifest(Manifest manifest) throws IOException {
+        Path file = outputDirectory.resolve(MANIFEST_FILE);
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+            GSON.toJson(manifest, writer);
+        }
+        try {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * The manifest as stored in the output directory.
+     */
+    private static class Manifest {
+        Map<String, List<String>> sources = new LinkedHashMap<>();
+        Map<String, Formula> formulas = new LinkedHashMap<>();
+    }
+
+    /**
+     * A rendered formula of the manifest.
+     */
+    private static class Formula {
+        String expression;
+        List<String> files = new ArrayList<>();
+    }
+}
@@ -0,0 +1,77 @@
+package de.moritzf.latexhelper.batch;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the display formulas of Markdown, HTML and TeX sources: <code>$$...$$</code> and <code>\[...\]</code>
+ * blocks. Delimiters escaped by a backslash, like <code>\$$</code> or the line break <code>\\[2pt]</code>, do not
+ * start or end a block, and delimiters inside a block are part of its expression.
+ *
+ * @author Moritz Floeter
+ */
+public class FormulaScanner {
+
+    /**
+     * Empty private constructor for FormulaScanner
+     */
+    private FormulaScanner() {
+        //Prevents instances of FormulaScanner
+    }
+
+    /**
+     * Finds the display formulas of a source.
+     *
+     * @param text the source
+     * @return the expressions in the order of the source, without delimiters and surrounding whitespace
+     */
+    public static List<String> scan(String text) {
+        List<String> expressions = new ArrayList<>();
+        int i = 0;
+        while (i < text.length() - 1) {
+            String close = null;
+            if (text.startsWith("$$", i) && !isEscaped(text, i)) {
+                close = "$$";
+            } else if (text.startsWith("\\[", i) && !isEscaped(text, i)) {
+                close = "\\]";
+            }
+            if (close == null) {
+                i++;
+                continue;
+            }
+            int start = i + 2;
+            int end = findClose(text, close, start);
+            if (end < 0) {
+                // an unclosed block is no formula, but the formulas after a stray delimiter still are
+                i += 2;
+                continue;
+            }
+            String expression = text.substring(start, end).trim();
+            if (!expression.isEmpty()) {
+                expressions.add(expression);
+            }
+            i = end + close.length();
+        }
+        return expressions;
+    }
+
+    private static int findClose(String text, String close, int from) {
+        int end = text.indexOf(close, from);
+        // \$$ is a dollar sign followed by a dollar, \\] is a line break followed by a bracket
+        while (end >= 0 && isEscaped(text, end)) {
+            end = text.indexOf(close, end + 1);
+        }
+        return end;
+    }
+
+    /**
+     * Checks if the character at an index is escaped, i.e. preceded by an odd number of backslashes.
+     */
+    private static boolean isEscaped(String text, int index) {
+        int backslashes = 0;
+        for (int i = index - 1; i >= 0 && text.charAt(i) == '\\'; i--) {
+            backslashes++;
+        }
+        return backslashes % 2 == 1;
+    }
+}
@@ -0,0 +1,302 @@
+package de.moritzf.latexhelper.batch;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import de.moritzf.latexhelper.Export;
+import de.moritzf.latexhelper.render.RenderException;
+import de.moritzf.latexhelper.util.DaemonThreadFactory;
+
+import java.awt.Dimension;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Renders expressions for document toolchains, which would otherwise start a JVM per formula. Requests are read as
+ * newline delimited JSON, one object per line, and every non-empty line is answered by one line of JSON in the order
+ * of the requests, while the requests are rendered in parallel:
+ * <pre>
+ * {"id": 1, "expression": "a^2", "format": "png", "size": 22, "scale": 2}
+ * {"id": 1, "ok": true, "format": "png", "width": 41, "height": 39, "data": "iVBORw0KGgo..."}
+ * {"id": 2, "expression": "\\frac{a}{b}", "format": "pdf", "output": "formulas/2.pdf"}
+ * {"id": 2, "ok": true, "format": "pdf", "path": "/home/user/doc/formulas/2.pdf"}
+ * {"id": 3, "expression": "\\frac{a"}
+ * {"id": 3, "ok": false, "failure": "INVALID", "error": "..."}
+ * </pre>
+ * The id can be any JSON value and is passed through. The format is <code>png</code> (default) or <code>pdf</code>,
+ * size and scale apply to png only and default to {@link Export#IMAGE_SIZE} and 1. Without an output file, the
+ * answer holds the file base64 encoded. Output files are replaced once they are complete, so a reader never sees
+ * half of a file. The failure is one of the {@link RenderException.Kind}s, <code>REQUEST</code> for invalid requests,
+ * <code>IO</code> if the output could not be written or <code>INTERNAL</code> if rendering failed unexpectedly. A
+ * request running out of stack or heap counts as <code>TOO_COMPLEX</code>. Either way the server goes on with the next
+ * request.
+ * <p>
+ * Nothing here touches the clipboard or Swing, the server runs in a headless JVM.
+ *
+ * @author Moritz Floeter
+ */
+public class RenderServer {
+
+    private static final Logger LOGGER = Logger.getLogger(RenderServer.class.getName());
+
+    /**
+     * Number of requests read ahead per worker, which bounds the memory held by answers waiting for their turn.
+     */
+    private static final int PENDING_PER_WORKER = 4;
+
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    /**
+     * Marks the end of the requests in the queue of pending answers.
+     */
+    private static final CompletableFuture<Response> END = CompletableFuture.completedFuture(null);
+
+    private final int parallelism;
+    private final File workingDirectory;
+
+    /**
+     * Instantiates a new render server.
+     *
+     * @param parallelism      the number of requests rendered at the same time
+     * @param workingDirectory the directory relative output files are resolved against
+     */
+    public RenderServer(int parallelism, File workingDirectory) {
+        this.parallelism = parallelism;
+        this.workingDirectory = workingDirectory;
+    }
+
+    /**
+     * Answers the requests until the end of the input. Answers are flushed whenever no further answer is ready, so
+     * a client waiting for an answer gets it right away and a pipelining client gets them in batches.
+     *
+     * @param in  the requests
+     * @param out the answers
+     * @throws IOException if the requests could not be read or the answers could not be written
+     */
+    public void serve(InputStream in, OutputStream out) throws IOException {
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism, new DaemonThreadFactory("render-request"));
+        BlockingQueue<CompletableFuture<Response>> pending =
+                new ArrayBlockingQueue<>(parallelism * PENDING_PER_WORKER);
+        IOException[] readFailure = new IOException[1];
+        Thread reader = new DaemonThreadFactory("render-requests").newThread(() -> {
+            try (BufferedReader requests = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = requests.readLine()) != null) {
+                    if (!line.trim().isEmpty()) {
+                        String request = line;
+                        pending.put(CompletableFuture.supplyAsync(() -> answer(request), workers));
+                    }
+                }
+            } catch (IOException e) {
+                readFailure[0] = e;
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                pending.put(END);
+            } catch (InterruptedException e) {
+                // the answers are not written anymore
+            }
+        });
+        reader.start();
+
+        Writer answers = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        try {
+            CompletableFuture<Response> next;
+            while ((next = pending.take()) != END) {
+                answers.write(GSON.toJson(next.get()));
+                answers.write('\n');
+                if (pending.isEmpty()) {
+                    answers.flush();
+                }
+            }
+            answers.flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // answer turns every exception and running out of memory into a failure answer, this is a bug
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            reader.interrupt();
+            workers.shutdownNow();
+        }
+        if (readFailure[0] != null) {
+            throw readFailure[0];
+        }
+    }
+
+    /**
+     * Renders a single request.
+     *
+     * @param line the request
+     * @return the answer
+     */
+    private Response answer(String line) {
+        Response response = new Response();
+        try {
+            Request request = GSON.fromJson(line, Request.class);
+            if (request == null || request.expression == null) {
+                throw new IllegalArgumentException("missing expression");
+            }
+            response.id = request.id;
+            render(request, response);
+            response.ok = true;
+        } catch (JsonParseException | IllegalArgumentException e) {
+            response.failure = "REQUEST";
+            response.error = e.getMessage();
+        } catch (RenderException e) {
+            response.failure = e.getKind().name();
+            response.error = e.getMessage();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not write rendering", e);
+            response.failure = "IO";
+            response.error = e.toString();
+        } catch (StackOverflowError | OutOfMemoryError e) {
+            // the memory of the request is released once it is dropped, the next request gets it again
+            return failed(response.id, RenderException.Kind.TOO_COMPLEX.name(), "exhausted " + e);
+        } catch (RuntimeException e) {
+            LOGGER.log(Level.WARNING, "Rendering failed unexpectedly", e);
+            return failed(response.id, "INTERNAL", e.toString());
+        }
+        return response;
+    }
+
+    /**
+     * Creates a failure answer without any partial result of the request.
+     */
+    private static Response failed(JsonElement id, String failure, String error) {
+        Response response = new Response();
+        response.id = id;
+        response.failure = failure;
+        response.error = error;
+        return response;
+    }
+
+    private void render(Request request, Response response) throws IOException, RenderException {
+        String format = request.format == null ? "png" : request.format.toLowerCase(Locale.ROOT);
+        if (!format.equals("png") && !format.equals("pdf")) {
+            throw new IllegalArgumentException("unknown format " + request.format);
+        }
+        float size = request.size == null ? Export.IMAGE_SIZE : request.size;
+        float scale = request.scale == null ? 1 : request.scale;
+        if (!(size > 0) || !(scale > 0)) {
+            throw new IllegalArgumentException("size and scale must be positive");
+        }
+        response.format = format;
+
+        Path target = null;
+        if (request.output != null) {
+            File output = new File(request.output);
+            target = (output.isAbsolute() ? output : new File(workingDirectory, request.output)).toPath();
+        }
+
+        if (format.equals("png")) {
+            if (target == null) {
+                ByteArrayOutputStream png = new ByteArrayOutputStream();
+                setSize(response, Export.writePng(request.expression, size, scale, png));
+                response.data = Base64.getEncoder().encodeToString(png.toByteArray());
+            } else {
+                Path temporary = createSibling(target);
+                try {
+                    setSize(response, Export.writePng(request.expression, size, scale,
+                            new BufferedOutputStream(Files.newOutputStream(temporary))));
+                    replace(temporary, target, response);
+                } finally {
+                    Files.deleteIfExists(temporary);
+                }
+            }
+            return;
+        }
+
+        byte[] pdf;
+        Path rendering = Files.createTempFile("render", ".pdf");
+        try {
+            Export.generatePdf(request.expression, rendering.toFile());
+            pdf = Files.readAllBytes(rendering);
+        } finally {
+            Files.deleteIfExists(rendering);
+        }
+        if (target == null) {
+            response.data = Base64.getEncoder().encodeToString(pdf);
+        } else {
+            // written anew rather than moved, the temporary file is only readable by the user
+            Path temporary = createSibling(target);
+            try {
+                Files.write(temporary, pdf);
+                replace(temporary, target, response);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        }
+    }
+
+    /**
+     * Creates an empty file next to the target, with the permissions a new file in its directory gets.
+     */
+    private static Path createSibling(Path target) throws IOException {
+        String name = "." + target.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        return Files.createFile(target.resolveSibling(name + ".tmp"));
+    }
+
+    private static void replace(Path temporary, Path target, Response response) throws IOException {
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        response.path = target.toAbsolutePath().toString();
+    }
+
+    private static void setSize(Response response, Dimension size) {
+        response.width = size.width;
+        response.height = size.height;
+    }
+
+    /**
+     * A render request as read from a line of the input.
+     */
+    private static class Request {
+        JsonElement id;
+        String expression;
+        String format;
+        Float size;
+        Float scale;
+        String output;
+    }
+
+    /**
+     * The answer to a request as written to a line of the output. Fields without value are left out.
+     */
+    private static class Response {
+        JsonElement id;
+        boolean ok;
+        String format;
+        Integer width;
+        Integer height;
+        String path;
+        String data;
+        String failure;
+        String error;
+    }
+}
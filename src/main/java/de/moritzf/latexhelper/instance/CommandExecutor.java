@@ -0,0 +1,21 @@
+package de.moritzf.latexhelper.instance;
+
+import java.io.PrintWriter;
+
+/**
+ * Executes the commands of launches, e.g. the ones forwarded to the running instance.
+ *
+ * @author Moritz Floeter
+ */
+public interface CommandExecutor {
+
+    /**
+     * Executes a command.
+     *
+     * @param command the command
+     * @param out     the standard output of the launching process
+     * @param err     the error output of the launching process
+     * @return the exit status of the launching process
+     */
+    int execute(LaunchCommand command, PrintWriter out, PrintWriter err);
+}
@@ -0,0 +1,85 @@
+package de.moritzf.latexhelper.instance;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Hands the command of a launch to the running instance, see {@link InstanceServer} and {@link InstanceProtocol}.
+ * The launching process then only prints the answer and exits, without loading the user interface, fonts or
+ * recognizers.
+ *
+ * @author Moritz Floeter
+ */
+public class InstanceClient {
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    private InstanceClient() {
+    }
+
+    /**
+     * Forwards a command to the running instance and prints its answer.
+     *
+     * @param command the command
+     * @param out     the standard output
+     * @param err     the error output
+     * @return the exit status or null if there is no running instance
+     */
+    public static Integer forward(LaunchCommand command, PrintStream out, PrintStream err) {
+        Path portFile = InstanceProtocol.getDirectory().resolve(InstanceProtocol.PORT_FILE);
+        int port;
+        String token;
+        try {
+            String[] content = new String(Files.readAllBytes(portFile), StandardCharsets.UTF_8).trim().split(" ");
+            port = Integer.parseInt(content[0]);
+            token = content[1];
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | RuntimeException e) {
+            // unreadable or written by a crashed instance
+            return null;
+        }
+
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT_MILLIS);
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            InstanceProtocol.writeToken(request, token);
+            List<String> args = command.toForwardedArgs();
+            request.writeInt(args.size());
+            for (String arg : args) {
+                InstanceProtocol.writeString(request, arg);
+            }
+            request.flush();
+
+            DataInputStream answer = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            int status;
+            try {
+                status = answer.readUnsignedByte();
+                out.print(InstanceProtocol.readString(answer));
+                err.print(InstanceProtocol.readString(answer));
+            } catch (IOException e) {
+                // the command was handed over, executing it again here could do it twice
+                err.println("The running instance did not answer: " + e.getMessage());
+                return 1;
+            }
+            out.flush();
+            err.flush();
+            return status;
+        } catch (IOException e) {
+            // the instance of the port file is gone
+            return null;
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package de.moritzf.latexhelper.instance;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * The protocol between a launching process and the running instance, spoken over a loopback socket.
+ * <p>
+ * The running instance listens on a random port of the loopback interface and writes <code>port token</code> to
+ * the port file in its directory, which only the user can read. The token keeps other local users from sending
+ * commands. All numbers big endian as written by {@link DataOutputStream}, strings as <code>int length</code>
+ * followed by <code>length</code> bytes of UTF-8:
+ * <ul>
+ * <li>request: the token as {@link #TOKEN_LENGTH} hex digits without a length, so the running instance can check
+ * it before reading anything else, then <code>int count</code> and <code>count</code> strings, the forwarded form
+ * of a {@link LaunchCommand}</li>
+ * <li>answer: <code>byte status</code>, the exit status of the launching process, followed by the strings to print
+ * on its standard and error output</li>
+ * </ul>
+ *
+ * @author Moritz Floeter
+ */
+final class InstanceProtocol {
+
+    /**
+     * Name of the file holding the port and the token of the running instance.
+     */
+    static final String PORT_FILE = "instance.port";
+
+    /**
+     * Name of the file locked by the running instance, or by the instance that is about to start.
+     */
+    static final String LOCK_FILE = "instance.lock";
+
+    /**
+     * Length of the token in bytes, 128 random bits as hex digits.
+     */
+    static final int TOKEN_LENGTH = 32;
+
+    /**
+     * Maximum number of arguments of a request.
+     */
+    static final int MAX_ARGUMENTS = 10_000;
+
+    /**
+     * Maximum length of a string in bytes.
+     */
+    static final int MAX_STRING_BYTES = 64 * 1024 * 1024;
+
+    private InstanceProtocol() {
+    }
+
+    /**
+     * Gets the directory of the port and lock files. It is resolved from the home directory rather than by
+     * <code>ProjectDirectories</code>, which may start a PowerShell process on Windows and would cost every launch
+     * more time than forwarding it.
+     *
+     * @return the directory
+     */
+    static Path getDirectory() {
+        return Paths.get(System.getProperty("user.home"), ".mathematicallatexhelper");
+    }
+
+    static void writeString(DataOutputStream out, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static void writeToken(DataOutputStream out, String token) throws IOException {
+        byte[] bytes = token.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length != TOKEN_LENGTH) {
+            throw new IOException("Invalid token length " + bytes.length);
+        }
+        out.write(bytes);
+    }
+
+    static byte[] readToken(DataInputStream in) throws IOException {
+        byte[] token = new byte[TOKEN_LENGTH];
+        in.readFully(token);
+        return token;
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_BYTES) {
+            throw new IOException("Invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,192 @@
+package de.moritzf.latexhelper.instance;
+
+import de.moritzf.latexhelper.util.DaemonThreadFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Makes this process the running instance, which executes the commands of later launches, see
+ * {@link InstanceClient} and {@link InstanceProtocol}. Only one process at a time can claim to be the running
+ * instance: the claim is a lock on a file, released by the operating system when the process ends, even if it
+ * crashes.
+ *
+ * @author Moritz Floeter
+ */
+public class InstanceServer implements Closeable {
+
+    private static final Logger LOGGER = Logger.getLogger(InstanceServer.class.getName());
+
+    /**
+     * Time in milliseconds a launching process may take to send its request.
+     */
+    private static final int REQUEST_TIMEOUT_MILLIS = 10_000;
+
+    private final FileChannel lockChannel;
+    private final FileLock lock;
+    private final ExecutorService connections = Executors.newCachedThreadPool(new DaemonThreadFactory("instance"));
+    private ServerSocket serverSocket;
+    private Path portFile;
+
+    private InstanceServer(FileChannel lockChannel, FileLock lock) {
+        this.lockChannel = lockChannel;
+        this.lock = lock;
+    }
+
+    /**
+     * Claims to be the running instance. The claim holds until the server is closed or the process ends.
+     *
+     * @return the server, not yet listening, or null if another process is the running instance
+     * @throws IOException if the lock file can not be written
+     */
+    public static InstanceServer claim() throws IOException {
+        Path directory = InstanceProtocol.getDirectory();
+        Files.createDirectories(directory);
+        FileChannel channel = FileChannel.open(directory.resolve(InstanceProtocol.LOCK_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            channel.close();
+            return null;
+        }
+        return new InstanceServer(channel, lock);
+    }
+
+    /**
+     * Starts listening for the commands of later launches.
+     *
+     * @param executor the executor of the commands
+     * @throws IOException if the socket or the port file can not be created
+     */
+    public void start(CommandExecutor executor) throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        byte[] token = new byte[16];
+        new SecureRandom().nextBytes(token);
+        String tokenText = String.format("%0" + InstanceProtocol.TOKEN_LENGTH + "x", new BigInteger(1, token));
+        writePortFile(serverSocket.getLocalPort() + " " + tokenText);
+
+        Thread acceptor = new DaemonThreadFactory("instance-server").newThread(() -> accept(executor, tokenText));
+        acceptor.start();
+        LOGGER.log(Level.INFO, "Running instance listens on port " + serverSocket.getLocalPort());
+    }
+
+    private void writePortFile(String content) throws IOException {
+        Path directory = InstanceProtocol.getDirectory();
+        Path temporary = Files.createTempFile(directory, "instance", ".tmp");
+        try {
+            // only the user may read the token
+            Files.setPosixFilePermissions(temporary, PosixFilePermissions.fromString("rw-------"));
+        } catch (UnsupportedOperationException e) {
+            // not a posix file system, the home directory of the user is protected anyway
+        }
+        Files.write(temporary, content.getBytes(StandardCharsets.UTF_8));
+        portFile = directory.resolve(InstanceProtocol.PORT_FILE);
+        Files.move(temporary, portFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void accept(CommandExecutor executor, String token) {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                connections.execute(() -> serve(socket, executor, token));
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    LOGGER.log(Level.WARNING, "Could not accept launch", e);
+                }
+            }
+        }
+    }
+
+    private void serve(Socket socket, CommandExecutor executor, String token) {
+        try (Socket connection = socket) {
+            connection.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+            // the token has a fixed length, a connection that does not know it gets nothing allocated beyond it
+            if (!MessageDigest.isEqual(token.getBytes(StandardCharsets.US_ASCII),
+                    InstanceProtocol.readToken(new DataInputStream(connection.getInputStream())))) {
+                LOGGER.log(Level.WARNING, "Rejected launch with a wrong token");
+                return;
+            }
+            DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(connection.getOutputStream()));
+            int count = in.readInt();
+            if (count < 0 || count > InstanceProtocol.MAX_ARGUMENTS) {
+                throw new IOException("Invalid number of arguments " + count);
+            }
+            List<String> args = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                args.add(InstanceProtocol.readString(in));
+            }
+            // executing the command may take as long as it takes
+            connection.setSoTimeout(0);
+
+            StringWriter output = new StringWriter();
+            StringWriter errors = new StringWriter();
+            int status;
+            try (PrintWriter outWriter = new PrintWriter(output); PrintWriter errWriter = new PrintWriter(errors)) {
+                LaunchCommand command = LaunchCommand.fromForwardedArgs(args);
+                LOGGER.log(Level.INFO, "Executing forwarded launch " + command);
+                status = executor.execute(command, outWriter, errWriter);
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Forwarded launch failed", e);
+                errors.write("Failed: " + e + System.lineSeparator());
+                status = 1;
+            }
+            out.writeByte(status);
+            InstanceProtocol.writeString(out, output.toString());
+            InstanceProtocol.writeString(out, errors.toString());
+            out.flush();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not serve launch", e);
+        }
+    }
+
+    /**
+     * Stops listening and gives up the claim to be the running instance.
+     */
+    @Override
+    public void close() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+                Files.deleteIfExists(portFile);
+            }
+            connections.shutdownNow();
+            lock.release();
+            lockChannel.close();
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not stop the running instance", e);
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package de.moritzf.latexhelper.instance;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A command given on the command line. Commands are parsed by the launching process, which resolves relative file
+ * names against its own working directory, so the command means the same when it is executed by the running
+ * instance (see {@link InstanceClient}).
+ *
+ * @author Moritz Floeter
+ */
+public class LaunchCommand {
+
+    /**
+     * The usage shown for invalid arguments.
+     */
+    public static final String USAGE = "Usage:\n"
+            + "  mathematicallatexhelper [FILE...]              open the editor, importing the image or pdf files\n"
+            + "  mathematicallatexhelper -e EXPRESSION          open the editor with the expression\n"
+            + "  mathematicallatexhelper --import FILE...       print the expressions recovered from the files\n"
+            + "  mathematicallatexhelper --render EXPRESSION OUTPUT.png\n"
+            + "                                                 render the expression to a png file\n"
+            + "  mathematicallatexhelper --build OUTPUT_DIR SOURCE...\n"
+            + "                                                 render the new and changed $$...$$ and \\[...\\] formulas\n"
+            + "                                                 of markdown, html and tex files to png images\n"
+            + "  mathematicallatexhelper --serve                answer JSON render requests, one per line of the\n"
+            + "                                                 standard input, on the standard output\n"
+            + "A running instance executes the command, otherwise --import, --render and --build run without the\n"
+            + "editor.";
+
+    /**
+     * The kinds of commands.
+     */
+    public enum Kind {
+        /**
+         * Shows the editor and imports the files, if any.
+         */
+        OPEN,
+        /**
+         * Shows the editor with an expression.
+         */
+        EDIT,
+        /**
+         * Prints the expressions recovered from files.
+         */
+        IMPORT,
+        /**
+         * Renders an expression to a png file.
+         */
+        RENDER,
+        /**
+         * Renders the formulas of source files into a directory, see {@link #getFiles()}.
+         */
+        BUILD,
+        /**
+         * Renders requests read from the standard input until its end, always in the launching process.
+         */
+        SERVE,
+        /**
+         * Prints the usage.
+         */
+        HELP
+    }
+
+    private final Kind kind;
+    private final List<String> arguments;
+
+    private LaunchCommand(Kind kind, List<String> arguments) {
+        this.kind = kind;
+        this.arguments = Collections.unmodifiableList(arguments);
+    }
+
+    /**
+     * Parses the arguments of the command line.
+     *
+     * @param args             the arguments
+     * @param workingDirectory the directory relative file names are resolved against
+     * @return the command
+     * @throws IllegalArgumentException if the arguments are invalid
+     */
+    public static LaunchCommand parse(String[] args, File workingDirectory) {
+        args = withoutSystemArguments(args);
+        if (args.length == 0) {
+            return new LaunchCommand(Kind.OPEN, new ArrayList<>());
+        }
+        List<String> rest = Arrays.asList(args).subList(1, args.length);
+        switch (args[0]) {
+            case "-h":
+            case "--help":
+                return new LaunchCommand(Kind.HELP, new ArrayList<>());
+            case "-e":
+            case "--edit":
+                requireCount(args[0], rest, 1);
+                return new LaunchCommand(Kind.EDIT, new ArrayList<>(rest));
+            case "--build":
+                if (rest.size() < 2) {
+                    throw new IllegalArgumentException("--build needs an output directory and at least one source");
+                }
+                return new LaunchCommand(Kind.BUILD, resolve(rest, workingDirectory));
+            case "--serve":
+                requireCount(args[0], rest, 0);
+                return new LaunchCommand(Kind.SERVE, new ArrayList<>());
+            case "--import":
+                if (rest.isEmpty()) {
+                    throw new IllegalArgumentException("--import needs at least one file");
+                }
+                return new LaunchCommand(Kind.IMPORT, resolve(rest, workingDirectory));
+            case "--render":
+                requireCount(args[0], rest, 2);
+                List<String> arguments = new ArrayList<>();
+                arguments.add(rest.get(0));
+                arguments.addAll(resolve(rest.subList(1, 2), workingDirectory));
+                return new LaunchCommand(Kind.RENDER, arguments);
+            default:
+                if (args[0].startsWith("-")) {
+                    throw new IllegalArgumentException("Unknown option " + args[0]);
+                }
+                return new LaunchCommand(Kind.OPEN, resolve(Arrays.asList(args), workingDirectory));
+        }
+    }
+
+    /**
+     * Restores a command from the form it is forwarded in, see {@link #toForwardedArgs()}.
+     *
+     * @param args the forwarded arguments
+     * @return the command
+     * @throws IllegalArgumentException if the arguments are invalid
+     */
+    static LaunchCommand fromForwardedArgs(List<String> args) {
+        if (args.isEmpty()) {
+            throw new IllegalArgumentException("Missing command");
+        }
+        return new LaunchCommand(Kind.valueOf(args.get(0)), new ArrayList<>(args.subList(1, args.size())));
+    }
+
+    /**
+     * Gets the form the command is forwarded in: the kind followed by the arguments.
+     *
+     * @return the forwarded arguments
+     */
+    List<String> toForwardedArgs() {
+        List<String> args = new ArrayList<>();
+        args.add(kind.name());
+        args.addAll(arguments);
+        return args;
+    }
+
+    /**
+     * Removes the arguments macOS passes to applications, like <code>-psn_0_12345</code> or
+     * <code>-NSRequiresAquaSystemAppearance False</code>.
+     */
+    private static String[] withoutSystemArguments(String[] args) {
+        List<String> kept = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].startsWith("-NS")) {
+                i++;
+            } else if (!args[i].startsWith("-psn_")) {
+                kept.add(args[i]);
+            }
+        }
+        return kept.toArray(new String[0]);
+    }
+
+    private static void requireCount(String option, List<String> arguments, int count) {
+        if (arguments.size() != count) {
+            throw new IllegalArgumentException(count == 0 ? option + " takes no arguments"
+                    : option + " needs " + count + " argument" + (count > 1 ? "s" : ""));
+        }
+    }
+
+    private static List<String> resolve(List<String> fileNames, File workingDirectory) {
+        List<String> resolved = new ArrayList<>();
+        for (String fileName : fileNames) {
+            File file = new File(fileName);
+            resolved.add((file.isAbsolute() ? file : new File(workingDirectory, fileName)).getAbsolutePath());
+        }
+        return resolved;
+    }
+
+    /**
+     * Gets the kind of the command.
+     *
+     * @return the kind
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Gets the arguments: the absolute file names for {@link Kind#OPEN}, {@link Kind#IMPORT} and {@link Kind#BUILD},
+     * the expression for {@link Kind#EDIT} and the expression and the absolute output file name for
+     * {@link Kind#RENDER}.
+     *
+     * @return the arguments
+     */
+    public List<String> getArguments() {
+        return arguments;
+    }
+
+    /**
+     * Gets the files named by the command. For {@link Kind#BUILD}, the output directory comes first, followed by
+     * the sources.
+     *
+     * @return the files, empty for commands without files
+     */
+    public List<File> getFiles() {
+        List<File> files = new ArrayList<>();
+        if (kind == Kind.OPEN || kind == Kind.IMPORT || kind == Kind.BUILD) {
+            for (String argument : arguments) {
+                files.add(new File(argument));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Checks if the command is about the editor. Other commands can be executed without it.
+     *
+     * @return true, if the command needs the editor
+     */
+    public boolean needsEditor() {
+        return kind == Kind.OPEN || kind == Kind.EDIT;
+    }
+
+    @Override
+    public String toString() {
+        return kind + " " + arguments;
+    }
+}
@@ -0,0 +1,547 @@
+package de.moritzf.latexhelper.preview;
+
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.AffineTransform;
+import java.awt.geom.Arc2D;
+import java.awt.geom.Ellipse2D;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.geom.PathIterator;
+import java.awt.geom.Rectangle2D;
+import java.awt.geom.RoundRectangle2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ImageObserver;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.RenderableImage;
+import java.text.AttributedCharacterIterator;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Graphics that paint nothing but record a signature of the drawing operations reaching every tile of a
+ * {@link TiledIconView}. Painting an icon through them walks its layout without rasterizing a single pixel. Two
+ * icons whose signatures of a tile are equal paint the same pixels into that tile, as long as they are painted with
+ * the same state, so the tile does not have to be rendered again.
+ * <p>
+ * Every operation is hashed together with the state it depends on (transform, paint, stroke, font, composite and
+ * antialiasing) and added in order to the signature of every tile its device bounds intersect. The bounds are
+ * generous: an operation counted for a tile it does not touch only costs rendering that tile again.
+ *
+ * @author Moritz Floeter
+ */
+class DrawingSignatureGraphics extends Graphics2D {
+
+    /**
+     * Distance in font sizes up to which glyphs, e.g. large delimiters, may reach from their origin.
+     */
+    private static final int GLYPH_REACH = 4;
+
+    /**
+     * Margin in pixels around the bounds of an operation for antialiasing.
+     */
+    private static final int MARGIN = 2;
+
+    private final Graphics2D g;
+    private final Map<Long, Long> signatures;
+    private final int tileSize;
+
+    /**
+     * Instantiates new signature graphics.
+     *
+     * @param g          graphics keeping the state, nothing is painted with them
+     * @param signatures the signatures by tile key, see {@link TiledIconView#key(int, int)}, added to by painting
+     * @param tileSize   the width and height of a tile
+     */
+    DrawingSignatureGraphics(Graphics2D g, Map<Long, Long> signatures, int tileSize) {
+        this.g = g;
+        this.signatures = signatures;
+        this.tileSize = tileSize;
+    }
+
+    /**
+     * Records an operation.
+     *
+     * @param kind       the kind of the operation
+     * @param parameters the hash of the parameters of the operation
+     * @param bounds     the bounds of the operation in user space
+     */
+    private void record(int kind, long parameters, Rectangle2D bounds) {
+        AffineTransform transform = g.getTransform();
+        long hash = kind;
+        hash = 31 * hash + parameters;
+        double[] matrix = new double[6];
+        transform.getMatrix(matrix);
+        hash = 31 * hash + Arrays.hashCode(matrix);
+        hash = 31 * hash + hashOf(g.getPaint());
+        hash = 31 * hash + hashOf(g.getStroke());
+        hash = 31 * hash + hashOf(g.getFont());
+        hash = 31 * hash + hashOf(g.getComposite());
+        hash = 31 * hash + hashOf(g.getRenderingHint(RenderingHints.KEY_ANTIALIASING));
+        hash = 31 * hash + hashOf(g.getRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING));
+
+        Rectangle device = transform.createTransformedShape(bounds).getBounds();
+        device.grow(MARGIN, MARGIN);
+        int firstX = Math.max(0, Math.floorDiv(device.x, tileSize));
+        int firstY = Math.max(0, Math.floorDiv(device.y, tileSize));
+        int lastX = Math.floorDiv(device.x + device.width, tileSize);
+        int lastY = Math.floorDiv(device.y + device.height, tileSize);
+        for (int tileY = firstY; tileY <= lastY; tileY++) {
+            for (int tileX = firstX; tileX <= lastX; tileX++) {
+                signatures.merge(TiledIconView.key(tileX, tileY), hash, (before, added) -> 31 * before + added);
+            }
+        }
+    }
+
+    private static int hashOf(Object object) {
+        return object == null ? 0 : object.hashCode();
+    }
+
+    private static long hashOf(Shape shape) {
+        long hash = 1;
+        double[] coordinates = new double[6];
+        for (PathIterator path = shape.getPathIterator(null); !path.isDone(); path.next()) {
+            int type = path.currentSegment(coordinates);
+            hash = 31 * hash + type;
+            hash = 31 * hash + Arrays.hashCode(coordinates);
+            Arrays.fill(coordinates, 0);
+        }
+        return hash;
+    }
+
+    private void recordText(String text, double x, double y) {
+        Font font = g.getFont();
+        double reach = GLYPH_REACH * font.getSize2D();
+        double advance = font.getStringBounds(text, g.getFontRenderContext()).getWidth();
+        long parameters = 31L * text.hashCode() + Double.hashCode(x);
+        parameters = 31 * parameters + Double.hashCode(y);
+        record(1, parameters, new Rectangle2D.Double(x - font.getSize2D(), y - reach,
+                advance + 2 * font.getSize2D(), 2 * reach));
+    }
+
+    private void recordImage(Image img, double x, double y, double width, double height, long parameters) {
+        if (img == null) {
+            return;
+        }
+        long hash = 31L * System.identityHashCode(img) + parameters;
+        record(2, hash, new Rectangle2D.Double(Math.min(x, x + width), Math.min(y, y + height), Math.abs(width),
+                Math.abs(height)));
+    }
+
+    private static long hashOf(double... values) {
+        return Arrays.hashCode(values);
+    }
+
+    @Override
+    public Graphics create() {
+        return new DrawingSignatureGraphics((Graphics2D) g.create(), signatures, tileSize);
+    }
+
+    @Override
+    public void draw(Shape s) {
+        Rectangle2D bounds = g.getStroke().createStrokedShape(s).getBounds2D();
+        record(3, hashOf(s), bounds);
+    }
+
+    @Override
+    public void fill(Shape s) {
+        record(4, hashOf(s), s.getBounds2D());
+    }
+
+    @Override
+    public boolean drawImage(Image img, AffineTransform xform, ImageObserver obs) {
+        if (img == null) {
+            return true;
+        }
+        Rectangle2D bounds = xform.createTransformedShape(
+                new Rectangle(img.getWidth(null), img.getHeight(null))).getBounds2D();
+        double[] matrix = new double[6];
+        xform.getMatrix(matrix);
+        recordImage(img, bounds.getX(), bounds.getY(), bounds.getWidth(), bounds.getHeight(), hashOf(matrix));
+        return true;
+    }
+
+    @Override
+    public void drawImage(BufferedImage img, BufferedImageOp op, int x, int y) {
+        if (img != null) {
+            Rectangle2D bounds = op == null ? new Rectangle(img.getWidth(), img.getHeight())
+                    : op.getBounds2D(img);
+            recordImage(img, x + bounds.getX(), y + bounds.getY(), bounds.getWidth(), bounds.getHeight(),
+                    31L * hashOf(op) + hashOf(x, y));
+        }
+    }
+
+    @Override
+    public void drawRenderedImage(RenderedImage img, AffineTransform xform) {
+        if (img != null) {
+            Rectangle2D bounds = xform.createTransformedShape(new Rectangle(img.getMinX(), img.getMinY(),
+                    img.getWidth(), img.getHeight())).getBounds2D();
+            double[] matrix = new double[6];
+            xform.getMatrix(matrix);
+            record(2, 31L * System.identityHashCode(img) + hashOf(matrix), bounds);
+        }
+    }
+
+    @Override
+    public void drawRenderableImage(RenderableImage img, AffineTransform xform) {
+        if (img != null) {
+            Rectangle2D bounds = xform.createTransformedShape(new Rectangle2D.Float(img.getMinX(), img.getMinY(),
+                    img.getWidth(), img.getHeight())).getBounds2D();
+            double[] matrix = new double[6];
+            xform.getMatrix(matrix);
+            record(2, 31L * System.identityHashCode(img) + hashOf(matrix), bounds);
+        }
+    }
+
+    @Override
+    public void drawString(String str, int x, int y) {
+        recordText(str, x, y);
+    }
+
+    @Override
+    public void drawString(String str, float x, float y) {
+        recordText(str, x, y);
+    }
+
+    @Override
+    public void drawString(AttributedCharacterIterator iterator, int x, int y) {
+        drawString(iterator, (float) x, (float) y);
+    }
+
+    @Override
+    public void drawString(AttributedCharacterIterator iterator, float x, float y) {
+        StringBuilder text = new StringBuilder();
+        for (char c = iterator.first(); c != AttributedCharacterIterator.DONE; c = iterator.next()) {
+            text.append(c);
+        }
+        // the attributes are not hashed, so the text counts for any tile it could reach in any font
+        recordText(text.toString(), x, y);
+    }
+
+    @Override
+    public void drawChars(char[] data, int offset, int length, int x, int y) {
+        recordText(new String(data, offset, length), x, y);
+    }
+
+    @Override
+    public void drawGlyphVector(GlyphVector glyphs, float x, float y) {
+        int[] codes = glyphs.getGlyphCodes(0, glyphs.getNumGlyphs(), null);
+        Rectangle2D bounds = glyphs.getVisualBounds();
+        record(5, 31L * Arrays.hashCode(codes) + hashOf(x, y), new Rectangle2D.Double(bounds.getX() + x,
+                bounds.getY() + y, bounds.getWidth(), bounds.getHeight()));
+    }
+
+    @Override
+    public boolean hit(Rectangle rect, Shape s, boolean onStroke) {
+        return g.hit(rect, s, onStroke);
+    }
+
+    @Override
+    public GraphicsConfiguration getDeviceConfiguration() {
+        return g.getDeviceConfiguration();
+    }
+
+    @Override
+    public void setComposite(Composite comp) {
+        g.setComposite(comp);
+    }
+
+    @Override
+    public void setPaint(Paint paint) {
+        g.setPaint(paint);
+    }
+
+    @Override
+    public void setStroke(Stroke s) {
+        g.setStroke(s);
+    }
+
+    @Override
+    public void setRenderingHint(RenderingHints.Key hintKey, Object hintValue) {
+        g.setRenderingHint(hintKey, hintValue);
+    }
+
+    @Override
+    public Object getRenderingHint(RenderingHints.Key hintKey) {
+        return g.getRenderingHint(hintKey);
+    }
+
+    @Override
+    public void setRenderingHints(Map<?, ?> hints) {
+        g.setRenderingHints(hints);
+    }
+
+    @Override
+    public void addRenderingHints(Map<?, ?> hints) {
+        g.addRenderingHints(hints);
+    }
+
+    @Override
+    public RenderingHints getRenderingHints() {
+        return g.getRenderingHints();
+    }
+
+    @Override
+    public void translate(int x, int y) {
+        g.translate(x, y);
+    }
+
+    @Override
+    public void translate(double tx, double ty) {
+        g.translate(tx, ty);
+    }
+
+    @Override
+    public void rotate(double theta) {
+        g.rotate(theta);
+    }
+
+    @Override
+    public void rotate(double theta, double x, double y) {
+        g.rotate(theta, x, y);
+    }
+
+    @Override
+    public void scale(double sx, double sy) {
+        g.scale(sx, sy);
+    }
+
+    @Override
+    public void shear(double shx, double shy) {
+        g.shear(shx, shy);
+    }
+
+    @Override
+    public void transform(AffineTransform tx) {
+        g.transform(tx);
+    }
+
+    @Override
+    public void setTransform(AffineTransform tx) {
+        g.setTransform(tx);
+    }
+
+    @Override
+    public AffineTransform getTransform() {
+        return g.getTransform();
+    }
+
+    @Override
+    public Paint getPaint() {
+        return g.getPaint();
+    }
+
+    @Override
+    public Composite getComposite() {
+        return g.getComposite();
+    }
+
+    @Override
+    public void setBackground(Color color) {
+        g.setBackground(color);
+    }
+
+    @Override
+    public Color getBackground() {
+        return g.getBackground();
+    }
+
+    @Override
+    public Stroke getStroke() {
+        return g.getStroke();
+    }
+
+    @Override
+    public void clip(Shape s) {
+        g.clip(s);
+    }
+
+    @Override
+    public FontRenderContext getFontRenderContext() {
+        return g.getFontRenderContext();
+    }
+
+    @Override
+    public Color getColor() {
+        return g.getColor();
+    }
+
+    @Override
+    public void setColor(Color c) {
+        g.setColor(c);
+    }
+
+    @Override
+    public void setPaintMode() {
+        g.setPaintMode();
+    }
+
+    @Override
+    public void setXORMode(Color c1) {
+        g.setXORMode(c1);
+    }
+
+    @Override
+    public Font getFont() {
+        return g.getFont();
+    }
+
+    @Override
+    public void setFont(Font font) {
+        g.setFont(font);
+    }
+
+    @Override
+    public FontMetrics getFontMetrics(Font f) {
+        return g.getFontMetrics(f);
+    }
+
+    @Override
+    public Rectangle getClipBounds() {
+        return g.getClipBounds();
+    }
+
+    @Override
+    public void clipRect(int x, int y, int width, int height) {
+        g.clipRect(x, y, width, height);
+    }
+
+    @Override
+    public void setClip(int x, int y, int width, int height) {
+        g.setClip(x, y, width, height);
+    }
+
+    @Override
+    public Shape getClip() {
+        return g.getClip();
+    }
+
+    @Override
+    public void setClip(Shape clip) {
+        g.setClip(clip);
+    }
+
+    @Override
+    public void copyArea(int x, int y, int width, int height, int dx, int dy) {
+        record(6, hashOf(x, y, width, height, dx, dy), new Rectangle(x + dx, y + dy, width, height));
+    }
+
+    @Override
+    public void drawLine(int x1, int y1, int x2, int y2) {
+        draw(new Line2D.Float(x1, y1, x2, y2));
+    }
+
+    @Override
+    public void fillRect(int x, int y, int width, int height) {
+        fill(new Rectangle(x, y, width, height));
+    }
+
+    @Override
+    public void clearRect(int x, int y, int width, int height) {
+        record(7, hashOf(g.getBackground()), new Rectangle(x, y, width, height));
+    }
+
+    @Override
+    public void drawRoundRect(int x, int y, int width, int height, int arcWidth, int arcHeight) {
+        draw(new RoundRectangle2D.Float(x, y, width, height, arcWidth, arcHeight));
+    }
+
+    @Override
+    public void fillRoundRect(int x, int y, int width, int height, int arcWidth, int arcHeight) {
+        fill(new RoundRectangle2D.Float(x, y, width, height, arcWidth, arcHeight));
+    }
+
+    @Override
+    public void drawOval(int x, int y, int width, int height) {
+        draw(new Ellipse2D.Float(x, y, width, height));
+    }
+
+    @Override
+    public void fillOval(int x, int y, int width, int height) {
+        fill(new Ellipse2D.Float(x, y, width, height));
+    }
+
+    @Override
+    public void drawArc(int x, int y, int width, int height, int startAngle, int arcAngle) {
+        draw(new Arc2D.Float(x, y, width, height, startAngle, arcAngle, Arc2D.OPEN));
+    }
+
+    @Override
+    public void fillArc(int x, int y, int width, int height, int startAngle, int arcAngle) {
+        fill(new Arc2D.Float(x, y, width, height, startAngle, arcAngle, Arc2D.PIE));
+    }
+
+    @Override
+    public void drawPolyline(int[] xPoints, int[] yPoints, int nPoints) {
+        if (nPoints > 0) {
+            Path2D.Float path = new Path2D.Float();
+            path.moveTo(xPoints[0], yPoints[0]);
+            for (int i = 1; i < nPoints; i++) {
+                path.lineTo(xPoints[i], yPoints[i]);
+            }
+            draw(path);
+        }
+    }
+
+    @Override
+    public void drawPolygon(int[] xPoints, int[] yPoints, int nPoints) {
+        draw(new Polygon(xPoints, yPoints, nPoints));
+    }
+
+    @Override
+    public void fillPolygon(int[] xPoints, int[] yPoints, int nPoints) {
+        fill(new Polygon(xPoints, yPoints, nPoints));
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, ImageObserver observer) {
+        if (img != null) {
+            recordImage(img, x, y, img.getWidth(null), img.getHeight(null), hashOf(x, y));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, int width, int height, ImageObserver observer) {
+        recordImage(img, x, y, width, height, hashOf(x, y, width, height));
+        return true;
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, Color bgcolor, ImageObserver observer) {
+        if (img != null) {
+            recordImage(img, x, y, img.getWidth(null), img.getHeight(null),
+                    31L * hashOf(bgcolor) + hashOf(x, y));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, int width, int height, Color bgcolor,
+                             ImageObserver observer) {
+        recordImage(img, x, y, width, height, 31L * hashOf(bgcolor) + hashOf(x, y, width, height));
+        return true;
+    }
+
+    @Override
+    public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2, int sx1, int sy1, int sx2, int sy2,
+                             ImageObserver observer) {
+        recordImage(img, dx1, dy1, dx2 - dx1, dy2 - dy1, hashOf(dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2));
+        return true;
+    }
+
+    @Override
+    public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2, int sx1, int sy1, int sx2, int sy2,
+                             Color bgcolor, ImageObserver observer) {
+        recordImage(img, dx1, dy1, dx2 - dx1, dy2 - dy1,
+                31L * hashOf(bgcolor) + hashOf(dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2));
+        return true;
+    }
+
+    @Override
+    public void dispose() {
+        g.dispose();
+    }
+}
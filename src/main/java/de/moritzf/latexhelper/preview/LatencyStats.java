@@ -0,0 +1,80 @@
+package de.moritzf.latexhelper.preview;
+
+import java.util.Arrays;
+
+/**
+ * Latency samples of a preview phase. Keeps the most recent samples to report percentiles. Instances are thread
+ * safe.
+ *
+ * @author Moritz Floeter
+ */
+public class LatencyStats {
+
+    private static final int CAPACITY = 256;
+
+    private final String name;
+    private final long[] samples = new long[CAPACITY];
+    private long count;
+    private long maxNanos;
+
+    /**
+     * Instantiates new latency stats.
+     *
+     * @param name the name of the phase
+     */
+    public LatencyStats(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Records a sample.
+     *
+     * @param nanos the latency in nanoseconds
+     */
+    public synchronized void record(long nanos) {
+        samples[(int) (count % CAPACITY)] = nanos;
+        count++;
+        maxNanos = Math.max(maxNanos, nanos);
+    }
+
+    /**
+     * Gets the number of samples recorded so far.
+     *
+     * @return the number of samples
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Gets a percentile of the recent samples.
+     *
+     * @param percentile the percentile between 0 and 100
+     * @return the latency in milliseconds, 0 if there are no samples
+     */
+    public synchronized double getPercentileMillis(double percentile) {
+        int size = (int) Math.min(count, CAPACITY);
+        if (size == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, size);
+        Arrays.sort(sorted);
+        int index = (int) Math.min(size - 1, Math.max(0, Math.ceil(percentile / 100 * size) - 1));
+        return sorted[index] / 1e6;
+    }
+
+    /**
+     * Gets the largest sample recorded so far.
+     *
+     * @return the latency in milliseconds
+     */
+    public synchronized double getMaxMillis() {
+        return maxNanos / 1e6;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return String.format("%s latency: n=%d, p50=%.1f ms, p95=%.1f ms, max=%.1f ms", name, count,
+                getPercentileMillis(50), getPercentileMillis(95), getMaxMillis());
+    }
+}
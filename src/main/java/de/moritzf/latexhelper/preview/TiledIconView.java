@@ -0,0 +1,482 @@
+package de.moritzf.latexhelper.preview;
+
+import de.moritzf.latexhelper.render.GlyphCachingGraphics;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Shows an icon, typically a rendered formula, in a scroll pane without painting all of it on every repaint.
+ * <p>
+ * The icon is painted into tiles of {@link #TILE_SIZE} pixels at the current zoom, which are cached and reused
+ * when scrolling. Only the tiles intersecting the clip are painted, and the missing tiles of a repaint are
+ * rendered by a single pass over the icon. This keeps scrolling huge matrices or long <code>align</code> blocks
+ * smooth, as painting a {@link org.scilab.forge.jlatexmath.TeXIcon} walks its entire box tree no matter how
+ * small the clip is.
+ * <p>
+ * When a new icon of the same size is set, only the tiles it paints differently are dropped and repainted.
+ * jlatexmath does not report which part of a formula changed, so both icons are painted through
+ * {@link DrawingSignatureGraphics}, which walks the layout without rasterizing and hashes the drawing operations
+ * reaching every tile. Tiles with equal hashes are kept, e.g. everything but the line being edited. Like a label,
+ * the icon is shown leading and vertically centered.
+ * <p>
+ * While the user is typing ({@link #setIconWhileTyping(Icon, long)}), the preview is progressive if painting in
+ * full quality has become slower than a frame: every keystroke paints a draft of the visible area at
+ * {@link #DRAFT_SCALE}, i.e. a quarter of the pixels, and once no new icon arrived for
+ * {@link #FULL_QUALITY_DELAY_MS} the full quality tiles are painted. The latency from the keystroke until each
+ * phase reached the screen is recorded.
+ *
+ * @author Moritz Floeter
+ */
+public class TiledIconView extends JComponent implements Scrollable {
+
+    /**
+     * Width and height of a tile in pixels.
+     */
+    public static final int TILE_SIZE = 256;
+
+    /**
+     * Default upper bound for the memory of the cached tiles in bytes.
+     */
+    public static final long DEFAULT_CACHE_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Smallest zoom factor.
+     */
+    public static final double MIN_ZOOM = 0.25;
+
+    /**
+     * Largest zoom factor.
+     */
+    public static final double MAX_ZOOM = 8.0;
+
+    /**
+     * Time in milliseconds without a new icon after which a draft is replaced by the full quality preview.
+     */
+    public static final int FULL_QUALITY_DELAY_MS = 250;
+
+    /**
+     * Resolution of drafts relative to the full quality preview.
+     */
+    public static final double DRAFT_SCALE = 0.5;
+
+    /**
+     * Duration of a full quality render pass above which typing shows drafts, about one frame.
+     */
+    private static final long DRAFT_THRESHOLD_NANOS = 16_000_000;
+
+    private static final Logger LOGGER = Logger.getLogger(TiledIconView.class.getName());
+
+    private final Map<Long, BufferedImage> tiles;
+    /**
+     * Signatures of the drawing operations of the icon at the current zoom by tile, null if not recorded yet.
+     */
+    private Map<Long, Long> tileSignatures;
+    /**
+     * Buffer of the drafts, grown to the largest draft so far and reused by every keystroke.
+     */
+    private BufferedImage draftBuffer;
+    private final Timer fullQualityTimer;
+    private final LatencyStats draftLatency = new LatencyStats("Draft preview");
+    private final LatencyStats fullLatency = new LatencyStats("Full quality preview");
+    private Icon icon;
+    private double zoom = 1.0;
+    private long tilesRendered;
+    private long renderPasses;
+    private long lastPassNanos;
+    private boolean draft;
+    private long lastInputNanos;
+    /**
+     * Time of the keystroke whose result has not been painted yet, -1 if none.
+     */
+    private long pendingInputNanos = -1;
+
+    /**
+     * Instantiates a new view with the default cache size.
+     */
+    public TiledIconView() {
+        this(DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * Instantiates a new view.
+     *
+     * @param cacheBytes the upper bound for the memory of the cached tiles in bytes
+     */
+    public TiledIconView(long cacheBytes) {
+        final int maxTiles = (int) Math.max(1, cacheBytes / (4L * TILE_SIZE * TILE_SIZE));
+        this.tiles = new LinkedHashMap<Long, BufferedImage>(64, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, BufferedImage> eldest) {
+                return size() > maxTiles;
+            }
+        };
+        this.fullQualityTimer = new Timer(FULL_QUALITY_DELAY_MS, e -> {
+            draft = false;
+            tiles.clear();
+            pendingInputNanos = lastInputNanos;
+            repaint();
+        });
+        this.fullQualityTimer.setRepeats(false);
+        setOpaque(true);
+        setBackground(Color.WHITE);
+    }
+
+    /**
+     * Gets the icon.
+     *
+     * @return the icon or null
+     */
+    public Icon getIcon() {
+        return icon;
+    }
+
+    /**
+     * Sets the icon to show. If its size did not change, only the cached tiles it paints differently from the
+     * previous icon are dropped and repainted.
+     *
+     * @param newIcon the icon or null
+     */
+    public void setIcon(Icon newIcon) {
+        fullQualityTimer.stop();
+        pendingInputNanos = -1;
+        if (draft) {
+            // the draft is not kept as tiles, so all visible tiles are new
+            draft = false;
+            tiles.clear();
+        }
+        Icon oldIcon = icon;
+        Dimension oldSize = getPreferredSize();
+        Point oldOrigin = iconOrigin();
+        this.icon = newIcon;
+        if (oldIcon == null || newIcon == null || tiles.isEmpty() || !oldSize.equals(getPreferredSize())
+                || !oldOrigin.equals(iconOrigin())) {
+            // the layout changes or nothing is cached, everything is repainted anyway
+            tiles.clear();
+            tileSignatures = null;
+            revalidate();
+            repaint();
+            return;
+        }
+        Map<Long, Long> before = tileSignatures != null ? tileSignatures : recordSignatures(oldIcon);
+        Map<Long, Long> after = recordSignatures(newIcon);
+        tileSignatures = after;
+        Point origin = iconOrigin();
+        for (Iterator<Long> keys = tiles.keySet().iterator(); keys.hasNext(); ) {
+            Long key = keys.next();
+            if (!Objects.equals(before.get(key), after.get(key))) {
+                keys.remove();
+                int tileX = (int) (key >> 32);
+                int tileY = (int) (long) key;
+                repaint(origin.x + tileX * TILE_SIZE, origin.y + tileY * TILE_SIZE, TILE_SIZE, TILE_SIZE);
+            }
+        }
+    }
+
+    /**
+     * Sets an icon rendered from a keystroke. Shows a draft if painting in full quality is slow, otherwise the
+     * icon is shown like {@link #setIcon(Icon)}.
+     *
+     * @param newIcon    the icon
+     * @param inputNanos the time of the keystroke as returned by {@link System#nanoTime()}
+     */
+    public void setIconWhileTyping(Icon newIcon, long inputNanos) {
+        lastInputNanos = inputNanos;
+        if (!draft && lastPassNanos < DRAFT_THRESHOLD_NANOS) {
+            setIcon(newIcon);
+            pendingInputNanos = inputNanos;
+            return;
+        }
+        Dimension oldSize = getPreferredSize();
+        this.icon = newIcon;
+        this.draft = true;
+        tiles.clear();
+        tileSignatures = null;
+        pendingInputNanos = inputNanos;
+        if (!oldSize.equals(getPreferredSize())) {
+            revalidate();
+        }
+        repaint();
+        fullQualityTimer.restart();
+    }
+
+    /**
+     * Gets the latency from a keystroke until its draft was painted.
+     *
+     * @return the draft latency
+     */
+    public LatencyStats getDraftLatency() {
+        return draftLatency;
+    }
+
+    /**
+     * Gets the latency from a keystroke until its result was painted in full quality, including the delay until
+     * the user stopped typing if drafts were shown.
+     *
+     * @return the full quality latency
+     */
+    public LatencyStats getFullLatency() {
+        return fullLatency;
+    }
+
+    /**
+     * Gets the zoom factor.
+     *
+     * @return the zoom factor
+     */
+    public double getZoom() {
+        return zoom;
+    }
+
+    /**
+     * Sets the zoom factor. The tiles of the previous zoom are discarded.
+     *
+     * @param zoom the zoom factor, bounded by {@link #MIN_ZOOM} and {@link #MAX_ZOOM}
+     */
+    public void setZoom(double zoom) {
+        double bounded = Math.max(MIN_ZOOM, Math.min(MAX_ZOOM, zoom));
+        if (bounded != this.zoom) {
+            this.zoom = bounded;
+            tiles.clear();
+            tileSignatures = null;
+            revalidate();
+            repaint();
+        }
+    }
+
+    /**
+     * Gets the number of tiles rendered since the view was created.
+     *
+     * @return the number of rendered tiles
+     */
+    public long getTilesRendered() {
+        return tilesRendered;
+    }
+
+    /**
+     * Gets the number of times the icon was painted to render tiles.
+     *
+     * @return the number of render passes
+     */
+    public long getRenderPasses() {
+        return renderPasses;
+    }
+
+    private int scaledWidth() {
+        return icon == null ? 0 : (int) Math.ceil(icon.getIconWidth() * zoom);
+    }
+
+    private int scaledHeight() {
+        return icon == null ? 0 : (int) Math.ceil(icon.getIconHeight() * zoom);
+    }
+
+    private Point iconOrigin() {
+        return new Point(0, Math.max(0, (getHeight() - scaledHeight()) / 2));
+    }
+
+    /**
+     * Translates a rectangle of the component to the zoomed icon and clips it to the icon.
+     */
+    private Rectangle toIconSpace(Rectangle rectangle) {
+        Point origin = iconOrigin();
+        Rectangle translated = new Rectangle(rectangle.x - origin.x, rectangle.y - origin.y, rectangle.width,
+                rectangle.height);
+        return translated.intersection(new Rectangle(0, 0, scaledWidth(), scaledHeight()));
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+        if (icon == null) {
+            return;
+        }
+        Rectangle area = toIconSpace(clip);
+        if (area.isEmpty()) {
+            return;
+        }
+        Point origin = iconOrigin();
+        if (draft) {
+            paintDraft(g, area, origin);
+        } else {
+            for (Map.Entry<Long, BufferedImage> entry : ensureTiles(area).entrySet()) {
+                int tileX = (int) (entry.getKey() >> 32);
+                int tileY = (int) (long) entry.getKey();
+                g.drawImage(entry.getValue(), origin.x + tileX * TILE_SIZE, origin.y + tileY * TILE_SIZE, null);
+            }
+        }
+        if (pendingInputNanos >= 0) {
+            LatencyStats stats = draft ? draftLatency : fullLatency;
+            stats.record(System.nanoTime() - pendingInputNanos);
+            pendingInputNanos = -1;
+            LOGGER.log(Level.FINE, stats.toString());
+        }
+    }
+
+    /**
+     * Paints an area of the zoomed icon at draft resolution and scales it up without interpolation. The draft is
+     * not cached as tiles, the next keystroke replaces it anyway, but it is painted into the same buffer.
+     */
+    private void paintDraft(Graphics g, Rectangle area, Point origin) {
+        int width = Math.max(1, (int) Math.ceil(area.width * DRAFT_SCALE));
+        int height = Math.max(1, (int) Math.ceil(area.height * DRAFT_SCALE));
+        if (draftBuffer == null || draftBuffer.getWidth() < width || draftBuffer.getHeight() < height) {
+            int bufferWidth = draftBuffer == null ? width : Math.max(width, draftBuffer.getWidth());
+            int bufferHeight = draftBuffer == null ? height : Math.max(height, draftBuffer.getHeight());
+            draftBuffer = new BufferedImage(bufferWidth, bufferHeight, BufferedImage.TYPE_INT_RGB);
+        }
+        GlyphCachingGraphics draftGraphics = new GlyphCachingGraphics(draftBuffer.createGraphics());
+        // pinned, the icon turns antialiasing on for itself
+        RenderingHints hints = new RenderingHints(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        hints.put(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+        hints.put(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+        draftGraphics.pinRenderingHints(hints);
+        draftGraphics.clipRect(0, 0, width, height);
+        draftGraphics.setColor(getBackground());
+        draftGraphics.fillRect(0, 0, width, height);
+        draftGraphics.scale(DRAFT_SCALE, DRAFT_SCALE);
+        draftGraphics.translate(-area.x, -area.y);
+        draftGraphics.scale(zoom, zoom);
+        draftGraphics.setColor(getForeground());
+        icon.paintIcon(this, draftGraphics, 0, 0);
+        draftGraphics.dispose();
+        g.drawImage(draftBuffer, origin.x + area.x, origin.y + area.y, origin.x + area.x + area.width,
+                origin.y + area.y + area.height, 0, 0, width, height, null);
+    }
+
+    /**
+     * Makes sure all tiles intersecting an area of the zoomed icon are cached. The missing tiles are rendered by
+     * painting the icon once into their bounding box.
+     *
+     * @return the tiles intersecting the area by key
+     */
+    private Map<Long, BufferedImage> ensureTiles(Rectangle area) {
+        int firstX = area.x / TILE_SIZE;
+        int lastX = (area.x + area.width - 1) / TILE_SIZE;
+        int firstY = area.y / TILE_SIZE;
+        int lastY = (area.y + area.height - 1) / TILE_SIZE;
+        Map<Long, BufferedImage> result = new LinkedHashMap<>();
+        List<Long> missingKeys = new ArrayList<>();
+        Rectangle missing = null;
+        for (int tileY = firstY; tileY <= lastY; tileY++) {
+            for (int tileX = firstX; tileX <= lastX; tileX++) {
+                Long key = key(tileX, tileY);
+                BufferedImage tile = tiles.get(key);
+                result.put(key, tile);
+                if (tile == null) {
+                    missingKeys.add(key);
+                    Rectangle bounds = tileBounds(tileX, tileY);
+                    missing = missing == null ? bounds : missing.union(bounds);
+                }
+            }
+        }
+        if (missing != null) {
+            BufferedImage region = renderRegion(missing);
+            for (Long key : missingKeys) {
+                Rectangle bounds = tileBounds((int) (key >> 32), (int) (long) key);
+                // copied, so the region can be collected while the tiles stay cached
+                BufferedImage tile = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_RGB);
+                Graphics tileGraphics = tile.getGraphics();
+                tileGraphics.drawImage(region, missing.x - bounds.x, missing.y - bounds.y, null);
+                tileGraphics.dispose();
+                tiles.put(key, tile);
+                result.put(key, tile);
+                tilesRendered++;
+            }
+        }
+        return result;
+    }
+
+    private Rectangle tileBounds(int tileX, int tileY) {
+        int x = tileX * TILE_SIZE;
+        int y = tileY * TILE_SIZE;
+        return new Rectangle(x, y, Math.min(TILE_SIZE, scaledWidth() - x), Math.min(TILE_SIZE, scaledHeight() - y));
+    }
+
+    private BufferedImage renderRegion(Rectangle region) {
+        long start = System.nanoTime();
+        BufferedImage image = new BufferedImage(region.width, region.height, BufferedImage.TYPE_INT_RGB);
+        // large glyphs at high zoom levels are blitted from the glyph cache
+        Graphics2D g = new GlyphCachingGraphics(image.createGraphics());
+        g.setColor(getBackground());
+        g.fillRect(0, 0, region.width, region.height);
+        g.translate(-region.x, -region.y);
+        g.scale(zoom, zoom);
+        g.setColor(getForeground());
+        icon.paintIcon(this, g, 0, 0);
+        g.dispose();
+        renderPasses++;
+        lastPassNanos = System.nanoTime() - start;
+        return image;
+    }
+
+    /**
+     * Records the signatures of the drawing operations of an icon at the current zoom by tile. The icon is painted
+     * like {@link #renderRegion(Rectangle)} paints it, but nothing is rasterized.
+     */
+    private Map<Long, Long> recordSignatures(Icon icon) {
+        Map<Long, Long> signatures = new HashMap<>();
+        BufferedImage scratch = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = new DrawingSignatureGraphics(scratch.createGraphics(), signatures, TILE_SIZE);
+        g.scale(zoom, zoom);
+        g.setColor(getForeground());
+        icon.paintIcon(this, g, 0, 0);
+        g.dispose();
+        return signatures;
+    }
+
+    /**
+     * Gets the key of a tile.
+     *
+     * @param tileX the column of the tile
+     * @param tileY the row of the tile
+     * @return the key
+     */
+    static Long key(int tileX, int tileY) {
+        return ((long) tileX << 32) | (tileY & 0xffffffffL);
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        return new Dimension(scaledWidth(), scaledHeight());
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return 16;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return getParent() instanceof JViewport && getParent().getWidth() > getPreferredSize().width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return getParent() instanceof JViewport && getParent().getHeight() > getPreferredSize().height;
+    }
+}
@@ -0,0 +1,195 @@
+package de.moritzf.latexhelper.recognition;
+
+import de.moritzf.latexhelper.util.ImageFileUtil;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the regions of an image that contain separate formulas, e.g. on a scanned page or a slide screenshot.
+ * The segmentation uses projection profiles:
+ * <ol>
+ * <li>rows containing ink are grouped into bands, the tallest band is about the height of one formula line,</li>
+ * <li>if all ink spans less than {@link #MIN_LINES_TO_SEGMENT} formula lines, the image holds a single formula
+ * and is returned as one region,</li>
+ * <li>otherwise bands closer to each other than the tallest band are merged, which keeps stacked limits,
+ * fractions, sub- and superscripts and tightly set multi-line formulas together,</li>
+ * <li>each band is split at horizontal gaps wider than twice its height (e.g. columns of a slide),</li>
+ * <li>regions too small to contain a formula are dropped.</li>
+ * </ol>
+ * The regions are returned in reading order: top to bottom, left to right within a band.
+ *
+ * @author Moritz Floeter
+ */
+public class FormulaSegmenter {
+
+    /**
+     * Default minimum height in pixels of a region.
+     */
+    public static final int DEFAULT_MIN_REGION_HEIGHT = 4;
+
+    /**
+     * Default minimum number of pixels of a region.
+     */
+    public static final int DEFAULT_MIN_REGION_AREA = 64;
+
+    /**
+     * Minimum height of the ink of an image, in multiples of the tallest band, for it to be segmented.
+     */
+    public static final int MIN_LINES_TO_SEGMENT = 3;
+
+    private final int inkThreshold;
+    private final int minRegionHeight;
+    private final int minRegionArea;
+
+    /**
+     * Instantiates a new segmenter with default settings.
+     */
+    public FormulaSegmenter() {
+        this(ImageFileUtil.INK_THRESHOLD, DEFAULT_MIN_REGION_HEIGHT, DEFAULT_MIN_REGION_AREA);
+    }
+
+    /**
+     * Instantiates a new segmenter.
+     *
+     * @param inkThreshold    the luminance (0 - 255) below which a pixel counts as ink
+     * @param minRegionHeight the minimum height in pixels of a region
+     * @param minRegionArea   the minimum number of pixels of a region
+     */
+    public FormulaSegmenter(int inkThreshold, int minRegionHeight, int minRegionArea) {
+        this.inkThreshold = inkThreshold;
+        this.minRegionHeight = minRegionHeight;
+        this.minRegionArea = minRegionArea;
+    }
+
+    /**
+     * Finds the formula regions of an image.
+     *
+     * @param image the image, possibly subsampled
+     * @return the regions in reading order, in coordinates of the given image
+     */
+    public List<Rectangle> segment(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean[] ink = new boolean[width * height];
+        int[] rowProfile = new int[height];
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                if (ImageFileUtil.luminance(row[x]) < inkThreshold) {
+                    ink[y * width + x] = true;
+                    rowProfile[y]++;
+                }
+            }
+        }
+
+        List<int[]> bands = runs(rowProfile, 0, height);
+        List<Rectangle> regions = new ArrayList<>();
+        if (bands.isEmpty()) {
+            return regions;
+        }
+        int lineHeight = maxLength(bands);
+        if (bands.get(bands.size() - 1)[1] - bands.get(0)[0] < MIN_LINES_TO_SEGMENT * lineHeight) {
+            // a single formula, e.g. a sum with limits above and below, must not be cut into its parts
+            List<int[]> columns = runs(columnProfile(ink, width, 0, height), 0, width);
+            addRegion(regions, tighten(ink, width, columns.get(0)[0], columns.get(columns.size() - 1)[1], 0,
+                    height));
+            return regions;
+        }
+        bands = mergeCloseRuns(bands, lineHeight);
+
+        for (int[] band : bands) {
+            int bandHeight = band[1] - band[0];
+            int[] columnProfile = columnProfile(ink, width, band[0], band[1]);
+            for (int[] column : mergeCloseRuns(runs(columnProfile, 0, width), 2 * bandHeight)) {
+                addRegion(regions, tighten(ink, width, column[0], column[1], band[0], band[1]));
+            }
+        }
+        return regions;
+    }
+
+    private void addRegion(List<Rectangle> regions, Rectangle region) {
+        if (region.height >= minRegionHeight && region.width * region.height >= minRegionArea) {
+            regions.add(region);
+        }
+    }
+
+    /**
+     * Counts the ink of every column within the rows [y0, y1).
+     */
+    private static int[] columnProfile(boolean[] ink, int width, int y0, int y1) {
+        int[] profile = new int[width];
+        for (int y = y0; y < y1; y++) {
+            for (int x = 0; x < width; x++) {
+                if (ink[y * width + x]) {
+                    profile[x]++;
+                }
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Finds the runs of non zero entries of a profile as [start, end) pairs.
+     */
+    private static List<int[]> runs(int[] profile, int from, int to) {
+        List<int[]> runs = new ArrayList<>();
+        int start = -1;
+        for (int i = from; i < to; i++) {
+            if (profile[i] > 0 && start < 0) {
+                start = i;
+            } else if (profile[i] == 0 && start >= 0) {
+                runs.add(new int[]{start, i});
+                start = -1;
+            }
+        }
+        if (start >= 0) {
+            runs.add(new int[]{start, to});
+        }
+        return runs;
+    }
+
+    /**
+     * Merges runs whose gap is smaller than the given distance.
+     */
+    private static List<int[]> mergeCloseRuns(List<int[]> runs, int maxGap) {
+        List<int[]> merged = new ArrayList<>();
+        for (int[] run : runs) {
+            if (!merged.isEmpty() && run[0] - merged.get(merged.size() - 1)[1] < maxGap) {
+                merged.get(merged.size() - 1)[1] = run[1];
+            } else {
+                merged.add(new int[]{run[0], run[1]});
+            }
+        }
+        return merged;
+    }
+
+    private static int maxLength(List<int[]> runs) {
+        int max = 0;
+        for (int[] run : runs) {
+            max = Math.max(max, run[1] - run[0]);
+        }
+        return max;
+    }
+
+    /**
+     * Shrinks the given area to the rows actually containing ink, the columns are already tight.
+     */
+    private static Rectangle tighten(boolean[] ink, int width, int x0, int x1, int y0, int y1) {
+        int top = y1;
+        int bottom = y0 - 1;
+        for (int y = y0; y < y1; y++) {
+            for (int x = x0; x < x1; x++) {
+                if (ink[y * width + x]) {
+                    top = Math.min(top, y);
+                    bottom = y;
+                    break;
+                }
+            }
+        }
+        return new Rectangle(x0, top, x1 - x0, Math.max(0, bottom - top + 1));
+    }
+}
@@ -0,0 +1,354 @@
+package de.moritzf.latexhelper.recognition;
+
+import de.moritzf.latexhelper.util.ImageFileUtil;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Prepares images for OCR. Screenshots and rendered pdf pages usually contain a lot of whitespace and are far
+ * larger than needed, which slows down recognition and the upload to MathPix. The preprocessor
+ * <ol>
+ * <li>converts the image to grayscale (inverting dark backgrounds) and picks an ink threshold with Otsu's
+ * method,</li>
+ * <li>crops it to the bounds of the ink plus a small padding,</li>
+ * <li>estimates the glyph height as the median height of the connected ink components,</li>
+ * <li>scales the image so that glyphs have the target height,</li>
+ * <li>and optionally binarizes it.</li>
+ * </ol>
+ * The duration of each step is recorded in the returned {@link PreprocessedImage}.
+ *
+ * @author Moritz Floeter
+ */
+public class ImagePreprocessor {
+
+    private static final Logger LOGGER = Logger.getLogger(ImagePreprocessor.class.getName());
+
+    /**
+     * Default height in pixels that glyphs are scaled to.
+     */
+    public static final int DEFAULT_TARGET_GLYPH_HEIGHT = 32;
+
+    /**
+     * Default maximum factor by which small glyphs are enlarged.
+     */
+    public static final double DEFAULT_MAX_UPSCALE = 2.0;
+
+    /**
+     * Components smaller than this are treated as noise when estimating the glyph height.
+     */
+    private static final int MIN_COMPONENT_HEIGHT = 3;
+
+    /**
+     * Enough components to get a stable median, larger images are not fully labeled.
+     */
+    private static final int MAX_SAMPLED_COMPONENTS = 2000;
+
+    /**
+     * Scale factors this close to 1 are not worth resampling.
+     */
+    private static final double SCALE_TOLERANCE = 0.1;
+
+    private final int targetGlyphHeight;
+    private final double maxUpscale;
+    private final int padding;
+    private final boolean binarize;
+
+    /**
+     * Instantiates a new preprocessor with default settings that binarizes the result.
+     */
+    public ImagePreprocessor() {
+        this(DEFAULT_TARGET_GLYPH_HEIGHT, DEFAULT_MAX_UPSCALE, 8, true);
+    }
+
+    /**
+     * Instantiates a new preprocessor.
+     *
+     * @param targetGlyphHeight the height in pixels that glyphs are scaled to
+     * @param maxUpscale        the maximum factor by which small glyphs are enlarged
+     * @param padding           the white border in pixels kept around the ink
+     * @param binarize          whether the result is reduced to black and white
+     */
+    public ImagePreprocessor(int targetGlyphHeight, double maxUpscale, int padding, boolean binarize) {
+        this.targetGlyphHeight = targetGlyphHeight;
+        this.maxUpscale = maxUpscale;
+        this.padding = padding;
+        this.binarize = binarize;
+    }
+
+    /**
+     * Preprocesses an image. Images without any ink are returned unchanged.
+     *
+     * @param source the image
+     * @return the preprocessed image
+     */
+    public PreprocessedImage process(BufferedImage source) {
+        Map<String, Long> steps = new LinkedHashMap<>();
+        int width = source.getWidth();
+        int height = source.getHeight();
+
+        long start = System.nanoTime();
+        byte[] gray = toGray(source);
+        int threshold = otsuThreshold(gray);
+        start = record(steps, "grayscale", start);
+
+        Rectangle bounds = inkBounds(gray, width, height, threshold);
+        if (bounds == null) {
+            record(steps, "crop", start);
+            return new PreprocessedImage(source, new Rectangle(0, 0, width, height), 1.0, steps);
+        }
+        bounds.grow(padding, padding);
+        bounds = bounds.intersection(new Rectangle(0, 0, width, height));
+        byte[] cropped = crop(gray, width, bounds);
+        start = record(steps, "crop", start);
+
+        double glyphHeight = medianGlyphHeight(cropped, bounds.width, bounds.height, threshold);
+        double scale = glyphHeight > 0 ? targetGlyphHeight / glyphHeight : 1.0;
+        scale = Math.min(scale, maxUpscale);
+        start = record(steps, "estimate", start);
+
+        int scaledWidth = bounds.width;
+        int scaledHeight = bounds.height;
+        byte[] scaled = cropped;
+        if (Math.abs(scale - 1.0) > SCALE_TOLERANCE) {
+            scaledWidth = Math.max(1, (int) Math.round(bounds.width * scale));
+            scaledHeight = Math.max(1, (int) Math.round(bounds.height * scale));
+            scaled = resample(cropped, bounds.width, bounds.height, scaledWidth, scaledHeight);
+        } else {
+            scale = 1.0;
+        }
+        start = record(steps, "scale", start);
+
+        if (binarize) {
+            // downscaled thin strokes are lighter than the original ink, so the threshold is moved towards white
+            int scaledThreshold = scale < 1.0 ? (threshold + 255) / 2 : threshold;
+            for (int i = 0; i < scaled.length; i++) {
+                scaled[i] = (scaled[i] & 0xFF) < scaledThreshold ? 0 : (byte) 0xFF;
+            }
+            record(steps, "binarize", start);
+        }
+
+        BufferedImage result = new BufferedImage(scaledWidth, scaledHeight, BufferedImage.TYPE_BYTE_GRAY);
+        byte[] target = ((DataBufferByte) result.getRaster().getDataBuffer()).getData();
+        System.arraycopy(scaled, 0, target, 0, scaled.length);
+
+        PreprocessedImage preprocessed = new PreprocessedImage(result, bounds, scale, steps);
+        LOGGER.log(Level.INFO, "Preprocessed " + width + "x" + height + " image: " + preprocessed);
+        return preprocessed;
+    }
+
+    private static long record(Map<String, Long> steps, String step, long start) {
+        long now = System.nanoTime();
+        steps.put(step, now - start);
+        return now;
+    }
+
+    /**
+     * Converts the image to row major luminance values. Images with a dark background are inverted so that
+     * ink is always darker than the background.
+     */
+    private static byte[] toGray(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        byte[] gray = new byte[width * height];
+        int[] row = new int[width];
+        long sum = 0;
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                int luminance = ImageFileUtil.luminance(row[x]);
+                gray[y * width + x] = (byte) luminance;
+                sum += luminance;
+            }
+        }
+        if (gray.length > 0 && sum / gray.length < 128) {
+            for (int i = 0; i < gray.length; i++) {
+                gray[i] = (byte) (255 - (gray[i] & 0xFF));
+            }
+        }
+        return gray;
+    }
+
+    /**
+     * Computes the threshold that best separates ink and background using Otsu's method.
+     */
+    private static int otsuThreshold(byte[] gray) {
+        long[] histogram = new long[256];
+        for (byte value : gray) {
+            histogram[value & 0xFF]++;
+        }
+        long total = gray.length;
+        double sumAll = 0;
+        for (int i = 0; i < 256; i++) {
+            sumAll += i * (double) histogram[i];
+        }
+
+        // ink is the dark class, the background the light class
+        double sumInk = 0;
+        long weightInk = 0;
+        double bestVariance = -1;
+        int threshold = 128;
+        for (int i = 0; i < 256; i++) {
+            weightInk += histogram[i];
+            if (weightInk == 0) {
+                continue;
+            }
+            long weightBackground = total - weightInk;
+            if (weightBackground == 0) {
+                break;
+            }
+            sumInk += i * (double) histogram[i];
+            double meanInk = sumInk / weightInk;
+            double meanBackground = (sumAll - sumInk) / weightBackground;
+            double variance = (double) weightInk * weightBackground
+                    * (meanInk - meanBackground) * (meanInk - meanBackground);
+            if (variance > bestVariance) {
+                bestVariance = variance;
+                threshold = i + 1;
+            }
+        }
+        return threshold;
+    }
+
+    private static Rectangle inkBounds(byte[] gray, int width, int height, int threshold) {
+        int minX = width;
+        int minY = height;
+        int maxX = -1;
+        int maxY = -1;
+        for (int y = 0; y < height; y++) {
+            int offset = y * width;
+            for (int x = 0; x < width; x++) {
+                if ((gray[offset + x] & 0xFF) < threshold) {
+                    minX = Math.min(minX, x);
+                    maxX = Math.max(maxX, x);
+                    minY = Math.min(minY, y);
+                    maxY = y;
+                }
+            }
+        }
+        if (maxX < 0) {
+            return null;
+        }
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    private static byte[] crop(byte[] gray, int width, Rectangle bounds) {
+        byte[] cropped = new byte[bounds.width * bounds.height];
+        for (int y = 0; y < bounds.height; y++) {
+            System.arraycopy(gray, (bounds.y + y) * width + bounds.x, cropped, y * bounds.width, bounds.width);
+        }
+        return cropped;
+    }
+
+    /**
+     * Estimates the glyph height as the median height of the connected ink components (8-connectivity).
+     *
+     * @return the median height or 0 if there are no components of relevant size
+     */
+    private static double medianGlyphHeight(byte[] gray, int width, int height, int threshold) {
+        boolean[] visited = new boolean[gray.length];
+        int[] stack = new int[1024];
+        int[] heights = new int[64];
+        int count = 0;
+        for (int start = 0; start < gray.length && count < MAX_SAMPLED_COMPONENTS; start++) {
+            if (visited[start] || (gray[start] & 0xFF) >= threshold) {
+                continue;
+            }
+            int minY = start / width;
+            int maxY = minY;
+            int size = 0;
+            stack[size++] = start;
+            visited[start] = true;
+            while (size > 0) {
+                int pixel = stack[--size];
+                int x = pixel % width;
+                int y = pixel / width;
+                minY = Math.min(minY, y);
+                maxY = Math.max(maxY, y);
+                for (int dy = -1; dy <= 1; dy++) {
+                    int ny = y + dy;
+                    if (ny < 0 || ny >= height) {
+                        continue;
+                    }
+                    for (int dx = -1; dx <= 1; dx++) {
+                        int nx = x + dx;
+                        if (nx < 0 || nx >= width) {
+                            continue;
+                        }
+                        int neighbour = ny * width + nx;
+                        if (!visited[neighbour] && (gray[neighbour] & 0xFF) < threshold) {
+                            visited[neighbour] = true;
+                            if (size == stack.length) {
+                                stack = Arrays.copyOf(stack, stack.length * 2);
+                            }
+                            stack[size++] = neighbour;
+                        }
+                    }
+                }
+            }
+            int componentHeight = maxY - minY + 1;
+            if (componentHeight >= MIN_COMPONENT_HEIGHT) {
+                if (count == heights.length) {
+                    heights = Arrays.copyOf(heights, heights.length * 2);
+                }
+                heights[count++] = componentHeight;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        Arrays.sort(heights, 0, count);
+        return heights[count / 2];
+    }
+
+    /**
+     * Resamples the image. Downscaling averages all source pixels covered by a target pixel, upscaling
+     * interpolates bilinearly.
+     */
+    private static byte[] resample(byte[] source, int width, int height, int targetWidth, int targetHeight) {
+        byte[] target = new byte[targetWidth * targetHeight];
+        double scaleX = (double) width / targetWidth;
+        double scaleY = (double) height / targetHeight;
+        if (scaleX >= 1 && scaleY >= 1) {
+            for (int ty = 0; ty < targetHeight; ty++) {
+                int y0 = (int) (ty * scaleY);
+                int y1 = Math.max(y0 + 1, Math.min(height, (int) ((ty + 1) * scaleY)));
+                for (int tx = 0; tx < targetWidth; tx++) {
+                    int x0 = (int) (tx * scaleX);
+                    int x1 = Math.max(x0 + 1, Math.min(width, (int) ((tx + 1) * scaleX)));
+                    int sum = 0;
+                    for (int y = y0; y < y1; y++) {
+                        int offset = y * width;
+                        for (int x = x0; x < x1; x++) {
+                            sum += source[offset + x] & 0xFF;
+                        }
+                    }
+                    target[ty * targetWidth + tx] = (byte) (sum / ((y1 - y0) * (x1 - x0)));
+                }
+            }
+        } else {
+            for (int ty = 0; ty < targetHeight; ty++) {
+                double sy = Math.max(0, (ty + 0.5) * scaleY - 0.5);
+                int y0 = Math.min(height - 1, (int) sy);
+                int y1 = Math.min(height - 1, y0 + 1);
+                double fy = sy - y0;
+                for (int tx = 0; tx < targetWidth; tx++) {
+                    double sx = Math.max(0, (tx + 0.5) * scaleX - 0.5);
+                    int x0 = Math.min(width - 1, (int) sx);
+                    int x1 = Math.min(width - 1, x0 + 1);
+                    double fx = sx - x0;
+                    double top = (source[y0 * width + x0] & 0xFF) * (1 - fx) + (source[y0 * width + x1] & 0xFF) * fx;
+                    double bottom = (source[y1 * width + x0] & 0xFF) * (1 - fx) + (source[y1 * width + x1] & 0xFF) * fx;
+                    target[ty * targetWidth + tx] = (byte) Math.round(top * (1 - fy) + bottom * fy);
+                }
+            }
+        }
+        return target;
+    }
+}
@@ -0,0 +1,106 @@
+package de.moritzf.latexhelper.recognition;
+
+/**
+ * The result of importing a single file or image. Holds the recovered LaTeX expression together with the
+ * strategy that delivered it.
+ *
+ * @author Moritz Floeter
+ */
+public class ImportResult {
+
+    private final String source;
+    private final String latex;
+    private final RecognitionStrategy strategy;
+    private final double confidence;
+
+    /**
+     * Instantiates a new import result.
+     *
+     * @param source   a description of the imported source (e.g. the file name)
+     * @param latex    the recovered latex expression, may be null
+     * @param strategy the strategy that delivered the expression
+     */
+    public ImportResult(String source, String latex, RecognitionStrategy strategy) {
+        this(source, latex, strategy, latex == null ? 0 : 1.0);
+    }
+
+    /**
+     * Instantiates a new import result.
+     *
+     * @param source     a description of the imported source (e.g. the file name)
+     * @param latex      the recovered latex expression, may be null
+     * @param strategy   the strategy that delivered the expression
+     * @param confidence the confidence in the result as value between 0 and 1
+     */
+    public ImportResult(String source, String latex, RecognitionStrategy strategy, double confidence) {
+        this.source = source;
+        this.latex = latex;
+        this.strategy = strategy;
+        this.confidence = confidence;
+    }
+
+    /**
+     * Creates a result for a source from which no expression could be recovered.
+     *
+     * @param source the source
+     * @return the import result
+     */
+    public static ImportResult failed(String source) {
+        return new ImportResult(source, null, RecognitionStrategy.NONE);
+    }
+
+    /**
+     * Gets the description of the imported source.
+     *
+     * @return the source
+     */
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Gets the recovered latex expression.
+     *
+     * @return the latex expression or null if nothing was recovered
+     */
+    public String getLatex() {
+        return latex;
+    }
+
+    /**
+     * Gets the strategy that delivered the expression.
+     *
+     * @return the strategy
+     */
+    public RecognitionStrategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Gets the confidence in the result.
+     *
+     * @return the confidence between 0 and 1
+     */
+    public double getConfidence() {
+        return confidence;
+    }
+
+    /**
+     * Checks if an expression was recovered.
+     *
+     * @return true, if an expression was recovered
+     */
+    public boolean isSuccessful() {
+        return latex != null && !latex.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "ImportResult{" +
+                "source='" + source + '\'' +
+                ", latex='" + latex + '\'' +
+                ", strategy=" + strategy +
+                ", confidence=" + confidence +
+                '}';
+    }
+}
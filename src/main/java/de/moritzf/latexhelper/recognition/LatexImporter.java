@@ -0,0 +1,556 @@
+package de.moritzf.latexhelper.recognition;
+
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.parser.PdfTextExtractor;
+import de.moritzf.latexhelper.util.DaemonThreadFactory;
+import de.moritzf.latexhelper.util.FileType;
+import de.moritzf.latexhelper.util.ImageFileUtil;
+import de.moritzf.latexhelper.util.PngTextUtil;
+import de.moritzf.latexhelper.util.RegionImageReader;
+import de.moritzf.latexhelper.util.TypedFile;
+import mathpix.MathPix;
+import mathpix.MathPixException;
+import mathpix.MathPixQueue;
+import mathpix.MathPixSettings;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Recovers LaTeX expressions from image and pdf files. Images are first checked for the expression stored in a png
+ * text chunk or hidden by steganography, pdf files for the expression stored in their header or as hidden text. If
+ * that fails, OCR is applied using MathPix (if configured) and MathOCR, see {@link RecognizerChain}.
+ * <p>
+ * Multiple files are imported in parallel on a bounded thread pool while the results keep the order of the
+ * files passed in. Images containing several formulas (e.g. scanned pages) are split into formula regions by a
+ * {@link FormulaSegmenter}.
+ * <p>
+ * If MathPix is configured but can not be reached during a bulk import, the images without a confident result are
+ * handed to the {@link MathPixQueue}, which spools them until MathPix is reachable again. Their results are stored
+ * in the cache, so importing the files again gets them without OCR.
+ *
+ * @author Moritz Floeter
+ */
+public class LatexImporter {
+
+    private static final Logger LOGGER = Logger.getLogger(LatexImporter.class.getName());
+
+    /**
+     * Pattern for the hidden text that pdf files rendered by this tool contain.
+     */
+    static final Pattern HIDDEN_TEXT_PATTERN =
+            Pattern.compile("\\\\##latex##\\\\(?<latex>.*?)\\\\##latex##\\\\");
+
+    /**
+     * Images up to this size are decoded completely, larger ones region by region.
+     */
+    public static final long FULL_DECODE_PIXELS = 16_000_000;
+
+    /**
+     * Maximum number of pixels of the subsampled image used to find formula regions.
+     */
+    public static final long DETECTION_PIXELS = 2_000_000;
+
+    /**
+     * Maximum number of pixels of a single formula region, larger regions are subsampled.
+     */
+    public static final long MAX_REGION_PIXELS = 4_000_000;
+
+    /**
+     * White border in pixels kept around a formula region.
+     */
+    private static final int REGION_PADDING = 4;
+
+    /**
+     * Longest hidden text that is looked for in the top rows of large images.
+     */
+    private static final int MAX_HIDDEN_TEXT_BYTES = 64 * 1024;
+
+    /**
+     * True on the threads of an import pool, see {@link #asImportWorker(Callable)}.
+     */
+    private static final ThreadLocal<Boolean> IMPORT_WORKER = ThreadLocal.withInitial(() -> false);
+
+    /**
+     * Cache keys of the images handed to the MathPix queue whose result has not arrived yet.
+     */
+    private static final Set<String> QUEUED_KEYS = ConcurrentHashMap.newKeySet();
+
+    private final int parallelism;
+    private final RecognizerChain recognizerChain;
+    private final RecognitionCache cache;
+    private final FormulaSegmenter segmenter;
+
+    /**
+     * Instantiates a new importer that uses one thread per available processor for bulk imports.
+     */
+    public LatexImporter() {
+        this(Runtime.getRuntime().availableProcessors(), RecognizerChain.createDefault(),
+                RecognitionCache.getDefault(), new FormulaSegmenter());
+        if (MathPixSettings.isConfigured()) {
+            // results of images queued by an earlier run may be waiting in the spool
+            listenForQueuedResults();
+        }
+    }
+
+    /**
+     * Instantiates a new importer.
+     *
+     * @param parallelism     the maximum number of files that are imported at the same time
+     * @param recognizerChain the chain used to recognize expressions in images
+     * @param cache           the cache for OCR results or null to disable caching
+     * @param segmenter       the segmenter finding multiple formulas in one image or null to treat every
+     *                        image as a single formula
+     */
+    public LatexImporter(int parallelism, RecognizerChain recognizerChain, RecognitionCache cache,
+                         FormulaSegmenter segmenter) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1 but was " + parallelism);
+        }
+        this.parallelism = parallelism;
+        this.recognizerChain = recognizerChain;
+        this.cache = cache;
+        this.segmenter = segmenter;
+    }
+
+    /**
+     * Imports all given files. The files are processed in parallel, the results are returned in the order of
+     * the given list. Files that can not be read or recognized yield a failed result.
+     *
+     * @param files the files
+     * @return the import results, one per file
+     */
+    public List<ImportResult> importFiles(List<File> files) {
+        if (files.isEmpty()) {
+            return Collections.emptyList();
+        } else if (files.size() == 1) {
+            return Collections.singletonList(importFile(files.get(0)));
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, files.size()),
+                new DaemonThreadFactory("latex-import"));
+        List<ImportResult> results = new ArrayList<>(files.size());
+        try {
+            List<Future<ImportResult>> futures = new ArrayList<>(files.size());
+            for (File file : files) {
+                futures.add(executor.submit(asImportWorker(() -> importFile(file))));
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    results.add(futures.get(i).get());
+                } catch (ExecutionException e) {
+                    LOGGER.log(Level.SEVERE, "Could not import " + files.get(i), e.getCause());
+                    results.add(ImportResult.failed(files.get(i).getName()));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            LOGGER.log(Level.WARNING, "Import was interrupted");
+        } finally {
+            executor.shutdownNow();
+        }
+
+        return results;
+    }
+
+    /**
+     * Imports a single image or pdf file.
+     *
+     * @param file the file
+     * @return the import result
+     */
+    public ImportResult importFile(File file) {
+        ImportResult result = ImportResult.failed(file.getName());
+        try {
+            TypedFile typedFile = TypedFile.open(file);
+            if (typedFile.isImage()) {
+                result = importImageFile(typedFile);
+            } else if (typedFile.isPdf()) {
+                result = importPdf(file);
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.SEVERE, "Could not read file", e);
+        }
+        LOGGER.log(Level.INFO, "Imported " + file.getName() + " using strategy " + result.getStrategy());
+        return result;
+    }
+
+    /**
+     * Extract a latex expression from a given pdf file.
+     *
+     * @param pdfFile the pdf file
+     * @return the import result
+     */
+    public ImportResult importPdf(File pdfFile) {
+        LOGGER.log(Level.INFO, "Extracting text from pdf");
+        PdfReader reader = null;
+        String latex = null;
+        RecognitionStrategy strategy = RecognitionStrategy.NONE;
+        try {
+            // partial mode only reads the cross reference table, the info dictionary and page 1 are loaded
+            // on demand
+            reader = new PdfReader(pdfFile.getAbsolutePath(), null, true);
+            latex = reader.getInfo().get("latex");
+            if (latex != null && !latex.isEmpty()) {
+                strategy = RecognitionStrategy.PDF_HEADER;
+            } else {
+                String text = PdfTextExtractor.getTextFromPage(reader, 1);
+                LOGGER.log(Level.INFO, text);
+                Matcher matcher = HIDDEN_TEXT_PATTERN.matcher(text);
+                if (matcher.find()) {
+                    latex = matcher.group("latex");
+                    strategy = RecognitionStrategy.PDF_HIDDEN_TEXT;
+                }
+
+            }
+        } catch (Exception e) {
+            LOGGER.log(Level.SEVERE, "Could not read pdf. Perhaps the file used was not a valid pdf file.");
+        } finally {
+            if (reader != null) {
+                reader.close();
+            }
+        }
+
+        if (latex == null || latex.isEmpty()) {
+            return importRenderedPdf(pdfFile);
+        } else {
+            LOGGER.log(Level.INFO, "Got result from latex attribute in pdf header");
+        }
+
+        return new ImportResult(pdfFile.getName(), latex, strategy);
+    }
+
+    /**
+     * Extracts the formulas of all pages of a pdf file, see {@link PdfFormulaExtractor}.
+     *
+     * @param pdfFile the pdf file
+     * @return the formulas ordered by page
+     * @throws IOException if the document can not be read
+     */
+    public List<PageFormula> importAllPages(File pdfFile) throws IOException {
+        return new PdfFormulaExtractor(this, parallelism).extract(pdfFile);
+    }
+
+    /**
+     * Renders the pdf and recognizes the expression in the rendered image. Consults the cache with the content
+     * of the file before rendering.
+     */
+    private ImportResult importRenderedPdf(File pdfFile) {
+        String key = null;
+        if (cache != null) {
+            try {
+                key = RecognitionCache.keyOf(pdfFile);
+                RecognitionResult cached = getCached(key);
+                if (cached != null) {
+                    LOGGER.log(Level.INFO, "Got cached " + cached.getStrategy() + " result for " + pdfFile.getName());
+                    return new ImportResult(pdfFile.getName(), cached.getLatex(), cached.getStrategy(),
+                            cached.getConfidence());
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not compute cache key for " + pdfFile, e);
+            }
+        }
+
+        BufferedImage image = ImageFileUtil.pdfToImage(pdfFile);
+        if (image == null) {
+            return ImportResult.failed(pdfFile.getName());
+        }
+        ImportResult result = importImage(pdfFile.getName(), image);
+        if (key != null && result.isSuccessful()) {
+            putCached(key, new RecognitionResult(result.getLatex(), result.getStrategy(), result.getConfidence()));
+        }
+        return result;
+    }
+
+    /**
+     * Imports an image file. Images up to {@link #FULL_DECODE_PIXELS} pixels are decoded once and passed to
+     * {@link #importImage(String, BufferedImage)}. Larger images are never decoded at full resolution: the
+     * steganography check only reads the top rows, the segmentation works on a subsampled copy and every region
+     * is read on its own.
+     */
+    private ImportResult importImageFile(TypedFile typedFile) throws IOException {
+        String source = typedFile.getFile().getName();
+        if (typedFile.getType() == FileType.PNG) {
+            String latex = PngTextUtil.read(typedFile.getFile(), PngTextUtil.LATEX_KEYWORD);
+            if (latex != null && !latex.isEmpty()) {
+                return new ImportResult(source, latex, RecognitionStrategy.PNG_TEXT);
+            }
+        }
+        try (RegionImageReader reader = RegionImageReader.open(typedFile.getFile())) {
+            if (reader == null) {
+                LOGGER.log(Level.WARNING, "No decoder available for " + typedFile.getType() + " file " + source);
+                return ImportResult.failed(source);
+            }
+            if (reader.getPixelCount() <= FULL_DECODE_PIXELS || segmenter == null) {
+                return importImage(source, reader.read());
+            }
+
+            LOGGER.log(Level.INFO, "Reading " + reader.getWidth() + "x" + reader.getHeight() + " image " + source
+                    + " region by region");
+            // the hidden text is stored in the first bytes of the raster, i.e. the top rows of the image
+            int hiddenTextRows = (int) Math.min(reader.getHeight(),
+                    (MAX_HIDDEN_TEXT_BYTES * 8L + 32) / (reader.getWidth() * 3L) + 1);
+            RecognitionResult local = recognizerChain.recognizeLocally(
+                    reader.read(new Rectangle(0, 0, reader.getWidth(), hiddenTextRows), 1));
+            if (local != null) {
+                return new ImportResult(source, local.getLatex(), local.getStrategy(), local.getConfidence());
+            }
+
+            Rectangle full = new Rectangle(0, 0, reader.getWidth(), reader.getHeight());
+            int subsampling = RegionImageReader.subsamplingFor(full, DETECTION_PIXELS);
+            List<Rectangle> regions = new ArrayList<>();
+            for (Rectangle region : segmenter.segment(reader.read(full, subsampling))) {
+                Rectangle scaled = new Rectangle(region.x * subsampling, region.y * subsampling,
+                        region.width * subsampling, region.height * subsampling);
+                // the subsampled image may have missed up to one step of ink on every side
+                scaled.grow(subsampling + REGION_PADDING, subsampling + REGION_PADDING);
+                regions.add(scaled.intersection(full));
+            }
+            LOGGER.log(Level.INFO, "Found " + regions.size() + " formula regions in " + source);
+
+            List<BufferedImage> regionImages = new ArrayList<>(regions.size());
+            for (Rectangle region : regions) {
+                regionImages.add(reader.read(region, RegionImageReader.subsamplingFor(region, MAX_REGION_PIXELS)));
+            }
+            return recognizeRegions(source, regionImages);
+        }
+    }
+
+    /**
+     * Extract a latex expression from an image. If the local recognizers of the chain do not deliver a result,
+     * the image is segmented and each formula region is recognized on its own in parallel. The results of the
+     * regions are joined in reading order, separated by blank lines.
+     *
+     * @param source a description of the image source used for logging and the result
+     * @param image  the image
+     * @return the import result
+     */
+    public ImportResult importImage(String source, BufferedImage image) {
+        LOGGER.log(Level.INFO, "Extracting text from image");
+        if (image == null) {
+            return ImportResult.failed(source);
+        }
+
+        RecognitionResult local = recognizerChain.recognizeLocally(image);
+        if (local != null) {
+            return new ImportResult(source, local.getLatex(), local.getStrategy(), local.getConfidence());
+        }
+
+        if (segmenter != null) {
+            List<Rectangle> regions = segmenter.segment(image);
+            if (regions.size() > 1) {
+                LOGGER.log(Level.INFO, "Found " + regions.size() + " formula regions in " + source);
+                List<BufferedImage> regionImages = new ArrayList<>(regions.size());
+                Rectangle full = new Rectangle(0, 0, image.getWidth(), image.getHeight());
+                for (Rectangle region : regions) {
+                    region.grow(REGION_PADDING, REGION_PADDING);
+                    region = region.intersection(full);
+                    regionImages.add(image.getSubimage(region.x, region.y, region.width, region.height));
+                }
+                return recognizeRegions(source, regionImages);
+            }
+        }
+        return recognizeExpensively(source, image);
+    }
+
+    /**
+     * Recognizes the regions of an image and joins the results in the order of the regions. The regions are
+     * recognized in parallel, unless this already runs on a thread of an import pool, see
+     * {@link #asImportWorker(Callable)}. The combined result reports the strategy of the first recognized region and
+     * the lowest confidence.
+     */
+    private ImportResult recognizeRegions(String source, List<BufferedImage> regionImages) {
+        if (regionImages.isEmpty()) {
+            return ImportResult.failed(source);
+        } else if (regionImages.size() == 1) {
+            return recognizeExpensively(source, regionImages.get(0));
+        }
+
+        List<ImportResult> results = new ArrayList<>(regionImages.size());
+        if (IMPORT_WORKER.get()) {
+            // the other threads of the pool are busy with other files or pages
+            for (int i = 0; i < regionImages.size(); i++) {
+                results.add(recognizeExpensively(source + ", region " + (i + 1), regionImages.get(i)));
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, regionImages.size()),
+                    new DaemonThreadFactory("region-import"));
+            try {
+                List<Future<ImportResult>> futures = new ArrayList<>(regionImages.size());
+                for (int i = 0; i < regionImages.size(); i++) {
+                    String regionSource = source + ", region " + (i + 1);
+                    BufferedImage regionImage = regionImages.get(i);
+                    futures.add(executor.submit(asImportWorker(() -> recognizeExpensively(regionSource,
+                            regionImage))));
+                }
+                for (Future<ImportResult> future : futures) {
+                    try {
+                        results.add(future.get());
+                    } catch (ExecutionException e) {
+                        LOGGER.log(Level.WARNING, "Could not recognize region of " + source, e.getCause());
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                LOGGER.log(Level.WARNING, "Import was interrupted");
+            } finally {
+                executor.shutdownNow();
+            }
+        }
+
+        StringBuilder latex = new StringBuilder();
+        RecognitionStrategy strategy = RecognitionStrategy.NONE;
+        double confidence = 1.0;
+        for (ImportResult result : results) {
+            if (result.isSuccessful()) {
+                if (latex.length() > 0) {
+                    latex.append("\n\n");
+                } else {
+                    strategy = result.getStrategy();
+                }
+                latex.append(result.getLatex());
+                confidence = Math.min(confidence, result.getConfidence());
+            }
+        }
+        if (latex.length() == 0) {
+            return ImportResult.failed(source);
+        }
+        return new ImportResult(source, latex.toString(), strategy, confidence);
+    }
+
+    /**
+     * Wraps a task of an import pool. Work nested in the task, like the regions of an image, runs on the thread of
+     * the task instead of another pool, so the number of import threads never exceeds the parallelism.
+     *
+     * @param task the task
+     * @param <T>  the type of the result
+     * @return the wrapped task
+     */
+    static <T> Callable<T> asImportWorker(Callable<T> task) {
+        return () -> {
+            IMPORT_WORKER.set(true);
+            try {
+                return task.call();
+            } finally {
+                IMPORT_WORKER.remove();
+            }
+        };
+    }
+
+    /**
+     * Recognizes an image with the expensive recognizers of the chain. The cache is consulted before any OCR
+     * is applied.
+     */
+    private ImportResult recognizeExpensively(String source, BufferedImage image) {
+        String key = null;
+        RecognitionResult result = null;
+        if (cache != null) {
+            key = RecognitionCache.keyOf(image);
+            result = getCached(key);
+            if (result != null) {
+                LOGGER.log(Level.INFO, "Got cached " + result.getStrategy() + " result for " + source);
+            }
+        }
+        if (result == null) {
+            result = recognizerChain.recognizeExpensively(image);
+            if (key != null && result != null) {
+                putCached(key, result);
+            }
+            if (key != null && IMPORT_WORKER.get()
+                    && (result == null || result.getConfidence() < recognizerChain.getAcceptConfidence())) {
+                queueForMathPix(source, key, image);
+            }
+        }
+
+        if (result == null) {
+            return ImportResult.failed(source);
+        }
+        return new ImportResult(source, result.getLatex(), result.getStrategy(), result.getConfidence());
+    }
+
+    /**
+     * Hands an image of a bulk import to the MathPix queue if MathPix is configured but its last request failed.
+     * The queue spools the image until MathPix is reachable again and the result is then stored in the cache.
+     * Nobody waits for it, the import goes on with what the chain delivered.
+     */
+    private void queueForMathPix(String source, String key, BufferedImage image) {
+        if (!MathPixSettings.isConfigured()) {
+            return;
+        }
+        try {
+            if (MathPix.getClient().getCircuitBreaker().isHealthy()) {
+                // MathPix answered, asking again would not get a better result
+                return;
+            }
+        } catch (MathPixException e) {
+            return;
+        }
+        if (!QUEUED_KEYS.add(key)) {
+            return;
+        }
+        listenForQueuedResults();
+        // the tag becomes part of a file name, which must not contain the colon of the key
+        MathPix.getQueue().submit(recognizerChain.preprocess(image), key.replace(':', '-'))
+                .whenComplete((result, failure) -> QUEUED_KEYS.remove(key));
+        LOGGER.log(Level.INFO, "MathPix is unreachable, queued " + source + " until it is reachable again");
+    }
+
+    /**
+     * Stores the results of the images handed to the MathPix queue, including those queued by an earlier run.
+     */
+    private void listenForQueuedResults() {
+        if (cache == null) {
+            return;
+        }
+        MathPix.getQueue().setTaggedResultListener((tag, detection) -> {
+            RecognitionResult result = RecognizerChain.validate(MathPixRecognizer.toResult(detection));
+            if (result != null) {
+                putCached(tag.replaceFirst("-", ":"), result);
+            }
+        });
+    }
+
+    /**
+     * Looks up a cached result. A fallback result is ignored if a recognizer became available that was not when
+     * it was stored, so the better recognizer gets its chance.
+     */
+    private RecognitionResult getCached(String key) {
+        return cache.get(key, recognizerChain.getAvailableExpensiveStrategies());
+    }
+
+    /**
+     * Caches a result if it is worth it. Results the chain accepts without waiting for the other recognizers
+     * always hold. A result below the accept confidence is only cached as a fallback if its recognizer is the only
+     * one available, e.g. MathOCR while MathPix is not configured or offline, and only until that changes.
+     */
+    private void putCached(String key, RecognitionResult result) {
+        if (!RecognitionCache.isCacheable(result.getStrategy())) {
+            return;
+        }
+        if (result.getConfidence() >= recognizerChain.getAcceptConfidence()) {
+            cache.put(key, result);
+            return;
+        }
+        Set<RecognitionStrategy> available = recognizerChain.getAvailableExpensiveStrategies();
+        if (available.equals(EnumSet.of(result.getStrategy()))) {
+            cache.put(key, result, available);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package de.moritzf.latexhelper.recognition;
+
+import net.sf.mathocr.BatchProcessor;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Recognizes expressions using the bundled MathOCR library. MathOCR does not report a confidence, so its
+ * results are assigned a fixed nominal confidence.
+ * <p>
+ * Recognition runs in the processes of a {@link MathOcrWorkerPool}, where a job exceeding the budget is killed.
+ * Without a pool, or if worker processes can not be started, MathOCR is called in process.
+ *
+ * @author Moritz Floeter
+ */
+public class MathOcrRecognizer implements Recognizer {
+
+    /**
+     * MathOCR is a static library call whose thread safety is unknown, so concurrent in process recognitions
+     * take turns.
+     */
+    private static final Object MATHOCR_LOCK = new Object();
+
+    private final long budgetMillis;
+    private final double nominalConfidence;
+    private final MathOcrWorkerPool workerPool;
+
+    /**
+     * Instantiates a new MathOCR recognizer calling MathOCR in process.
+     *
+     * @param budgetMillis      the time in milliseconds to wait for MathOCR
+     * @param nominalConfidence the confidence assigned to every MathOCR result
+     */
+    public MathOcrRecognizer(long budgetMillis, double nominalConfidence) {
+        this(budgetMillis, nominalConfidence, null);
+    }
+
+    /**
+     * Instantiates a new MathOCR recognizer.
+     *
+     * @param budgetMillis      the time in milliseconds to wait for MathOCR
+     * @param nominalConfidence the confidence assigned to every MathOCR result
+     * @param workerPool        the pool of worker processes or null to call MathOCR in process
+     */
+    public MathOcrRecognizer(long budgetMillis, double nominalConfidence, MathOcrWorkerPool workerPool) {
+        this.budgetMillis = budgetMillis;
+        this.nominalConfidence = nominalConfidence;
+        this.workerPool = workerPool;
+    }
+
+    @Override
+    public RecognitionStrategy getStrategy() {
+        return RecognitionStrategy.MATHOCR;
+    }
+
+    @Override
+    public boolean isLocal() {
+        return false;
+    }
+
+    @Override
+    public long getBudgetMillis() {
+        return budgetMillis;
+    }
+
+    @Override
+    public RecognitionResult recognize(BufferedImage image) throws Exception {
+        String latex;
+        if (workerPool != null && workerPool.isUsable()) {
+            latex = workerPool.recognize(image, budgetMillis);
+        } else {
+            synchronized (MATHOCR_LOCK) {
+                latex = BatchProcessor.recognizeFormula(image);
+            }
+        }
+        // Cut away the $$ in beginning and end of latex string
+        if (latex != null && latex.length() > 4 && latex.startsWith("$$") && latex.endsWith("$$")) {
+            latex = latex.substring(2, latex.length() - 2);
+        }
+        if (latex == null || latex.isEmpty()) {
+            return null;
+        }
+        return new RecognitionResult(latex, getStrategy(), nominalConfidence);
+    }
+}
@@ -0,0 +1,100 @@
+package de.moritzf.latexhelper.recognition;
+
+import net.sf.mathocr.BatchProcessor;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Entry point of a MathOCR worker process started by the {@link MathOcrWorkerPool}. The worker reads jobs from
+ * stdin and answers on stdout until stdin is closed, which also happens when the application dies.
+ * <p>
+ * Protocol, all numbers big endian as written by {@link DataOutputStream}:
+ * <ul>
+ * <li>job: <code>int length</code> followed by <code>length</code> bytes of a png image</li>
+ * <li>answer: <code>byte status</code> followed by a modified UTF-8 string: the latex for {@link #STATUS_OK},
+ * empty for {@link #STATUS_EMPTY}, the error message for {@link #STATUS_ERROR}</li>
+ * </ul>
+ *
+ * @author Moritz Floeter
+ */
+public class MathOcrWorker {
+
+    /**
+     * The image was recognized.
+     */
+    static final byte STATUS_OK = 0;
+
+    /**
+     * MathOCR did not find an expression.
+     */
+    static final byte STATUS_EMPTY = 1;
+
+    /**
+     * The job failed.
+     */
+    static final byte STATUS_ERROR = 2;
+
+    /**
+     * Longest string {@link DataOutputStream#writeUTF(String)} accepts for sure, even if every character needs
+     * three bytes.
+     */
+    private static final int MAX_UTF_CHARS = 65535 / 3;
+
+    private MathOcrWorker() {
+
+    }
+
+    /**
+     * Runs the worker.
+     *
+     * @param args the arguments, ignored
+     * @throws IOException if the connection to the application breaks
+     */
+    public static void main(String[] args) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)));
+        DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+        // stdout belongs to the protocol, anything MathOCR prints goes to stderr instead
+        System.setOut(System.err);
+
+        while (true) {
+            byte[] png;
+            try {
+                png = new byte[in.readInt()];
+                in.readFully(png);
+            } catch (EOFException e) {
+                return;
+            }
+            byte status;
+            String text;
+            try {
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+                String latex = image == null ? null : BatchProcessor.recognizeFormula(image);
+                status = latex == null || latex.isEmpty() ? STATUS_EMPTY : STATUS_OK;
+                text = latex == null ? "" : latex;
+            } catch (Throwable t) {
+                // includes errors like StackOverflowError, the next job gets a fresh stack anyway
+                status = STATUS_ERROR;
+                text = String.valueOf(t);
+            }
+            if (text.length() > MAX_UTF_CHARS) {
+                status = STATUS_ERROR;
+                text = "Result too long: " + text.length() + " characters";
+            }
+            out.writeByte(status);
+            out.writeUTF(text);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,303 @@
+package de.moritzf.latexhelper.recognition;
+
+import de.moritzf.latexhelper.util.DaemonThreadFactory;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Pool of warm MathOCR worker processes ({@link MathOcrWorker}). Running MathOCR out of process
+ * <ul>
+ * <li>lets several images be recognized in parallel although the thread safety of the library is unknown,</li>
+ * <li>allows to abort a job that takes too long by killing its worker, which is impossible for a thread stuck
+ * in a library call, and</li>
+ * <li>keeps crashes and memory exhaustion caused by pathological images away from the application.</li>
+ * </ul>
+ * Workers are started on demand up to the size of the pool and are reused for further jobs. A killed or crashed
+ * worker is replaced by a new one for the next job. Instances are thread safe.
+ *
+ * @author Moritz Floeter
+ */
+public class MathOcrWorkerPool {
+
+    private static final Logger LOGGER = Logger.getLogger(MathOcrWorkerPool.class.getName());
+
+    /**
+     * Default number of worker processes: every worker is a JVM of its own, so only half of the cores are used
+     * and at most four workers are started.
+     */
+    public static final int DEFAULT_SIZE = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    /**
+     * Default maximum heap of a worker process in megabytes.
+     */
+    public static final int DEFAULT_WORKER_HEAP_MB = 512;
+
+    /**
+     * Waits for worker answers, so the caller can give up on a job after its timeout.
+     */
+    private static final ExecutorService READER =
+            Executors.newCachedThreadPool(new DaemonThreadFactory("mathocr-reader"));
+
+    private static MathOcrWorkerPool defaultPool;
+
+    private final int workerHeapMb;
+    private final Semaphore permits;
+    private final BlockingQueue<Worker> idle = new LinkedBlockingQueue<>();
+    private final List<Worker> all = new ArrayList<>();
+    private volatile boolean shutdown;
+    private volatile boolean startFailed;
+
+    /**
+     * Instantiates a new pool. No worker is started until it is needed or {@link #warmUp()} is called.
+     *
+     * @param size         the maximum number of worker processes
+     * @param workerHeapMb the maximum heap of a worker process in megabytes
+     */
+    public MathOcrWorkerPool(int size, int workerHeapMb) {
+        this.workerHeapMb = workerHeapMb;
+        this.permits = new Semaphore(size, true);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "mathocr-pool-shutdown"));
+    }
+
+    /**
+     * Gets the pool shared by the application.
+     *
+     * @return the default pool
+     */
+    public static synchronized MathOcrWorkerPool getDefault() {
+        if (defaultPool == null) {
+            defaultPool = new MathOcrWorkerPool(DEFAULT_SIZE, DEFAULT_WORKER_HEAP_MB);
+        }
+        return defaultPool;
+    }
+
+    /**
+     * Checks if worker processes can be used. This is not the case after the pool has been shut down or if a
+     * worker process could not be started, e.g. because the runtime does not allow to start processes.
+     *
+     * @return true, if the pool can be used
+     */
+    public boolean isUsable() {
+        return !shutdown && !startFailed;
+    }
+
+    /**
+     * Starts one worker in the background, so the first recognition does not wait for a JVM to start.
+     */
+    public void warmUp() {
+        READER.execute(() -> {
+            if (permits.tryAcquire()) {
+                try {
+                    release(acquireWorker());
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Could not start MathOCR worker", e);
+                } finally {
+                    permits.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Recognizes an image in a worker process. If the job takes longer than the timeout or the calling thread is
+     * interrupted, the worker is killed.
+     *
+     * @param image         the image
+     * @param timeoutMillis the time in milliseconds the job may take
+     * @return the latex as returned by MathOCR or null if no expression was found
+     * @throws IOException          if no worker can be started, the worker crashed or the job failed
+     * @throws TimeoutException     if the job took too long
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public String recognize(BufferedImage image, long timeoutMillis)
+            throws IOException, TimeoutException, InterruptedException {
+        byte[] png = toPng(image);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+            throw new TimeoutException("No MathOCR worker became available within " + timeoutMillis + " ms");
+        }
+        try {
+            Worker worker = acquireWorker();
+            Future<String[]> answer;
+            try {
+                worker.send(png);
+                answer = READER.submit(worker::receive);
+            } catch (IOException e) {
+                discard(worker);
+                throw e;
+            }
+            String[] result;
+            try {
+                result = answer.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                LOGGER.log(Level.WARNING, "Killing MathOCR worker " + worker + " after " + timeoutMillis + " ms");
+                discard(worker);
+                throw new TimeoutException("MathOCR took longer than " + timeoutMillis + " ms");
+            } catch (InterruptedException e) {
+                discard(worker);
+                throw e;
+            } catch (ExecutionException e) {
+                discard(worker);
+                throw new IOException("MathOCR worker " + worker + " died", e.getCause());
+            }
+            release(worker);
+            if (result[0] != null) {
+                throw new IOException("MathOCR failed: " + result[0]);
+            }
+            return result[1];
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Stops all workers.
+     */
+    public void shutdown() {
+        shutdown = true;
+        synchronized (all) {
+            for (Worker worker : all) {
+                worker.kill();
+            }
+            all.clear();
+        }
+        idle.clear();
+    }
+
+    /**
+     * Takes an idle worker or starts a new one. Must only be called holding a permit, which bounds the number of
+     * workers.
+     */
+    private Worker acquireWorker() throws IOException {
+        Worker worker;
+        while ((worker = idle.poll()) != null) {
+            if (worker.isAlive()) {
+                return worker;
+            }
+            forget(worker);
+        }
+        if (shutdown) {
+            throw new IOException("MathOCR worker pool has been shut down");
+        }
+        try {
+            worker = Worker.start(workerHeapMb);
+        } catch (IOException e) {
+            startFailed = true;
+            throw e;
+        }
+        synchronized (all) {
+            all.add(worker);
+        }
+        return worker;
+    }
+
+    private void release(Worker worker) {
+        if (worker.isAlive() && !shutdown) {
+            idle.add(worker);
+        } else {
+            forget(worker);
+        }
+    }
+
+    private void discard(Worker worker) {
+        worker.kill();
+        forget(worker);
+    }
+
+    private void forget(Worker worker) {
+        synchronized (all) {
+            all.remove(worker);
+        }
+    }
+
+    private static byte[] toPng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (!ImageIO.write(image, "png", out)) {
+            throw new IOException("No png encoder installed");
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * A worker process and its end of the protocol.
+     */
+    private static class Worker {
+        private final Process process;
+        private final DataOutputStream out;
+        private final DataInputStream in;
+
+        private Worker(Process process) {
+            this.process = process;
+            this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+
+        private static Worker start(int heapMb) throws IOException {
+            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+            ProcessBuilder builder = new ProcessBuilder(java, "-Xmx" + heapMb + "m", "-Djava.awt.headless=true",
+                    "-cp", System.getProperty("java.class.path"), MathOcrWorker.class.getName());
+            builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+            Worker worker = new Worker(builder.start());
+            LOGGER.log(Level.INFO, "Started MathOCR worker " + worker);
+            return worker;
+        }
+
+        private void send(byte[] png) throws IOException {
+            out.writeInt(png.length);
+            out.write(png);
+            out.flush();
+        }
+
+        /**
+         * Reads an answer.
+         *
+         * @return the error message or null and the latex or null
+         */
+        private String[] receive() throws IOException {
+            byte status = in.readByte();
+            String text = in.readUTF();
+            switch (status) {
+                case MathOcrWorker.STATUS_OK:
+                    return new String[]{null, text};
+                case MathOcrWorker.STATUS_EMPTY:
+                    return new String[]{null, null};
+                default:
+                    return new String[]{text, null};
+            }
+        }
+
+        private boolean isAlive() {
+            return process.isAlive();
+        }
+
+        private void kill() {
+            process.destroyForcibly();
+        }
+
+        @Override
+        public String toString() {
+            return "Worker@" + Integer.toHexString(System.identityHashCode(process));
+        }
+    }
+}
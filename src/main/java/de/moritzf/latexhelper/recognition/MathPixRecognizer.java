@@ -0,0 +1,93 @@
+package de.moritzf.latexhelper.recognition;
+
+import mathpix.MathPix;
+import mathpix.MathPixException;
+import mathpix.MathPixSettings;
+import mathpix.api.response.DetectionResult;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Recognizes expressions using the MathPix online API. Only available if MathPix has been configured and its
+ * circuit breaker does not reject requests.
+ *
+ * @author Moritz Floeter
+ */
+public class MathPixRecognizer implements Recognizer {
+
+    private final long budgetMillis;
+
+    /**
+     * Instantiates a new MathPix recognizer.
+     *
+     * @param budgetMillis the time in milliseconds to wait for the MathPix servers
+     */
+    public MathPixRecognizer(long budgetMillis) {
+        this.budgetMillis = budgetMillis;
+    }
+
+    @Override
+    public RecognitionStrategy getStrategy() {
+        return RecognitionStrategy.MATHPIX;
+    }
+
+    @Override
+    public boolean isLocal() {
+        return false;
+    }
+
+    @Override
+    public boolean isAvailable() {
+        if (!MathPixSettings.isConfigured()) {
+            return false;
+        }
+        try {
+            // while MathPix is unreachable the chain should not wait for it at all
+            return MathPix.getClient().getCircuitBreaker().isCallPermitted();
+        } catch (MathPixException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public long getBudgetMillis() {
+        return budgetMillis;
+    }
+
+    @Override
+    public RecognitionResult recognize(BufferedImage image) throws MathPixException, InterruptedException {
+        // going through the shared queue keeps parallel imports within the quota of the account, the import waits
+        // for the result, so the job fails right away instead of being spooled while MathPix is unreachable
+        CompletableFuture<DetectionResult> future = MathPix.getQueue().submitInteractive(image);
+        DetectionResult result;
+        try {
+            result = future.get();
+        } catch (InterruptedException e) {
+            // the chain gave up on MathPix, there is no point in sending or spooling the job any more
+            future.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof MathPixException) {
+                throw (MathPixException) e.getCause();
+            }
+            throw new MathPixException(MathPixException.Kind.INVALID_RESPONSE, "MathPix job failed", e.getCause());
+        }
+        return toResult(result);
+    }
+
+    /**
+     * Converts the answer of MathPix.
+     *
+     * @param result the answer
+     * @return the recognition result or null if MathPix found no expression
+     */
+    static RecognitionResult toResult(DetectionResult result) {
+        if (result.getLatex() == null || result.getLatex().isEmpty()) {
+            return null;
+        }
+        return new RecognitionResult(result.getLatex().replace(" ", ""), RecognitionStrategy.MATHPIX,
+                result.getLatex_confidence());
+    }
+}
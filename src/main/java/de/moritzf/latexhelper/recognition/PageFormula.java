@@ -0,0 +1,75 @@
+package de.moritzf.latexhelper.recognition;
+
+/**
+ * A formula recovered from a page of a pdf document.
+ *
+ * @author Moritz Floeter
+ */
+public class PageFormula {
+
+    private final int page;
+    private final String latex;
+    private final RecognitionStrategy strategy;
+    private final double confidence;
+
+    /**
+     * Instantiates a new page formula.
+     *
+     * @param page       the one based page number
+     * @param latex      the latex expression
+     * @param strategy   the strategy that recovered the expression
+     * @param confidence the confidence in the result as value between 0 and 1
+     */
+    public PageFormula(int page, String latex, RecognitionStrategy strategy, double confidence) {
+        this.page = page;
+        this.latex = latex;
+        this.strategy = strategy;
+        this.confidence = confidence;
+    }
+
+    /**
+     * Gets the one based page number.
+     *
+     * @return the page number
+     */
+    public int getPage() {
+        return page;
+    }
+
+    /**
+     * Gets the latex expression.
+     *
+     * @return the latex expression
+     */
+    public String getLatex() {
+        return latex;
+    }
+
+    /**
+     * Gets the strategy that recovered the expression.
+     *
+     * @return the strategy
+     */
+    public RecognitionStrategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Gets the confidence in the result.
+     *
+     * @return the confidence between 0 and 1
+     */
+    public double getConfidence() {
+        return confidence;
+    }
+
+    @Override
+    public String toString() {
+        return "PageFormula{" +
+                "page=" + page +
+                ", latex='" + latex + '\'' +
+                ", strategy=" + strategy +
+                ", confidence=" + confidence +
+                '}';
+    }
+}
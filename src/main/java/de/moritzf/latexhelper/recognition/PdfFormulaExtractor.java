@@ -0,0 +1,209 @@
+package de.moritzf.latexhelper.recognition;
+
+import com.itextpdf.text.pdf.PdfReader;
+import com.itextpdf.text.pdf.parser.PdfTextExtractor;
+import de.moritzf.latexhelper.util.DaemonThreadFactory;
+import de.moritzf.latexhelper.util.ImageFileUtil;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.rendering.PDFRenderer;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+
+/**
+ * Extracts every formula from all pages of a pdf document. Each page is searched for the hidden text that pdf
+ * files rendered by this tool contain. Pages without hidden text are rendered and passed to OCR.
+ * <p>
+ * Pages are processed in parallel, the formula regions of a page on the thread of its worker. Every worker opens
+ * the document on its own, so no reader or renderer is shared between threads, and keeps the parsed document within
+ * a fixed memory budget (anything beyond is buffered in temporary files). Rendered pages are limited in size as
+ * well.
+ *
+ * @author Moritz Floeter
+ */
+public class PdfFormulaExtractor {
+
+    private static final Logger LOGGER = Logger.getLogger(PdfFormulaExtractor.class.getName());
+
+    /**
+     * Default main memory each worker may use for the parsed document.
+     */
+    public static final long DEFAULT_MEMORY_BUDGET_BYTES = 32L * 1024 * 1024;
+
+    /**
+     * Default maximum number of pixels of a rendered page.
+     */
+    public static final double DEFAULT_MAX_PAGE_PIXELS = 4_000_000;
+
+    private final LatexImporter importer;
+    private final int parallelism;
+    private final long memoryBudgetBytes;
+    private final double maxPagePixels;
+    private final boolean rasterFallback;
+
+    /**
+     * Instantiates a new extractor with default memory limits that applies OCR to pages without hidden text.
+     *
+     * @param importer    the importer used to recognize rendered pages
+     * @param parallelism the maximum number of pages processed at the same time
+     */
+    public PdfFormulaExtractor(LatexImporter importer, int parallelism) {
+        this(importer, parallelism, DEFAULT_MEMORY_BUDGET_BYTES, DEFAULT_MAX_PAGE_PIXELS, true);
+    }
+
+    /**
+     * Instantiates a new extractor.
+     *
+     * @param importer          the importer used to recognize rendered pages
+     * @param parallelism       the maximum number of pages processed at the same time
+     * @param memoryBudgetBytes the main memory each worker may use for the parsed document
+     * @param maxPagePixels     the maximum number of pixels of a rendered page
+     * @param rasterFallback    whether pages without hidden text are rendered and passed to OCR
+     */
+    public PdfFormulaExtractor(LatexImporter importer, int parallelism, long memoryBudgetBytes,
+                               double maxPagePixels, boolean rasterFallback) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be at least 1 but was " + parallelism);
+        }
+        this.importer = importer;
+        this.parallelism = parallelism;
+        this.memoryBudgetBytes = memoryBudgetBytes;
+        this.maxPagePixels = maxPagePixels;
+        this.rasterFallback = rasterFallback;
+    }
+
+    /**
+     * Extracts the formulas of all pages.
+     *
+     * @param pdfFile the pdf file
+     * @return the formulas ordered by page and by their position in the text of the page
+     * @throws IOException if the document can not be read
+     */
+    public List<PageFormula> extract(File pdfFile) throws IOException {
+        int pageCount;
+        PdfReader counter = new PdfReader(pdfFile.getAbsolutePath(), null, true);
+        try {
+            pageCount = counter.getNumberOfPages();
+        } finally {
+            counter.close();
+        }
+        LOGGER.log(Level.INFO, "Extracting formulas from " + pageCount + " pages of " + pdfFile.getName());
+
+        int workers = Math.max(1, Math.min(parallelism, pageCount));
+        ExecutorService executor = Executors.newFixedThreadPool(workers, new DaemonThreadFactory("pdf-extract"));
+        AtomicInteger nextPage = new AtomicInteger(1);
+        List<PageFormula> formulas = new ArrayList<>();
+        try {
+            List<Future<List<PageFormula>>> futures = new ArrayList<>();
+            for (int i = 0; i < workers; i++) {
+                futures.add(executor.submit(
+                        LatexImporter.asImportWorker(new Worker(pdfFile, pageCount, nextPage))));
+            }
+            for (Future<List<PageFormula>> future : futures) {
+                formulas.addAll(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Extraction was interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not extract formulas from " + pdfFile.getName(), e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // the sort is stable, so formulas of the same page keep their order
+        Collections.sort(formulas, Comparator.comparingInt(PageFormula::getPage));
+        return formulas;
+    }
+
+    /**
+     * Worker taking pages from a shared counter until all pages are processed. Holds its own reader and
+     * renderer for the whole run.
+     */
+    private class Worker implements Callable<List<PageFormula>> {
+
+        private final File pdfFile;
+        private final int pageCount;
+        private final AtomicInteger nextPage;
+
+        Worker(File pdfFile, int pageCount, AtomicInteger nextPage) {
+            this.pdfFile = pdfFile;
+            this.pageCount = pageCount;
+            this.nextPage = nextPage;
+        }
+
+        @Override
+        public List<PageFormula> call() throws IOException {
+            List<PageFormula> formulas = new ArrayList<>();
+            PdfReader reader = new PdfReader(pdfFile.getAbsolutePath(), null, true);
+            PDDocument document = null;
+            PDFRenderer renderer = null;
+            try {
+                int page;
+                while ((page = nextPage.getAndIncrement()) <= pageCount && !Thread.currentThread().isInterrupted()) {
+                    List<PageFormula> found = findHiddenText(reader, page);
+                    if (found.isEmpty() && rasterFallback) {
+                        if (document == null) {
+                            document = PDDocument.load(pdfFile, MemoryUsageSetting.setupMixed(memoryBudgetBytes));
+                            renderer = new PDFRenderer(document);
+                        }
+                        found = recognize(renderer, page);
+                    }
+                    formulas.addAll(found);
+                }
+            } finally {
+                reader.close();
+                if (document != null) {
+                    document.close();
+                }
+            }
+            return formulas;
+        }
+
+        private List<PageFormula> findHiddenText(PdfReader reader, int page) {
+            List<PageFormula> formulas = new ArrayList<>();
+            try {
+                String text = PdfTextExtractor.getTextFromPage(reader, page);
+                Matcher matcher = LatexImporter.HIDDEN_TEXT_PATTERN.matcher(text);
+                while (matcher.find()) {
+                    formulas.add(new PageFormula(page, matcher.group("latex"), RecognitionStrategy.PDF_HIDDEN_TEXT,
+                            1.0));
+                }
+            } catch (Exception e) {
+                LOGGER.log(Level.WARNING, "Could not extract text from page " + page + " of " + pdfFile.getName());
+            }
+            return formulas;
+        }
+
+        private List<PageFormula> recognize(PDFRenderer renderer, int page) {
+            try {
+                BufferedImage image = ImageFileUtil.renderPageContent(renderer, page - 1, maxPagePixels);
+                if (image != null) {
+                    ImportResult result = importer.importImage(pdfFile.getName() + ", page " + page, image);
+                    if (result.isSuccessful()) {
+                        return Collections.singletonList(new PageFormula(page, result.getLatex(),
+                                result.getStrategy(), result.getConfidence()));
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not render page " + page + " of " + pdfFile.getName(), e);
+            }
+            return Collections.emptyList();
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package de.moritzf.latexhelper.recognition;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The result of an {@link ImagePreprocessor}: the image handed to OCR together with what was done to it and
+ * how long each step took.
+ *
+ * @author Moritz Floeter
+ */
+public class PreprocessedImage {
+
+    private final BufferedImage image;
+    private final Rectangle cropBounds;
+    private final double scale;
+    private final Map<String, Long> stepNanos;
+
+    /**
+     * Instantiates a new preprocessed image.
+     *
+     * @param image      the preprocessed image
+     * @param cropBounds the region of the original image that was kept
+     * @param scale      the factor the cropped region was scaled by
+     * @param stepNanos  the duration of each step in nanoseconds, in the order the steps were executed
+     */
+    public PreprocessedImage(BufferedImage image, Rectangle cropBounds, double scale, Map<String, Long> stepNanos) {
+        this.image = image;
+        this.cropBounds = cropBounds;
+        this.scale = scale;
+        this.stepNanos = Collections.unmodifiableMap(new LinkedHashMap<>(stepNanos));
+    }
+
+    /**
+     * Gets the preprocessed image.
+     *
+     * @return the image
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Gets the region of the original image that was kept.
+     *
+     * @return the crop bounds
+     */
+    public Rectangle getCropBounds() {
+        return cropBounds;
+    }
+
+    /**
+     * Gets the factor the cropped region was scaled by.
+     *
+     * @return the scale
+     */
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * Gets the duration of each step in nanoseconds, in the order the steps were executed.
+     *
+     * @return the step durations
+     */
+    public Map<String, Long> getStepNanos() {
+        return stepNanos;
+    }
+
+    /**
+     * Gets the total duration of all steps in nanoseconds.
+     *
+     * @return the total duration
+     */
+    public long getTotalNanos() {
+        long total = 0;
+        for (long nanos : stepNanos.values()) {
+            total += nanos;
+        }
+        return total;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder steps = new StringBuilder();
+        for (Map.Entry<String, Long> step : stepNanos.entrySet()) {
+            if (steps.length() > 0) {
+                steps.append(", ");
+            }
+            steps.append(step.getKey()).append('=')
+                    .append(TimeUnit.NANOSECONDS.toMillis(step.getValue())).append("ms");
+        }
+        return "PreprocessedImage{" +
+                "size=" + image.getWidth() + "x" + image.getHeight() +
+                ", cropBounds=" + cropBounds +
+                ", scale=" + scale +
+                ", steps=[" + steps + "]" +
+                '}';
+    }
+}
@@ -0,0 +1,397 @@
+package de.moritzf.latexhelper.recognition;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import de.moritzf.latexhelper.util.DaemonThreadFactory;
+import io.github.soc.directories.ProjectDirectories;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Disk backed cache for OCR results. Recognizing the same image again (e.g. pasting the same screenshot twice)
+ * neither sends another billed query to MathPix nor reruns MathOCR. Importers store confident results, see
+ * {@link RecognizerChain#getAcceptConfidence()}, and the results of a recognizer that was the only one available,
+ * e.g. MathOCR while MathPix is offline. Such a fallback result is stored with the recognizers that were available
+ * and is ignored once another one becomes available, so it never hides a better result.
+ * <p>
+ * Images are keyed by a hash of their normalized pixel content, so the same picture matches regardless of the
+ * file format or color model it was delivered in. Files are keyed by a hash of their bytes. The cache holds at
+ * most a fixed number of entries within a byte budget and evicts the least recently used ones. It is stored as a
+ * json file in the data directory of the application, written a few seconds after a change, so a burst of parallel
+ * imports writes it once, and never while lookups wait for it.
+ *
+ * @author Moritz Floeter
+ */
+public class RecognitionCache {
+
+    private static final Logger LOGGER = Logger.getLogger(RecognitionCache.class.getName());
+
+    /**
+     * Default maximum number of cached results.
+     */
+    public static final int DEFAULT_MAX_ENTRIES = 5000;
+
+    /**
+     * Default maximum memory held by the cached results.
+     */
+    public static final long DEFAULT_MAX_BYTES = 8L * 1024 * 1024;
+
+    /**
+     * Time in milliseconds from a change to writing the cache.
+     */
+    private static final long FLUSH_DELAY_MILLIS = 5000;
+
+    /**
+     * Estimated memory of an entry besides its strings.
+     */
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    private static final Gson GSON = new Gson();
+
+    private static final ScheduledExecutorService FLUSHER =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("recognition-cache-flush"));
+
+    private static RecognitionCache defaultCache;
+
+    private final Path cacheFile;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, CacheEntry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Object fileLock = new Object();
+    private long bytes;
+    private boolean loaded = false;
+    private boolean dirty = false;
+    private boolean flushScheduled = false;
+
+    /**
+     * Instantiates a new recognition cache with the default byte budget.
+     *
+     * @param cacheFile  the file the cache is stored in
+     * @param maxEntries the maximum number of cached results
+     */
+    public RecognitionCache(Path cacheFile, int maxEntries) {
+        this(cacheFile, maxEntries, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Instantiates a new recognition cache.
+     *
+     * @param cacheFile  the file the cache is stored in
+     * @param maxEntries the maximum number of cached results
+     * @param maxBytes   the maximum memory held by the cached results, estimated from their lengths
+     */
+    public RecognitionCache(Path cacheFile, int maxEntries, long maxBytes) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1 but was " + maxEntries);
+        }
+        this.cacheFile = cacheFile;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Gets the cache stored in the data directory of the application. Pending changes are written when the
+     * application exits.
+     *
+     * @return the default cache
+     */
+    public static synchronized RecognitionCache getDefault() {
+        if (defaultCache == null) {
+            ProjectDirectories myProjDirs = ProjectDirectories.from("de", "moritzf", "mathematicallatexhelper");
+            Path file = Paths.get(myProjDirs.dataDir).resolve(Paths.get("recognition-cache.json"));
+            defaultCache = new RecognitionCache(file, DEFAULT_MAX_ENTRIES);
+            RecognitionCache cache = defaultCache;
+            Runtime.getRuntime().addShutdownHook(new Thread(cache::flush, "recognition-cache-flush"));
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Checks if the given strategy produces results that are worth caching. Steganography and the pdf header
+     * are cheaper to read again than to look up.
+     *
+     * @param strategy the strategy
+     * @return true, if results of the strategy should be cached
+     */
+    public static boolean isCacheable(RecognitionStrategy strategy) {
+        return strategy == RecognitionStrategy.MATHPIX || strategy == RecognitionStrategy.MATHOCR;
+    }
+
+    /**
+     * Computes the cache key of an image from its normalized pixel content. Every pixel is reduced to its rgb
+     * value, fully transparent pixels count as white.
+     *
+     * @param image the image
+     * @return the key
+     */
+    public static String keyOf(BufferedImage image) {
+        MessageDigest digest = newDigest();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        ByteBuffer buffer = ByteBuffer.allocate(Math.max(8, width * 4));
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.flip();
+        digest.update(buffer);
+
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            buffer.clear();
+            for (int argb : row) {
+                buffer.putInt((argb >>> 24) == 0 ? 0xFFFFFF : argb & 0xFFFFFF);
+            }
+            buffer.flip();
+            digest.update(buffer);
+        }
+        return "image:" + toHex(digest.digest());
+    }
+
+    /**
+     * Computes the cache key of a file from its content.
+     *
+     * @param file the file
+     * @return the key
+     * @throws IOException if the file can not be read
+     */
+    public static String keyOf(File file) throws IOException {
+        MessageDigest digest = newDigest();
+        byte[] buffer = new byte[64 * 1024];
+        try (InputStream is = Files.newInputStream(file.toPath())) {
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return "file:" + toHex(digest.digest());
+    }
+
+    /**
+     * Looks up a cached result.
+     *
+     * @param key       the key
+     * @param available the recognizers available now
+     * @return the result or null if nothing is cached for the key or the cached result is a fallback stored while
+     * one of the given recognizers was not available
+     */
+    public synchronized RecognitionResult get(String key, Set<RecognitionStrategy> available) {
+        ensureLoaded();
+        CacheEntry entry = entries.get(key);
+        if (entry == null || (entry.available != null && !entry.available.containsAll(available))) {
+            return null;
+        }
+        // access order changed
+        dirty = true;
+        return new RecognitionResult(entry.latex, entry.strategy, entry.confidence);
+    }
+
+    /**
+     * Stores a result that holds regardless of the available recognizers. The cache is written to disk a few
+     * seconds later.
+     *
+     * @param key    the key
+     * @param result the result
+     */
+    public void put(String key, RecognitionResult result) {
+        put(key, result, null);
+    }
+
+    /**
+     * Stores a fallback result that only holds as long as no other recognizers than the given ones are available.
+     * The cache is written to disk a few seconds later.
+     *
+     * @param key       the key
+     * @param result    the result
+     * @param available the recognizers available when the result was delivered or null if the result holds
+     *                  regardless of them
+     */
+    public synchronized void put(String key, RecognitionResult result, Set<RecognitionStrategy> available) {
+        ensureLoaded();
+        CacheEntry entry = new CacheEntry();
+        entry.key = key;
+        entry.latex = result.getLatex();
+        entry.strategy = result.getStrategy();
+        entry.confidence = result.getConfidence();
+        entry.available = available == null ? null : new ArrayList<>(available);
+        add(entry);
+        evict();
+        dirty = true;
+        if (!flushScheduled) {
+            flushScheduled = true;
+            FLUSHER.schedule(this::flush, FLUSH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Removes all cached results and writes the cache to disk.
+     */
+    public void clear() {
+        synchronized (this) {
+            ensureLoaded();
+            entries.clear();
+            bytes = 0;
+            dirty = true;
+        }
+        flush();
+    }
+
+    /**
+     * Gets the number of cached results.
+     *
+     * @return the size
+     */
+    public synchronized int size() {
+        ensureLoaded();
+        return entries.size();
+    }
+
+    /**
+     * Gets the estimated memory held by the cached results.
+     *
+     * @return the size in bytes
+     */
+    public synchronized long getBytes() {
+        ensureLoaded();
+        return bytes;
+    }
+
+    /**
+     * Writes the cache to disk if it changed since it was last written. Lookups and insertions do not wait for
+     * the disk, only for taking a snapshot of the entries.
+     */
+    public void flush() {
+        synchronized (fileLock) {
+            CacheEntry[] snapshot;
+            synchronized (this) {
+                flushScheduled = false;
+                if (!dirty) {
+                    return;
+                }
+                // least recently used entries come first, so reading the file back restores the order
+                snapshot = entries.values().toArray(new CacheEntry[0]);
+                dirty = false;
+            }
+            try {
+                Files.createDirectories(cacheFile.getParent());
+                Path tempFile = cacheFile.resolveSibling(cacheFile.getFileName() + ".tmp");
+                try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+                    GSON.toJson(snapshot, writer);
+                }
+                try {
+                    Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(tempFile, cacheFile, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Could not write recognition cache to " + cacheFile, e);
+                synchronized (this) {
+                    dirty = true;
+                }
+            }
+        }
+    }
+
+    private void add(CacheEntry entry) {
+        CacheEntry replaced = entries.put(entry.key, entry);
+        if (replaced != null) {
+            bytes -= sizeOf(replaced);
+        }
+        bytes += sizeOf(entry);
+    }
+
+    /**
+     * Evicts the least recently used entries until the cache fits both limits.
+     */
+    private void evict() {
+        Iterator<CacheEntry> eldest = entries.values().iterator();
+        while (eldest.hasNext() && (entries.size() > maxEntries || bytes > maxBytes)) {
+            bytes -= sizeOf(eldest.next());
+            eldest.remove();
+        }
+    }
+
+    private static long sizeOf(CacheEntry entry) {
+        // java strings hold up to two bytes per character
+        return ENTRY_OVERHEAD_BYTES + 2L * (entry.key.length() + entry.latex.length());
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!Files.exists(cacheFile)) {
+            return;
+        }
+        try (Reader reader = Files.newBufferedReader(cacheFile, StandardCharsets.UTF_8)) {
+            CacheEntry[] stored = GSON.fromJson(reader, CacheEntry[].class);
+            if (stored != null) {
+                for (CacheEntry entry : stored) {
+                    if (entry != null && entry.key != null && entry.latex != null && entry.strategy != null) {
+                        add(entry);
+                    }
+                }
+                evict();
+            }
+            LOGGER.log(Level.INFO, "Loaded " + entries.size() + " cached recognition results from " + cacheFile);
+        } catch (IOException | JsonParseException e) {
+            LOGGER.log(Level.WARNING, "Could not read recognition cache from " + cacheFile + ", starting empty", e);
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * A single cached result as stored in the cache file.
+     */
+    private static class CacheEntry {
+        String key;
+        String latex;
+        RecognitionStrategy strategy;
+        double confidence;
+        /**
+         * The recognizers available when a fallback result was delivered, null for results that always hold.
+         */
+        List<RecognitionStrategy> available;
+    }
+}
@@ -0,0 +1,64 @@
+package de.moritzf.latexhelper.recognition;
+
+/**
+ * A LaTeX expression delivered by a {@link Recognizer} together with the strategy used and the confidence in
+ * the result.
+ *
+ * @author Moritz Floeter
+ */
+public class RecognitionResult {
+
+    private final String latex;
+    private final RecognitionStrategy strategy;
+    private final double confidence;
+
+    /**
+     * Instantiates a new recognition result.
+     *
+     * @param latex      the recognized latex expression
+     * @param strategy   the strategy that delivered the expression
+     * @param confidence the confidence in the result as value between 0 and 1 where 0 is the lowest and
+     *                   1 is the highest confidence
+     */
+    public RecognitionResult(String latex, RecognitionStrategy strategy, double confidence) {
+        this.latex = latex;
+        this.strategy = strategy;
+        this.confidence = confidence;
+    }
+
+    /**
+     * Gets the recognized latex expression.
+     *
+     * @return the latex expression
+     */
+    public String getLatex() {
+        return latex;
+    }
+
+    /**
+     * Gets the strategy that delivered the expression.
+     *
+     * @return the strategy
+     */
+    public RecognitionStrategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * Gets the confidence in the result.
+     *
+     * @return the confidence between 0 and 1
+     */
+    public double getConfidence() {
+        return confidence;
+    }
+
+    @Override
+    public String toString() {
+        return "RecognitionResult{" +
+                "latex='" + latex + '\'' +
+                ", strategy=" + strategy +
+                ", confidence=" + confidence +
+                '}';
+    }
+}
@@ -0,0 +1,37 @@
+package de.moritzf.latexhelper.recognition;
+
+/**
+ * The strategies that can recover a LaTeX expression from an imported file or image.
+ *
+ * @author Moritz Floeter
+ */
+public enum RecognitionStrategy {
+    /**
+     * The expression was hidden in the image by steganography.
+     */
+    STEGANOGRAPHY,
+    /**
+     * The expression was stored in the "LaTeX" iTXt chunk of the png file.
+     */
+    PNG_TEXT,
+    /**
+     * The expression was stored in the "latex" attribute of the pdf header.
+     */
+    PDF_HEADER,
+    /**
+     * The expression was stored as hidden text on the pdf page.
+     */
+    PDF_HIDDEN_TEXT,
+    /**
+     * The expression was recognized by the MathPix online API.
+     */
+    MATHPIX,
+    /**
+     * The expression was recognized by the MathOCR library.
+     */
+    MATHOCR,
+    /**
+     * No strategy delivered a result.
+     */
+    NONE
+}
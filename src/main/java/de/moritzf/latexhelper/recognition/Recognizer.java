@@ -0,0 +1,52 @@
+package de.moritzf.latexhelper.recognition;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * A strategy for recovering a LaTeX expression from an image. Recognizers are combined by a
+ * {@link RecognizerChain} which runs the local ones first and the expensive ones concurrently.
+ *
+ * @author Moritz Floeter
+ */
+public interface Recognizer {
+
+    /**
+     * Gets the strategy implemented by this recognizer.
+     *
+     * @return the strategy
+     */
+    RecognitionStrategy getStrategy();
+
+    /**
+     * Checks if the recognizer is cheap and works without any external resources. Local recognizers are run
+     * one after another before any expensive recognizer is started.
+     *
+     * @return true, if local
+     */
+    boolean isLocal();
+
+    /**
+     * Checks if the recognizer can currently be used (e.g. because it has been configured).
+     *
+     * @return true, if available
+     */
+    default boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Gets the time in milliseconds the chain waits for a result of this recognizer before giving up on it.
+     *
+     * @return the budget in milliseconds
+     */
+    long getBudgetMillis();
+
+    /**
+     * Recognizes the expression in the given image.
+     *
+     * @param image the image
+     * @return the result or null if nothing was recognized
+     * @throws Exception if recognition failed
+     */
+    RecognitionResult recognize(BufferedImage image) throws Exception;
+}
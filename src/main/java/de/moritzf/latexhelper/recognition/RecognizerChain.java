@@ -0,0 +1,326 @@
+package de.moritzf.latexhelper.recognition;
+
+import de.moritzf.latexhelper.render.RenderException;
+import de.moritzf.latexhelper.render.RenderService;
+import de.moritzf.latexhelper.util.DaemonThreadFactory;
+import org.scilab.forge.jlatexmath.TeXFormula;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Chain of {@link Recognizer}s. Local recognizers are tried one after another in chain order. If none of them
+ * delivers a valid expression, all available expensive recognizers are started concurrently:
+ * <ul>
+ * <li>a result is only considered if it can be parsed by {@link TeXFormula}</li>
+ * <li>the first result with a confidence of at least {@link #getAcceptConfidence()} wins and the remaining
+ * recognizers are cancelled</li>
+ * <li>otherwise the chain waits for the other recognizers until their budget is used up and picks the result
+ * with the highest confidence (earlier recognizers win ties)</li>
+ * </ul>
+ * This way a slow network only delays the result up to the MathPix budget while a confident MathPix result
+ * is still preferred over MathOCR.
+ *
+ * @author Moritz Floeter
+ */
+public class RecognizerChain {
+
+    private static final Logger LOGGER = Logger.getLogger(RecognizerChain.class.getName());
+
+    /**
+     * Default time to wait for the MathPix servers.
+     */
+    public static final long DEFAULT_MATHPIX_BUDGET_MILLIS = 10000;
+
+    /**
+     * Default time to wait for MathOCR.
+     */
+    public static final long DEFAULT_MATHOCR_BUDGET_MILLIS = 30000;
+
+    /**
+     * Default confidence required for a result to win without waiting for the other recognizers.
+     */
+    public static final double DEFAULT_ACCEPT_CONFIDENCE = 0.8;
+
+    /**
+     * Default confidence assigned to MathOCR results. It is below the accept confidence, so a configured
+     * MathPix is waited for, but above the confidence of a poor MathPix result.
+     */
+    public static final double DEFAULT_MATHOCR_CONFIDENCE = 0.5;
+
+    /**
+     * Shared pool for the expensive recognizers. Cancelled recognizers that do not react to interruption
+     * finish in the background, so the pool is not bounded.
+     */
+    private static final ExecutorService EXECUTOR =
+            Executors.newCachedThreadPool(new DaemonThreadFactory("recognizer"));
+
+    private final List<Recognizer> recognizers;
+    private final double acceptConfidence;
+    private final ImagePreprocessor preprocessor;
+
+    /**
+     * Instantiates a new recognizer chain.
+     *
+     * @param recognizers      the recognizers in order of preference
+     * @param acceptConfidence the confidence required for a result to win without waiting for the others
+     */
+    public RecognizerChain(List<Recognizer> recognizers, double acceptConfidence) {
+        this(recognizers, acceptConfidence, null);
+    }
+
+    /**
+     * Instantiates a new recognizer chain that preprocesses images before passing them to the expensive
+     * recognizers. Local recognizers always receive the original image.
+     *
+     * @param recognizers      the recognizers in order of preference
+     * @param acceptConfidence the confidence required for a result to win without waiting for the others
+     * @param preprocessor     the preprocessor or null to pass the original image
+     */
+    public RecognizerChain(List<Recognizer> recognizers, double acceptConfidence, ImagePreprocessor preprocessor) {
+        this.recognizers = new ArrayList<>(recognizers);
+        this.acceptConfidence = acceptConfidence;
+        this.preprocessor = preprocessor;
+    }
+
+    /**
+     * Creates the default chain: steganography, MathPix and MathOCR in worker processes, with images
+     * preprocessed for OCR.
+     *
+     * @return the recognizer chain
+     */
+    public static RecognizerChain createDefault() {
+        return new RecognizerChain(Arrays.asList(
+                new SteganographyRecognizer(),
+                new MathPixRecognizer(DEFAULT_MATHPIX_BUDGET_MILLIS),
+                new MathOcrRecognizer(DEFAULT_MATHOCR_BUDGET_MILLIS, DEFAULT_MATHOCR_CONFIDENCE,
+                        MathOcrWorkerPool.getDefault())),
+                DEFAULT_ACCEPT_CONFIDENCE, new ImagePreprocessor());
+    }
+
+    /**
+     * Gets the confidence required for a result to win without waiting for the other recognizers.
+     *
+     * @return the accept confidence
+     */
+    public double getAcceptConfidence() {
+        return acceptConfidence;
+    }
+
+    /**
+     * Recognizes the expression in the given image.
+     *
+     * @param image the image
+     * @return the winning result or null if no recognizer delivered a valid expression
+     */
+    public RecognitionResult recognize(BufferedImage image) {
+        RecognitionResult result = recognizeLocally(image);
+        if (result != null) {
+            return result;
+        }
+        return recognizeExpensively(image);
+    }
+
+    /**
+     * Tries the available local recognizers one after another.
+     *
+     * @param image the image
+     * @return the first valid result or null if no local recognizer delivered a valid expression
+     */
+    public RecognitionResult recognizeLocally(BufferedImage image) {
+        for (Recognizer recognizer : recognizers) {
+            if (recognizer.isAvailable() && recognizer.isLocal()) {
+                RecognitionResult result = validate(runLocal(recognizer, image));
+                if (result != null) {
+                    return result;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Gets the strategies of the expensive recognizers that are available now.
+     *
+     * @return the strategies
+     */
+    public Set<RecognitionStrategy> getAvailableExpensiveStrategies() {
+        Set<RecognitionStrategy> strategies = EnumSet.noneOf(RecognitionStrategy.class);
+        for (Recognizer recognizer : recognizers) {
+            if (recognizer.isAvailable() && !recognizer.isLocal()) {
+                strategies.add(recognizer.getStrategy());
+            }
+        }
+        return strategies;
+    }
+
+    /**
+     * Preprocesses an image like the images passed to the expensive recognizers.
+     *
+     * @param image the image
+     * @return the preprocessed image or the image itself if the chain has no preprocessor
+     */
+    public BufferedImage preprocess(BufferedImage image) {
+        return preprocessor == null ? image : preprocessor.process(image).getImage();
+    }
+
+    /**
+     * Runs the available expensive recognizers concurrently on the preprocessed image.
+     *
+     * @param image the image
+     * @return the winning result or null if no expensive recognizer delivered a valid expression
+     */
+    public RecognitionResult recognizeExpensively(BufferedImage image) {
+        List<Recognizer> expensive = new ArrayList<>();
+        for (Recognizer recognizer : recognizers) {
+            if (recognizer.isAvailable() && !recognizer.isLocal()) {
+                expensive.add(recognizer);
+            }
+        }
+
+        if (expensive.isEmpty()) {
+            return null;
+        }
+        return race(expensive, preprocess(image));
+    }
+
+    private RecognitionResult runLocal(Recognizer recognizer, BufferedImage image) {
+        LOGGER.log(Level.INFO, "Using " + recognizer.getStrategy());
+        try {
+            return recognizer.recognize(image);
+        } catch (Exception e) {
+            LOGGER.log(Level.WARNING, recognizer.getStrategy() + " failed", e);
+            return null;
+        }
+    }
+
+    /**
+     * Runs the expensive recognizers concurrently and applies the confidence gating described in the class
+     * documentation.
+     */
+    private RecognitionResult race(List<Recognizer> expensive, BufferedImage image) {
+        CompletionService<RecognitionResult> completionService = new ExecutorCompletionService<>(EXECUTOR);
+        Map<Future<RecognitionResult>, Recognizer> running = new HashMap<>();
+        Map<Future<RecognitionResult>, Long> deadlines = new HashMap<>();
+        long start = System.nanoTime();
+        for (Recognizer recognizer : expensive) {
+            LOGGER.log(Level.INFO, "Using " + recognizer.getStrategy());
+            Future<RecognitionResult> future = completionService.submit(() -> recognizer.recognize(image));
+            running.put(future, recognizer);
+            deadlines.put(future, deadline(start, recognizer.getBudgetMillis()));
+        }
+
+        RecognitionResult best = null;
+        int bestIndex = Integer.MAX_VALUE;
+        try {
+            while (!running.isEmpty()) {
+                long now = System.nanoTime();
+                cancelExpired(running, deadlines, now);
+                if (running.isEmpty()) {
+                    break;
+                }
+
+                long nextDeadline = Long.MAX_VALUE;
+                for (Long deadline : deadlines.values()) {
+                    nextDeadline = Math.min(nextDeadline, deadline);
+                }
+                Future<RecognitionResult> done = completionService.poll(nextDeadline - now, TimeUnit.NANOSECONDS);
+                if (done == null || !running.containsKey(done)) {
+                    continue;
+                }
+
+                Recognizer recognizer = running.remove(done);
+                deadlines.remove(done);
+                RecognitionResult result = validate(resultOf(done, recognizer));
+                if (result == null) {
+                    continue;
+                }
+
+                LOGGER.log(Level.INFO, "Got result from " + recognizer.getStrategy() + " with confidence "
+                        + result.getConfidence() + " after " + elapsedMillis(start) + " ms");
+                if (result.getConfidence() >= acceptConfidence) {
+                    return result;
+                }
+                int index = expensive.indexOf(recognizer);
+                if (best == null || result.getConfidence() > best.getConfidence()
+                        || (result.getConfidence() == best.getConfidence() && index < bestIndex)) {
+                    best = result;
+                    bestIndex = index;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Future<RecognitionResult> future : running.keySet()) {
+                future.cancel(true);
+            }
+        }
+
+        return best;
+    }
+
+    private static void cancelExpired(Map<Future<RecognitionResult>, Recognizer> running,
+                                      Map<Future<RecognitionResult>, Long> deadlines, long now) {
+        for (Future<RecognitionResult> future : new ArrayList<>(running.keySet())) {
+            if (deadlines.get(future) - now <= 0 && !future.isDone()) {
+                LOGGER.log(Level.INFO, running.get(future).getStrategy() + " exceeded its budget");
+                future.cancel(true);
+                running.remove(future);
+                deadlines.remove(future);
+            }
+        }
+    }
+
+    private static RecognitionResult resultOf(Future<RecognitionResult> future, Recognizer recognizer)
+            throws InterruptedException {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            LOGGER.log(Level.WARNING, recognizer.getStrategy() + " failed", e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Returns the result if its expression can be parsed, null otherwise. new TeXFormula throws an exception
+     * if the text used is an invalid LaTeX expression. Parsing is guarded by the {@link RenderService}, as OCR
+     * output can be pathological.
+     */
+    static RecognitionResult validate(RecognitionResult result) {
+        if (result == null || result.getLatex() == null || result.getLatex().isEmpty()) {
+            return null;
+        }
+        try {
+            RenderService.getDefault().parse(result.getLatex());
+            return result;
+        } catch (RenderException e) {
+            LOGGER.log(Level.INFO, "Discarding " + e.getKind() + " result of " + result.getStrategy());
+            return null;
+        }
+    }
+
+    private static long deadline(long start, long budgetMillis) {
+        long budgetNanos = TimeUnit.MILLISECONDS.toNanos(budgetMillis);
+        // avoid overflowing for unlimited budgets
+        return budgetNanos > Long.MAX_VALUE / 2 ? start + Long.MAX_VALUE / 2 : start + budgetNanos;
+    }
+
+    private static long elapsedMillis(long start) {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+}
@@ -0,0 +1,37 @@
+package de.moritzf.latexhelper.recognition;
+
+import de.moritzf.latexhelper.util.SteganographyUtil;
+
+import java.awt.image.BufferedImage;
+
+/**
+ * Recovers expressions that were hidden by steganography in images rendered by this tool.
+ *
+ * @author Moritz Floeter
+ */
+public class SteganographyRecognizer implements Recognizer {
+
+    @Override
+    public RecognitionStrategy getStrategy() {
+        return RecognitionStrategy.STEGANOGRAPHY;
+    }
+
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
+
+    @Override
+    public long getBudgetMillis() {
+        return Long.MAX_VALUE;
+    }
+
+    @Override
+    public RecognitionResult recognize(BufferedImage image) {
+        String text = SteganographyUtil.decode(image);
+        if (text == null || text.isEmpty()) {
+            return null;
+        }
+        return new RecognitionResult(text, getStrategy(), 1.0);
+    }
+}
@@ -0,0 +1,266 @@
+package de.moritzf.latexhelper.render;
+
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of large rasterized glyphs, shared by all renders. A glyph is rasterized once per font, character, scale,
+ * sub pixel position, color and antialiasing hints and blitted from then on (see {@link GlyphCachingGraphics}).
+ * The cache is bounded by the memory of its bitmaps and evicts the least recently used glyphs. Instances are thread
+ * safe.
+ *
+ * @author Moritz Floeter
+ */
+public class GlyphCache {
+
+    /**
+     * Default upper bound for the memory of the cached glyphs in bytes.
+     */
+    public static final long DEFAULT_BUDGET_BYTES = 32L * 1024 * 1024;
+
+    /**
+     * Number of sub pixel positions a glyph is rasterized for in each direction.
+     */
+    static final int SUBPIXEL_STEPS = 4;
+
+    /**
+     * Font size in device pixels up to which Java2D caches glyphs itself, only larger glyphs are cached here.
+     */
+    static final int MIN_GLYPH_SIZE = 100;
+
+    /**
+     * Glyphs larger than this in either direction are not cached, e.g. at the highest zoom levels.
+     */
+    static final int MAX_GLYPH_SIZE = 512;
+
+    private static final int MAX_SEEN = 4096;
+
+    private static GlyphCache defaultCache;
+
+    private final long budgetBytes;
+    private final LinkedHashMap<Key, Glyph> glyphs = new LinkedHashMap<>(256, 0.75f, true);
+
+    /**
+     * Glyphs that missed once. A glyph is only rasterized into the cache when it misses a second time, so glyphs
+     * painted once do not evict the ones painted over and over.
+     */
+    private final LinkedHashMap<Key, Boolean> seen = new LinkedHashMap<Key, Boolean>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Boolean> eldest) {
+            return size() > MAX_SEEN;
+        }
+    };
+    private long bytes;
+    private long hits;
+    private long misses;
+
+    /**
+     * Instantiates a new glyph cache.
+     *
+     * @param budgetBytes the upper bound for the memory of the cached glyphs in bytes
+     */
+    public GlyphCache(long budgetBytes) {
+        this.budgetBytes = budgetBytes;
+    }
+
+    /**
+     * Gets the cache shared by the application.
+     *
+     * @return the default cache
+     */
+    public static synchronized GlyphCache getDefault() {
+        if (defaultCache == null) {
+            defaultCache = new GlyphCache(DEFAULT_BUDGET_BYTES);
+        }
+        return defaultCache;
+    }
+
+    /**
+     * Gets a rasterized glyph, rasterizing it if it is not cached and has been asked for before.
+     *
+     * @return the glyph or null if the caller should draw it directly
+     */
+    Glyph get(Key key) {
+        synchronized (this) {
+            Glyph glyph = glyphs.get(key);
+            if (glyph != null) {
+                hits++;
+                return glyph;
+            }
+            misses++;
+            if (seen.put(key, Boolean.TRUE) == null) {
+                return null;
+            }
+            seen.remove(key);
+        }
+        // rasterized outside of the lock, two threads may rasterize the same glyph once
+        Glyph glyph = rasterize(key);
+        if (glyph == null) {
+            return null;
+        }
+        synchronized (this) {
+            if (glyphs.put(key, glyph) == null) {
+                bytes += glyph.bytes();
+            }
+            while (bytes > budgetBytes && !glyphs.isEmpty()) {
+                Map.Entry<Key, Glyph> eldest = glyphs.entrySet().iterator().next();
+                bytes -= eldest.getValue().bytes();
+                glyphs.remove(eldest.getKey());
+            }
+        }
+        return glyph;
+    }
+
+    private static Glyph rasterize(Key key) {
+        double phaseX = (double) key.phaseX / SUBPIXEL_STEPS;
+        double phaseY = (double) key.phaseY / SUBPIXEL_STEPS;
+        FontRenderContext frc = new FontRenderContext(new AffineTransform(key.scaleX, 0, 0, key.scaleY, 0, 0),
+                key.textAntialiasing, key.fractionalMetrics);
+        GlyphVector vector = key.font.createGlyphVector(frc, new char[]{key.character});
+        Rectangle bounds = vector.getPixelBounds(frc, (float) (phaseX / key.scaleX), (float) (phaseY / key.scaleY));
+        if (bounds.isEmpty()) {
+            return Glyph.EMPTY;
+        }
+        // one pixel of padding for antialiasing outside of the reported bounds
+        bounds.grow(1, 1);
+        if (bounds.width > MAX_GLYPH_SIZE || bounds.height > MAX_GLYPH_SIZE) {
+            return null;
+        }
+        BufferedImage image = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_ARGB_PRE);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, key.antialiasing);
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, key.textAntialiasing);
+        g.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, key.fractionalMetrics);
+        g.translate(phaseX - bounds.x, phaseY - bounds.y);
+        g.scale(key.scaleX, key.scaleY);
+        g.setColor(new Color(key.argb, true));
+        g.setFont(key.font);
+        g.drawChars(new char[]{key.character}, 0, 1, 0, 0);
+        g.dispose();
+        return new Glyph(image, bounds.x, bounds.y);
+    }
+
+    /**
+     * Gets the share of lookups that were answered from the cache.
+     *
+     * @return the hit rate between 0 and 1
+     */
+    public synchronized double getHitRate() {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    /**
+     * Gets the memory of the cached glyphs.
+     *
+     * @return the memory in bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Gets the number of cached glyphs.
+     *
+     * @return the number of glyphs
+     */
+    public synchronized int size() {
+        return glyphs.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "GlyphCache{" +
+                "glyphs=" + glyphs.size() +
+                ", bytes=" + bytes +
+                ", hitRate=" + String.format("%.3f", getHitRate()) +
+                '}';
+    }
+
+    /**
+     * Identifies a rasterized glyph.
+     */
+    static final class Key {
+        private final Font font;
+        private final char character;
+        private final double scaleX;
+        private final double scaleY;
+        private final int phaseX;
+        private final int phaseY;
+        private final int argb;
+        private final Object antialiasing;
+        private final Object textAntialiasing;
+        private final Object fractionalMetrics;
+        private final int hash;
+
+        Key(Font font, char character, double scaleX, double scaleY, int phaseX, int phaseY, int argb,
+            Object antialiasing, Object textAntialiasing, Object fractionalMetrics) {
+            this.font = font;
+            this.character = character;
+            this.scaleX = scaleX;
+            this.scaleY = scaleY;
+            this.phaseX = phaseX;
+            this.phaseY = phaseY;
+            this.argb = argb;
+            this.antialiasing = antialiasing;
+            this.textAntialiasing = textAntialiasing;
+            this.fractionalMetrics = fractionalMetrics;
+            // computed by hand, as this runs for every painted character
+            int h = font.hashCode();
+            h = 31 * h + character;
+            h = 31 * h + Double.hashCode(scaleX);
+            h = 31 * h + Double.hashCode(scaleY);
+            h = 31 * h + phaseX * GlyphCache.SUBPIXEL_STEPS + phaseY;
+            h = 31 * h + argb;
+            h = 31 * h + System.identityHashCode(antialiasing);
+            h = 31 * h + System.identityHashCode(textAntialiasing);
+            this.hash = 31 * h + System.identityHashCode(fractionalMetrics);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) o;
+            return character == key.character && scaleX == key.scaleX && scaleY == key.scaleY
+                    && phaseX == key.phaseX && phaseY == key.phaseY && argb == key.argb
+                    && font.equals(key.font) && antialiasing == key.antialiasing
+                    && textAntialiasing == key.textAntialiasing && fractionalMetrics == key.fractionalMetrics;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * A rasterized glyph and the offset of its top left corner from the pixel the glyph origin falls into.
+     */
+    static final class Glyph {
+        static final Glyph EMPTY = new Glyph(null, 0, 0);
+
+        final BufferedImage image;
+        final int offsetX;
+        final int offsetY;
+
+        private Glyph(BufferedImage image, int offsetX, int offsetY) {
+            this.image = image;
+            this.offsetX = offsetX;
+            this.offsetY = offsetY;
+        }
+
+        private long bytes() {
+            // the key and bookkeeping cost about as much as a tiny bitmap
+            return image == null ? 64 : 64 + 4L * image.getWidth() * image.getHeight();
+        }
+    }
+}
@@ -0,0 +1,553 @@
+package de.moritzf.latexhelper.render;
+
+import java.awt.*;
+import java.awt.font.FontRenderContext;
+import java.awt.font.GlyphVector;
+import java.awt.geom.AffineTransform;
+import java.awt.image.BufferedImage;
+import java.awt.image.BufferedImageOp;
+import java.awt.image.ImageObserver;
+import java.awt.image.RenderedImage;
+import java.awt.image.renderable.RenderableImage;
+import java.text.AttributedCharacterIterator;
+import java.util.Map;
+
+/**
+ * Graphics painting large single characters from a {@link GlyphCache} instead of rasterizing them again. jlatexmath
+ * paints every symbol of a formula as a single character by {@link #drawChars(char[], int, int, int, int)}. Java2D
+ * keeps rasterized glyphs only up to a size of 100 pixels and fills the outlines of larger ones on every call, which
+ * makes exports (rendered at size 100) and strongly zoomed previews slow; those glyphs are blitted from the cache
+ * instead. Everything else is passed on unchanged, as are characters that can not be blitted exactly: rotated or
+ * sheared text, non color paints, composites other than source over and subpixel (LCD) antialiasing.
+ * <p>
+ * Rendering hints can be pinned, e.g. to keep a fast draft free of antialiasing although the painted icon turns it
+ * on for itself.
+ * <p>
+ * Glyphs are positioned to the nearest quarter pixel. Only meant for graphics of {@link BufferedImage}s, whose
+ * device space is their user space without transform.
+ *
+ * @author Moritz Floeter
+ */
+public class GlyphCachingGraphics extends Graphics2D {
+
+    private static final int NOT_CACHEABLE_TRANSFORM = AffineTransform.TYPE_FLIP | AffineTransform.TYPE_MASK_ROTATION
+            | AffineTransform.TYPE_GENERAL_TRANSFORM;
+
+    /**
+     * Distance in font sizes up to which glyphs, e.g. large delimiters, may reach from their origin.
+     */
+    private static final int GLYPH_REACH = 4;
+
+    private final Graphics2D g;
+    private final GlyphCache cache;
+
+    /**
+     * Graphics without transform blitting the glyphs, so the transform of {@link #g} does not have to be swapped
+     * for every glyph. Created lazily and dropped whenever the clip changes.
+     */
+    private Graphics2D blitter;
+
+    private Rectangle deviceClip;
+
+    /**
+     * Hints that can not be changed any more, null if no hints are pinned.
+     */
+    private RenderingHints pinnedHints;
+
+    /**
+     * Wraps graphics, using the default glyph cache.
+     *
+     * @param g the graphics of a buffered image
+     */
+    public GlyphCachingGraphics(Graphics2D g) {
+        this(g, GlyphCache.getDefault());
+    }
+
+    /**
+     * Wraps graphics.
+     *
+     * @param g     the graphics of a buffered image
+     * @param cache the glyph cache
+     */
+    public GlyphCachingGraphics(Graphics2D g, GlyphCache cache) {
+        this.g = g;
+        this.cache = cache;
+    }
+
+    /**
+     * Sets rendering hints and ignores any later change of them, including changes through graphics created from
+     * this one.
+     *
+     * @param hints the hints to pin
+     */
+    public void pinRenderingHints(Map<?, ?> hints) {
+        g.addRenderingHints(hints);
+        if (pinnedHints == null) {
+            pinnedHints = new RenderingHints(null);
+        }
+        pinnedHints.putAll(hints);
+    }
+
+    @Override
+    public void drawChars(char[] data, int offset, int length, int x, int y) {
+        if (length != 1 || !drawCached(data[offset], x, y)) {
+            g.drawChars(data, offset, length, x, y);
+        }
+    }
+
+    @Override
+    public void drawString(String str, int x, int y) {
+        if (str.length() != 1 || !drawCached(str.charAt(0), x, y)) {
+            g.drawString(str, x, y);
+        }
+    }
+
+    @Override
+    public void drawString(String str, float x, float y) {
+        if (str.length() != 1 || !drawCached(str.charAt(0), x, y)) {
+            g.drawString(str, x, y);
+        }
+    }
+
+    /**
+     * Draws a character from the cache.
+     *
+     * @return false, if the character can not be drawn from the cache
+     */
+    private boolean drawCached(char character, double x, double y) {
+        AffineTransform transform = g.getTransform();
+        Paint paint = g.getPaint();
+        Composite composite = g.getComposite();
+        Font font = g.getFont();
+        Object textAntialiasing = g.getRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING);
+        if ((transform.getType() & NOT_CACHEABLE_TRANSFORM) != 0 || transform.getScaleX() <= 0
+                || transform.getScaleY() <= 0 || !(paint instanceof Color)
+                || !AlphaComposite.SrcOver.equals(composite) || font.isTransformed()
+                || !(textAntialiasing == RenderingHints.VALUE_TEXT_ANTIALIAS_ON
+                || textAntialiasing == RenderingHints.VALUE_TEXT_ANTIALIAS_OFF
+                || textAntialiasing == RenderingHints.VALUE_TEXT_ANTIALIAS_DEFAULT)) {
+            return false;
+        }
+        if (font.getSize2D() * Math.max(transform.getScaleX(), transform.getScaleY()) <= GlyphCache.MIN_GLYPH_SIZE) {
+            // java2d caches small glyphs itself and draws them faster than any image could be blitted
+            return false;
+        }
+        double deviceX = transform.getScaleX() * x + transform.getTranslateX();
+        double deviceY = transform.getScaleY() * y + transform.getTranslateY();
+        long stepsX = Math.round(deviceX * GlyphCache.SUBPIXEL_STEPS);
+        long stepsY = Math.round(deviceY * GlyphCache.SUBPIXEL_STEPS);
+        int pixelX = (int) Math.floorDiv(stepsX, GlyphCache.SUBPIXEL_STEPS);
+        int pixelY = (int) Math.floorDiv(stepsY, GlyphCache.SUBPIXEL_STEPS);
+        int phaseX = (int) Math.floorMod(stepsX, GlyphCache.SUBPIXEL_STEPS);
+        int phaseY = (int) Math.floorMod(stepsY, GlyphCache.SUBPIXEL_STEPS);
+        // glyphs far outside of the clip, e.g. of the other strips of an image, are not worth rasterizing
+        int reach = (int) Math.ceil(GLYPH_REACH * font.getSize2D()
+                * Math.max(transform.getScaleX(), transform.getScaleY()));
+        Rectangle clip = getDeviceClip();
+        if (pixelX + reach < clip.x || pixelX - reach > clip.x + clip.width
+                || pixelY + reach < clip.y || pixelY - reach > clip.y + clip.height) {
+            return false;
+        }
+        GlyphCache.Glyph glyph = cache.get(new GlyphCache.Key(font, character, transform.getScaleX(),
+                transform.getScaleY(), phaseX, phaseY, ((Color) paint).getRGB(),
+                g.getRenderingHint(RenderingHints.KEY_ANTIALIASING), textAntialiasing,
+                g.getRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS)));
+        if (glyph == null) {
+            return false;
+        }
+        if (glyph.image != null) {
+            getBlitter().drawImage(glyph.image, pixelX + glyph.offsetX, pixelY + glyph.offsetY, null);
+        }
+        return true;
+    }
+
+    private Graphics2D getBlitter() {
+        if (blitter == null) {
+            // the clip is kept in device space, so it is still right without the transform
+            blitter = (Graphics2D) g.create();
+            blitter.setTransform(new AffineTransform());
+        }
+        return blitter;
+    }
+
+    /**
+     * Gets the clip in device space, the bounds of the image if there is no clip.
+     */
+    private Rectangle getDeviceClip() {
+        if (deviceClip == null) {
+            deviceClip = getBlitter().getClipBounds();
+            if (deviceClip == null) {
+                deviceClip = g.getDeviceConfiguration().getBounds();
+            }
+        }
+        return deviceClip;
+    }
+
+    private void clipChanged() {
+        deviceClip = null;
+        if (blitter != null) {
+            blitter.dispose();
+            blitter = null;
+        }
+    }
+
+    @Override
+    public Graphics create() {
+        GlyphCachingGraphics copy = new GlyphCachingGraphics((Graphics2D) g.create(), cache);
+        if (pinnedHints != null) {
+            copy.pinRenderingHints(pinnedHints);
+        }
+        return copy;
+    }
+
+    @Override
+    public void draw(Shape s) {
+        g.draw(s);
+    }
+
+    @Override
+    public boolean drawImage(Image img, AffineTransform xform, ImageObserver obs) {
+        return g.drawImage(img, xform, obs);
+    }
+
+    @Override
+    public void drawImage(BufferedImage img, BufferedImageOp op, int x, int y) {
+        g.drawImage(img, op, x, y);
+    }
+
+    @Override
+    public void drawRenderedImage(RenderedImage img, AffineTransform xform) {
+        g.drawRenderedImage(img, xform);
+    }
+
+    @Override
+    public void drawRenderableImage(RenderableImage img, AffineTransform xform) {
+        g.drawRenderableImage(img, xform);
+    }
+
+    @Override
+    public void drawString(AttributedCharacterIterator iterator, int x, int y) {
+        g.drawString(iterator, x, y);
+    }
+
+    @Override
+    public void drawString(AttributedCharacterIterator iterator, float x, float y) {
+        g.drawString(iterator, x, y);
+    }
+
+    @Override
+    public void drawGlyphVector(GlyphVector glyphs, float x, float y) {
+        g.drawGlyphVector(glyphs, x, y);
+    }
+
+    @Override
+    public void fill(Shape s) {
+        g.fill(s);
+    }
+
+    @Override
+    public boolean hit(Rectangle rect, Shape s, boolean onStroke) {
+        return g.hit(rect, s, onStroke);
+    }
+
+    @Override
+    public GraphicsConfiguration getDeviceConfiguration() {
+        return g.getDeviceConfiguration();
+    }
+
+    @Override
+    public void setComposite(Composite comp) {
+        g.setComposite(comp);
+    }
+
+    @Override
+    public void setPaint(Paint paint) {
+        g.setPaint(paint);
+    }
+
+    @Override
+    public void setStroke(Stroke s) {
+        g.setStroke(s);
+    }
+
+    @Override
+    public void setRenderingHint(RenderingHints.Key hintKey, Object hintValue) {
+        if (pinnedHints == null || !pinnedHints.containsKey(hintKey)) {
+            g.setRenderingHint(hintKey, hintValue);
+        }
+    }
+
+    @Override
+    public Object getRenderingHint(RenderingHints.Key hintKey) {
+        return g.getRenderingHint(hintKey);
+    }
+
+    @Override
+    public void setRenderingHints(Map<?, ?> hints) {
+        g.setRenderingHints(hints);
+        if (pinnedHints != null) {
+            g.addRenderingHints(pinnedHints);
+        }
+    }
+
+    @Override
+    public void addRenderingHints(Map<?, ?> hints) {
+        g.addRenderingHints(hints);
+        if (pinnedHints != null) {
+            g.addRenderingHints(pinnedHints);
+        }
+    }
+
+    @Override
+    public RenderingHints getRenderingHints() {
+        return g.getRenderingHints();
+    }
+
+    @Override
+    public void translate(int x, int y) {
+        g.translate(x, y);
+    }
+
+    @Override
+    public void translate(double tx, double ty) {
+        g.translate(tx, ty);
+    }
+
+    @Override
+    public void rotate(double theta) {
+        g.rotate(theta);
+    }
+
+    @Override
+    public void rotate(double theta, double x, double y) {
+        g.rotate(theta, x, y);
+    }
+
+    @Override
+    public void scale(double sx, double sy) {
+        g.scale(sx, sy);
+    }
+
+    @Override
+    public void shear(double shx, double shy) {
+        g.shear(shx, shy);
+    }
+
+    @Override
+    public void transform(AffineTransform tx) {
+        g.transform(tx);
+    }
+
+    @Override
+    public void setTransform(AffineTransform tx) {
+        g.setTransform(tx);
+    }
+
+    @Override
+    public AffineTransform getTransform() {
+        return g.getTransform();
+    }
+
+    @Override
+    public Paint getPaint() {
+        return g.getPaint();
+    }
+
+    @Override
+    public Composite getComposite() {
+        return g.getComposite();
+    }
+
+    @Override
+    public void setBackground(Color color) {
+        g.setBackground(color);
+    }
+
+    @Override
+    public Color getBackground() {
+        return g.getBackground();
+    }
+
+    @Override
+    public Stroke getStroke() {
+        return g.getStroke();
+    }
+
+    @Override
+    public void clip(Shape s) {
+        g.clip(s);
+        clipChanged();
+    }
+
+    @Override
+    public FontRenderContext getFontRenderContext() {
+        return g.getFontRenderContext();
+    }
+
+    @Override
+    public Color getColor() {
+        return g.getColor();
+    }
+
+    @Override
+    public void setColor(Color c) {
+        g.setColor(c);
+    }
+
+    @Override
+    public void setPaintMode() {
+        g.setPaintMode();
+    }
+
+    @Override
+    public void setXORMode(Color c1) {
+        g.setXORMode(c1);
+    }
+
+    @Override
+    public Font getFont() {
+        return g.getFont();
+    }
+
+    @Override
+    public void setFont(Font font) {
+        g.setFont(font);
+    }
+
+    @Override
+    public FontMetrics getFontMetrics(Font f) {
+        return g.getFontMetrics(f);
+    }
+
+    @Override
+    public Rectangle getClipBounds() {
+        return g.getClipBounds();
+    }
+
+    @Override
+    public void clipRect(int x, int y, int width, int height) {
+        g.clipRect(x, y, width, height);
+        clipChanged();
+    }
+
+    @Override
+    public void setClip(int x, int y, int width, int height) {
+        g.setClip(x, y, width, height);
+        clipChanged();
+    }
+
+    @Override
+    public Shape getClip() {
+        return g.getClip();
+    }
+
+    @Override
+    public void setClip(Shape clip) {
+        g.setClip(clip);
+        clipChanged();
+    }
+
+    @Override
+    public void copyArea(int x, int y, int width, int height, int dx, int dy) {
+        g.copyArea(x, y, width, height, dx, dy);
+    }
+
+    @Override
+    public void drawLine(int x1, int y1, int x2, int y2) {
+        g.drawLine(x1, y1, x2, y2);
+    }
+
+    @Override
+    public void fillRect(int x, int y, int width, int height) {
+        g.fillRect(x, y, width, height);
+    }
+
+    @Override
+    public void clearRect(int x, int y, int width, int height) {
+        g.clearRect(x, y, width, height);
+    }
+
+    @Override
+    public void drawRoundRect(int x, int y, int width, int height, int arcWidth, int arcHeight) {
+        g.drawRoundRect(x, y, width, height, arcWidth, arcHeight);
+    }
+
+    @Override
+    public void fillRoundRect(int x, int y, int width, int height, int arcWidth, int arcHeight) {
+        g.fillRoundRect(x, y, width, height, arcWidth, arcHeight);
+    }
+
+    @Override
+    public void drawOval(int x, int y, int width, int height) {
+        g.drawOval(x, y, width, height);
+    }
+
+    @Override
+    public void fillOval(int x, int y, int width, int height) {
+        g.fillOval(x, y, width, height);
+    }
+
+    @Override
+    public void drawArc(int x, int y, int width, int height, int startAngle, int arcAngle) {
+        g.drawArc(x, y, width, height, startAngle, arcAngle);
+    }
+
+    @Override
+    public void fillArc(int x, int y, int width, int height, int startAngle, int arcAngle) {
+        g.fillArc(x, y, width, height, startAngle, arcAngle);
+    }
+
+    @Override
+    public void drawPolyline(int[] xPoints, int[] yPoints, int nPoints) {
+        g.drawPolyline(xPoints, yPoints, nPoints);
+    }
+
+    @Override
+    public void drawPolygon(int[] xPoints, int[] yPoints, int nPoints) {
+        g.drawPolygon(xPoints, yPoints, nPoints);
+    }
+
+    @Override
+    public void fillPolygon(int[] xPoints, int[] yPoints, int nPoints) {
+        g.fillPolygon(xPoints, yPoints, nPoints);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, ImageObserver observer) {
+        return g.drawImage(img, x, y, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, int width, int height, ImageObserver observer) {
+        return g.drawImage(img, x, y, width, height, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, Color bgcolor, ImageObserver observer) {
+        return g.drawImage(img, x, y, bgcolor, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int x, int y, int width, int height, Color bgcolor,
+                             ImageObserver observer) {
+        return g.drawImage(img, x, y, width, height, bgcolor, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2, int sx1, int sy1, int sx2, int sy2,
+                             ImageObserver observer) {
+        return g.drawImage(img, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2, observer);
+    }
+
+    @Override
+    public boolean drawImage(Image img, int dx1, int dy1, int dx2, int dy2, int sx1, int sy1, int sx2, int sy2,
+                             Color bgcolor, ImageObserver observer) {
+        return g.drawImage(img, dx1, dy1, dx2, dy2, sx1, sy1, sx2, sy2, bgcolor, observer);
+    }
+
+    @Override
+    public void dispose() {
+        g.dispose();
+        clipChanged();
+    }
+}
@@ -0,0 +1,47 @@
+package de.moritzf.latexhelper.render;
+
+/**
+ * Signals that an expression could not be rendered. The {@link Kind} tells why, so callers can show a fitting
+ * message.
+ *
+ * @author Moritz Floeter
+ */
+public class RenderException extends Exception {
+
+    /**
+     * The reasons rendering can fail for.
+     */
+    public enum Kind {
+        /**
+         * The expression is not valid LaTeX.
+         */
+        INVALID,
+        /**
+         * The expression exceeds a size budget or took longer than the time budget.
+         */
+        TOO_COMPLEX
+    }
+
+    private final Kind kind;
+
+    /**
+     * Instantiates a new render exception.
+     *
+     * @param kind    the kind of failure
+     * @param message the message
+     * @param cause   the cause, may be null
+     */
+    public RenderException(Kind kind, String message, Throwable cause) {
+        super(message, cause);
+        this.kind = kind;
+    }
+
+    /**
+     * Gets the kind of failure.
+     *
+     * @return the kind
+     */
+    public Kind getKind() {
+        return kind;
+    }
+}
@@ -0,0 +1,362 @@
+package de.moritzf.latexhelper.render;
+
+import de.moritzf.latexhelper.util.DaemonThreadFactory;
+import org.scilab.forge.jlatexmath.TeXFormula;
+import org.scilab.forge.jlatexmath.TeXIcon;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Parses and lays out latex expressions within time and size budgets, so pathological input such as deeply
+ * nested fractions, huge arrays or runaway macro expansion can not freeze the user interface or a batch job.
+ * <ul>
+ * <li>Before any work is done, the source is checked against the size budgets: its length, the nesting depth of
+ * groups and <code>\left</code> delimiters and the number of table cells.</li>
+ * <li>Parsing and layout run on a worker thread. If they take longer than the time budget, the caller gets a
+ * {@link RenderException.Kind#TOO_COMPLEX} failure right away. jlatexmath can not be aborted safely, so the
+ * worker is interrupted, lowered to minimum priority and abandoned; it ends when jlatexmath does. While
+ * {@link #DEFAULT_MAX_RUNAWAYS abandoned workers} are still running, new expressions are rejected as too complex
+ * right away, so repeated pathological input can not pile up busy threads.</li>
+ * <li>A laid out icon larger than the pixel budget is rejected before anyone allocates an image for it.</li>
+ * <li>Stack and heap exhaustion while parsing count as too complex as well.</li>
+ * </ul>
+ * Callers show {@link #createErrorIcon(RenderException, int, float)} instead of the formula if rendering fails.
+ * Instances are thread safe.
+ *
+ * @author Moritz Floeter
+ */
+public class RenderService {
+
+    private static final Logger LOGGER = Logger.getLogger(RenderService.class.getName());
+
+    /**
+     * Default time in milliseconds parsing and layout of an expression may take.
+     */
+    public static final long DEFAULT_TIMEOUT_MILLIS = 2000;
+
+    /**
+     * Default maximum number of characters of an expression.
+     */
+    public static final int DEFAULT_MAX_SOURCE_LENGTH = 20_000;
+
+    /**
+     * Default maximum nesting depth of groups and delimiters.
+     */
+    public static final int DEFAULT_MAX_NESTING = 100;
+
+    /**
+     * Default maximum number of table cells, counted as column and row separators.
+     */
+    public static final int DEFAULT_MAX_CELLS = 10_000;
+
+    /**
+     * Default maximum number of pixels of a laid out icon, 200 MB as an ARGB image.
+     */
+    public static final long DEFAULT_MAX_PIXELS = 50_000_000L;
+
+    /**
+     * Default number of abandoned workers still running above which new expressions are rejected.
+     */
+    public static final int DEFAULT_MAX_RUNAWAYS = 4;
+
+    private static final ScheduledExecutorService TIMEOUTS =
+            Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("render-timeout"));
+
+    private static RenderService defaultService;
+
+    private final long timeoutMillis;
+    private final int maxSourceLength;
+    private final int maxNesting;
+    private final int maxCells;
+    private final long maxPixels;
+    private final int maxRunaways;
+    private final ExecutorService workers = Executors.newCachedThreadPool(new DaemonThreadFactory("render"));
+    private final AtomicInteger runaways = new AtomicInteger();
+
+    /**
+     * Instantiates a new render service that accepts the default number of abandoned workers.
+     *
+     * @param timeoutMillis   the time in milliseconds parsing and layout of an expression may take
+     * @param maxSourceLength the maximum number of characters of an expression
+     * @param maxNesting      the maximum nesting depth of groups and delimiters
+     * @param maxCells        the maximum number of table cells
+     * @param maxPixels       the maximum number of pixels of a laid out icon
+     */
+    public RenderService(long timeoutMillis, int maxSourceLength, int maxNesting, int maxCells, long maxPixels) {
+        this(timeoutMillis, maxSourceLength, maxNesting, maxCells, maxPixels, DEFAULT_MAX_RUNAWAYS);
+    }
+
+    /**
+     * Instantiates a new render service.
+     *
+     * @param timeoutMillis   the time in milliseconds parsing and layout of an expression may take
+     * @param maxSourceLength the maximum number of characters of an expression
+     * @param maxNesting      the maximum nesting depth of groups and delimiters
+     * @param maxCells        the maximum number of table cells
+     * @param maxPixels       the maximum number of pixels of a laid out icon
+     * @param maxRunaways     the number of abandoned workers still running above which new expressions are
+     *                        rejected
+     */
+    public RenderService(long timeoutMillis, int maxSourceLength, int maxNesting, int maxCells, long maxPixels,
+                         int maxRunaways) {
+        this.timeoutMillis = timeoutMillis;
+        this.maxSourceLength = maxSourceLength;
+        this.maxNesting = maxNesting;
+        this.maxCells = maxCells;
+        this.maxPixels = maxPixels;
+        this.maxRunaways = maxRunaways;
+    }
+
+    /**
+     * Gets the service shared by the application, which uses the default budgets.
+     *
+     * @return the default service
+     */
+    public static synchronized RenderService getDefault() {
+        if (defaultService == null) {
+            defaultService = new RenderService(DEFAULT_TIMEOUT_MILLIS, DEFAULT_MAX_SOURCE_LENGTH,
+                    DEFAULT_MAX_NESTING, DEFAULT_MAX_CELLS, DEFAULT_MAX_PIXELS);
+        }
+        return defaultService;
+    }
+
+    /**
+     * Parses an expression, e.g. to validate it.
+     *
+     * @param expression the expression
+     * @return the parsed formula
+     * @throws RenderException if the expression is invalid or exceeds a budget
+     */
+    public TeXFormula parse(String expression) throws RenderException {
+        return await(submit(expression, () -> new TeXFormula(expression)));
+    }
+
+    /**
+     * Parses and lays out an expression.
+     *
+     * @param expression the expression
+     * @param style      the style, see {@link org.scilab.forge.jlatexmath.TeXConstants}
+     * @param size       the font size
+     * @return the icon
+     * @throws RenderException if the expression is invalid or exceeds a budget
+     */
+    public TeXIcon createIcon(String expression, int style, float size) throws RenderException {
+        return await(submit(expression, () -> checkPixels(new TeXFormula(expression).createTeXIcon(style, size))));
+    }
+
+    /**
+     * Parses and lays out an expression with line breaking.
+     *
+     * @param expression the expression
+     * @param style      the style, see {@link org.scilab.forge.jlatexmath.TeXConstants}
+     * @param size       the font size
+     * @param widthUnit  the unit of the text width
+     * @param textWidth  the width lines are broken at
+     * @param align      the alignment
+     * @return the icon
+     * @throws RenderException if the expression is invalid or exceeds a budget
+     */
+    public TeXIcon createIcon(String expression, int style, float size, int widthUnit, float textWidth, int align)
+            throws RenderException {
+        return await(createIconAsync(expression, style, size, widthUnit, textWidth, align));
+    }
+
+    /**
+     * Parses and lays out an expression with line breaking without blocking the caller. The future fails with a
+     * {@link RenderException} if the expression is invalid or exceeds a budget.
+     *
+     * @param expression the expression
+     * @param style      the style, see {@link org.scilab.forge.jlatexmath.TeXConstants}
+     * @param size       the font size
+     * @param widthUnit  the unit of the text width
+     * @param textWidth  the width lines are broken at
+     * @param align      the alignment
+     * @return the future icon
+     */
+    public CompletableFuture<TeXIcon> createIconAsync(String expression, int style, float size, int widthUnit,
+                                                      float textWidth, int align) {
+        return submit(expression, () -> checkPixels(
+                new TeXFormula(expression).createTeXIcon(style, size, widthUnit, textWidth, align)));
+    }
+
+    /**
+     * Creates the icon shown instead of a formula that could not be rendered.
+     *
+     * @param failure the failure
+     * @param style   the style, see {@link org.scilab.forge.jlatexmath.TeXConstants}
+     * @param size    the font size
+     * @return the icon
+     */
+    public static TeXIcon createErrorIcon(RenderException failure, int style, float size) {
+        String text = failure.getKind() == RenderException.Kind.TOO_COMPLEX
+                ? "\\text{Too complex to render: " + escapeText(failure.getMessage()) + "}"
+                : "\\text{Rendering failed: check LaTeX expression}";
+        return new TeXFormula(text).createTeXIcon(style, size);
+    }
+
+    private static String escapeText(String text) {
+        return text == null ? "" : text.replaceAll("[\\\\{}$&#^_%~]", " ");
+    }
+
+    /**
+     * Gets the number of abandoned workers that are still busy with an expression that exceeded the time budget.
+     *
+     * @return the number of runaway workers
+     */
+    public int getRunawayCount() {
+        return Math.max(0, runaways.get());
+    }
+
+    /**
+     * Checks an expression against the size budgets without parsing it.
+     *
+     * @param expression the expression
+     * @throws RenderException if the expression exceeds a budget
+     */
+    public void checkSource(String expression) throws RenderException {
+        if (expression.length() > maxSourceLength) {
+            throw tooComplex(expression.length() + " characters, at most " + maxSourceLength + " are allowed");
+        }
+        int depth = 0;
+        int maxDepth = 0;
+        int cells = 0;
+        for (int i = 0; i < expression.length(); i++) {
+            char c = expression.charAt(i);
+            if (c == '\\') {
+                if (isCommand(expression, i, "left") || isCommand(expression, i, "begin")) {
+                    depth++;
+                } else if (isCommand(expression, i, "right") || isCommand(expression, i, "end")) {
+                    depth--;
+                } else if (i + 1 < expression.length() && expression.charAt(i + 1) == '\\') {
+                    cells++;
+                }
+                // skips escaped characters such as \{ and the second backslash of a line break
+                i++;
+            } else if (c == '{') {
+                depth++;
+            } else if (c == '}') {
+                depth--;
+            } else if (c == '&') {
+                cells++;
+            }
+            maxDepth = Math.max(maxDepth, depth);
+        }
+        if (maxDepth > maxNesting) {
+            throw tooComplex("nesting depth " + maxDepth + ", at most " + maxNesting + " is allowed");
+        }
+        if (cells > maxCells) {
+            throw tooComplex(cells + " table cells, at most " + maxCells + " are allowed");
+        }
+    }
+
+    private static boolean isCommand(String expression, int backslash, String name) {
+        int end = backslash + 1 + name.length();
+        return expression.startsWith(name, backslash + 1)
+                && (end >= expression.length() || !Character.isLetter(expression.charAt(end)));
+    }
+
+    /**
+     * Checks the size of an image against the pixel budget, e.g. of an icon painted at a larger scale.
+     *
+     * @param width  the width of the image
+     * @param height the height of the image
+     * @throws RenderException if the image exceeds the pixel budget
+     */
+    public void checkPixels(int width, int height) throws RenderException {
+        long pixels = (long) width * height;
+        if (pixels > maxPixels) {
+            throw tooComplex(width + " x " + height + " pixels, at most " + maxPixels + " are allowed");
+        }
+    }
+
+    private TeXIcon checkPixels(TeXIcon icon) throws RenderException {
+        checkPixels(icon.getIconWidth(), icon.getIconHeight());
+        return icon;
+    }
+
+    private static RenderException tooComplex(String message) {
+        return new RenderException(RenderException.Kind.TOO_COMPLEX, message, null);
+    }
+
+    private <T> CompletableFuture<T> submit(String expression, Callable<T> work) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            checkSource(expression);
+        } catch (RenderException e) {
+            result.completeExceptionally(e);
+            return result;
+        }
+        int running = getRunawayCount();
+        if (running >= maxRunaways) {
+            // every thread of the cached pool stays busy until jlatexmath gives up, do not start even more
+            result.completeExceptionally(tooComplex(running + " earlier expressions that took too long are still"
+                    + " being rendered"));
+            return result;
+        }
+        long start = System.nanoTime();
+        AtomicReference<Thread> worker = new AtomicReference<>();
+        Future<?> task = workers.submit(() -> {
+            Thread.currentThread().setPriority(Thread.NORM_PRIORITY);
+            worker.set(Thread.currentThread());
+            boolean delivered;
+            try {
+                delivered = result.complete(work.call());
+            } catch (RenderException e) {
+                delivered = result.completeExceptionally(e);
+            } catch (StackOverflowError | OutOfMemoryError e) {
+                delivered = result.completeExceptionally(
+                        new RenderException(RenderException.Kind.TOO_COMPLEX, "exhausted " + e, e));
+            } catch (Throwable t) {
+                delivered = result.completeExceptionally(
+                        new RenderException(RenderException.Kind.INVALID, String.valueOf(t.getMessage()), t));
+            } finally {
+                worker.set(null);
+            }
+            if (!delivered) {
+                runaways.decrementAndGet();
+                LOGGER.log(Level.INFO, "Abandoned render finished after "
+                        + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+            }
+        });
+        ScheduledFuture<?> timeout = TIMEOUTS.schedule(() -> {
+            if (result.completeExceptionally(tooComplex("took longer than " + timeoutMillis + " ms"))) {
+                runaways.incrementAndGet();
+                Thread thread = worker.get();
+                if (thread != null) {
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                }
+                task.cancel(true);
+                LOGGER.log(Level.WARNING, "Rendering took longer than " + timeoutMillis
+                        + " ms, abandoning it (" + getRunawayCount() + " abandoned renders still running)");
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        result.whenComplete((value, failure) -> timeout.cancel(false));
+        return result;
+    }
+
+    private static <T> T await(CompletableFuture<T> future) throws RenderException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RenderException(RenderException.Kind.TOO_COMPLEX, "interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RenderException) {
+                throw (RenderException) e.getCause();
+            }
+            throw new RenderException(RenderException.Kind.INVALID, String.valueOf(e.getCause()), e.getCause());
+        }
+    }
+}
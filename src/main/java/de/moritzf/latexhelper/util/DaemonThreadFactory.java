@@ -0,0 +1,32 @@
+package de.moritzf.latexhelper.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread factory creating named daemon threads, so that background work never prevents the application from
+ * exiting.
+ *
+ * @author Moritz Floeter
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+
+    private final String namePrefix;
+    private final AtomicInteger counter = new AtomicInteger();
+
+    /**
+     * Instantiates a new daemon thread factory.
+     *
+     * @param namePrefix the prefix for the names of the created threads
+     */
+    public DaemonThreadFactory(String namePrefix) {
+        this.namePrefix = namePrefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, namePrefix + "-" + counter.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
@@ -0,0 +1,112 @@
+package de.moritzf.latexhelper.util;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * File types that can be imported, detected by the magic number at the start of the file.
+ *
+ * @author Moritz Floeter
+ */
+public enum FileType {
+    /**
+     * Portable network graphics.
+     */
+    PNG(true),
+    /**
+     * JPEG image.
+     */
+    JPEG(true),
+    /**
+     * GIF image.
+     */
+    GIF(true),
+    /**
+     * Windows bitmap.
+     */
+    BMP(true),
+    /**
+     * TIFF image (little or big endian).
+     */
+    TIFF(true),
+    /**
+     * WebP image.
+     */
+    WEBP(true),
+    /**
+     * Portable document format.
+     */
+    PDF(false),
+    /**
+     * Anything else.
+     */
+    UNKNOWN(false);
+
+    /**
+     * The number of bytes needed from the start of a file to detect every type.
+     */
+    public static final int HEADER_LENGTH = 12;
+
+    private static final byte[] PNG_SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A};
+    private static final byte[] JPEG_SIGNATURE = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF};
+    private static final byte[] GIF87_SIGNATURE = "GIF87a".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] GIF89_SIGNATURE = "GIF89a".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] BMP_SIGNATURE = "BM".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] TIFF_LE_SIGNATURE = {'I', 'I', 0x2A, 0x00};
+    private static final byte[] TIFF_BE_SIGNATURE = {'M', 'M', 0x00, 0x2A};
+    private static final byte[] RIFF_SIGNATURE = "RIFF".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] WEBP_SIGNATURE = "WEBP".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PDF_SIGNATURE = "%PDF-".getBytes(StandardCharsets.US_ASCII);
+
+    private final boolean image;
+
+    FileType(boolean image) {
+        this.image = image;
+    }
+
+    /**
+     * Checks if this type is an image format.
+     *
+     * @return true, if image
+     */
+    public boolean isImage() {
+        return image;
+    }
+
+    /**
+     * Detects the file type from the first bytes of a file.
+     *
+     * @param header the first bytes of the file, ideally {@link #HEADER_LENGTH} bytes
+     * @param length the number of valid bytes in the header
+     * @return the detected type, {@link #UNKNOWN} if no signature matches
+     */
+    public static FileType detect(byte[] header, int length) {
+        if (startsWith(header, length, 0, PNG_SIGNATURE)) {
+            return PNG;
+        } else if (startsWith(header, length, 0, JPEG_SIGNATURE)) {
+            return JPEG;
+        } else if (startsWith(header, length, 0, GIF87_SIGNATURE) || startsWith(header, length, 0, GIF89_SIGNATURE)) {
+            return GIF;
+        } else if (startsWith(header, length, 0, PDF_SIGNATURE)) {
+            return PDF;
+        } else if (startsWith(header, length, 0, TIFF_LE_SIGNATURE) || startsWith(header, length, 0, TIFF_BE_SIGNATURE)) {
+            return TIFF;
+        } else if (startsWith(header, length, 0, RIFF_SIGNATURE) && startsWith(header, length, 8, WEBP_SIGNATURE)) {
+            return WEBP;
+        } else if (startsWith(header, length, 0, BMP_SIGNATURE)) {
+            return BMP;
+        }
+        return UNKNOWN;
+    }
+
+    private static boolean startsWith(byte[] header, int length, int offset, byte[] signature) {
+        if (offset + signature.length > length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if (header[offset + i] != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
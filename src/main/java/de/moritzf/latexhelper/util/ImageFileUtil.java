@@ -1,11 +1,11 @@
 package de.moritzf.latexhelper.util;
 
+import org.apache.pdfbox.io.MemoryUsageSetting;
 import org.apache.pdfbox.pdmodel.PDDocument;
 
 import org.apache.pdfbox.rendering.ImageType;
 import org.apache.pdfbox.rendering.PDFRenderer;
 
-import javax.imageio.ImageIO;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 
@@ -30,63 +30,63 @@ public class ImageFileUtil {
     private static final Logger LOGGER = Logger.getLogger(ImageFileUtil.class.getName());
 
     /**
-     * Tests if file is an image file.
+     * Resolution used to find the content of a pdf page.
+     */
+    private static final float PROBE_DPI = 36;
+
+    /**
+     * Highest resolution used to render the content of a pdf page.
+     */
+    public static final float MAX_PDF_DPI = 300;
+
+    /**
+     * Maximum number of pixels of the rendered content of a pdf page.
+     */
+    public static final double MAX_PDF_PIXELS = 8_000_000;
+
+    /**
+     * Luminance below which a pixel counts as ink.
+     */
+    public static final int INK_THRESHOLD = 200;
+
+    /**
+     * Tests if file is an image file. Only the first bytes of the file are read, see {@link TypedFile}.
      *
      * @param file the file
      * @return true, if image
      */
     public static boolean isImage(File file) {
         try {
-            return ImageIO.read(file) != null;
-        } catch (Exception e) {
+            return TypedFile.open(file).isImage();
+        } catch (IOException e) {
             return false;
         }
     }
 
     /**
-     * Test if the data in the given byte array represents a PDF file.
+     * Test if the given file is a PDF file. Only the first bytes of the file are read, see {@link TypedFile}.
      *
      * @param file the file
      * @return true, if pdf file
      * @throws IOException the io exception
      */
     public static boolean isPdf(File file) throws IOException {
-        byte[] data = new byte[5];
-        InputStream is = new FileInputStream(file);
-
-        boolean isPdf = false;
-        if (is.read(data) != data.length) {
-            LOGGER.log(Level.INFO, "The file used does appear to be corrupted.");
-        } else {
-            isPdf = (data[0] == 0x25 &&// %
-                    data[1] == 0x50 && // P
-                    data[2] == 0x44 && // D
-                    data[3] == 0x46 && // F
-                    data[4] == 0x2D);
-        }
-
-
-        is.close();
-
-        return isPdf;
+        return TypedFile.open(file).isPdf();
     }
 
     /**
-     * Converts pdf to BufferedImage.
+     * Converts the first page of a pdf to a BufferedImage, see {@link #renderPageContent(PDFRenderer, int)}.
      *
      * @param pdf the pdf
-     * @return the buffered image
+     * @return the buffered image or null if the page is empty or could not be rendered
      */
     public static BufferedImage pdfToImage(File pdf) {
         BufferedImage image = null;
         if (pdf.exists()) {
-            try {
-                PDDocument document = PDDocument.load(pdf);
-                PDFRenderer pdfRenderer = new PDFRenderer(document);
-
+            // Keep the parsed document out of the heap, only the rendered images need memory
+            try (PDDocument document = PDDocument.load(pdf, MemoryUsageSetting.setupTempFileOnly())) {
                 //Only convert first page
-                image = pdfRenderer.renderImageWithDPI(0, 300, ImageType.RGB);
-                document.close();
+                image = renderPageContent(new PDFRenderer(document), 0);
             } catch (Exception e) {
                 LOGGER.log(Level.SEVERE, "Could not convert pdf to image. Perhaps the file used was not a valid pdf file.");
             }
@@ -95,6 +95,116 @@ public class ImageFileUtil {
         return image;
     }
 
+    /**
+     * Renders only the content of a pdf page, limited to {@link #MAX_PDF_PIXELS} pixels.
+     *
+     * @param renderer  the renderer of the document
+     * @param pageIndex the zero based index of the page
+     * @return the rendered content or null if the page is empty
+     * @throws IOException if the page could not be rendered
+     * @see #renderPageContent(PDFRenderer, int, double)
+     */
+    public static BufferedImage renderPageContent(PDFRenderer renderer, int pageIndex) throws IOException {
+        return renderPageContent(renderer, pageIndex, MAX_PDF_PIXELS);
+    }
+
+    /**
+     * Renders only the content of a pdf page. The page is first rendered at a low resolution to find the
+     * bounding box of its content. The content is then rendered cropped to that box at up to
+     * {@link #MAX_PDF_DPI}, lowering the resolution for large content so that the image never exceeds the
+     * given number of pixels. The image is grayscale since it is only used for recognition.
+     *
+     * @param renderer  the renderer of the document
+     * @param pageIndex the zero based index of the page
+     * @param maxPixels the maximum number of pixels of the rendered image
+     * @return the rendered content or null if the page is empty
+     * @throws IOException if the page could not be rendered
+     */
+    public static BufferedImage renderPageContent(PDFRenderer renderer, int pageIndex, double maxPixels)
+            throws IOException {
+        BufferedImage probe = renderer.renderImageWithDPI(pageIndex, PROBE_DPI, ImageType.GRAY);
+        Rectangle bounds = findInkBounds(probe, INK_THRESHOLD);
+        if (bounds == null) {
+            LOGGER.log(Level.INFO, "Page " + (pageIndex + 1) + " of pdf is empty");
+            return null;
+        }
+        // one probe pixel of padding, the probe may have cut off antialiased edges
+        bounds.grow(1, 1);
+        bounds = bounds.intersection(new Rectangle(0, 0, probe.getWidth(), probe.getHeight()));
+
+        double probePixels = (double) bounds.width * bounds.height;
+        float dpi = MAX_PDF_DPI;
+        double factor = dpi / PROBE_DPI;
+        if (probePixels * factor * factor > maxPixels) {
+            factor = Math.sqrt(maxPixels / probePixels);
+            dpi = (float) (factor * PROBE_DPI);
+        }
+
+        int x = (int) Math.floor(bounds.x * factor);
+        int y = (int) Math.floor(bounds.y * factor);
+        int width = Math.max(1, (int) Math.ceil(bounds.width * factor));
+        int height = Math.max(1, (int) Math.ceil(bounds.height * factor));
+        LOGGER.log(Level.INFO, "Rendering content of page " + (pageIndex + 1) + " at " + Math.round(dpi) + " dpi ("
+                + width + "x" + height + ")");
+
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D graphics = image.createGraphics();
+        graphics.setBackground(Color.WHITE);
+        graphics.clearRect(0, 0, width, height);
+        graphics.translate(-x, -y);
+        renderer.renderPageToGraphics(pageIndex, graphics, dpi / 72f);
+        graphics.dispose();
+        return image;
+    }
+
+    /**
+     * Finds the bounding box of everything darker than the given threshold.
+     *
+     * @param image     the image
+     * @param threshold the luminance (0 - 255) below which a pixel counts as ink
+     * @return the bounding box or null if the image contains no ink
+     */
+    public static Rectangle findInkBounds(BufferedImage image, int threshold) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int minX = width;
+        int minY = height;
+        int maxX = -1;
+        int maxY = -1;
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            image.getRGB(0, y, width, 1, row, 0, width);
+            for (int x = 0; x < width; x++) {
+                if (luminance(row[x]) < threshold) {
+                    minX = Math.min(minX, x);
+                    maxX = Math.max(maxX, x);
+                    minY = Math.min(minY, y);
+                    maxY = y;
+                }
+            }
+        }
+        if (maxX < 0) {
+            return null;
+        }
+        return new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+    }
+
+    /**
+     * Computes the luminance of an argb pixel. Transparent pixels count as white.
+     *
+     * @param argb the pixel
+     * @return the luminance between 0 and 255
+     */
+    public static int luminance(int argb) {
+        int alpha = (argb >>> 24) & 0xFF;
+        int red = (argb >> 16) & 0xFF;
+        int green = (argb >> 8) & 0xFF;
+        int blue = argb & 0xFF;
+        int luminance = (red * 299 + green * 587 + blue * 114) / 1000;
+        // blend with a white background
+        return (luminance * alpha + 255 * (255 - alpha)) / 255;
+    }
+
     /**
      * Converts a given Image to a BufferedImage. If the instance passed is already a BufferedImage, this
      * will return the image unchanged.
@@ -0,0 +1,82 @@
+package de.moritzf.latexhelper.util;
+
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Utility class to read text stored in the iTXt chunks of png files, as written by {@link StreamingPngWriter}.
+ * Unlike text hidden in the pixels (see {@link SteganographyUtil}), an iTXt chunk fits any image size and any text,
+ * but it is lost when only the pixels are copied, e.g. through the clipboard.
+ *
+ * @author Moritz Floeter
+ */
+public class PngTextUtil {
+
+    /**
+     * Keyword of the chunk holding the expression of an exported image.
+     */
+    public static final String LATEX_KEYWORD = "LaTeX";
+
+    private static final String PNG_METADATA_FORMAT = "javax_imageio_png_1.0";
+
+    /**
+     * Empty private constructor for PngTextUtil
+     */
+    private PngTextUtil() {
+        //Prevents instances of PngTextUtil
+    }
+
+    /**
+     * Reads the text of an iTXt chunk of a png file.
+     *
+     * @param file    the file
+     * @param keyword the keyword of the chunk
+     * @return the text or null if the file is no png or has no such chunk
+     * @throws IOException if the file could not be read
+     */
+    public static String read(File file, String keyword) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            if (input == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, false);
+                if (!"png".equalsIgnoreCase(reader.getFormatName())) {
+                    return null;
+                }
+                return findText(reader.getImageMetadata(0).getAsTree(PNG_METADATA_FORMAT), keyword);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static String findText(Node root, String keyword) {
+        for (Node chunk = root.getFirstChild(); chunk != null; chunk = chunk.getNextSibling()) {
+            if (!"iTXt".equals(chunk.getNodeName())) {
+                continue;
+            }
+            for (Node entry = chunk.getFirstChild(); entry != null; entry = entry.getNextSibling()) {
+                NamedNodeMap attributes = entry.getAttributes();
+                Node entryKeyword = attributes.getNamedItem("keyword");
+                if (entryKeyword != null && keyword.equals(entryKeyword.getNodeValue())) {
+                    Node text = attributes.getNamedItem("text");
+                    return text == null ? null : text.getNodeValue();
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,132 @@
+package de.moritzf.latexhelper.util;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+/**
+ * Reads parts of an image file without decoding the full resolution raster into memory. Uses
+ * {@link ImageReadParam} subsampling and source regions. Instances are not thread safe.
+ *
+ * @author Moritz Floeter
+ */
+public class RegionImageReader implements Closeable {
+
+    private final ImageInputStream input;
+    private final ImageReader reader;
+    private final int width;
+    private final int height;
+
+    private RegionImageReader(ImageInputStream input, ImageReader reader) throws IOException {
+        this.input = input;
+        this.reader = reader;
+        this.width = reader.getWidth(0);
+        this.height = reader.getHeight(0);
+    }
+
+    /**
+     * Opens an image file.
+     *
+     * @param file the file
+     * @return the reader or null if no decoder for the format of the file is installed
+     * @throws IOException if the file can not be read
+     */
+    public static RegionImageReader open(File file) throws IOException {
+        ImageInputStream input = ImageIO.createImageInputStream(file);
+        if (input == null) {
+            throw new IOException("Could not open " + file);
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+        if (!readers.hasNext()) {
+            input.close();
+            return null;
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(input, true, true);
+        try {
+            return new RegionImageReader(input, reader);
+        } catch (IOException e) {
+            reader.dispose();
+            input.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the width of the full image.
+     *
+     * @return the width
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height of the full image.
+     *
+     * @return the height
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets the number of pixels of the full image.
+     *
+     * @return the pixel count
+     */
+    public long getPixelCount() {
+        return (long) width * height;
+    }
+
+    /**
+     * Computes the smallest subsampling factor that reduces the given region to at most the given number of
+     * pixels.
+     *
+     * @param region    the region
+     * @param maxPixels the maximum number of pixels
+     * @return the subsampling factor, 1 if no subsampling is needed
+     */
+    public static int subsamplingFor(Rectangle region, long maxPixels) {
+        long pixels = (long) region.width * region.height;
+        return Math.max(1, (int) Math.ceil(Math.sqrt((double) pixels / maxPixels)));
+    }
+
+    /**
+     * Reads the full image.
+     *
+     * @return the image
+     * @throws IOException if the image can not be decoded
+     */
+    public BufferedImage read() throws IOException {
+        return reader.read(0);
+    }
+
+    /**
+     * Reads a region of the image.
+     *
+     * @param region      the region in coordinates of the full image
+     * @param subsampling the subsampling factor applied in both directions
+     * @return the image of the region
+     * @throws IOException if the image can not be decoded
+     */
+    public BufferedImage read(Rectangle region, int subsampling) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(region.intersection(new Rectangle(0, 0, width, height)));
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        return reader.read(0, param);
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.dispose();
+        input.close();
+    }
+}
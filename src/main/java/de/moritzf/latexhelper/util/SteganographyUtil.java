@@ -38,6 +38,31 @@ public class SteganographyUtil {
         return image;
     }
 
+    /**
+     * Tests if an image is large enough to hide a text in it.
+     *
+     * @param image   the image
+     * @param message the text to hide
+     * @return true, if {@link #encode(BufferedImage, String)} can hide the text in the image
+     */
+    public static boolean canEncode(BufferedImage image, String message) {
+        return getRequiredRows(image.getWidth(), message) <= image.getHeight();
+    }
+
+    /**
+     * Gets the number of rows at the top of an image that hold a hidden text.
+     *
+     * @param width   the width of the image
+     * @param message the text to hide
+     * @return the number of rows
+     */
+    public static int getRequiredRows(int width, String message) {
+        // one bit per color byte of the BGR image, the length takes 32 bits
+        long bits = 32 + 8L * message.getBytes().length;
+        long bytesPerRow = 3L * width;
+        return (int) Math.min(Integer.MAX_VALUE, (bits + bytesPerRow - 1) / bytesPerRow);
+    }
+
     /**
      * Extract text from image
      *
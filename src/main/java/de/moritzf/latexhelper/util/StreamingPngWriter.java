@@ -0,0 +1,259 @@
+package de.moritzf.latexhelper.util;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Writes an rgb png file strip by strip, so an image of any size can be written while only one strip of it is in
+ * memory. Rows are filtered like libpng does it: every row uses the filter with the smallest sum of absolute
+ * differences. The rows have to be written top down and the file is complete once the writer is closed.
+ *
+ * @author Moritz Floeter
+ */
+public class StreamingPngWriter implements Closeable {
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', 0x0D, 0x0A, 0x1A, 0x0A};
+
+    /**
+     * Size of the compressed data written per IDAT chunk.
+     */
+    private static final int IDAT_SIZE = 64 * 1024;
+
+    private static final int BYTES_PER_PIXEL = 3;
+
+    private final DataOutputStream out;
+    private final int width;
+    private final int height;
+    private final byte[] previous;
+    private final byte[] current;
+    private final byte[][] filtered = new byte[5][];
+    private DeflaterOutputStream idat;
+    private Deflater deflater;
+    private int rowsWritten;
+
+    /**
+     * Instantiates a new writer and writes the png header.
+     *
+     * @param out    the stream, closed with the writer
+     * @param width  the width of the image
+     * @param height the height of the image
+     * @throws IOException if the header could not be written
+     */
+    public StreamingPngWriter(OutputStream out, int width, int height) throws IOException {
+        this.out = new DataOutputStream(out);
+        this.width = width;
+        this.height = height;
+        int rowBytes = width * BYTES_PER_PIXEL;
+        previous = new byte[rowBytes];
+        current = new byte[rowBytes];
+        for (int i = 0; i < filtered.length; i++) {
+            filtered[i] = new byte[rowBytes + 1];
+            filtered[i][0] = (byte) i;
+        }
+
+        this.out.write(SIGNATURE);
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        DataOutputStream headerData = new DataOutputStream(header);
+        headerData.writeInt(width);
+        headerData.writeInt(height);
+        headerData.writeByte(8); // bit depth
+        headerData.writeByte(2); // color type rgb
+        headerData.writeByte(0); // compression
+        headerData.writeByte(0); // filter
+        headerData.writeByte(0); // no interlace
+        writeChunk("IHDR", header.toByteArray(), header.size());
+    }
+
+    /**
+     * Adds a compressed iTXt chunk. Must be called before the first row is written.
+     *
+     * @param keyword the keyword of the chunk
+     * @param text    the text of the chunk
+     * @throws IOException if the chunk could not be written
+     */
+    public void addText(String keyword, String text) throws IOException {
+        if (idat != null) {
+            throw new IllegalStateException("Text must be added before the first row");
+        }
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        chunk.write(keyword.getBytes(StandardCharsets.ISO_8859_1));
+        chunk.write(0);
+        chunk.write(1); // compressed
+        chunk.write(0); // deflate
+        chunk.write(0); // no language tag
+        chunk.write(0); // no translated keyword
+        Deflater textDeflater = new Deflater(Deflater.BEST_COMPRESSION);
+        try (DeflaterOutputStream compressed = new DeflaterOutputStream(chunk, textDeflater)) {
+            compressed.write(text.getBytes(StandardCharsets.UTF_8));
+        } finally {
+            textDeflater.end();
+        }
+        writeChunk("iTXt", chunk.toByteArray(), chunk.size());
+    }
+
+    /**
+     * Writes the top rows of a strip as the next rows of the image.
+     *
+     * @param strip the strip, a {@link BufferedImage#TYPE_3BYTE_BGR} image as wide as the png
+     * @param rows  the number of rows of the strip to write
+     * @throws IOException if the rows could not be written
+     */
+    public void writeRows(BufferedImage strip, int rows) throws IOException {
+        if (strip.getType() != BufferedImage.TYPE_3BYTE_BGR || strip.getWidth() != width) {
+            throw new IllegalArgumentException("Strip must be a BGR image of width " + width);
+        }
+        if (rowsWritten + rows > height) {
+            throw new IllegalArgumentException("Image has only " + height + " rows");
+        }
+        if (idat == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+            idat = new DeflaterOutputStream(new IdatOutputStream(), deflater, IDAT_SIZE);
+        }
+        byte[] data = ((DataBufferByte) strip.getRaster().getDataBuffer()).getData();
+        int rowBytes = width * BYTES_PER_PIXEL;
+        for (int y = 0; y < rows; y++) {
+            int offset = y * rowBytes;
+            // bgr to rgb
+            for (int i = 0; i < rowBytes; i += BYTES_PER_PIXEL) {
+                current[i] = data[offset + i + 2];
+                current[i + 1] = data[offset + i + 1];
+                current[i + 2] = data[offset + i];
+            }
+            idat.write(filterRow());
+            System.arraycopy(current, 0, previous, 0, rowBytes);
+            rowsWritten++;
+        }
+    }
+
+    /**
+     * Applies all five png filters to the current row and picks the one with the smallest sum of absolute values.
+     */
+    private byte[] filterRow() {
+        int rowBytes = current.length;
+        long[] sums = new long[filtered.length];
+        for (int i = 0; i < rowBytes; i++) {
+            int raw = current[i] & 0xFF;
+            int left = i >= BYTES_PER_PIXEL ? current[i - BYTES_PER_PIXEL] & 0xFF : 0;
+            int up = previous[i] & 0xFF;
+            int upLeft = i >= BYTES_PER_PIXEL ? previous[i - BYTES_PER_PIXEL] & 0xFF : 0;
+            byte none = (byte) raw;
+            byte sub = (byte) (raw - left);
+            byte upFiltered = (byte) (raw - up);
+            byte average = (byte) (raw - ((left + up) >> 1));
+            byte paeth = (byte) (raw - paethPredictor(left, up, upLeft));
+            filtered[0][i + 1] = none;
+            filtered[1][i + 1] = sub;
+            filtered[2][i + 1] = upFiltered;
+            filtered[3][i + 1] = average;
+            filtered[4][i + 1] = paeth;
+            sums[0] += Math.abs(none);
+            sums[1] += Math.abs(sub);
+            sums[2] += Math.abs(upFiltered);
+            sums[3] += Math.abs(average);
+            sums[4] += Math.abs(paeth);
+        }
+        int best = 0;
+        for (int i = 1; i < sums.length; i++) {
+            if (sums[i] < sums[best]) {
+                best = i;
+            }
+        }
+        return filtered[best];
+    }
+
+    private static int paethPredictor(int left, int up, int upLeft) {
+        int estimate = left + up - upLeft;
+        int distanceLeft = Math.abs(estimate - left);
+        int distanceUp = Math.abs(estimate - up);
+        int distanceUpLeft = Math.abs(estimate - upLeft);
+        if (distanceLeft <= distanceUp && distanceLeft <= distanceUpLeft) {
+            return left;
+        }
+        return distanceUp <= distanceUpLeft ? up : upLeft;
+    }
+
+    private void writeChunk(String type, byte[] data, int length) throws IOException {
+        byte[] typeBytes = type.getBytes(StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data, 0, length);
+        out.writeInt(length);
+        out.write(typeBytes);
+        out.write(data, 0, length);
+        out.writeInt((int) crc.getValue());
+    }
+
+    /**
+     * Finishes the image data and writes the end of the png.
+     *
+     * @throws IOException if not all rows have been written or the file could not be written
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (rowsWritten != height) {
+                throw new IOException("Only " + rowsWritten + " of " + height + " rows have been written");
+            }
+            if (idat != null) {
+                idat.close();
+            }
+            writeChunk("IEND", new byte[0], 0);
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+            out.close();
+        }
+    }
+
+    /**
+     * Collects compressed image data and writes it as IDAT chunks.
+     */
+    private class IdatOutputStream extends OutputStream {
+        private final byte[] buffer = new byte[IDAT_SIZE];
+        private int length;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (length == buffer.length) {
+                flushChunk();
+            }
+            buffer[length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (length == buffer.length) {
+                    flushChunk();
+                }
+                int count = Math.min(len, buffer.length - length);
+                System.arraycopy(b, off, buffer, length, count);
+                length += count;
+                off += count;
+                len -= count;
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            if (length > 0) {
+                writeChunk("IDAT", buffer, length);
+                length = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            flushChunk();
+        }
+    }
+}
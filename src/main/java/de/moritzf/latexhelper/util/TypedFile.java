@@ -0,0 +1,86 @@
+package de.moritzf.latexhelper.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A file together with its detected {@link FileType}. Detection only reads the first
+ * {@link FileType#HEADER_LENGTH} bytes of the file, so the content is decoded exactly once by whoever
+ * actually needs it.
+ *
+ * @author Moritz Floeter
+ */
+public class TypedFile {
+
+    private static final Logger LOGGER = Logger.getLogger(TypedFile.class.getName());
+
+    private final File file;
+    private final FileType type;
+
+    private TypedFile(File file, FileType type) {
+        this.file = file;
+        this.type = type;
+    }
+
+    /**
+     * Detects the type of the given file.
+     *
+     * @param file the file
+     * @return the typed file
+     * @throws IOException if the file can not be read
+     */
+    public static TypedFile open(File file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(FileType.HEADER_LENGTH);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (header.hasRemaining() && channel.read(header) != -1) {
+                // keep reading until the header is complete or the file ends
+            }
+        }
+        FileType type = FileType.detect(header.array(), header.position());
+        if (type == FileType.UNKNOWN) {
+            LOGGER.log(Level.INFO, "Unknown file type of " + file.getName());
+        }
+        return new TypedFile(file, type);
+    }
+
+    /**
+     * Gets the file.
+     *
+     * @return the file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Gets the detected type.
+     *
+     * @return the type
+     */
+    public FileType getType() {
+        return type;
+    }
+
+    /**
+     * Checks if the file is an image.
+     *
+     * @return true, if image
+     */
+    public boolean isImage() {
+        return type.isImage();
+    }
+
+    /**
+     * Checks if the file is a pdf file.
+     *
+     * @return true, if pdf
+     */
+    public boolean isPdf() {
+        return type == FileType.PDF;
+    }
+}
@@ -0,0 +1,89 @@
+package de.moritzf.latexhelper.workspace;
+
+import javax.swing.*;
+
+/**
+ * A formula of the workspace: a run of lines between separators, i.e. blank lines or lines containing only
+ * <code>%%</code>. The offsets refer to the document of the workspace and are kept up to date while it is edited.
+ * A block whose text changes is replaced by a new block, so the rendered icon of a block never becomes stale.
+ *
+ * @author Moritz Floeter
+ */
+public class FormulaBlock {
+
+    private final String text;
+    private int start;
+    private int end;
+    private Icon icon;
+
+    /**
+     * Instantiates a new formula block.
+     *
+     * @param text  the latex source of the block
+     * @param start the offset of the first character in the document
+     */
+    FormulaBlock(String text, int start) {
+        this.text = text;
+        this.start = start;
+        this.end = start + text.length();
+    }
+
+    /**
+     * Gets the latex source of the block.
+     *
+     * @return the latex source
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * Gets the offset of the first character in the document.
+     *
+     * @return the start offset
+     */
+    public int getStart() {
+        return start;
+    }
+
+    /**
+     * Gets the offset after the last character in the document.
+     *
+     * @return the end offset
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    void setOffsets(int start, int end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    /**
+     * Gets the rendered formula.
+     *
+     * @return the icon or null if the block has not been rendered yet
+     */
+    public Icon getIcon() {
+        return icon;
+    }
+
+    /**
+     * Sets the rendered formula.
+     *
+     * @param icon the icon
+     */
+    public void setIcon(Icon icon) {
+        this.icon = icon;
+    }
+
+    @Override
+    public String toString() {
+        return "FormulaBlock{" +
+                "start=" + start +
+                ", end=" + end +
+                ", rendered=" + (icon != null) +
+                '}';
+    }
+}
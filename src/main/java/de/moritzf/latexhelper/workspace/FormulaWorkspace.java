@@ -0,0 +1,263 @@
+package de.moritzf.latexhelper.workspace;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Splits the text of a document into formula blocks separated by blank lines or lines containing only
+ * <code>%%</code>, and keeps the blocks up to date incrementally.
+ * <p>
+ * Every document event is passed to {@link #documentChanged(DocumentEvent)}, which only shifts the offsets of the
+ * blocks behind the edit and widens the dirty range. {@link #update()} then splits the text of the dirty range
+ * again, extended by one block on each side as editing a separator can merge or split blocks. Blocks outside of
+ * that range and blocks whose text did not change keep their identity and thereby their rendered icon, so typing
+ * in one formula of a large workspace parses and renders only that formula.
+ * <p>
+ * Instances are not thread safe and are meant to be used on the event dispatch thread, like the document.
+ *
+ * @author Moritz Floeter
+ */
+public class FormulaWorkspace {
+
+    private static final Logger LOGGER = Logger.getLogger(FormulaWorkspace.class.getName());
+
+    /**
+     * Line content that separates two blocks, besides blank lines.
+     */
+    public static final String SEPARATOR = "%%";
+
+    private final Document document;
+    private final List<FormulaBlock> blocks = new ArrayList<>();
+    private int dirtyStart = -1;
+    private int dirtyEnd = -1;
+
+    /**
+     * Instantiates a new workspace. The blocks are built by the first call of {@link #reset()}.
+     *
+     * @param document the document holding the formulas
+     */
+    public FormulaWorkspace(Document document) {
+        this.document = document;
+    }
+
+    /**
+     * Discards all blocks and marks the whole document as dirty, e.g. when the workspace has not tracked the
+     * document for a while.
+     */
+    public void reset() {
+        blocks.clear();
+        dirtyStart = 0;
+        dirtyEnd = document.getLength();
+    }
+
+    /**
+     * Tracks an edit of the document. Must be called for every insert and remove in the order of the events.
+     *
+     * @param event the document event
+     */
+    public void documentChanged(DocumentEvent event) {
+        int offset = event.getOffset();
+        int length = event.getLength();
+        if (event.getType() == DocumentEvent.EventType.INSERT) {
+            for (FormulaBlock block : blocks) {
+                block.setOffsets(block.getStart() >= offset ? block.getStart() + length : block.getStart(),
+                        block.getEnd() > offset ? block.getEnd() + length : block.getEnd());
+            }
+            if (dirtyStart < 0) {
+                dirtyStart = offset;
+                dirtyEnd = offset + length;
+            } else {
+                dirtyStart = Math.min(dirtyStart >= offset ? dirtyStart + length : dirtyStart, offset);
+                dirtyEnd = Math.max(dirtyEnd > offset ? dirtyEnd + length : dirtyEnd, offset + length);
+            }
+        } else if (event.getType() == DocumentEvent.EventType.REMOVE) {
+            for (FormulaBlock block : blocks) {
+                block.setOffsets(shiftRemoved(block.getStart(), offset, length),
+                        shiftRemoved(block.getEnd(), offset, length));
+            }
+            if (dirtyStart < 0) {
+                dirtyStart = offset;
+                dirtyEnd = offset;
+            } else {
+                dirtyStart = Math.min(shiftRemoved(dirtyStart, offset, length), offset);
+                dirtyEnd = Math.max(shiftRemoved(dirtyEnd, offset, length), offset);
+            }
+        }
+    }
+
+    private static int shiftRemoved(int position, int offset, int length) {
+        if (position <= offset) {
+            return position;
+        }
+        return position >= offset + length ? position - length : offset;
+    }
+
+    /**
+     * Checks if edits have been tracked since the last update.
+     *
+     * @return true, if {@link #update()} would split text again
+     */
+    public boolean isDirty() {
+        return dirtyStart >= 0;
+    }
+
+    /**
+     * Splits the dirty range into blocks again.
+     *
+     * @return the blocks that are new or whose text changed, in document order; these have no icon yet
+     */
+    public List<FormulaBlock> update() {
+        if (dirtyStart < 0) {
+            return Collections.emptyList();
+        }
+        int docLength = document.getLength();
+        // the block in front of the first touched block and the block behind the last touched block are included,
+        // as an edited separator line merges them with the touched blocks
+        int first = firstBlockEndingAtOrAfter(dirtyStart);
+        int from = Math.max(0, first - 1);
+        int regionStart = first > 0 ? blocks.get(first - 1).getStart() : 0;
+        int last = lastBlockStartingAtOrBefore(dirtyEnd);
+        int to;
+        int regionEnd;
+        if (last + 1 < blocks.size()) {
+            to = last + 1;
+            regionEnd = blocks.get(to).getEnd();
+        } else {
+            to = blocks.size() - 1;
+            regionEnd = docLength;
+        }
+        dirtyStart = -1;
+        dirtyEnd = -1;
+
+        String text;
+        try {
+            text = document.getText(regionStart, Math.min(docLength, regionEnd) - regionStart);
+        } catch (BadLocationException e) {
+            LOGGER.log(Level.WARNING, "Workspace lost track of the document, splitting all of it", e);
+            reset();
+            return update();
+        }
+
+        List<FormulaBlock> replaced = blocks.subList(from, to + 1);
+        Map<String, List<FormulaBlock>> reusable = new HashMap<>();
+        for (FormulaBlock block : replaced) {
+            reusable.computeIfAbsent(block.getText(), key -> new ArrayList<>()).add(block);
+        }
+        List<FormulaBlock> split = split(text, regionStart);
+        List<FormulaBlock> changed = new ArrayList<>();
+        for (int i = 0; i < split.size(); i++) {
+            FormulaBlock block = split.get(i);
+            List<FormulaBlock> candidates = reusable.get(block.getText());
+            if (candidates != null && !candidates.isEmpty()) {
+                FormulaBlock kept = candidates.remove(0);
+                kept.setOffsets(block.getStart(), block.getEnd());
+                split.set(i, kept);
+            } else {
+                changed.add(block);
+            }
+        }
+        replaced.clear();
+        blocks.addAll(from, split);
+        return changed;
+    }
+
+    /**
+     * Gets the blocks in document order. Only up to date after {@link #update()}.
+     *
+     * @return the blocks
+     */
+    public List<FormulaBlock> getBlocks() {
+        return Collections.unmodifiableList(blocks);
+    }
+
+    /**
+     * Gets the block containing an offset or, if the offset lies between blocks, the block in front of it.
+     *
+     * @param offset the offset in the document
+     * @return the block or null if the workspace has no blocks
+     */
+    public FormulaBlock getBlockAt(int offset) {
+        if (blocks.isEmpty()) {
+            return null;
+        }
+        return blocks.get(Math.max(0, lastBlockStartingAtOrBefore(offset)));
+    }
+
+    private int firstBlockEndingAtOrAfter(int offset) {
+        int low = 0;
+        int high = blocks.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blocks.get(mid).getEnd() < offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private int lastBlockStartingAtOrBefore(int offset) {
+        int low = 0;
+        int high = blocks.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blocks.get(mid).getStart() <= offset) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low - 1;
+    }
+
+    /**
+     * Splits text into blocks.
+     *
+     * @param text the text
+     * @param base the offset of the text in the document
+     * @return the blocks
+     */
+    static List<FormulaBlock> split(String text, int base) {
+        List<FormulaBlock> result = new ArrayList<>();
+        int blockStart = -1;
+        int blockEnd = -1;
+        int lineStart = 0;
+        while (true) {
+            int newline = text.indexOf('\n', lineStart);
+            int lineEnd = newline < 0 ? text.length() : newline;
+            if (isSeparator(text.substring(lineStart, lineEnd))) {
+                if (blockStart >= 0) {
+                    result.add(new FormulaBlock(text.substring(blockStart, blockEnd), base + blockStart));
+                    blockStart = -1;
+                }
+            } else {
+                if (blockStart < 0) {
+                    blockStart = lineStart;
+                }
+                blockEnd = lineEnd;
+            }
+            if (newline < 0) {
+                break;
+            }
+            lineStart = newline + 1;
+        }
+        if (blockStart >= 0) {
+            result.add(new FormulaBlock(text.substring(blockStart, blockEnd), base + blockStart));
+        }
+        return result;
+    }
+
+    private static boolean isSeparator(String line) {
+        String trimmed = line.trim();
+        return trimmed.isEmpty() || trimmed.equals(SEPARATOR);
+    }
+}
@@ -0,0 +1,236 @@
+package de.moritzf.latexhelper.workspace;
+
+import de.moritzf.latexhelper.render.RenderException;
+import de.moritzf.latexhelper.render.RenderService;
+import org.scilab.forge.jlatexmath.TeXConstants;
+
+import javax.swing.*;
+import java.awt.*;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Preview showing one cell per block of a {@link FormulaWorkspace}. The preview is virtualized: it is a single
+ * component rather than one component per cell, and it only renders and paints the cells intersecting the clip,
+ * i.e. the visible part of the scroll pane. Cells that have never been visible are neither parsed nor rendered;
+ * their height is estimated from the average height of the rendered cells. Visible cells are rendered by the
+ * {@link RenderService} off the event dispatch thread and painted once they are done.
+ *
+ * @author Moritz Floeter
+ */
+public class WorkspacePreview extends JComponent implements Scrollable {
+
+    private static final Logger LOGGER = Logger.getLogger(WorkspacePreview.class.getName());
+
+    /**
+     * Height assumed for cells that have not been rendered as long as no cell has been rendered.
+     */
+    private static final int DEFAULT_CELL_HEIGHT = 48;
+
+    private static final int CELL_PADDING = 8;
+
+    private static final Color SEPARATOR_COLOR = new Color(225, 225, 225);
+
+    private final FormulaWorkspace workspace;
+
+    /**
+     * Top of every cell plus the bottom of the last one, valid while {@link #layoutValid} is set.
+     */
+    private int[] tops = new int[1];
+    private int contentWidth;
+    private boolean layoutValid;
+    private int renderedCount;
+
+    /**
+     * Blocks whose rendering has been requested but not completed.
+     */
+    private final Set<FormulaBlock> pending = new HashSet<>();
+
+    /**
+     * Instantiates a new preview.
+     *
+     * @param workspace the workspace to show
+     */
+    public WorkspacePreview(FormulaWorkspace workspace) {
+        this.workspace = workspace;
+        setOpaque(true);
+        setBackground(Color.WHITE);
+    }
+
+    /**
+     * Tells the preview that blocks have been added, removed or replaced.
+     */
+    public void blocksChanged() {
+        layoutValid = false;
+        revalidate();
+        repaint();
+    }
+
+    /**
+     * Gets the block shown at a point of the preview.
+     *
+     * @param point the point
+     * @return the block or null if there is no cell at the point
+     */
+    public FormulaBlock getBlockAt(Point point) {
+        ensureLayout();
+        int index = cellAt(point.y);
+        List<FormulaBlock> blocks = workspace.getBlocks();
+        return index < blocks.size() ? blocks.get(index) : null;
+    }
+
+    /**
+     * Scrolls the cell of a block into view.
+     *
+     * @param block the block
+     */
+    public void scrollToBlock(FormulaBlock block) {
+        ensureLayout();
+        int index = workspace.getBlocks().indexOf(block);
+        if (index >= 0) {
+            scrollRectToVisible(new Rectangle(0, tops[index], 1, tops[index + 1] - tops[index]));
+        }
+    }
+
+    /**
+     * Gets the number of cells rendered so far.
+     *
+     * @return the number of rendered cells
+     */
+    public int getRenderedCount() {
+        return renderedCount;
+    }
+
+    /**
+     * Computes the cell positions from the heights of the rendered cells and the estimated height of the others.
+     * Only touches numbers, no cell is rendered.
+     */
+    private void ensureLayout() {
+        if (layoutValid) {
+            return;
+        }
+        List<FormulaBlock> blocks = workspace.getBlocks();
+        long renderedHeight = 0;
+        int rendered = 0;
+        int width = 0;
+        for (FormulaBlock block : blocks) {
+            if (block.getIcon() != null) {
+                renderedHeight += block.getIcon().getIconHeight();
+                width = Math.max(width, block.getIcon().getIconWidth());
+                rendered++;
+            }
+        }
+        int estimate = rendered > 0 ? (int) (renderedHeight / rendered) : DEFAULT_CELL_HEIGHT;
+        if (tops.length != blocks.size() + 1) {
+            tops = new int[blocks.size() + 1];
+        }
+        int y = 0;
+        for (int i = 0; i < blocks.size(); i++) {
+            tops[i] = y;
+            Icon icon = blocks.get(i).getIcon();
+            y += (icon != null ? icon.getIconHeight() : estimate) + 2 * CELL_PADDING;
+        }
+        tops[blocks.size()] = y;
+        contentWidth = width + 2 * CELL_PADDING;
+        layoutValid = true;
+    }
+
+    /**
+     * Gets the index of the cell at a y coordinate, the number of cells if it is below the last one.
+     */
+    private int cellAt(int y) {
+        int low = 0;
+        int high = tops.length - 1;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (tops[mid + 1] <= y) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        ensureLayout();
+        Rectangle clip = g.getClipBounds();
+        if (clip == null) {
+            clip = new Rectangle(0, 0, getWidth(), getHeight());
+        }
+        g.setColor(getBackground());
+        g.fillRect(clip.x, clip.y, clip.width, clip.height);
+
+        List<FormulaBlock> blocks = workspace.getBlocks();
+        for (int i = cellAt(clip.y); i < blocks.size() && tops[i] < clip.y + clip.height; i++) {
+            FormulaBlock block = blocks.get(i);
+            if (block.getIcon() != null) {
+                block.getIcon().paintIcon(this, g, CELL_PADDING, tops[i] + CELL_PADDING);
+            } else if (pending.add(block)) {
+                render(block);
+            }
+            g.setColor(SEPARATOR_COLOR);
+            g.drawLine(0, tops[i + 1] - 1, getWidth(), tops[i + 1] - 1);
+        }
+    }
+
+    /**
+     * Renders a block by the render service and shows it once it is done. The cell stays empty meanwhile.
+     */
+    private void render(FormulaBlock block) {
+        RenderService.getDefault().createIconAsync(block.getText(), TeXConstants.STYLE_DISPLAY, 22,
+                TeXConstants.UNIT_PIXEL, 80, TeXConstants.ALIGN_LEFT).whenComplete((icon, failure) ->
+                SwingUtilities.invokeLater(() -> {
+                    pending.remove(block);
+                    if (failure == null) {
+                        block.setIcon(icon);
+                    } else {
+                        LOGGER.log(Level.FINE, "Could not render block", failure);
+                        block.setIcon(RenderService.createErrorIcon(failure instanceof RenderException
+                                ? (RenderException) failure
+                                : new RenderException(RenderException.Kind.INVALID, failure.getMessage(), failure),
+                                TeXConstants.STYLE_DISPLAY, 22));
+                    }
+                    renderedCount++;
+                    // the estimated height is replaced by the real one, the cells below may move
+                    layoutValid = false;
+                    revalidate();
+                    repaint();
+                }));
+    }
+
+    @Override
+    public Dimension getPreferredSize() {
+        ensureLayout();
+        return new Dimension(contentWidth, tops[tops.length - 1]);
+    }
+
+    @Override
+    public Dimension getPreferredScrollableViewportSize() {
+        return getPreferredSize();
+    }
+
+    @Override
+    public int getScrollableUnitIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return 16;
+    }
+
+    @Override
+    public int getScrollableBlockIncrement(Rectangle visibleRect, int orientation, int direction) {
+        return orientation == SwingConstants.VERTICAL ? visibleRect.height : visibleRect.width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportWidth() {
+        return getParent() instanceof JViewport && getParent().getWidth() > getPreferredSize().width;
+    }
+
+    @Override
+    public boolean getScrollableTracksViewportHeight() {
+        return getParent() instanceof JViewport && getParent().getHeight() > getPreferredSize().height;
+    }
+}
@@ -0,0 +1,206 @@
+package mathpix;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Circuit breaker for the MathPix-API. After a number of consecutive failures the circuit opens and requests are
+ * rejected immediately instead of waiting for timeouts of an unreachable server. Once the open interval has
+ * passed, a single probe request is let through (half open): if it succeeds, the circuit closes again, if it
+ * fails, the circuit opens for twice as long, up to a maximum. Instances are thread safe.
+ *
+ * @author Moritz Floeter
+ */
+public class CircuitBreaker {
+
+    private static final Logger LOGGER = Logger.getLogger(CircuitBreaker.class.getName());
+
+    /**
+     * Default number of consecutive failures that open the circuit.
+     */
+    public static final int DEFAULT_FAILURE_THRESHOLD = 3;
+
+    /**
+     * Default time the circuit stays open before the first probe.
+     */
+    public static final long DEFAULT_OPEN_MILLIS = 5000;
+
+    /**
+     * Default upper bound for the time the circuit stays open.
+     */
+    public static final long DEFAULT_MAX_OPEN_MILLIS = 60000;
+
+    /**
+     * The states of the circuit.
+     */
+    public enum State {
+        /**
+         * Requests are sent.
+         */
+        CLOSED,
+        /**
+         * Requests are rejected.
+         */
+        OPEN,
+        /**
+         * A single probe request is in flight, other requests are rejected.
+         */
+        HALF_OPEN
+    }
+
+    private final int failureThreshold;
+    private final long initialOpenMillis;
+    private final long maxOpenMillis;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openMillis;
+    private long openedAt;
+
+    /**
+     * Instantiates a new circuit breaker with default settings.
+     */
+    public CircuitBreaker() {
+        this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_MILLIS, DEFAULT_MAX_OPEN_MILLIS);
+    }
+
+    /**
+     * Instantiates a new circuit breaker.
+     *
+     * @param failureThreshold the number of consecutive failures that open the circuit
+     * @param openMillis       the time the circuit stays open before the first probe
+     * @param maxOpenMillis    the upper bound for the time the circuit stays open
+     */
+    public CircuitBreaker(int failureThreshold, long openMillis, long maxOpenMillis) {
+        this.failureThreshold = failureThreshold;
+        this.initialOpenMillis = openMillis;
+        this.maxOpenMillis = maxOpenMillis;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Asks for permission to send a request. If the open interval has passed, the caller becomes the probe and
+     * must report the outcome with {@link #onSuccess()} or {@link #onFailure()}.
+     *
+     * @return true, if the request may be sent
+     */
+    public synchronized boolean tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                if (now() - openedAt >= openMillis) {
+                    state = State.HALF_OPEN;
+                    LOGGER.log(Level.INFO, "Probing MathPix after " + openMillis + " ms");
+                    return true;
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Checks without side effects if a request would currently be permitted, e.g. to skip MathPix before
+     * preparing a request at all.
+     *
+     * @return true, if the circuit is closed or a probe is due
+     */
+    public synchronized boolean isCallPermitted() {
+        return state == State.CLOSED || (state == State.OPEN && now() - openedAt >= openMillis);
+    }
+
+    /**
+     * Checks without side effects if the last request went through, i.e. the circuit is closed and the last
+     * request did not fail.
+     *
+     * @return true, if MathPix looks reachable and healthy
+     */
+    public synchronized boolean isHealthy() {
+        return state == State.CLOSED && consecutiveFailures == 0;
+    }
+
+    /**
+     * Reports a successful request, which closes the circuit.
+     */
+    public synchronized void onSuccess() {
+        if (state != State.CLOSED) {
+            LOGGER.log(Level.INFO, "MathPix is reachable again, closing circuit");
+        }
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        openMillis = initialOpenMillis;
+    }
+
+    /**
+     * Reports a request that failed because the server is unreachable or unhealthy.
+     */
+    public synchronized void onFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            openMillis = Math.min(maxOpenMillis, openMillis * 2);
+            open();
+        } else if (state == State.CLOSED && consecutiveFailures >= failureThreshold) {
+            open();
+        }
+    }
+
+    /**
+     * Reports that a permitted request was not sent or ended without telling anything about the health of the
+     * server. Gives up the probe, so the next caller can probe instead.
+     */
+    public synchronized void onIgnored() {
+        if (state == State.HALF_OPEN) {
+            state = State.OPEN;
+            // the probe is due again immediately
+            openedAt = now() - openMillis;
+        }
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openedAt = now();
+        LOGGER.log(Level.WARNING, "MathPix failed " + consecutiveFailures + " times in a row, skipping it for "
+                + openMillis + " ms");
+    }
+
+    /**
+     * Gets the state of the circuit.
+     *
+     * @return the state
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * Gets the number of consecutive failures.
+     *
+     * @return the consecutive failures
+     */
+    public synchronized int getConsecutiveFailures() {
+        return consecutiveFailures;
+    }
+
+    /**
+     * Gets the time in milliseconds until the next probe is permitted.
+     *
+     * @return the remaining time, 0 if requests are permitted
+     */
+    public synchronized long getRemainingOpenMillis() {
+        return state == State.OPEN ? Math.max(0, openMillis - (now() - openedAt)) : 0;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1_000_000;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "CircuitBreaker{" +
+                "state=" + state +
+                ", consecutiveFailures=" + consecutiveFailures +
+                ", remainingOpenMillis=" + getRemainingOpenMillis() +
+                '}';
+    }
+}
@@ -0,0 +1,296 @@
+package mathpix;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import mathpix.api.response.DetectionResult;
+
+import javax.activation.MimeType;
+import javax.activation.MimeTypeParseException;
+import java.awt.*;
+import java.io.BufferedOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Client for the MathPix-API. Instances are thread safe and meant to be shared.
+ * <p>
+ * Connections are kept alive between requests: every response (including error responses) is read completely
+ * and closed instead of disconnecting, which lets {@link HttpURLConnection} hand the connection back to its
+ * keep-alive cache. Repeated recognitions therefore skip the TCP and TLS handshakes. Requests block the calling
+ * thread, the {@link MathPixQueue} sends them concurrently within the quota. A {@link CircuitBreaker} rejects
+ * requests right away while MathPix is unreachable.
+ *
+ * @author Moritz Floeter
+ */
+public class MathPixClient {
+
+    private static final Logger LOGGER = Logger.getLogger(MathPixClient.class.getName());
+
+    /**
+     * Default time in milliseconds to establish a connection.
+     */
+    public static final int DEFAULT_CONNECT_TIMEOUT_MILLIS = 5000;
+
+    /**
+     * Default time in milliseconds to wait for the response.
+     */
+    public static final int DEFAULT_READ_TIMEOUT_MILLIS = 20000;
+
+    /**
+     * Gson instances are thread safe, so one mapper serves all clients.
+     */
+    private static final Gson GSON = new Gson();
+
+    /**
+     * Size of the chunks the request body is streamed in.
+     */
+    private static final int STREAM_CHUNK_BYTES = 8192;
+
+    private static final byte[] BODY_SUFFIX = "\" }".getBytes(StandardCharsets.US_ASCII);
+
+    private final String baseUrl;
+    private final String appId;
+    private final String appKey;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final UploadEncoder uploadEncoder;
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker();
+
+    /**
+     * Instantiates a new client with default timeouts.
+     *
+     * @param baseUrl the url of the latex endpoint
+     * @param appId   the app id
+     * @param appKey  the app key
+     */
+    public MathPixClient(String baseUrl, String appId, String appKey) {
+        this(baseUrl, appId, appKey, DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS,
+                new UploadEncoder());
+    }
+
+    /**
+     * Instantiates a new client.
+     *
+     * @param baseUrl               the url of the latex endpoint
+     * @param appId                 the app id
+     * @param appKey                the app key
+     * @param connectTimeoutMillis  the time in milliseconds to establish a connection
+     * @param readTimeoutMillis     the time in milliseconds to wait for the response
+     * @param uploadEncoder         the encoder preparing the images for upload
+     */
+    public MathPixClient(String baseUrl, String appId, String appKey, int connectTimeoutMillis,
+                         int readTimeoutMillis, UploadEncoder uploadEncoder) {
+        this.baseUrl = baseUrl;
+        this.appId = appId;
+        this.appKey = appKey;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.uploadEncoder = uploadEncoder;
+    }
+
+    /**
+     * Creates a client from the stored {@link MathPixSettings}.
+     *
+     * @return the client
+     * @throws MathPixException if MathPix has not been configured
+     */
+    public static MathPixClient fromSettings() throws MathPixException {
+        if (!MathPixSettings.isConfigured()) {
+            throw new MathPixException(MathPixException.Kind.NOT_CONFIGURED, "MathPix has not been configured", null);
+        }
+        return new MathPixClient(MathPixSettings.getBaseUrl(), MathPixSettings.getAppId(),
+                MathPixSettings.getAppKey(), DEFAULT_CONNECT_TIMEOUT_MILLIS, DEFAULT_READ_TIMEOUT_MILLIS,
+                new UploadEncoder(MathPixSettings.getUploadBudgetBytes(), UploadEncoder.DEFAULT_MIN_STROKE_WIDTH));
+    }
+
+    /**
+     * Gets the url of the latex endpoint.
+     *
+     * @return the base url
+     */
+    public String getBaseUrl() {
+        return baseUrl;
+    }
+
+    /**
+     * Checks if this client uses the given settings.
+     *
+     * @param baseUrl the base url
+     * @param appId   the app id
+     * @param appKey  the app key
+     * @return true, if all settings are equal
+     */
+    boolean usesSettings(String baseUrl, String appId, String appKey) {
+        return this.baseUrl.equals(baseUrl) && this.appId.equals(appId) && this.appKey.equals(appKey);
+    }
+
+    /**
+     * Recognizes the latex expression in an image.
+     *
+     * @param image the image
+     * @return the detection result, never null
+     * @throws MathPixException if the request fails, MathPix reports an error or the circuit breaker is open
+     */
+    public DetectionResult recognize(Image image) throws MathPixException {
+        if (!circuitBreaker.tryAcquire()) {
+            throw new MathPixException(MathPixException.Kind.CIRCUIT_OPEN, "MathPix is skipped after repeated "
+                    + "failures, next probe in " + circuitBreaker.getRemainingOpenMillis() + " ms", null);
+        }
+        try {
+            DetectionResult result = send(image);
+            circuitBreaker.onSuccess();
+            return result;
+        } catch (MathPixException e) {
+            if (e.indicatesOutage()) {
+                circuitBreaker.onFailure();
+            } else if (e.getStatusCode() >= 0) {
+                // the server answered, so it is reachable even though it did not like the request
+                circuitBreaker.onSuccess();
+            } else {
+                circuitBreaker.onIgnored();
+            }
+            throw e;
+        } catch (RuntimeException e) {
+            circuitBreaker.onIgnored();
+            throw e;
+        }
+    }
+
+    /**
+     * Gets the circuit breaker guarding the requests of this client.
+     *
+     * @return the circuit breaker
+     */
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    private DetectionResult send(Image image) throws MathPixException {
+        PreparedUpload upload;
+        try {
+            upload = uploadEncoder.prepare(image);
+        } catch (IOException e) {
+            throw new MathPixException(MathPixException.Kind.IMAGE, "Could not encode image", e);
+        }
+        long start = System.nanoTime();
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(baseUrl).openConnection();
+            connection.setConnectTimeout(connectTimeoutMillis);
+            connection.setReadTimeout(readTimeoutMillis);
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setRequestProperty("app_id", appId);
+            connection.setRequestProperty("filename", upload.getEncoding().getFileName());
+            connection.setRequestProperty("app_key", appKey);
+
+            connection.setChunkedStreamingMode(STREAM_CHUNK_BYTES);
+            writeBody(connection.getOutputStream(), upload);
+
+            int status = connection.getResponseCode();
+            if (status < 200 || status >= 300) {
+                String error = readFully(connection.getErrorStream(), charsetOf(connection));
+                throw new MathPixException(MathPixException.Kind.HTTP, status,
+                        "MathPix answered with status " + status + ": " + error, null);
+            }
+
+            String response = readFully(connection.getInputStream(), charsetOf(connection));
+            DetectionResult result = GSON.fromJson(response, DetectionResult.class);
+            if (result == null) {
+                throw new MathPixException(MathPixException.Kind.INVALID_RESPONSE, status,
+                        "Empty response from MathPix", null);
+            }
+            if (result.getError() != null && !result.getError().isEmpty()) {
+                throw new MathPixException(MathPixException.Kind.API, status,
+                        "MathPix could not recognize the image: " + result.getError(), null);
+            }
+            LOGGER.log(Level.INFO, "MathPix answered after " + (System.nanoTime() - start) / 1_000_000 + " ms for "
+                    + upload.getEncoding());
+            result.setUploadEncoding(upload.getEncoding());
+            return result;
+        } catch (SocketTimeoutException e) {
+            throw new MathPixException(MathPixException.Kind.TIMEOUT, "MathPix did not answer in time", e);
+        } catch (JsonParseException e) {
+            throw new MathPixException(MathPixException.Kind.INVALID_RESPONSE, "Could not parse MathPix response", e);
+        } catch (IOException e) {
+            // an IOException on the error stream means the connection itself is broken
+            if (connection != null) {
+                connection.disconnect();
+            }
+            throw new MathPixException(MathPixException.Kind.NETWORK, "Could not reach MathPix at " + baseUrl, e);
+        }
+    }
+
+    /**
+     * Reads a stream completely and closes it. Reading to the end is what allows the connection to be reused.
+     */
+    private static String readFully(InputStream stream, Charset charset) throws IOException {
+        if (stream == null) {
+            return "";
+        }
+        StringBuilder text = new StringBuilder();
+        try (Reader reader = new InputStreamReader(stream, charset)) {
+            char[] buffer = new char[4096];
+            int read;
+            while ((read = reader.read(buffer)) != -1) {
+                text.append(buffer, 0, read);
+            }
+        }
+        return text.toString();
+    }
+
+    private static Charset charsetOf(HttpURLConnection connection) {
+        String contentType = connection.getContentType();
+        if (contentType != null) {
+            try {
+                String charset = new MimeType(contentType).getParameter("charset");
+                if (charset != null) {
+                    return Charset.forName(charset);
+                }
+            } catch (MimeTypeParseException | IllegalArgumentException e) {
+                // fall back to the json default
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Writes the json request body. The image is encoded straight into the base64 text streamed to the
+     * connection.
+     */
+    private static void writeBody(OutputStream connectionStream, PreparedUpload upload) throws IOException {
+        try (OutputStream out = new BufferedOutputStream(connectionStream, STREAM_CHUNK_BYTES)) {
+            out.write(("{\"src\" : \"data:" + upload.getEncoding().getMimeType() + ";base64, ")
+                    .getBytes(StandardCharsets.US_ASCII));
+            // closing the base64 stream writes the last characters and the padding, but must leave the
+            // connection stream open for the rest of the body
+            try (OutputStream base64 = Base64.getEncoder().wrap(new FilterOutputStream(out) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.flush();
+                }
+            })) {
+                upload.writeTo(base64);
+            }
+            out.write(BODY_SUFFIX);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package mathpix;
+
+/**
+ * Signals that a request to the MathPix-API failed. The {@link Kind} tells why, so callers can decide whether
+ * retrying makes sense.
+ *
+ * @author Moritz Floeter
+ */
+public class MathPixException extends Exception {
+
+    /**
+     * The reasons a request can fail for.
+     */
+    public enum Kind {
+        /**
+         * MathPix has not been configured.
+         */
+        NOT_CONFIGURED,
+        /**
+         * The server could not be reached or the connection broke.
+         */
+        NETWORK,
+        /**
+         * The server did not answer within the configured timeout.
+         */
+        TIMEOUT,
+        /**
+         * The server answered with an http error status.
+         */
+        HTTP,
+        /**
+         * The server processed the request but reported an error (e.g. no math found).
+         */
+        API,
+        /**
+         * The response could not be understood.
+         */
+        INVALID_RESPONSE,
+        /**
+         * The request was not sent because MathPix failed repeatedly and the circuit breaker is open.
+         */
+        CIRCUIT_OPEN,
+        /**
+         * The request was not sent because the image could not be read or encoded. Sending it again does not
+         * help and says nothing about MathPix.
+         */
+        IMAGE
+    }
+
+    private final Kind kind;
+    private final int statusCode;
+
+    /**
+     * Instantiates a new MathPix exception.
+     *
+     * @param kind    the kind of failure
+     * @param message the message
+     * @param cause   the cause, may be null
+     */
+    public MathPixException(Kind kind, String message, Throwable cause) {
+        this(kind, -1, message, cause);
+    }
+
+    /**
+     * Instantiates a new MathPix exception.
+     *
+     * @param kind       the kind of failure
+     * @param statusCode the http status code or -1 if there was no response
+     * @param message    the message
+     * @param cause      the cause, may be null
+     */
+    public MathPixException(Kind kind, int statusCode, String message, Throwable cause) {
+        super(message, cause);
+        this.kind = kind;
+        this.statusCode = statusCode;
+    }
+
+    /**
+     * Gets the kind of failure.
+     *
+     * @return the kind
+     */
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * Gets the http status code.
+     *
+     * @return the status code or -1 if there was no response
+     */
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    /**
+     * Checks if the request may succeed when it is sent again later: the server was too slow, is overloaded or
+     * asked the client to slow down.
+     *
+     * @return true, if the request should be retried
+     */
+    public boolean isRetryable() {
+        return kind == Kind.TIMEOUT || (kind == Kind.HTTP && (statusCode == 429 || statusCode >= 500));
+    }
+
+    /**
+     * Checks if the failure indicates that MathPix is unreachable or unhealthy, as opposed to a problem with the
+     * particular request.
+     *
+     * @return true, if the server is unreachable, too slow or answered with a 5xx status
+     */
+    public boolean indicatesOutage() {
+        return kind == Kind.NETWORK || kind == Kind.TIMEOUT || (kind == Kind.HTTP && statusCode >= 500);
+    }
+
+    /**
+     * Checks if the request could not be sent because MathPix is offline, either because it could not be
+     * reached or because the circuit breaker rejected the request.
+     *
+     * @return true, if MathPix is offline
+     */
+    public boolean isOffline() {
+        return kind == Kind.NETWORK || kind == Kind.CIRCUIT_OPEN;
+    }
+}
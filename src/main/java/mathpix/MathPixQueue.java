@@ -0,0 +1,475 @@
+package mathpix;
+
+import de.moritzf.latexhelper.util.DaemonThreadFactory;
+import mathpix.api.response.DetectionResult;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+
+/**
+ * Submission queue in front of the MathPix-API for bulk imports.
+ * <ul>
+ * <li>requests are sent by a fixed number of workers, which caps the requests in flight</li>
+ * <li>a token bucket keeps the request rate within the quota of the account</li>
+ * <li>requests answered with 429, 5xx or timing out are retried with exponential backoff and jitter</li>
+ * <li>if MathPix can not be reached at all, a background job is spooled to disk and the queue probes the network
+ * periodically; once a probe succeeds, the spooled jobs are drained. A background job carries a tag, e.g. the
+ * cache key of its image, and its result is reported to the {@link #setTaggedResultListener listener} together
+ * with the tag. This is how the results of jobs spooled by an earlier run of the application reach the caller;
+ * they are only sent once a listener takes them.</li>
+ * <li>interactive jobs are never spooled, somebody waits for them, so they fail as soon as MathPix can not be
+ * reached</li>
+ * </ul>
+ * Futures of spooled jobs stay pending until the job has been drained. Cancelling a future drops the job, stops
+ * its retries and deletes its spool file right away. While the queue is busy, its {@link #getMetrics() metrics}
+ * are logged every minute.
+ *
+ * @author Moritz Floeter
+ */
+public class MathPixQueue {
+
+    private static final Logger LOGGER = Logger.getLogger(MathPixQueue.class.getName());
+
+    /**
+     * Default number of requests that are sent to MathPix at the same time.
+     */
+    public static final int DEFAULT_MAX_CONCURRENT_REQUESTS = 4;
+
+    /**
+     * Default number of attempts per job for retryable failures.
+     */
+    public static final int DEFAULT_MAX_ATTEMPTS = 4;
+
+    /**
+     * Default delay before the first retry, doubled for every further attempt.
+     */
+    public static final long DEFAULT_BACKOFF_MILLIS = 500;
+
+    /**
+     * Upper bound for the delay between two attempts.
+     */
+    public static final long MAX_BACKOFF_MILLIS = 30000;
+
+    /**
+     * Default interval in which the network is probed while jobs are spooled.
+     */
+    public static final long DEFAULT_SPOOL_RETRY_MILLIS = 30000;
+
+    /**
+     * Interval in which the metrics are logged while the queue is busy.
+     */
+    public static final long METRICS_INTERVAL_MILLIS = 60000;
+
+    private static final String SPOOL_SUFFIX = ".png";
+
+    private static final Pattern TAG_PATTERN = Pattern.compile("[A-Za-z0-9]+(-[A-Za-z0-9]+)*");
+
+    private static final int MAX_TAG_LENGTH = 128;
+
+    /**
+     * Provides the client to send requests with. Asked for every request, so changed settings take effect
+     * without recreating the queue.
+     */
+    public interface ClientProvider {
+        /**
+         * Gets the client.
+         *
+         * @return the client
+         * @throws MathPixException if no client can be created
+         */
+        MathPixClient get() throws MathPixException;
+    }
+
+    private final ClientProvider clients;
+    private final TokenBucket bucket;
+    private final int requestsPerMinute;
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private final Path spoolDirectory;
+
+    private final BlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+    private final Map<String, CompletableFuture<DetectionResult>> spooledFutures = new ConcurrentHashMap<>();
+    private final Set<String> drainingSpoolIds = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retried = new AtomicLong();
+    private final AtomicLong spoolSequence = new AtomicLong();
+    private final Deque<Long> sentTimes = new ArrayDeque<>();
+    private final Deque<Long> completedTimes = new ArrayDeque<>();
+    private volatile BiConsumer<String, DetectionResult> taggedResultListener;
+
+    /**
+     * Instantiates a new queue and starts its workers.
+     *
+     * @param clients           provides the client to send requests with
+     * @param requestsPerMinute the quota of the account in requests per minute
+     * @param maxInFlight       the maximum number of requests sent at the same time
+     * @param maxAttempts       the number of attempts per job for retryable failures
+     * @param backoffMillis     the delay before the first retry
+     * @param spoolDirectory    the directory offline jobs are spooled to or null to fail them instead
+     * @param spoolRetryMillis  the interval in which the network is probed while jobs are spooled
+     */
+    public MathPixQueue(ClientProvider clients, int requestsPerMinute, int maxInFlight, int maxAttempts,
+                        long backoffMillis, Path spoolDirectory, long spoolRetryMillis) {
+        this.clients = clients;
+        this.requestsPerMinute = requestsPerMinute;
+        // allow a burst of one second worth of requests, but at least one per worker
+        this.bucket = new TokenBucket(Math.max(maxInFlight, requestsPerMinute / 60), requestsPerMinute);
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+        this.spoolDirectory = spoolDirectory;
+
+        ExecutorService workers =
+                Executors.newFixedThreadPool(maxInFlight, new DaemonThreadFactory("mathpix-queue"));
+        for (int i = 0; i < maxInFlight; i++) {
+            workers.execute(this::work);
+        }
+        ScheduledExecutorService monitor =
+                Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("mathpix-monitor"));
+        monitor.scheduleWithFixedDelay(this::logMetrics, METRICS_INTERVAL_MILLIS, METRICS_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+        if (spoolDirectory != null) {
+            monitor.scheduleWithFixedDelay(this::probeSpool, 0, spoolRetryMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Sets the listener that receives the results of background jobs together with their tags, including the
+     * jobs spooled by an earlier run of the application, which have no future anybody waits for. Until a listener
+     * is set, these jobs stay in the spool.
+     *
+     * @param listener the listener or null
+     */
+    public void setTaggedResultListener(BiConsumer<String, DetectionResult> listener) {
+        this.taggedResultListener = listener;
+    }
+
+    /**
+     * Submits an image for recognition in the background. While MathPix can not be reached, the job is spooled
+     * and its future stays pending. Once the job succeeds, its result is reported to the
+     * {@link #setTaggedResultListener listener} as well, even if it was spooled by an earlier run.
+     *
+     * @param image the image
+     * @param tag   letters and digits, optionally separated by single dashes, which identify the job for the
+     *              listener, e.g. the cache key of the image
+     * @return the future result, completed exceptionally with a {@link MathPixException} if the job fails for
+     * good
+     */
+    public CompletableFuture<DetectionResult> submit(BufferedImage image, String tag) {
+        if (tag.length() > MAX_TAG_LENGTH || !TAG_PATTERN.matcher(tag).matches()) {
+            // the tag is part of the name of the spool file
+            throw new IllegalArgumentException("Invalid tag " + tag);
+        }
+        CompletableFuture<DetectionResult> future = new CompletableFuture<>();
+        queue.add(new Job(image, null, future, false, true, tag));
+        return future;
+    }
+
+    /**
+     * Submits an image for recognition somebody waits for. The job is never spooled.
+     *
+     * @param image the image
+     * @return the future result, completed exceptionally with a {@link MathPixException} if the job fails for
+     * good, right away if MathPix can not be reached
+     */
+    public CompletableFuture<DetectionResult> submitInteractive(BufferedImage image) {
+        CompletableFuture<DetectionResult> future = new CompletableFuture<>();
+        queue.add(new Job(image, null, future, false, false, null));
+        return future;
+    }
+
+    /**
+     * Gets a snapshot of the state of the queue.
+     *
+     * @return the metrics
+     */
+    public QueueMetrics getMetrics() {
+        int sentLastMinute;
+        int completedLastMinute;
+        synchronized (sentTimes) {
+            sentLastMinute = countRecent(sentTimes);
+            completedLastMinute = countRecent(completedTimes);
+        }
+        return new QueueMetrics(queue.size(), inFlight.get(), spooledFiles().length, completed.get(), failed.get(),
+                retried.get(), completedLastMinute, sentLastMinute, requestsPerMinute);
+    }
+
+    private void logMetrics() {
+        QueueMetrics metrics = getMetrics();
+        if (metrics.getQueued() > 0 || metrics.getInFlight() > 0 || metrics.getSpooled() > 0
+                || metrics.getCompletedLastMinute() > 0 || metrics.getQuotaUse() > 0) {
+            LOGGER.log(Level.INFO, "MathPix queue: " + metrics);
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                process(job);
+            } catch (InterruptedException e) {
+                job.future.cancel(false);
+                return;
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.SEVERE, "MathPix job failed unexpectedly", e);
+                failed.incrementAndGet();
+                job.future.completeExceptionally(e);
+            }
+        }
+    }
+
+    private void process(Job job) throws InterruptedException {
+        BufferedImage image = job.image;
+        if (job.future.isCancelled()) {
+            deleteSpoolFile(job);
+            return;
+        }
+        if (image == null) {
+            try {
+                image = ImageIO.read(job.spoolFile);
+            } catch (IOException e) {
+                image = null;
+            }
+            if (image == null) {
+                LOGGER.log(Level.WARNING, "Dropping unreadable spooled job " + job.spoolFile);
+                deleteSpoolFile(job);
+                fail(job, new MathPixException(MathPixException.Kind.IMAGE,
+                        "Could not read spooled image " + job.spoolFile, null));
+                return;
+            }
+        }
+
+        for (int attempt = 1; ; attempt++) {
+            if (job.future.isCancelled()) {
+                // whoever waited gave up on MathPix, further attempts would be billed for nothing
+                deleteSpoolFile(job);
+                return;
+            }
+            bucket.acquire();
+            record(sentTimes);
+            inFlight.incrementAndGet();
+            try {
+                DetectionResult result = clients.get().recognize(image);
+                record(completedTimes);
+                completed.incrementAndGet();
+                BiConsumer<String, DetectionResult> listener = taggedResultListener;
+                if (job.tag != null && listener != null) {
+                    listener.accept(job.tag, result);
+                }
+                if (job.spoolFile != null) {
+                    deleteSpoolFile(job);
+                    // the network is back, drain the rest of the spool
+                    drainSpool();
+                }
+                job.future.complete(result);
+                return;
+            } catch (MathPixException e) {
+                if (e.isOffline() && job.spoolable && spoolDirectory != null) {
+                    spool(job, image, e);
+                    return;
+                }
+                if (!e.isRetryable() || attempt >= maxAttempts) {
+                    deleteSpoolFile(job);
+                    fail(job, e);
+                    return;
+                }
+                retried.incrementAndGet();
+                long delay = Math.min(MAX_BACKOFF_MILLIS, backoffMillis << (attempt - 1));
+                // jitter keeps workers that were throttled together from retrying together
+                long jittered = ThreadLocalRandom.current().nextLong(delay / 2, delay + 1);
+                LOGGER.log(Level.INFO, "MathPix request failed (" + e.getMessage() + "), retrying in "
+                        + jittered + " ms");
+                Thread.sleep(jittered);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+        }
+    }
+
+    private void fail(Job job, MathPixException e) {
+        failed.incrementAndGet();
+        job.future.completeExceptionally(e);
+    }
+
+    /**
+     * Moves a job to the spool directory. The future is kept so it can be completed once the job is drained.
+     */
+    private void spool(Job job, BufferedImage image, MathPixException cause) {
+        if (job.spoolFile != null) {
+            // a probe or drained job failed again, it stays where it is
+            if (!job.recovered) {
+                spooledFutures.put(job.spoolFile.getName(), job.future);
+            }
+            drainingSpoolIds.remove(job.spoolFile.getName());
+            return;
+        }
+        String name = String.format("%016d-%06d-%s%s", System.currentTimeMillis(),
+                spoolSequence.incrementAndGet() % 1_000_000, job.tag, SPOOL_SUFFIX);
+        try {
+            Files.createDirectories(spoolDirectory);
+            Path target = spoolDirectory.resolve(name);
+            Path temp = spoolDirectory.resolve(name + ".tmp");
+            ImageIO.write(image, "png", temp.toFile());
+            // register the future first, the prober may pick up the file as soon as it is moved
+            spooledFutures.put(name, job.future);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            LOGGER.log(Level.INFO, "MathPix unreachable (" + cause.getMessage() + "), spooled job to " + target);
+            job.future.whenComplete((result, e) -> {
+                // a job taken from the spool is deleted by the worker processing it
+                if (job.future.isCancelled() && spooledFutures.remove(name, job.future)) {
+                    deleteSpoolFile(target.toFile());
+                }
+            });
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Could not spool MathPix job", e);
+            spooledFutures.remove(name);
+            fail(job, cause);
+        }
+    }
+
+    /**
+     * Sends the oldest spooled job as a probe. If it succeeds, the rest of the spool is drained.
+     */
+    private void probeSpool() {
+        File[] files = sendableSpooledFiles();
+        if (files.length > 0 && drainingSpoolIds.isEmpty()) {
+            LOGGER.log(Level.INFO, files.length + " spooled MathPix jobs, probing network. " + getMetrics());
+            enqueueSpooled(files[0]);
+        }
+    }
+
+    private void drainSpool() {
+        for (File file : sendableSpooledFiles()) {
+            enqueueSpooled(file);
+        }
+    }
+
+    /**
+     * Gets the spooled jobs whose result somebody takes: those with a pending future and, if a listener is set,
+     * the tagged ones spooled by an earlier run of the application. Nothing else is worth a paid request.
+     */
+    private File[] sendableSpooledFiles() {
+        boolean listening = taggedResultListener != null;
+        return Arrays.stream(spooledFiles())
+                .filter(file -> spooledFutures.containsKey(file.getName())
+                        || (listening && tagOf(file) != null))
+                .toArray(File[]::new);
+    }
+
+    /**
+     * Gets the tag from the name of a spool file, <code>time-sequence-tag.png</code>.
+     *
+     * @return the tag or null if the job has none
+     */
+    private static String tagOf(File spoolFile) {
+        String name = spoolFile.getName();
+        String[] parts = name.substring(0, name.length() - SPOOL_SUFFIX.length()).split("-", 3);
+        return parts.length == 3 ? parts[2] : null;
+    }
+
+    private void enqueueSpooled(File file) {
+        if (drainingSpoolIds.add(file.getName())) {
+            CompletableFuture<DetectionResult> future = spooledFutures.remove(file.getName());
+            // without a future the job was spooled by an earlier run of the application
+            queue.add(new Job(null, file, future != null ? future : new CompletableFuture<>(), future == null,
+                    true, tagOf(file)));
+        }
+    }
+
+    private void deleteSpoolFile(Job job) {
+        if (job.spoolFile != null) {
+            drainingSpoolIds.remove(job.spoolFile.getName());
+            deleteSpoolFile(job.spoolFile);
+        }
+    }
+
+    private void deleteSpoolFile(File file) {
+        if (!file.delete()) {
+            LOGGER.log(Level.WARNING, "Could not delete spooled job " + file);
+        }
+    }
+
+    private File[] spooledFiles() {
+        if (spoolDirectory == null) {
+            return new File[0];
+        }
+        File[] files = spoolDirectory.toFile().listFiles((dir, name) -> name.endsWith(SPOOL_SUFFIX));
+        if (files == null) {
+            return new File[0];
+        }
+        // the names start with the spool time, so this is oldest first
+        Arrays.sort(files);
+        return files;
+    }
+
+    private void record(Deque<Long> times) {
+        synchronized (sentTimes) {
+            times.addLast(System.nanoTime());
+            countRecent(times);
+        }
+    }
+
+    /**
+     * Drops the entries older than a minute and counts the rest. Must be called holding the lock on sentTimes.
+     */
+    private static int countRecent(Deque<Long> times) {
+        long minuteAgo = System.nanoTime() - TimeUnit.MINUTES.toNanos(1);
+        while (!times.isEmpty() && times.peekFirst() < minuteAgo) {
+            times.removeFirst();
+        }
+        return times.size();
+    }
+
+    /**
+     * A job either holds its image in memory or refers to its spool file.
+     */
+    private static class Job {
+        private final BufferedImage image;
+        private final File spoolFile;
+        private final CompletableFuture<DetectionResult> future;
+        private final boolean recovered;
+        private final boolean spoolable;
+        private final String tag;
+
+        private Job(BufferedImage image, File spoolFile, CompletableFuture<DetectionResult> future,
+                    boolean recovered, boolean spoolable, String tag) {
+            this.image = image;
+            this.spoolFile = spoolFile;
+            this.future = future;
+            this.recovered = recovered;
+            this.spoolable = spoolable;
+            this.tag = tag;
+        }
+    }
+}
@@ -20,6 +20,11 @@ public class MathPixSettings {
     private static boolean settingsFound = false;
     private static final Logger LOGGER = Logger.getLogger(MathPixSettings.class.getName());
 
+    /**
+     * Number of requests per minute assumed if the quota of the account has not been configured.
+     */
+    public static final int DEFAULT_REQUESTS_PER_MINUTE = 60;
+
     private MathPixSettings() {
 
     }
@@ -110,6 +115,51 @@ public class MathPixSettings {
         return properties.get("base_url").toString();
     }
 
+    /**
+     * Gets the number of requests per minute the MathPix account allows. Read from the optional property
+     * <code>requests_per_minute</code>.
+     *
+     * @return the requests per minute
+     */
+    public static int getRequestsPerMinute() {
+        return getIntProperty("requests_per_minute", DEFAULT_REQUESTS_PER_MINUTE);
+    }
+
+    /**
+     * Gets the maximum number of requests sent to MathPix at the same time. Read from the optional property
+     * <code>max_concurrent_requests</code>.
+     *
+     * @return the maximum number of concurrent requests
+     */
+    public static int getMaxConcurrentRequests() {
+        return getIntProperty("max_concurrent_requests", MathPixQueue.DEFAULT_MAX_CONCURRENT_REQUESTS);
+    }
+
+    /**
+     * Gets the maximum number of bytes of an image uploaded to MathPix. Read from the optional property
+     * <code>upload_budget_bytes</code>.
+     *
+     * @return the upload budget in bytes
+     */
+    public static int getUploadBudgetBytes() {
+        return getIntProperty("upload_budget_bytes", UploadEncoder.DEFAULT_BUDGET_BYTES);
+    }
+
+    private static int getIntProperty(String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value != null) {
+            try {
+                int parsed = Integer.parseInt(value.trim());
+                if (parsed > 0) {
+                    return parsed;
+                }
+            } catch (NumberFormatException e) {
+                LOGGER.log(Level.WARNING, "Ignoring invalid value " + value + " for " + key);
+            }
+        }
+        return defaultValue;
+    }
+
     /**
      * Save the settings to the settings file.
      *
@@ -0,0 +1,65 @@
+package mathpix;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An image prepared by the {@link UploadEncoder}: flattened and scaled as chosen, but not encoded yet. It is encoded
+ * straight into the request, so the encoded image is never held in memory.
+ *
+ * @author Moritz Floeter
+ */
+public class PreparedUpload {
+
+    private final BufferedImage image;
+    private final UploadEncoding encoding;
+
+    /**
+     * Instantiates a new prepared upload.
+     *
+     * @param image    the flattened and scaled image
+     * @param encoding the choices made
+     */
+    PreparedUpload(BufferedImage image, UploadEncoding encoding) {
+        this.image = image;
+        this.encoding = encoding;
+    }
+
+    /**
+     * Gets the flattened and scaled image.
+     *
+     * @return the image
+     */
+    BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * Gets the choices made.
+     *
+     * @return the encoding
+     */
+    public UploadEncoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * Gets the size of the encoded image.
+     *
+     * @return the size in bytes
+     */
+    public long getSize() {
+        return encoding.getSize();
+    }
+
+    /**
+     * Encodes the image into a stream.
+     *
+     * @param out the stream to write to, which is not closed
+     * @throws IOException if the image can not be encoded or written
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        UploadEncoder.write(image, encoding.getFormat(), encoding.getQuality(), out);
+    }
+}
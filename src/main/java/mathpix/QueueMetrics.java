@@ -0,0 +1,131 @@
+package mathpix;
+
+/**
+ * Snapshot of the state of a {@link MathPixQueue}.
+ *
+ * @author Moritz Floeter
+ */
+public class QueueMetrics {
+
+    private final int queued;
+    private final int inFlight;
+    private final int spooled;
+    private final long completed;
+    private final long failed;
+    private final long retried;
+    private final int completedLastMinute;
+    private final int sentLastMinute;
+    private final int requestsPerMinute;
+
+    /**
+     * Instantiates a new metrics snapshot.
+     *
+     * @param queued              the number of jobs waiting to be sent
+     * @param inFlight            the number of requests currently sent
+     * @param spooled             the number of jobs spooled to disk while offline
+     * @param completed           the number of jobs completed successfully
+     * @param failed              the number of jobs that failed for good
+     * @param retried             the number of retries after a 429, 5xx or timeout
+     * @param completedLastMinute the number of jobs completed within the last minute
+     * @param sentLastMinute      the number of requests sent within the last minute
+     * @param requestsPerMinute   the quota of the account in requests per minute
+     */
+    public QueueMetrics(int queued, int inFlight, int spooled, long completed, long failed, long retried,
+                        int completedLastMinute, int sentLastMinute, int requestsPerMinute) {
+        this.queued = queued;
+        this.inFlight = inFlight;
+        this.spooled = spooled;
+        this.completed = completed;
+        this.failed = failed;
+        this.retried = retried;
+        this.completedLastMinute = completedLastMinute;
+        this.sentLastMinute = sentLastMinute;
+        this.requestsPerMinute = requestsPerMinute;
+    }
+
+    /**
+     * Gets the number of jobs waiting to be sent.
+     *
+     * @return the queue depth
+     */
+    public int getQueued() {
+        return queued;
+    }
+
+    /**
+     * Gets the number of requests currently sent.
+     *
+     * @return the in flight requests
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * Gets the number of jobs spooled to disk while offline.
+     *
+     * @return the spooled jobs
+     */
+    public int getSpooled() {
+        return spooled;
+    }
+
+    /**
+     * Gets the number of jobs completed successfully.
+     *
+     * @return the completed jobs
+     */
+    public long getCompleted() {
+        return completed;
+    }
+
+    /**
+     * Gets the number of jobs that failed for good.
+     *
+     * @return the failed jobs
+     */
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * Gets the number of retries after a 429, 5xx or timeout.
+     *
+     * @return the retries
+     */
+    public long getRetried() {
+        return retried;
+    }
+
+    /**
+     * Gets the throughput as jobs completed within the last minute.
+     *
+     * @return the completed jobs per minute
+     */
+    public int getCompletedLastMinute() {
+        return completedLastMinute;
+    }
+
+    /**
+     * Gets the share of the per minute quota used within the last minute.
+     *
+     * @return the quota use between 0 and 1
+     */
+    public double getQuotaUse() {
+        return (double) sentLastMinute / requestsPerMinute;
+    }
+
+    @Override
+    public String toString() {
+        return "QueueMetrics{" +
+                "queued=" + queued +
+                ", inFlight=" + inFlight +
+                ", spooled=" + spooled +
+                ", completed=" + completed +
+                ", failed=" + failed +
+                ", retried=" + retried +
+                ", throughput=" + completedLastMinute + "/min" +
+                ", quota=" + sentLastMinute + "/" + requestsPerMinute +
+                '}';
+    }
+}
@@ -0,0 +1,65 @@
+package mathpix;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A forward only {@link javax.imageio.stream.ImageOutputStream} that passes everything straight to an
+ * {@link OutputStream}. {@link javax.imageio.ImageIO#createImageOutputStream(Object)} always buffers the whole
+ * encoded image (in memory or in a temporary file) so the writer can seek, which is not needed for writers that
+ * produce their output sequentially such as the jpeg writer. Seeking backwards and reading are not supported.
+ * Closing this stream does not close the underlying stream.
+ *
+ * @author Moritz Floeter
+ */
+class StreamingImageOutputStream extends ImageOutputStreamImpl {
+
+    private final OutputStream out;
+
+    /**
+     * Instantiates a new streaming image output stream.
+     *
+     * @param out the stream to write to
+     */
+    StreamingImageOutputStream(OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        flushBits();
+        out.write(b);
+        streamPos++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        flushBits();
+        out.write(b, off, len);
+        streamPos += len;
+    }
+
+    @Override
+    public int read() throws IOException {
+        throw new IOException("Streaming image output can not be read");
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        throw new IOException("Streaming image output can not be read");
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        if (pos != streamPos) {
+            throw new IOException("Streaming image output can not seek from " + streamPos + " to " + pos);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        out.flush();
+    }
+}
@@ -0,0 +1,66 @@
+package mathpix;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter. Tokens are refilled continuously at a fixed rate up to the capacity of the bucket,
+ * so short bursts up to the capacity are allowed while the long term rate never exceeds the refill rate.
+ *
+ * @author Moritz Floeter
+ */
+class TokenBucket {
+
+    private final double capacity;
+    private final double tokensPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Instantiates a new full token bucket.
+     *
+     * @param capacity        the maximum number of tokens
+     * @param tokensPerMinute the number of tokens added per minute
+     */
+    TokenBucket(int capacity, double tokensPerMinute) {
+        this.capacity = capacity;
+        this.tokensPerNano = tokensPerMinute / TimeUnit.MINUTES.toNanos(1);
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    /**
+     * Takes a token, waiting until one is available.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void acquire() throws InterruptedException {
+        while (true) {
+            long waitNanos;
+            synchronized (this) {
+                refill();
+                if (tokens >= 1) {
+                    tokens -= 1;
+                    return;
+                }
+                waitNanos = (long) Math.ceil((1 - tokens) / tokensPerNano);
+            }
+            TimeUnit.NANOSECONDS.sleep(Math.max(1, waitNanos));
+        }
+    }
+
+    /**
+     * Gets the number of tokens currently available.
+     *
+     * @return the available tokens
+     */
+    synchronized double available() {
+        refill();
+        return tokens;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+        lastRefill = now;
+    }
+}
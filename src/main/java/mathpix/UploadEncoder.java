@@ -0,0 +1,416 @@
+package mathpix;
+
+import de.moritzf.latexhelper.util.ImageFileUtil;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Encodes images for the upload to MathPix. Instead of always sending a default quality jpeg, the encoder picks
+ * the smallest acceptable candidate that fits a byte budget:
+ * <ul>
+ * <li>images without color are encoded as grayscale</li>
+ * <li>line art such as screenshots and rendered formulas (almost only black and white pixels) is encoded as png,
+ * which keeps thin strokes sharp and is usually smaller than jpeg for such images</li>
+ * <li>photos are encoded as jpeg with decreasing quality</li>
+ * <li>if no candidate fits the budget at full size, the image is scaled down, but never so far that the thinnest
+ * strokes become thinner than the minimum stroke width</li>
+ * </ul>
+ * If nothing fits the budget, the smallest candidate is used. The choice is made from a single pass over the rows
+ * of the image and from the sizes of the candidates, which are only counted. The chosen candidate is encoded again
+ * straight into the request, so besides the image itself and its flattened or scaled copies no memory in the order
+ * of the image is needed. Instances are thread safe.
+ *
+ * @author Moritz Floeter
+ */
+public class UploadEncoder {
+
+    /**
+     * Default maximum number of bytes of an encoded image.
+     */
+    public static final int DEFAULT_BUDGET_BYTES = 150_000;
+
+    /**
+     * Default minimum width in pixels the thinnest strokes keep when the image is scaled down.
+     */
+    public static final double DEFAULT_MIN_STROKE_WIDTH = 2.0;
+
+    private static final double[] SCALES = {1.0, 0.75, 0.5, 0.35, 0.25};
+    private static final float[] JPEG_QUALITIES = {0.9f, 0.75f, 0.6f};
+
+    /**
+     * Share of pure black and white pixels above which an image counts as line art.
+     */
+    private static final double LINE_ART_SHARE = 0.9;
+
+    /**
+     * Largest difference between color channels that still counts as gray.
+     */
+    private static final int GRAY_TOLERANCE = 12;
+
+    private final int budgetBytes;
+    private final double minStrokeWidth;
+
+    /**
+     * Instantiates a new upload encoder with the default budget and stroke width.
+     */
+    public UploadEncoder() {
+        this(DEFAULT_BUDGET_BYTES, DEFAULT_MIN_STROKE_WIDTH);
+    }
+
+    /**
+     * Instantiates a new upload encoder.
+     *
+     * @param budgetBytes    the maximum number of bytes of an encoded image
+     * @param minStrokeWidth the minimum width in pixels the thinnest strokes keep when the image is scaled down
+     */
+    public UploadEncoder(int budgetBytes, double minStrokeWidth) {
+        this.budgetBytes = budgetBytes;
+        this.minStrokeWidth = minStrokeWidth;
+    }
+
+    /**
+     * Chooses how an image is encoded. The candidates are encoded into a counter only, the chosen one is written
+     * by {@link PreparedUpload#writeTo(OutputStream)}, so no encoded image is ever held in memory.
+     *
+     * @param image the image
+     * @return the prepared upload
+     * @throws IOException if the image can not be encoded
+     */
+    public PreparedUpload prepare(Image image) throws IOException {
+        long start = System.nanoTime();
+        BufferedImage source = ImageFileUtil.toBufferedImage(image);
+        Analysis analysis = analyze(source);
+        boolean gray = analysis.gray;
+        boolean lineArt = analysis.blackOrWhite >= LINE_ART_SHARE * analysis.pixels;
+        double strokeWidth = analysis.strokeWidth();
+        BufferedImage flat = flatten(source, gray);
+
+        double minScale = Math.min(1.0, minStrokeWidth / strokeWidth);
+        PreparedUpload smallest = null;
+        double scale = 1.0;
+        while (true) {
+            BufferedImage scaled = scale(flat, scale);
+            PreparedUpload best;
+            if (lineArt) {
+                best = candidate(scaled, "png", -1, scale, gray, strokeWidth);
+            } else {
+                best = null;
+                for (float quality : JPEG_QUALITIES) {
+                    PreparedUpload candidate = candidate(scaled, "jpeg", quality, scale, gray, strokeWidth);
+                    if (best == null || candidate.getSize() < best.getSize()) {
+                        best = candidate;
+                    }
+                    // lower quality only helps if the image is close to the budget, otherwise scale down first
+                    if (candidate.getSize() <= budgetBytes || candidate.getSize() > 2 * budgetBytes) {
+                        break;
+                    }
+                }
+            }
+            if (best.getSize() <= budgetBytes) {
+                return withTime(best, false, start);
+            }
+            if (smallest == null || best.getSize() < smallest.getSize()) {
+                smallest = best;
+            }
+            if (scale <= minScale) {
+                break;
+            }
+            // the encoded size is roughly proportional to the number of pixels, so jump to the scale that
+            // should fit instead of trying every step
+            double predicted = scale * Math.sqrt((double) budgetBytes / best.getSize());
+            scale = Math.max(minScale, nextScale(Math.min(predicted, scale - 0.01)));
+        }
+        if (lineArt) {
+            // even line art is better sent as a sharp jpeg than as an oversized png
+            PreparedUpload jpeg = candidate(scale(flat, minScale), "jpeg", JPEG_QUALITIES[0], minScale, gray,
+                    strokeWidth);
+            if (jpeg.getSize() < smallest.getSize()) {
+                smallest = jpeg;
+            }
+            if (smallest.getSize() <= budgetBytes) {
+                return withTime(smallest, false, start);
+            }
+        }
+        return withTime(smallest, true, start);
+    }
+
+    /**
+     * Measures the size of an image encoded with the given parameters.
+     */
+    private static PreparedUpload candidate(BufferedImage image, String format, float quality, double scale,
+                                            boolean gray, double strokeWidth) throws IOException {
+        CountingOutputStream counter = new CountingOutputStream();
+        write(image, format, quality, counter);
+        return new PreparedUpload(image, new UploadEncoding(counter.count, format, quality, scale, gray,
+                strokeWidth, false, 0));
+    }
+
+    /**
+     * Gets the largest of the preferred scales not above the given scale, or the scale itself if it is below all
+     * of them.
+     */
+    private static double nextScale(double scale) {
+        for (double preferred : SCALES) {
+            if (preferred <= scale) {
+                return preferred;
+            }
+        }
+        return scale;
+    }
+
+    private static PreparedUpload withTime(PreparedUpload upload, boolean overBudget, long start) {
+        UploadEncoding encoding = upload.getEncoding();
+        return new PreparedUpload(upload.getImage(), new UploadEncoding(encoding.getSize(), encoding.getFormat(),
+                encoding.getQuality(), encoding.getScale(), encoding.isGray(), encoding.getStrokeWidth(), overBudget,
+                System.nanoTime() - start));
+    }
+
+    /**
+     * Gathers the statistics of an image in a single pass over its rows.
+     */
+    private static Analysis analyze(BufferedImage source) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        Analysis analysis = new Analysis(width, height);
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            source.getRGB(0, y, width, 1, row, 0, width);
+            analysis.addRow(row, y);
+        }
+        analysis.finish();
+        return analysis;
+    }
+
+    /**
+     * Draws the image on white, which removes the alpha channel jpeg can not store, and converts it to
+     * grayscale if it has no color.
+     */
+    private static BufferedImage flatten(BufferedImage source, boolean gray) {
+        int width = source.getWidth();
+        int height = source.getHeight();
+        if (gray) {
+            BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+            int[] row = new int[width];
+            byte[] pixels = new byte[width];
+            for (int y = 0; y < height; y++) {
+                source.getRGB(0, y, width, 1, row, 0, width);
+                for (int x = 0; x < width; x++) {
+                    pixels[x] = (byte) ImageFileUtil.luminance(row[x]);
+                }
+                result.getRaster().setDataElements(0, y, width, 1, pixels);
+            }
+            return result;
+        }
+        if (source.getType() == BufferedImage.TYPE_INT_RGB) {
+            return source;
+        }
+        BufferedImage result = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = result.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.drawImage(source, 0, 0, null);
+        g.dispose();
+        return result;
+    }
+
+    /**
+     * Scales an image down in steps of at most one half, so bilinear interpolation does not skip pixels.
+     */
+    private static BufferedImage scale(BufferedImage image, double scale) {
+        int targetWidth = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int targetHeight = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        BufferedImage current = image;
+        while (current.getWidth() != targetWidth || current.getHeight() != targetHeight) {
+            int width = Math.max(targetWidth, current.getWidth() / 2);
+            int height = Math.max(targetHeight, current.getHeight() / 2);
+            BufferedImage next = new BufferedImage(width, height, image.getType());
+            Graphics2D g = next.createGraphics();
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            g.drawImage(current, 0, 0, width, height, null);
+            g.dispose();
+            current = next;
+        }
+        return current;
+    }
+
+    /**
+     * Encodes an image into a stream. Neither writer holds more than a small part of the encoding: the jpeg
+     * writer only writes forward and the png writer only seeks back within the chunk it is writing, which the
+     * memory cache passes on as soon as the chunk is finished.
+     *
+     * @param image   the image
+     * @param format  the format, either "png" or "jpeg"
+     * @param quality the jpeg quality, ignored for png
+     * @param out     the stream to write to, which is not closed
+     * @throws IOException if the image can not be encoded or written
+     */
+    static void write(BufferedImage image, String format, float quality, OutputStream out) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            throw new IOException("No " + format + " encoder installed");
+        }
+        ImageWriter writer = writers.next();
+        boolean png = "png".equals(format);
+        try (ImageOutputStream imageOut = png ? new MemoryCacheImageOutputStream(out)
+                : new StreamingImageOutputStream(out)) {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            if (!png) {
+                param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                param.setCompressionQuality(quality);
+            }
+            writer.setOutput(imageOut);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "UploadEncoder{" +
+                "budgetBytes=" + budgetBytes +
+                ", minStrokeWidth=" + minStrokeWidth +
+                ", scales=" + Arrays.toString(SCALES) +
+                '}';
+    }
+
+    /**
+     * Statistics of an image gathered row by row, so choosing the encoding needs no copy of all its pixels. Ink
+     * runs are counted for dark and light ink alike, which of them is the ink is only known at the end.
+     */
+    private static class Analysis {
+
+        private static final int DARK = 0;
+        private static final int LIGHT = 1;
+
+        final long pixels;
+        boolean gray = true;
+        long blackOrWhite;
+        long dark;
+
+        private final int rowStep;
+        private final int columnStep;
+        private final int[][] horizontalRuns;
+        private final int[][] verticalRuns;
+        private final int[][] openVerticalRuns;
+
+        Analysis(int width, int height) {
+            pixels = (long) width * height;
+            // like the pen width, the runs are sampled on at most about 500 lines per direction
+            rowStep = Math.max(1, height / 500);
+            columnStep = Math.max(1, width / 500);
+            horizontalRuns = new int[2][width + 1];
+            verticalRuns = new int[2][height + 1];
+            openVerticalRuns = new int[2][width];
+        }
+
+        void addRow(int[] argb, int y) {
+            boolean sampledRow = y % rowStep == 0;
+            int darkRun = 0;
+            int lightRun = 0;
+            for (int x = 0; x < argb.length; x++) {
+                int pixel = argb[x];
+                int r = (pixel >> 16) & 0xff;
+                int g = (pixel >> 8) & 0xff;
+                int b = pixel & 0xff;
+                boolean visible = (pixel >>> 24) > 16;
+                if (gray && visible && (Math.abs(r - g) > GRAY_TOLERANCE || Math.abs(g - b) > GRAY_TOLERANCE)) {
+                    gray = false;
+                }
+                int lum = ImageFileUtil.luminance(pixel);
+                if (lum < 48 || lum > 207) {
+                    blackOrWhite++;
+                }
+                int ink = lum < 128 ? DARK : LIGHT;
+                if (ink == DARK) {
+                    dark++;
+                }
+                if (sampledRow) {
+                    if (ink == DARK) {
+                        darkRun++;
+                        lightRun = close(horizontalRuns[LIGHT], lightRun);
+                    } else {
+                        lightRun++;
+                        darkRun = close(horizontalRuns[DARK], darkRun);
+                    }
+                }
+                if (x % columnStep == 0) {
+                    openVerticalRuns[ink][x]++;
+                    openVerticalRuns[1 - ink][x] = close(verticalRuns[1 - ink], openVerticalRuns[1 - ink][x]);
+                }
+            }
+            close(horizontalRuns[DARK], darkRun);
+            close(horizontalRuns[LIGHT], lightRun);
+        }
+
+        void finish() {
+            for (int x = 0; x < openVerticalRuns[DARK].length; x += columnStep) {
+                close(verticalRuns[DARK], openVerticalRuns[DARK][x]);
+                close(verticalRuns[LIGHT], openVerticalRuns[LIGHT][x]);
+            }
+        }
+
+        /**
+         * Estimates the width of the thinnest strokes as the smaller of the median horizontal and the median
+         * vertical ink run length. Horizontal strokes such as fraction bars contribute short vertical runs and
+         * vice versa, so the smaller median is close to the pen width.
+         */
+        double strokeWidth() {
+            // ink is the minority, which handles light formulas on dark backgrounds
+            int ink = dark <= pixels / 2 ? DARK : LIGHT;
+            double stroke = Math.min(median(horizontalRuns[ink]), median(verticalRuns[ink]));
+            return stroke > 0 ? stroke : 1;
+        }
+
+        private static int close(int[] counts, int run) {
+            if (run > 0) {
+                counts[run]++;
+            }
+            return 0;
+        }
+
+        private static int median(int[] counts) {
+            long total = 0;
+            for (int count : counts) {
+                total += count;
+            }
+            long seen = 0;
+            for (int run = 1; run < counts.length; run++) {
+                seen += counts[run];
+                if (seen * 2 >= total && total > 0) {
+                    return run;
+                }
+            }
+            return 0;
+        }
+    }
+
+    /**
+     * Counts the bytes written to it and drops them.
+     */
+    private static class CountingOutputStream extends OutputStream {
+
+        long count;
+
+        @Override
+        public void write(int b) {
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package mathpix;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The choices the {@link UploadEncoder} made to encode an image for upload.
+ *
+ * @author Moritz Floeter
+ */
+public class UploadEncoding {
+
+    private final long size;
+    private final String format;
+    private final float quality;
+    private final double scale;
+    private final boolean gray;
+    private final double strokeWidth;
+    private final boolean overBudget;
+    private final long encodeNanos;
+
+    /**
+     * Instantiates a new upload encoding.
+     *
+     * @param size        the size of the encoded image in bytes
+     * @param format      the format, either "png" or "jpeg"
+     * @param quality     the jpeg quality or -1 for png
+     * @param scale       the factor the image was scaled by
+     * @param gray        true, if the image was encoded as grayscale
+     * @param strokeWidth the estimated stroke width in pixels of the original image
+     * @param overBudget  true, if no candidate fit the byte budget and the smallest one was taken
+     * @param encodeNanos the time spent choosing and encoding in nanoseconds
+     */
+    public UploadEncoding(long size, String format, float quality, double scale, boolean gray,
+                          double strokeWidth, boolean overBudget, long encodeNanos) {
+        this.size = size;
+        this.format = format;
+        this.quality = quality;
+        this.scale = scale;
+        this.gray = gray;
+        this.strokeWidth = strokeWidth;
+        this.overBudget = overBudget;
+        this.encodeNanos = encodeNanos;
+    }
+
+    /**
+     * Gets the size of the encoded image.
+     *
+     * @return the size in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the format, either "png" or "jpeg".
+     *
+     * @return the format
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Gets the mime type of the encoded image.
+     *
+     * @return the mime type
+     */
+    public String getMimeType() {
+        return "image/" + format;
+    }
+
+    /**
+     * Gets a file name matching the format, as sent to MathPix.
+     *
+     * @return the file name
+     */
+    public String getFileName() {
+        return "png".equals(format) ? "picture.png" : "picture.jpg";
+    }
+
+    /**
+     * Gets the jpeg quality.
+     *
+     * @return the quality or -1 for png
+     */
+    public float getQuality() {
+        return quality;
+    }
+
+    /**
+     * Gets the factor the image was scaled by.
+     *
+     * @return the scale
+     */
+    public double getScale() {
+        return scale;
+    }
+
+    /**
+     * Checks if the image was encoded as grayscale.
+     *
+     * @return true, if grayscale
+     */
+    public boolean isGray() {
+        return gray;
+    }
+
+    /**
+     * Gets the estimated stroke width in pixels of the original image.
+     *
+     * @return the stroke width
+     */
+    public double getStrokeWidth() {
+        return strokeWidth;
+    }
+
+    /**
+     * Checks if no candidate fit the byte budget.
+     *
+     * @return true, if the encoding is larger than the budget
+     */
+    public boolean isOverBudget() {
+        return overBudget;
+    }
+
+    /**
+     * Gets the time spent choosing and encoding in nanoseconds.
+     *
+     * @return the encode time
+     */
+    public long getEncodeNanos() {
+        return encodeNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "UploadEncoding{" +
+                "format=" + format +
+                (quality >= 0 ? ", quality=" + quality : "") +
+                ", bytes=" + size +
+                ", scale=" + String.format("%.2f", scale) +
+                ", gray=" + gray +
+                ", strokeWidth=" + String.format("%.1f", strokeWidth) +
+                ", overBudget=" + overBudget +
+                ", encodeTime=" + TimeUnit.NANOSECONDS.toMillis(encodeNanos) + "ms" +
+                '}';
+    }
+}
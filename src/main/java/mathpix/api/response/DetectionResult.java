@@ -1,5 +1,7 @@
 package mathpix.api.response;
 
+import mathpix.UploadEncoding;
+
 import java.util.ArrayList;
 
 
@@ -36,6 +38,10 @@ public class DetectionResult {
      * The position of the latex expression on the photo.
      */
     public Position position;
+    /**
+     * How the image was encoded for the upload. Not part of the server response.
+     */
+    private transient UploadEncoding uploadEncoding;
 
     @Override
     public String toString() {
@@ -49,6 +55,24 @@ public class DetectionResult {
                 '}';
     }
 
+    /**
+     * Gets how the image was encoded for the upload.
+     *
+     * @return the upload encoding or null if the result was not produced by a {@link mathpix.MathPixClient}
+     */
+    public UploadEncoding getUploadEncoding() {
+        return uploadEncoding;
+    }
+
+    /**
+     * Sets how the image was encoded for the upload.
+     *
+     * @param uploadEncoding the upload encoding
+     */
+    public void setUploadEncoding(UploadEncoding uploadEncoding) {
+        this.uploadEncoding = uploadEncoding;
+    }
+
     /**
      * Gets detection map.
      *
@@ -0,0 +1,53 @@
+package de.moritzf.latexhelper.batch;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the {@link FormulaScanner}.
+ *
+ * @author Moritz Floeter
+ */
+public class FormulaScannerTest {
+
+    @Test
+    public void findsBothKindsOfBlocksInOrder() {
+        assertEquals(Arrays.asList("a^2", "\\frac{1}{2}", "b"),
+                FormulaScanner.scan("Text $$a^2$$ more \\[ \\frac{1}{2} \\]\n$$\nb\n$$ end"));
+    }
+
+    @Test
+    public void ignoresEscapedDelimiters() {
+        assertEquals(Collections.singletonList("x"), FormulaScanner.scan("costs \\$$5, but $$x$$"));
+        // the line break \\ followed by [2pt] opens no block
+        assertEquals(Collections.emptyList(), FormulaScanner.scan("a \\\\[2pt] b"));
+        // an even number of backslashes escapes only itself
+        assertEquals(Collections.singletonList("y"), FormulaScanner.scan("\\\\$$y$$"));
+    }
+
+    @Test
+    public void keepsDelimitersInsideABlock() {
+        assertEquals(Collections.singletonList("a \\[ b"), FormulaScanner.scan("$$ a \\[ b $$"));
+        assertEquals(Collections.singletonList("\\begin{matrix} 1 \\\\[2pt] 2 \\end{matrix}"),
+                FormulaScanner.scan("\\[\\begin{matrix} 1 \\\\[2pt] 2 \\end{matrix}\\]"));
+        assertEquals(Collections.singletonList("p \\$$ q"), FormulaScanner.scan("$$p \\$$ q$$"));
+    }
+
+    @Test
+    public void skipsStrayAndUnclosedOpeners() {
+        assertEquals(Arrays.asList("x", "y"),
+                FormulaScanner.scan("stray \\[ here, then $$x$$ and $$ y $$ and $$ open"));
+        assertEquals(Collections.emptyList(), FormulaScanner.scan("$$ never closed"));
+    }
+
+    @Test
+    public void skipsEmptyBlocks() {
+        assertEquals(Collections.singletonList("z"), FormulaScanner.scan("$$ $$ \\[\\] $$z$$"));
+        assertEquals(Collections.emptyList(), FormulaScanner.scan(""));
+        assertEquals(Collections.emptyList(), FormulaScanner.scan("$"));
+    }
+}
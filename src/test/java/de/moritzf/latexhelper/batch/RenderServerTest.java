@@ -0,0 +1,125 @@
+package de.moritzf.latexhelper.batch;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@link RenderServer} by feeding it requests and reading its answers.
+ *
+ * @author Moritz Floeter
+ */
+public class RenderServerTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private List<JsonObject> serve(int parallelism, String requests) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new RenderServer(parallelism, folder.getRoot())
+                .serve(new ByteArrayInputStream(requests.getBytes(StandardCharsets.UTF_8)), out);
+        List<JsonObject> answers = new ArrayList<>();
+        for (String line : new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+            if (!line.isEmpty()) {
+                answers.add(JsonParser.parseString(line).getAsJsonObject());
+            }
+        }
+        return answers;
+    }
+
+    @Test
+    public void rendersPngsAsData() throws IOException {
+        JsonObject answer = serve(1, "{\"id\": \"a\", \"expression\": \"a^2\", \"scale\": 2}\n").get(0);
+
+        assertEquals("a", answer.get("id").getAsString());
+        assertTrue(answer.get("ok").getAsBoolean());
+        assertEquals("png", answer.get("format").getAsString());
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(
+                Base64.getDecoder().decode(answer.get("data").getAsString())));
+        assertNotNull(image);
+        assertEquals(answer.get("width").getAsInt(), image.getWidth());
+        assertEquals(answer.get("height").getAsInt(), image.getHeight());
+    }
+
+    @Test
+    public void answersInTheOrderOfTheRequests() throws IOException {
+        StringBuilder requests = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            if (i % 5 == 0) {
+                // fails right away, while the renders before it are still running
+                requests.append("{\"id\": ").append(i).append(", \"expression\": \"x\", \"format\": \"gif\"}\n\n");
+            } else {
+                // the earlier requests take longer than the later ones
+                requests.append("{\"id\": ").append(i).append(", \"expression\": \"");
+                for (int j = 0; j < 40 - i; j++) {
+                    requests.append("\\\\frac{a_").append(j).append("}{b} + ");
+                }
+                requests.append("c\", \"size\": 30}\n");
+            }
+        }
+
+        List<JsonObject> answers = serve(4, requests.toString());
+
+        assertEquals(40, answers.size());
+        for (int i = 0; i < answers.size(); i++) {
+            assertEquals(i, answers.get(i).get("id").getAsInt());
+            assertEquals(i % 5 != 0, answers.get(i).get("ok").getAsBoolean());
+        }
+    }
+
+    @Test
+    public void typesFailuresAndGoesOn() throws IOException {
+        List<JsonObject> answers = serve(2, "not json\n"
+                + "{\"id\": 1}\n"
+                + "{\"id\": 2, \"expression\": \"x\", \"size\": -1}\n"
+                + "{\"id\": 3, \"expression\": \"\\\\frac{a\"}\n"
+                + "{\"id\": 4, \"expression\": \"x\", \"output\": \"missing/4.png\"}\n"
+                + "{\"id\": 5, \"expression\": \"x\"}\n");
+
+        assertEquals(6, answers.size());
+        assertEquals("REQUEST", answers.get(0).get("failure").getAsString());
+        assertEquals("REQUEST", answers.get(1).get("failure").getAsString());
+        assertEquals("REQUEST", answers.get(2).get("failure").getAsString());
+        assertEquals("INVALID", answers.get(3).get("failure").getAsString());
+        assertEquals("IO", answers.get(4).get("failure").getAsString());
+        for (int i = 0; i < 5; i++) {
+            assertFalse(answers.get(i).get("ok").getAsBoolean());
+            assertNotNull(answers.get(i).get("error"));
+        }
+        assertEquals(5, answers.get(5).get("id").getAsInt());
+        assertTrue(answers.get(5).get("ok").getAsBoolean());
+    }
+
+    @Test
+    public void replacesOutputFilesWhole() throws IOException {
+        File output = folder.newFile("formula.png");
+
+        JsonObject answer = serve(1, "{\"expression\": \"a^2\", \"output\": \"formula.png\"}\n").get(0);
+
+        assertTrue(answer.get("ok").getAsBoolean());
+        assertEquals(output.getAbsolutePath(), answer.get("path").getAsString());
+        assertFalse("The answer should not hold the file", answer.has("data"));
+        BufferedImage image = ImageIO.read(output);
+        assertEquals(answer.get("width").getAsInt(), image.getWidth());
+        String[] files = folder.getRoot().list();
+        assertEquals("No temporary file should be left", 1, files.length);
+    }
+}
@@ -0,0 +1,96 @@
+package de.moritzf.latexhelper.recognition;
+
+import org.junit.Test;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@link FormulaSegmenter} on images of black blocks standing in for formulas.
+ *
+ * @author Moritz Floeter
+ */
+public class FormulaSegmenterTest {
+
+    private final FormulaSegmenter segmenter = new FormulaSegmenter();
+
+    private static BufferedImage page(int width, int height, Rectangle... blocks) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.setColor(Color.BLACK);
+        for (Rectangle block : blocks) {
+            g.fill(block);
+        }
+        g.dispose();
+        return image;
+    }
+
+    @Test
+    public void findsNothingOnABlankImage() {
+        assertTrue(segmenter.segment(page(200, 100)).isEmpty());
+    }
+
+    @Test
+    public void keepsASingleFormulaWithLimitsTogether() {
+        // a sum with its limits above and below, which are separate bands of ink
+        BufferedImage image = page(300, 120,
+                new Rectangle(40, 10, 20, 8),
+                new Rectangle(20, 25, 200, 30),
+                new Rectangle(40, 62, 20, 8));
+
+        List<Rectangle> regions = segmenter.segment(image);
+
+        assertEquals(1, regions.size());
+        assertTrue(regions.get(0).contains(new Rectangle(20, 10, 200, 60)));
+    }
+
+    @Test
+    public void splitsAPageIntoLinesInReadingOrder() {
+        BufferedImage image = page(400, 400,
+                new Rectangle(20, 20, 300, 30),
+                new Rectangle(20, 150, 250, 30),
+                // a subscript just below the second line belongs to it
+                new Rectangle(270, 183, 15, 8),
+                new Rectangle(20, 300, 200, 30));
+
+        List<Rectangle> regions = segmenter.segment(image);
+
+        assertEquals(3, regions.size());
+        assertTrue(regions.get(0).y < regions.get(1).y && regions.get(1).y < regions.get(2).y);
+        assertTrue("The subscript should be part of the second line",
+                regions.get(1).contains(new Rectangle(270, 183, 15, 8)));
+    }
+
+    @Test
+    public void splitsColumnsLeftToRight() {
+        BufferedImage image = page(600, 400,
+                new Rectangle(20, 20, 150, 30),
+                new Rectangle(20, 150, 150, 30),
+                new Rectangle(20, 280, 150, 30),
+                new Rectangle(400, 150, 150, 30));
+
+        List<Rectangle> regions = segmenter.segment(image);
+
+        assertEquals(4, regions.size());
+        assertEquals(20, regions.get(1).x, 2);
+        assertEquals(400, regions.get(2).x, 2);
+        assertEquals(regions.get(1).y, regions.get(2).y, 2);
+    }
+
+    @Test
+    public void dropsSpecks() {
+        BufferedImage image = page(400, 400,
+                new Rectangle(20, 20, 300, 30),
+                new Rectangle(20, 150, 300, 30),
+                new Rectangle(20, 300, 300, 30),
+                new Rectangle(380, 380, 2, 2));
+
+        assertEquals(3, segmenter.segment(image).size());
+    }
+}
@@ -0,0 +1,127 @@
+package de.moritzf.latexhelper.recognition;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the {@link RecognitionCache}.
+ *
+ * @author Moritz Floeter
+ */
+public class RecognitionCacheTest {
+
+    private static final Set<RecognitionStrategy> ALL = EnumSet.allOf(RecognitionStrategy.class);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Path cacheFile() throws IOException {
+        return folder.getRoot().toPath().resolve("cache.json");
+    }
+
+    private static RecognitionResult mathPix(String latex) {
+        return new RecognitionResult(latex, RecognitionStrategy.MATHPIX, 0.95);
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedEntries() throws IOException {
+        RecognitionCache cache = new RecognitionCache(cacheFile(), 3);
+        cache.put("a", mathPix("a"));
+        cache.put("b", mathPix("b"));
+        cache.put("c", mathPix("c"));
+        // a is used, so b is the eldest
+        assertNotNull(cache.get("a", ALL));
+        cache.put("d", mathPix("d"));
+
+        assertEquals(3, cache.size());
+        assertNull(cache.get("b", ALL));
+        assertEquals("a", cache.get("a", ALL).getLatex());
+        assertEquals("c", cache.get("c", ALL).getLatex());
+        assertEquals("d", cache.get("d", ALL).getLatex());
+    }
+
+    @Test
+    public void evictsEntriesBeyondTheByteBudget() throws IOException {
+        RecognitionCache cache = new RecognitionCache(cacheFile(), 1000, 2000);
+        for (int i = 0; i < 50; i++) {
+            cache.put("key" + i, mathPix("\\frac{x_" + i + "}{y}"));
+        }
+
+        assertTrue("The cache holds " + cache.getBytes() + " bytes", cache.getBytes() <= 2000);
+        assertTrue(cache.size() < 50);
+        assertNotNull("The latest entry should be kept", cache.get("key49", ALL));
+        assertNull("The eldest entry should be evicted", cache.get("key0", ALL));
+    }
+
+    @Test
+    public void replacingAnEntryKeepsTheByteCount() throws IOException {
+        RecognitionCache cache = new RecognitionCache(cacheFile(), 10);
+        cache.put("a", mathPix("x"));
+        long bytes = cache.getBytes();
+        cache.put("a", mathPix("y"));
+
+        assertEquals(1, cache.size());
+        assertEquals(bytes, cache.getBytes());
+    }
+
+    @Test
+    public void ignoresFallbacksOnceABetterRecognizerIsAvailable() throws IOException {
+        RecognitionCache cache = new RecognitionCache(cacheFile(), 10);
+        cache.put("ocr", new RecognitionResult("x", RecognitionStrategy.MATHOCR, 0.5),
+                EnumSet.of(RecognitionStrategy.MATHOCR));
+        cache.put("pix", mathPix("y"));
+
+        assertNotNull(cache.get("ocr", EnumSet.of(RecognitionStrategy.MATHOCR)));
+        assertNull(cache.get("ocr", EnumSet.of(RecognitionStrategy.MATHPIX, RecognitionStrategy.MATHOCR)));
+        assertNotNull("A result that always holds should be found with any recognizers",
+                cache.get("pix", EnumSet.of(RecognitionStrategy.MATHOCR)));
+    }
+
+    @Test
+    public void survivesARestart() throws IOException {
+        RecognitionCache cache = new RecognitionCache(cacheFile(), 10);
+        cache.put("pix", mathPix("y"));
+        cache.put("ocr", new RecognitionResult("x", RecognitionStrategy.MATHOCR, 0.5),
+                EnumSet.of(RecognitionStrategy.MATHOCR));
+        cache.flush();
+
+        RecognitionCache reloaded = new RecognitionCache(cacheFile(), 10);
+
+        assertEquals(2, reloaded.size());
+        assertEquals("y", reloaded.get("pix", ALL).getLatex());
+        assertEquals(RecognitionStrategy.MATHPIX, reloaded.get("pix", ALL).getStrategy());
+        assertNull(reloaded.get("ocr", ALL));
+        assertEquals("x", reloaded.get("ocr", EnumSet.of(RecognitionStrategy.MATHOCR)).getLatex());
+    }
+
+    @Test
+    public void keysImagesByTheirPixels() {
+        BufferedImage rgb = new BufferedImage(4, 3, BufferedImage.TYPE_INT_RGB);
+        BufferedImage argb = new BufferedImage(4, 3, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 3; y++) {
+            for (int x = 0; x < 4; x++) {
+                rgb.setRGB(x, y, 0xFFFFFF);
+            }
+        }
+        // fully transparent pixels count as white
+        assertEquals(RecognitionCache.keyOf(rgb), RecognitionCache.keyOf(argb));
+
+        rgb.setRGB(1, 1, 0x000000);
+        assertNotEquals(RecognitionCache.keyOf(rgb), RecognitionCache.keyOf(argb));
+        assertNotEquals(RecognitionCache.keyOf(new BufferedImage(3, 4, BufferedImage.TYPE_INT_ARGB)),
+                RecognitionCache.keyOf(argb));
+    }
+}
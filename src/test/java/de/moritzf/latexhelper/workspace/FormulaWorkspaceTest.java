@@ -0,0 +1,163 @@
+package de.moritzf.latexhelper.workspace;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.PlainDocument;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the splitting and the incremental updates of the {@link FormulaWorkspace}.
+ *
+ * @author Moritz Floeter
+ */
+public class FormulaWorkspaceTest {
+
+    private PlainDocument document;
+    private FormulaWorkspace workspace;
+
+    @Before
+    public void createWorkspace() throws BadLocationException {
+        document = new PlainDocument();
+        document.insertString(0, "a^2\n\nb_1\nb_2\n%%\nc\n\n\nd", null);
+        workspace = new FormulaWorkspace(document);
+        document.addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent e) {
+                workspace.documentChanged(e);
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent e) {
+                workspace.documentChanged(e);
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent e) {
+            }
+        });
+        workspace.reset();
+        workspace.update();
+    }
+
+    private static List<String> texts(List<FormulaBlock> blocks) {
+        List<String> texts = new ArrayList<>();
+        for (FormulaBlock block : blocks) {
+            texts.add(block.getText());
+        }
+        return texts;
+    }
+
+    /**
+     * Checks that the incrementally updated blocks equal the blocks of splitting the whole document.
+     */
+    private void assertConsistent() throws BadLocationException {
+        List<FormulaBlock> expected = FormulaWorkspace.split(document.getText(0, document.getLength()), 0);
+        List<FormulaBlock> actual = workspace.getBlocks();
+        assertEquals(texts(expected), texts(actual));
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getStart(), actual.get(i).getStart());
+            assertEquals(expected.get(i).getEnd(), actual.get(i).getEnd());
+        }
+    }
+
+    @Test
+    public void splitsAtBlankAndSeparatorLines() {
+        List<FormulaBlock> blocks = FormulaWorkspace.split("x\n  \ny\nz\n %% \n\nw\n", 10);
+
+        assertEquals(Arrays.asList("x", "y\nz", "w"), texts(blocks));
+        assertEquals(10, blocks.get(0).getStart());
+        assertEquals(15, blocks.get(1).getStart());
+        assertEquals(18, blocks.get(1).getEnd());
+        assertEquals(25, blocks.get(2).getStart());
+    }
+
+    @Test
+    public void splitsNothingOutOfSeparators() {
+        assertTrue(FormulaWorkspace.split("", 0).isEmpty());
+        assertTrue(FormulaWorkspace.split("\n%%\n \n", 0).isEmpty());
+    }
+
+    @Test
+    public void splitsTheWholeDocumentAfterAReset() throws BadLocationException {
+        workspace.reset();
+
+        assertEquals(Arrays.asList("a^2", "b_1\nb_2", "c", "d"), texts(workspace.update()));
+        assertFalse(workspace.isDirty());
+        assertConsistent();
+    }
+
+    @Test
+    public void updatesOnlyTheEditedBlock() throws BadLocationException {
+        List<FormulaBlock> before = new ArrayList<>(workspace.getBlocks());
+
+        document.insertString(document.getText(0, document.getLength()).indexOf("b_2") + 3, "+1", null);
+        assertTrue(workspace.isDirty());
+        List<FormulaBlock> changed = workspace.update();
+
+        assertEquals(Arrays.asList("b_1\nb_2+1"), texts(changed));
+        assertSame(before.get(0), workspace.getBlocks().get(0));
+        assertNotSame(before.get(1), workspace.getBlocks().get(1));
+        assertSame(before.get(2), workspace.getBlocks().get(2));
+        assertSame(before.get(3), workspace.getBlocks().get(3));
+        assertConsistent();
+    }
+
+    @Test
+    public void mergesBlocksWhenASeparatorIsRemoved() throws BadLocationException {
+        FormulaBlock first = workspace.getBlocks().get(0);
+
+        int separator = document.getText(0, document.getLength()).indexOf("%%\n");
+        document.remove(separator, 3);
+        List<FormulaBlock> changed = workspace.update();
+
+        assertEquals(Arrays.asList("b_1\nb_2\nc"), texts(changed));
+        assertSame(first, workspace.getBlocks().get(0));
+        assertConsistent();
+    }
+
+    @Test
+    public void splitsABlockWhenABlankLineIsInserted() throws BadLocationException {
+        document.insertString(document.getText(0, document.getLength()).indexOf("b_2"), "\n", null);
+        List<FormulaBlock> changed = workspace.update();
+
+        assertEquals(Arrays.asList("b_1", "b_2"), texts(changed));
+        assertEquals(5, workspace.getBlocks().size());
+        assertConsistent();
+    }
+
+    @Test
+    public void keepsUpWithSeveralEditsBeforeAnUpdate() throws BadLocationException {
+        FormulaBlock middle = workspace.getBlocks().get(1);
+
+        document.insertString(0, "y\n\n", null);
+        document.insertString(document.getLength(), "\n\ne", null);
+        document.remove(document.getText(0, document.getLength()).indexOf("d"), 1);
+        List<FormulaBlock> changed = workspace.update();
+
+        assertEquals(Arrays.asList("y", "e"), texts(changed));
+        assertSame(middle, workspace.getBlocks().get(2));
+        assertConsistent();
+    }
+
+    @Test
+    public void findsTheBlockAtAnOffset() {
+        List<FormulaBlock> blocks = workspace.getBlocks();
+
+        assertSame(blocks.get(0), workspace.getBlockAt(0));
+        assertSame(blocks.get(1), workspace.getBlockAt(blocks.get(1).getStart() + 2));
+        // between two blocks the block in front is found
+        assertSame(blocks.get(2), workspace.getBlockAt(blocks.get(2).getEnd() + 1));
+    }
+}
@@ -0,0 +1,239 @@
+package mathpix;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import mathpix.api.response.DetectionResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the {@link MathPixClient} against a stub server on the loopback interface.
+ *
+ * @author Moritz Floeter
+ */
+public class MathPixClientTest {
+
+    private static final Pattern SOURCE = Pattern.compile("\"src\" : \"data:(image/\\w+);base64, ([A-Za-z0-9+/=]*)\"");
+
+    private HttpServer server;
+    private final List<Integer> clientPorts = new CopyOnWriteArrayList<>();
+    private final List<BufferedImage> uploads = new CopyOnWriteArrayList<>();
+    private volatile int status;
+    private volatile String response;
+    private volatile long delayMillis;
+
+    @Before
+    public void startServer() throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/v3/latex", this::answer);
+        server.start();
+        status = 200;
+        response = "{\"latex\": \"x^{2}\", \"latex_confidence\": 0.97}";
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private void answer(HttpExchange exchange) throws IOException {
+        clientPorts.add(exchange.getRemoteAddress().getPort());
+        Matcher source = SOURCE.matcher(new String(readAll(exchange.getRequestBody()), StandardCharsets.US_ASCII));
+        if (source.find()) {
+            uploads.add(ImageIO.read(new ByteArrayInputStream(Base64.getDecoder().decode(source.group(2)))));
+        }
+        if (delayMillis > 0) {
+            try {
+                Thread.sleep(delayMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        byte[] body = response.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json; charset=utf-8");
+        try {
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        } catch (IOException e) {
+            // the client gave up waiting
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+        }
+        return out.toByteArray();
+    }
+
+    private MathPixClient client(int readTimeoutMillis, UploadEncoder encoder) {
+        return new MathPixClient("http://" + InetAddress.getLoopbackAddress().getHostAddress() + ":"
+                + server.getAddress().getPort() + "/v3/latex", "app", "key", 1000, readTimeoutMillis, encoder);
+    }
+
+    private MathPixClient client() {
+        return client(2000, new UploadEncoder());
+    }
+
+    private static BufferedImage formula() {
+        BufferedImage image = new BufferedImage(200, 60, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(Color.WHITE);
+        g.fillRect(0, 0, 200, 60);
+        g.setColor(Color.BLACK);
+        g.setFont(new Font(Font.SERIF, Font.PLAIN, 40));
+        g.drawString("x\u00b2", 20, 45);
+        g.dispose();
+        return image;
+    }
+
+    private static MathPixException recognizeFailing(MathPixClient client) {
+        try {
+            client.recognize(formula());
+        } catch (MathPixException e) {
+            return e;
+        }
+        fail("The request should have failed");
+        return null;
+    }
+
+    @Test
+    public void recognizesAndStreamsTheChosenEncoding() throws MathPixException {
+        DetectionResult result = client().recognize(formula());
+
+        assertEquals("x^{2}", result.getLatex());
+        assertNotNull(result.getUploadEncoding());
+        assertEquals(1, uploads.size());
+        assertNotNull("The upload should be a readable image", uploads.get(0));
+        assertEquals(200, uploads.get(0).getWidth());
+    }
+
+    @Test
+    public void reusesTheConnection() throws MathPixException {
+        MathPixClient client = client();
+        client.recognize(formula());
+        client.recognize(formula());
+        status = 400;
+        recognizeFailing(client);
+        status = 200;
+        client.recognize(formula());
+
+        assertEquals(4, clientPorts.size());
+        for (int port : clientPorts) {
+            assertEquals("Every request, including the one after an error, should use the same connection",
+                    (long) clientPorts.get(0), port);
+        }
+    }
+
+    @Test
+    public void reportsTimeouts() {
+        delayMillis = 1000;
+        MathPixClient client = client(200, new UploadEncoder());
+
+        MathPixException failure = recognizeFailing(client);
+
+        assertEquals(MathPixException.Kind.TIMEOUT, failure.getKind());
+        assertTrue(failure.isRetryable());
+        assertEquals(1, client.getCircuitBreaker().getConsecutiveFailures());
+    }
+
+    @Test
+    public void reportsServerErrorsAsOutage() {
+        status = 503;
+        MathPixClient client = client();
+
+        MathPixException failure = recognizeFailing(client);
+
+        assertEquals(MathPixException.Kind.HTTP, failure.getKind());
+        assertEquals(503, failure.getStatusCode());
+        assertTrue(failure.indicatesOutage());
+        assertEquals(1, client.getCircuitBreaker().getConsecutiveFailures());
+    }
+
+    @Test
+    public void reportsRejectedRequestsWithoutOutage() {
+        status = 401;
+        MathPixClient client = client();
+
+        MathPixException failure = recognizeFailing(client);
+
+        assertEquals(MathPixException.Kind.HTTP, failure.getKind());
+        assertEquals(401, failure.getStatusCode());
+        assertTrue(client.getCircuitBreaker().isHealthy());
+    }
+
+    @Test
+    public void reportsApiErrors() {
+        response = "{\"error\": \"No math found\"}";
+
+        assertEquals(MathPixException.Kind.API, recognizeFailing(client()).getKind());
+    }
+
+    @Test
+    public void reportsInvalidResponses() {
+        response = "{\"latex\": ";
+
+        assertEquals(MathPixException.Kind.INVALID_RESPONSE, recognizeFailing(client()).getKind());
+    }
+
+    @Test
+    public void reportsUnreachableServers() throws IOException {
+        int port;
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            port = socket.getLocalPort();
+        }
+        MathPixClient client = new MathPixClient("http://" + InetAddress.getLoopbackAddress().getHostAddress()
+                + ":" + port + "/v3/latex", "app", "key", 1000, 1000, new UploadEncoder());
+
+        MathPixException failure = recognizeFailing(client);
+
+        assertEquals(MathPixException.Kind.NETWORK, failure.getKind());
+        assertTrue(failure.isOffline());
+    }
+
+    @Test
+    public void reportsImagesThatCanNotBeEncodedWithoutSendingThem() {
+        MathPixClient client = client(2000, new UploadEncoder() {
+            @Override
+            public PreparedUpload prepare(Image image) throws IOException {
+                throw new IOException("No encoder");
+            }
+        });
+
+        MathPixException failure = recognizeFailing(client);
+
+        assertEquals(MathPixException.Kind.IMAGE, failure.getKind());
+        assertTrue(!failure.isRetryable() && !failure.indicatesOutage());
+        assertTrue(client.getCircuitBreaker().isHealthy());
+        assertTrue(clientPorts.isEmpty());
+    }
+}
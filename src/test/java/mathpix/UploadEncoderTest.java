@@ -0,0 +1,131 @@
+package mathpix;
+
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the choices of the {@link UploadEncoder} on a small synthetic corpus of line art and photos.
+ *
+ * @author Moritz Floeter
+ */
+public class UploadEncoderTest {
+
+    /**
+     * Draws something like a formula: strokes of the given width at random places, in black on white or, inverted,
+     * in white on black.
+     */
+    private static BufferedImage lineArt(int width, int height, int strokes, float strokeWidth, boolean inverted) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(inverted ? Color.BLACK : Color.WHITE);
+        g.fillRect(0, 0, width, height);
+        g.setColor(inverted ? Color.WHITE : Color.BLACK);
+        g.setStroke(new BasicStroke(strokeWidth, BasicStroke.CAP_BUTT, BasicStroke.JOIN_MITER));
+        Random random = new Random(7);
+        for (int i = 0; i < strokes; i++) {
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            if (random.nextBoolean()) {
+                g.drawLine(x, y, x + 5 + random.nextInt(60), y);
+            } else {
+                g.drawLine(x, y, x, y + 5 + random.nextInt(60));
+            }
+        }
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * Creates something like a photo: a colored gradient with noise.
+     */
+    private static BufferedImage photo(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(7);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = Math.min(255, 60 + x * 120 / width + random.nextInt(40));
+                int g = Math.min(255, 80 + y * 100 / height + random.nextInt(40));
+                int b = Math.min(255, 100 + random.nextInt(40));
+                image.setRGB(x, y, (r << 16) | (g << 8) | b);
+            }
+        }
+        return image;
+    }
+
+    private static BufferedImage upload(PreparedUpload upload) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        upload.writeTo(out);
+        assertEquals("The upload should have the measured size", upload.getSize(), out.size());
+        return ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    @Test
+    public void sendsFormulasAsGrayPng() throws IOException {
+        PreparedUpload upload = new UploadEncoder().prepare(lineArt(600, 200, 40, 3, false));
+        UploadEncoding encoding = upload.getEncoding();
+
+        assertEquals("png", encoding.getFormat());
+        assertTrue(encoding.isGray());
+        assertEquals(1.0, encoding.getScale(), 0);
+        assertEquals(3.0, encoding.getStrokeWidth(), 1);
+        assertFalse(encoding.isOverBudget());
+        BufferedImage sent = upload(upload);
+        assertEquals(600, sent.getWidth());
+        assertEquals(200, sent.getHeight());
+    }
+
+    @Test
+    public void measuresTheStrokesOfLightFormulasOnDarkBackgrounds() throws IOException {
+        UploadEncoding encoding = new UploadEncoder().prepare(lineArt(600, 200, 40, 3, true)).getEncoding();
+
+        assertEquals("png", encoding.getFormat());
+        assertEquals(3.0, encoding.getStrokeWidth(), 1);
+    }
+
+    @Test
+    public void sendsPhotosAsColorJpeg() throws IOException {
+        PreparedUpload upload = new UploadEncoder().prepare(photo(400, 300));
+        UploadEncoding encoding = upload.getEncoding();
+
+        assertEquals("jpeg", encoding.getFormat());
+        assertFalse(encoding.isGray());
+        assertTrue(encoding.getSize() <= UploadEncoder.DEFAULT_BUDGET_BYTES);
+        assertEquals(400, upload(upload).getWidth());
+    }
+
+    @Test
+    public void scalesLargeImagesDownToTheBudget() throws IOException {
+        int budget = 40_000;
+        PreparedUpload upload = new UploadEncoder(budget, 2).prepare(lineArt(2400, 1600, 3000, 8, false));
+        UploadEncoding encoding = upload.getEncoding();
+
+        assertTrue("The scale is " + encoding.getScale(), encoding.getScale() < 1);
+        assertTrue("The upload has " + encoding.getSize() + " bytes", encoding.getSize() <= budget);
+        assertFalse(encoding.isOverBudget());
+        assertTrue("Strokes should keep the minimum width",
+                encoding.getScale() * encoding.getStrokeWidth() >= 2 - 1e-9);
+        assertEquals(Math.round(2400 * encoding.getScale()), upload(upload).getWidth(), 1);
+    }
+
+    @Test
+    public void neverScalesThinStrokesBelowTheMinimumWidth() throws IOException {
+        int budget = 5_000;
+        PreparedUpload upload = new UploadEncoder(budget, 2).prepare(lineArt(2400, 1600, 3000, 2, false));
+        UploadEncoding encoding = upload.getEncoding();
+
+        assertEquals(1.0, encoding.getScale(), 0);
+        assertTrue(encoding.isOverBudget());
+        assertEquals(2400, upload(upload).getWidth());
+    }
+}